@@ -58,9 +58,14 @@
 #include <sys/socket.h>
 #include <sys/ioctl.h>
 #include <net/if.h>
+#include <poll.h>
 #include <unistd.h>
 #endif /*WIN32*/
 
+#ifdef __linux__
+#include <linux/if_packet.h>
+#endif /*__linux__*/
+
 /*
  *  jNetPcap header files
  * 
@@ -564,18 +569,81 @@ JNIEXPORT jint JNICALL Java_org_jnetpcap_DirectBulkByteBufferWrapper_free__Ljava
 }
 
 /*
- * Class:     org_jnetpcap_Pcap
- * Method:    loop
- * Signature: (IIIZZLorg/jnetpcap/BulkByteBufferHandler;Ljava/lang/Object;)I
+ * Bulk capture loop that wakes up regularly even when no packets are received.
+ * This is used when a maximum latency for partially filled bulks was set.
+ * Instead of pcap_loop, the file descriptor of the pcap handle is polled with
+ * a timeout and available packets are read with pcap_dispatch. After each
+ * iteration, the current bulk is delivered if it was held for too long.
+ * Returns the same values as pcap_loop.
  */
-JNIEXPORT jint JNICALL Java_org_jnetpcap_Pcap_loop__IIIZZLorg_jnetpcap_BulkByteBufferHandler_2Ljava_lang_Object_2
-(JNIEnv *env, jobject obj, jint jcnt, jint bulkSize, jint snapLength, jboolean useIntTs, jboolean useIntermediateBuffer, jobject jhandler, jobject juser) {
+int bulk_loop_with_latency(pcap_t *p, int cnt, pcap_handler callback, cb_bulk_byte_buffer_t *data) {
+#ifdef WIN32
+    return pcap_loop(p, cnt, callback, (u_char *) data);
+#else
+    int fd = pcap_get_selectable_fd(p);
+
+    /*
+     * Offline captures and handles without selectable file descriptor are
+     * handled via the regular loop. For these, partially filled bulks are
+     * still delivered when the loop finishes.
+     */
+    if (fd == -1 || pcap_file(p) != NULL) {
+        return pcap_loop(p, cnt, callback, (u_char *) data);
+    }
 
-//	printf("LOOP-BulkByteBufferHandler\n"); fflush(stdout);
-	if (jhandler == NULL) {
-		throwException(env, NULL_PTR_EXCEPTION, NULL);
-		return -1;
-	}
+    char errbuf[PCAP_ERRBUF_SIZE];
+    int was_nonblock = pcap_getnonblock(p, errbuf);
+    if (was_nonblock == -1 || pcap_setnonblock(p, 1, errbuf) == -1) {
+        return pcap_loop(p, cnt, callback, (u_char *) data);
+    }
+
+    int timeout_ms = (int) ((data->max_latency_us + 999) / 1000);
+    int processed = 0;
+    int r = 0;
+
+    struct pollfd pfd;
+    pfd.fd = fd;
+    pfd.events = POLLIN;
+
+    while (data->exception == NULL) {
+        int wait_ms = timeout_ms;
+        if (data->write_buffer->packets > 0) {
+            jlong remaining_us = data->max_latency_us - (bulk_time_us() - data->bulk_start_us);
+            wait_ms = (remaining_us <= 0) ? 0 : (int) ((remaining_us + 999) / 1000);
+        }
+
+        if (poll(&pfd, 1, wait_ms) == -1 && errno != EINTR) {
+            r = -1;
+            break;
+        }
+
+        int n = pcap_dispatch(p, (cnt > 0) ? (cnt - processed) : -1, callback, (u_char *) data);
+        if (n < 0) {
+            r = n;
+            break;
+        }
+
+        cb_bulk_byte_buffer_check_latency(data);
+
+        processed += n;
+        if (cnt > 0 && processed >= cnt) {
+            break;
+        }
+    }
+
+    pcap_setnonblock(p, was_nonblock, errbuf);
+    return r;
+#endif /*WIN32*/
+}
+
+/*
+ * Common implementation of the bulk capture loops.
+ * When pool is not NULL, packets are written into the slots of the given pool
+ * instead of individually allocated buffers.
+ */
+jint bulk_loop(JNIEnv *env, jobject obj, jint jcnt, jint bulkSize, jint bulkBytes, jint snapLength,
+        jint layout, jboolean useIntTs, jboolean useIntermediateBuffer, jlong maxLatencyUs,
+        jmethodID mid, jobject jhandler, jobject juser, bulk_pool_t *pool) {
 
 	pcap_t *p = getPcap(env, obj);
 	if (p == NULL) {
@@ -593,53 +661,138 @@ JNIEXPORT jint JNICALL Java_org_jnetpcap_Pcap_loop__IIIZZLorg_jnetpcap_BulkByteB
 	data.user = juser;
 	data.p = p;
 	data.exception = NULL;
-	data.mid = BulkByteBufferHandlerNextPacketMID;
+	data.mid = mid;
+
+    if (layout != BULK_LAYOUT_V1 && layout != BULK_LAYOUT_V2) {
+        throwException(env, ILLEGAL_ARGUMENT_EXCEPTION, "Unsupported bulk layout.");
+        return -1;
+    }
 
     pcap_pkthdr dummyHdr;
     int bulkBufferEntrySize = snapLength;
-    bulkBufferEntrySize += sizeof(dummyHdr.caplen);
-    bulkBufferEntrySize += sizeof(dummyHdr.len);
-    if (useIntTs) {
-        bulkBufferEntrySize += (2 * sizeof(int));
+    if (layout == BULK_LAYOUT_V2) {
+        bulkBufferEntrySize = bulk_v2_entry_size(snapLength);
     } else {
-        bulkBufferEntrySize += sizeof(dummyHdr.ts.tv_sec);
-        bulkBufferEntrySize += sizeof(dummyHdr.ts.tv_usec);
+        bulkBufferEntrySize += sizeof(dummyHdr.caplen);
+        bulkBufferEntrySize += sizeof(dummyHdr.len);
+        if (useIntTs) {
+            bulkBufferEntrySize += (2 * sizeof(int));
+        } else {
+            bulkBufferEntrySize += sizeof(dummyHdr.ts.tv_sec);
+            bulkBufferEntrySize += sizeof(dummyHdr.ts.tv_usec);
+        }
+    }
+    long layoutHeaderSize = (layout == BULK_LAYOUT_V2) ? BULK_V2_HEADER_SIZE : 0;
+
+    /*
+     * With a byte budget, packets are packed by their actual caplen until the
+     * budget may not fit another packet. Otherwise, the buffer is sized for
+     * bulkSize packets of the maximum size.
+     */
+    long bulkCapacity;
+    if (bulkBytes > 0) {
+        if (bulkBytes < layoutHeaderSize + bulkBufferEntrySize) {
+            throwException(env, ILLEGAL_ARGUMENT_EXCEPTION,
+                    "The bulk byte budget is smaller than a single packet with the given snap length.");
+            return -1;
+        }
+        bulkCapacity = bulkBytes;
+    } else if (bulkSize > 0) {
+        bulkCapacity = layoutHeaderSize + (long) bulkBufferEntrySize * bulkSize;
+    } else {
+        throwException(env, ILLEGAL_ARGUMENT_EXCEPTION,
+                "Either the bulk size or the bulk byte budget must be larger than zero.");
+        return -1;
     }
 
+    if (pool != NULL && pool->slot_size < bulkCapacity) {
+        throwException(env, ILLEGAL_ARGUMENT_EXCEPTION,
+                "Pool slots are too small for the given bulk size and snap length.");
+        return -1;
+    }
 
     bulk_buffer_t wb_tmp;
-    wb_tmp.data = malloc(bulkBufferEntrySize * bulkSize);
-    wb_tmp.bytes = 0;
-    wb_tmp.packets = 0;
+    if (pool != NULL) {
+        wb_tmp.data = pool->memory + ((long) pool->slot * pool->slot_size);
+    } else {
+        wb_tmp.data = malloc(bulkCapacity);
+    }
     data.write_buffer = &wb_tmp;
+    bulk_buffer_t rb_tmp;
     if (useIntermediateBuffer) {
-        bulk_buffer_t rb_tmp;
-        rb_tmp.data = malloc(bulkBufferEntrySize * bulkSize);
-        rb_tmp.bytes = 0;
-        rb_tmp.packets = 0;
+        rb_tmp.data = malloc(bulkCapacity);
         data.read_buffer = &rb_tmp;
     } else {
         data.read_buffer = NULL;
     }
     data.bulk_size = bulkSize;
     data.bulk_buffer_entry_size = bulkBufferEntrySize;
+    data.bulk_capacity = bulkCapacity;
+    data.max_latency_us = maxLatencyUs;
+    data.bulk_start_us = 0;
+    data.pool = pool;
+    data.layout = layout;
+
+    /*
+     * In layout v2, each record takes at least its header and its entry in
+     * the offset table.
+     */
+    data.record_offsets = NULL;
+    if (layout == BULK_LAYOUT_V2) {
+        long maxRecords = (bulkCapacity - layoutHeaderSize) / (BULK_V2_RECORD_HEADER_SIZE + sizeof(jint));
+        data.record_offsets = (jint *) malloc(maxRecords * sizeof(jint));
+    }
 
-    int r = 0;
-
+    bulk_reset(&data, data.write_buffer);
     if (useIntermediateBuffer) {
+        bulk_reset(&data, data.read_buffer);
+    }
+
+    pcap_handler callback;
+    if (layout == BULK_LAYOUT_V2) {
+        callback = cb_bulk_byte_buffer_dispatch_v2;
+    } else if (useIntermediateBuffer) {
         if (useIntTs) {
-            r = pcap_loop(p, jcnt, cb_bulk_byte_buffer_dispatch_int_ts, (u_char *)&data);
+            callback = cb_bulk_byte_buffer_dispatch_int_ts;
         } else {
-            r = pcap_loop(p, jcnt, cb_bulk_byte_buffer_dispatch, (u_char *)&data);
+            callback = cb_bulk_byte_buffer_dispatch;
         }
     } else {
         if (useIntTs) {
-            r = pcap_loop(p, jcnt, cb_bulk_byte_buffer_dispatch_direct_int_ts, (u_char *)&data);
+            callback = cb_bulk_byte_buffer_dispatch_direct_int_ts;
         } else {
-            r = pcap_loop(p, jcnt, cb_bulk_byte_buffer_dispatch_direct, (u_char *)&data);
+            callback = cb_bulk_byte_buffer_dispatch_direct;
         }
     }
 
+    int r = 0;
+    if (maxLatencyUs > 0) {
+        r = bulk_loop_with_latency(p, jcnt, callback, &data);
+    } else {
+        r = pcap_loop(p, jcnt, callback, (u_char *)&data);
+    }
+
+    /*
+     * Deliver packets that are still held in the write buffer.
+     * Otherwise, the last partially filled bulk would get lost when the loop
+     * is stopped.
+     */
+    cb_bulk_byte_buffer_flush(&data);
+
+    /*
+     * Buffers that were not handed over to Java are owned by this loop.
+     * Pool slots are returned to the pool on the Java side.
+     */
+    if (pool == NULL) {
+        free(data.write_buffer->data);
+    }
+    if (useIntermediateBuffer) {
+        free(data.read_buffer->data);
+    }
+    if (data.record_offsets != NULL) {
+        free(data.record_offsets);
+    }
+
 	if (data.exception != NULL) {
 		env->Throw(data.exception);
 	}
@@ -647,6 +800,114 @@ JNIEXPORT jint JNICALL Java_org_jnetpcap_Pcap_loop__IIIZZLorg_jnetpcap_BulkByteB
 	return r;
 }
 
+/*
+ * Class:     org_jnetpcap_Pcap
+ * Method:    loop
+ * Signature: (IIIIIZZJLorg/jnetpcap/BulkByteBufferHandler;Ljava/lang/Object;)I
+ */
+JNIEXPORT jint JNICALL Java_org_jnetpcap_Pcap_loop__IIIIIZZJLorg_jnetpcap_BulkByteBufferHandler_2Ljava_lang_Object_2
+(JNIEnv *env, jobject obj, jint jcnt, jint bulkSize, jint bulkBytes, jint snapLength, jint layout, jboolean useIntTs, jboolean useIntermediateBuffer, jlong maxLatencyUs, jobject jhandler, jobject juser) {
+
+//	printf("LOOP-BulkByteBufferHandler\n"); fflush(stdout);
+	if (jhandler == NULL) {
+		throwException(env, NULL_PTR_EXCEPTION, NULL);
+		return -1;
+	}
+
+    return bulk_loop(env, obj, jcnt, bulkSize, bulkBytes, snapLength, layout, useIntTs,
+            useIntermediateBuffer, maxLatencyUs, BulkByteBufferHandlerNextPacketMID,
+            jhandler, juser, NULL);
+}
+
+/*
+ * Class:     org_jnetpcap_Pcap
+ * Method:    loopPooled
+ * Signature: (IIIIIZJLorg/jnetpcap/DirectBulkByteBufferPool;Ljava/nio/ByteBuffer;IILorg/jnetpcap/DirectBulkByteBufferHandler;Ljava/lang/Object;)I
+ */
+JNIEXPORT jint JNICALL Java_org_jnetpcap_Pcap_loopPooled
+(JNIEnv *env, jobject obj, jint jcnt, jint bulkSize, jint bulkBytes, jint snapLength, jint layout, jboolean useIntTs, jlong maxLatencyUs, jobject jpool, jobject jmemory, jint slotSize, jint firstSlot, jobject jhandler, jobject juser) {
+
+	if (jhandler == NULL || jpool == NULL || jmemory == NULL) {
+		throwException(env, NULL_PTR_EXCEPTION, NULL);
+		return -1;
+	}
+
+    char *memory = (char *) env->GetDirectBufferAddress(jmemory);
+    if (memory == NULL) {
+        throwException(env, ILLEGAL_ARGUMENT_EXCEPTION,
+                "Pool memory is not a direct buffer.");
+        return -1;
+    }
+
+    jclass poolClass = env->GetObjectClass(jpool);
+    jmethodID deliverMID = env->GetMethodID(poolClass, "deliver",
+            "(IIILorg/jnetpcap/DirectBulkByteBufferHandler;Ljava/lang/Object;)I");
+    env->DeleteLocalRef(poolClass);
+    if (deliverMID == NULL) {
+        return -1; // Exception already thrown
+    }
+
+    bulk_pool_t pool;
+    pool.jpool = jpool;
+    pool.deliver_mid = deliverMID;
+    pool.memory = memory;
+    pool.slot_size = slotSize;
+    pool.slot = firstSlot;
+
+    return bulk_loop(env, obj, jcnt, bulkSize, bulkBytes, snapLength, layout, useIntTs,
+            JNI_FALSE, maxLatencyUs, NULL, jhandler, juser, &pool);
+}
+
+/*
+ * Class:     org_jnetpcap_Pcap
+ * Method:    setFanout
+ * Signature: (IILjava/lang/StringBuilder;)I
+ *
+ * Joins the packet socket of an activated pcap handle into the Linux
+ * PACKET_FANOUT group with the given id. All sockets of a group must use the
+ * same mode. The kernel then distributes the packets among the sockets of the
+ * group instead of delivering each packet to every socket.
+ */
+JNIEXPORT jint JNICALL Java_org_jnetpcap_Pcap_setFanout
+(JNIEnv *env, jobject obj, jint groupId, jint mode, jobject jerrbuf) {
+#if !defined(__linux__) || !defined(PACKET_FANOUT)
+	throwException(env, UNSUPPORTED_OPERATION_EXCEPTION,
+			"PACKET_FANOUT is only supported on Linux.");
+	return -1;
+#else
+
+	if (jerrbuf == NULL) {
+		throwException(env, NULL_PTR_EXCEPTION, NULL);
+		return -1;
+	}
+
+	if (groupId < 0 || groupId > 0xffff) {
+		throwException(env, ILLEGAL_ARGUMENT_EXCEPTION,
+				"Fanout group id must be in the range 0 to 65535.");
+		return -1;
+	}
+
+	pcap_t *p = getPcap(env, obj);
+	if (p == NULL) {
+		return -1; // Exception already thrown
+	}
+
+	int fd = pcap_fileno(p);
+	if (fd < 0) {
+		setString(env, jerrbuf, "Pcap handle is not activated or has no socket.");
+		return -1;
+	}
+
+	int arg = (groupId & 0xffff) | ((mode & 0xffff) << 16);
+	if (setsockopt(fd, SOL_PACKET, PACKET_FANOUT, &arg, sizeof(arg)) != 0) {
+		setString(env, jerrbuf, strerror(errno));
+		return -1;
+	}
+
+	return 0;
+#endif
+}
+
 /*
  * Class:     org_jnetpcap_Pcap
  * Method:    loop
@@ -0,0 +1,448 @@
+/***************************************************************************
+ * Copyright (C) 2007, Sly Technologies, Inc                               *
+ * Distributed under the Lesser GNU Public License  (LGPL)                 *
+ ***************************************************************************/
+
+/*
+ * Linux AF_PACKET TPACKET_V3 receive ring.
+ *
+ * The kernel writes the captured packets directly into blocks of a ring that
+ * is memory mapped into our address space. Full, or timed out, blocks are
+ * handed to Java as they are, without copying the packets again. A block is
+ * returned to the kernel when Java releases it.
+ *
+ * On other platforms, all functions throw UnsupportedOperationException.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <stdint.h>
+#include <pcap.h>
+#include <jni.h>
+
+#ifdef __linux__
+#include <errno.h>
+#include <string.h>
+#include <poll.h>
+#include <unistd.h>
+#include <arpa/inet.h>
+#include <net/if.h>
+#include <sys/mman.h>
+#include <sys/socket.h>
+#include <sys/types.h>
+#include <linux/filter.h>
+#include <linux/if_ether.h>
+#include <linux/if_packet.h>
+#endif /*__linux__*/
+
+#include "jnetpcap_utils.h"
+#include "org_jnetpcap_TpacketV3Ring.h"
+#include "export.h"
+
+#if defined(__linux__) && defined(TPACKET3_HDRLEN)
+#define TPACKET_V3_SUPPORTED
+#endif
+
+#ifdef TPACKET_V3_SUPPORTED
+
+typedef struct tpacket_ring_t {
+	int fd;
+	int ifindex;
+	int snaplen;
+	char *map;
+	size_t map_size;
+	unsigned int block_size;
+	unsigned int block_count;
+} tpacket_ring_t;
+
+#define TPACKET_RING(handle) ((tpacket_ring_t *) (intptr_t) (handle))
+
+static void tpacket_ring_free(tpacket_ring_t *ring) {
+	if (ring->map != NULL && ring->map != MAP_FAILED) {
+		munmap(ring->map, ring->map_size);
+	}
+	if (ring->fd >= 0) {
+		close(ring->fd);
+	}
+	free(ring);
+}
+
+static struct tpacket_block_desc *tpacket_block(tpacket_ring_t *ring, jint block) {
+	return (struct tpacket_block_desc *) (ring->map + (size_t) block * ring->block_size);
+}
+
+/*
+ * Sets errbuf to the given message followed by the description of errno.
+ */
+static void tpacket_set_errno(JNIEnv *env, jobject jerrbuf, const char *msg) {
+	char buf[PCAP_ERRBUF_SIZE];
+	snprintf(buf, sizeof(buf), "%s: %s", msg, strerror(errno));
+	setString(env, jerrbuf, buf);
+}
+
+#endif /*TPACKET_V3_SUPPORTED*/
+
+/*
+ * Class:     org_jnetpcap_TpacketV3Ring
+ * Method:    openRing
+ * Signature: (Ljava/lang/String;IIIIIZLjava/lang/StringBuilder;)J
+ */
+JNIEXPORT jlong JNICALL Java_org_jnetpcap_TpacketV3Ring_openRing
+(JNIEnv *env, jclass clazz, jstring jdevice, jint blockSize, jint blockCount, jint frameSize, jint blockTimeoutMs, jint snaplen, jboolean promisc, jobject jerrbuf) {
+#ifndef TPACKET_V3_SUPPORTED
+	throwException(env, UNSUPPORTED_OPERATION_EXCEPTION,
+			"TPACKET_V3 rings are only supported on Linux.");
+	return 0;
+#else
+
+	if (jdevice == NULL || jerrbuf == NULL) {
+		throwException(env, NULL_PTR_EXCEPTION, NULL);
+		return 0;
+	}
+
+	if (blockSize <= 0 || blockCount <= 0 || frameSize <= 0
+			|| blockSize % frameSize != 0) {
+		throwException(env, ILLEGAL_ARGUMENT_EXCEPTION,
+				"Block size and count must be positive and the block size a multiple of the frame size.");
+		return 0;
+	}
+
+	tpacket_ring_t *ring = (tpacket_ring_t *) calloc(1, sizeof(tpacket_ring_t));
+	if (ring == NULL) {
+		throwException(env, OUT_OF_MEMORY_ERROR, "Unable to allocate ring.");
+		return 0;
+	}
+	ring->fd = -1;
+	ring->snaplen = snaplen;
+	ring->block_size = (unsigned int) blockSize;
+	ring->block_count = (unsigned int) blockCount;
+
+	const char *device = env->GetStringUTFChars(jdevice, NULL);
+	int any = (strcmp(device, "any") == 0);
+	ring->ifindex = any ? 0 : (int) if_nametoindex(device);
+	env->ReleaseStringUTFChars(jdevice, device);
+
+	/* Binding to ifindex 0 captures on all devices. So, this must only
+	 * happen when "any" was requested. */
+	if (!any && ring->ifindex == 0) {
+		setString(env, jerrbuf, "No such device.");
+		free(ring);
+		return 0;
+	}
+
+	ring->fd = socket(AF_PACKET, SOCK_RAW, htons(ETH_P_ALL));
+	if (ring->fd < 0) {
+		tpacket_set_errno(env, jerrbuf, "socket(AF_PACKET) failed");
+		tpacket_ring_free(ring);
+		return 0;
+	}
+
+	int version = TPACKET_V3;
+	if (setsockopt(ring->fd, SOL_PACKET, PACKET_VERSION, &version, sizeof(version)) != 0) {
+		tpacket_set_errno(env, jerrbuf, "Setting TPACKET_V3 failed");
+		tpacket_ring_free(ring);
+		return 0;
+	}
+
+	struct tpacket_req3 req;
+	memset(&req, 0, sizeof(req));
+	req.tp_block_size = ring->block_size;
+	req.tp_block_nr = ring->block_count;
+	req.tp_frame_size = (unsigned int) frameSize;
+	req.tp_frame_nr = (ring->block_size / req.tp_frame_size) * ring->block_count;
+	req.tp_retire_blk_tov = (unsigned int) (blockTimeoutMs > 0 ? blockTimeoutMs : 0);
+
+	if (setsockopt(ring->fd, SOL_PACKET, PACKET_RX_RING, &req, sizeof(req)) != 0) {
+		tpacket_set_errno(env, jerrbuf, "Setting up the receive ring failed");
+		tpacket_ring_free(ring);
+		return 0;
+	}
+
+	ring->map_size = (size_t) ring->block_size * ring->block_count;
+	ring->map = (char *) mmap(NULL, ring->map_size, PROT_READ | PROT_WRITE,
+			MAP_SHARED, ring->fd, 0);
+	if (ring->map == MAP_FAILED) {
+		tpacket_set_errno(env, jerrbuf, "Mapping the receive ring failed");
+		tpacket_ring_free(ring);
+		return 0;
+	}
+
+	struct sockaddr_ll ll;
+	memset(&ll, 0, sizeof(ll));
+	ll.sll_family = AF_PACKET;
+	ll.sll_protocol = htons(ETH_P_ALL);
+	ll.sll_ifindex = ring->ifindex;
+	if (bind(ring->fd, (struct sockaddr *) &ll, sizeof(ll)) != 0) {
+		tpacket_set_errno(env, jerrbuf, "Binding the packet socket failed");
+		tpacket_ring_free(ring);
+		return 0;
+	}
+
+	if (promisc == JNI_TRUE && ring->ifindex > 0) {
+		struct packet_mreq mreq;
+		memset(&mreq, 0, sizeof(mreq));
+		mreq.mr_ifindex = ring->ifindex;
+		mreq.mr_type = PACKET_MR_PROMISC;
+		if (setsockopt(ring->fd, SOL_PACKET, PACKET_ADD_MEMBERSHIP, &mreq, sizeof(mreq)) != 0) {
+			tpacket_set_errno(env, jerrbuf, "Enabling promiscuous mode failed");
+			tpacket_ring_free(ring);
+			return 0;
+		}
+	}
+
+	return (jlong) (intptr_t) ring;
+#endif
+}
+
+/*
+ * Class:     org_jnetpcap_TpacketV3Ring
+ * Method:    mapping
+ * Signature: (J)Ljava/nio/ByteBuffer;
+ */
+JNIEXPORT jobject JNICALL Java_org_jnetpcap_TpacketV3Ring_mapping
+(JNIEnv *env, jclass clazz, jlong handle) {
+#ifndef TPACKET_V3_SUPPORTED
+	throwException(env, UNSUPPORTED_OPERATION_EXCEPTION, NULL);
+	return NULL;
+#else
+	tpacket_ring_t *ring = TPACKET_RING(handle);
+	return env->NewDirectByteBuffer(ring->map, (jlong) ring->map_size);
+#endif
+}
+
+/*
+ * Class:     org_jnetpcap_TpacketV3Ring
+ * Method:    nextBlock
+ * Signature: (JII)I
+ *
+ * Waits up to timeoutMs for the given block to be handed over by the kernel.
+ * Returns 1 if the block is ready, 0 on timeout, and -1 on error.
+ */
+JNIEXPORT jint JNICALL Java_org_jnetpcap_TpacketV3Ring_nextBlock
+(JNIEnv *env, jclass clazz, jlong handle, jint block, jint timeoutMs) {
+#ifndef TPACKET_V3_SUPPORTED
+	throwException(env, UNSUPPORTED_OPERATION_EXCEPTION, NULL);
+	return -1;
+#else
+	tpacket_ring_t *ring = TPACKET_RING(handle);
+	volatile struct tpacket_block_desc *desc = tpacket_block(ring, block);
+
+	if ((desc->hdr.bh1.block_status & TP_STATUS_USER) == 0) {
+		struct pollfd pfd;
+		pfd.fd = ring->fd;
+		pfd.events = POLLIN | POLLERR;
+		pfd.revents = 0;
+
+		if (poll(&pfd, 1, timeoutMs) < 0 && errno != EINTR) {
+			return -1;
+		}
+
+		if ((desc->hdr.bh1.block_status & TP_STATUS_USER) == 0) {
+			return 0;
+		}
+	}
+
+	/* Do not read the block content before the status. */
+	__sync_synchronize();
+	return 1;
+#endif
+}
+
+/*
+ * Class:     org_jnetpcap_TpacketV3Ring
+ * Method:    releaseBlock
+ * Signature: (JI)V
+ */
+JNIEXPORT void JNICALL Java_org_jnetpcap_TpacketV3Ring_releaseBlock
+(JNIEnv *env, jclass clazz, jlong handle, jint block) {
+#ifndef TPACKET_V3_SUPPORTED
+	throwException(env, UNSUPPORTED_OPERATION_EXCEPTION, NULL);
+#else
+	tpacket_ring_t *ring = TPACKET_RING(handle);
+	volatile struct tpacket_block_desc *desc = tpacket_block(ring, block);
+
+	/* All reads of the block content have to be finished before the kernel
+	 * may overwrite it. */
+	__sync_synchronize();
+	desc->hdr.bh1.block_status = TP_STATUS_KERNEL;
+	__sync_synchronize();
+#endif
+}
+
+/*
+ * Class:     org_jnetpcap_TpacketV3Ring
+ * Method:    stats
+ * Signature: (J[J)I
+ *
+ * Reads and resets the kernel statistics of the socket. out receives the
+ * number of received packets, dropped packets, and how often the queue was
+ * frozen because no free block was available.
+ */
+JNIEXPORT jint JNICALL Java_org_jnetpcap_TpacketV3Ring_stats
+(JNIEnv *env, jclass clazz, jlong handle, jlongArray jout) {
+#ifndef TPACKET_V3_SUPPORTED
+	throwException(env, UNSUPPORTED_OPERATION_EXCEPTION, NULL);
+	return -1;
+#else
+	if (jout == NULL || env->GetArrayLength(jout) < 3) {
+		throwException(env, ILLEGAL_ARGUMENT_EXCEPTION,
+				"Stats array must hold at least 3 elements.");
+		return -1;
+	}
+
+	tpacket_ring_t *ring = TPACKET_RING(handle);
+	struct tpacket_stats_v3 st;
+	socklen_t len = sizeof(st);
+	memset(&st, 0, sizeof(st));
+
+	if (getsockopt(ring->fd, SOL_PACKET, PACKET_STATISTICS, &st, &len) != 0) {
+		return -1;
+	}
+
+	jlong out[3];
+	out[0] = (jlong) st.tp_packets;
+	out[1] = (jlong) st.tp_drops;
+	out[2] = (jlong) st.tp_freeze_q_cnt;
+	env->SetLongArrayRegion(jout, 0, 3, out);
+
+	return 0;
+#endif
+}
+
+/*
+ * Class:     org_jnetpcap_TpacketV3Ring
+ * Method:    setFilter
+ * Signature: (JLjava/lang/String;ILjava/lang/StringBuilder;)I
+ *
+ * Compiles the filter for ethernet and attaches it to the socket. The filter
+ * also truncates the packets to the snap length of the ring.
+ */
+JNIEXPORT jint JNICALL Java_org_jnetpcap_TpacketV3Ring_setFilter
+(JNIEnv *env, jclass clazz, jlong handle, jstring jfilter, jint optimize, jobject jerrbuf) {
+#ifndef TPACKET_V3_SUPPORTED
+	throwException(env, UNSUPPORTED_OPERATION_EXCEPTION, NULL);
+	return -1;
+#else
+	if (jfilter == NULL || jerrbuf == NULL) {
+		throwException(env, NULL_PTR_EXCEPTION, NULL);
+		return -1;
+	}
+
+	tpacket_ring_t *ring = TPACKET_RING(handle);
+	pcap_t *dead = pcap_open_dead(DLT_EN10MB, ring->snaplen);
+	if (dead == NULL) {
+		setString(env, jerrbuf, "Unable to compile filter.");
+		return -1;
+	}
+
+	struct bpf_program program;
+	const char *str = env->GetStringUTFChars(jfilter, NULL);
+	int r = pcap_compile(dead, &program, (char *) str, optimize, 0);
+	env->ReleaseStringUTFChars(jfilter, str);
+
+	if (r != 0) {
+		setString(env, jerrbuf, pcap_geterr(dead));
+		pcap_close(dead);
+		return -1;
+	}
+
+	struct sock_fprog fprog;
+	fprog.len = (unsigned short) program.bf_len;
+	fprog.filter = (struct sock_filter *) program.bf_insns;
+
+	r = setsockopt(ring->fd, SOL_SOCKET, SO_ATTACH_FILTER, &fprog, sizeof(fprog));
+	if (r != 0) {
+		tpacket_set_errno(env, jerrbuf, "Attaching the filter failed");
+	}
+
+	pcap_freecode(&program);
+	pcap_close(dead);
+
+	return (r == 0) ? 0 : -1;
+#endif
+}
+
+/*
+ * Class:     org_jnetpcap_TpacketV3Ring
+ * Method:    setFanout
+ * Signature: (JIILjava/lang/StringBuilder;)I
+ */
+JNIEXPORT jint JNICALL Java_org_jnetpcap_TpacketV3Ring_setFanout
+(JNIEnv *env, jclass clazz, jlong handle, jint groupId, jint mode, jobject jerrbuf) {
+#if !defined(TPACKET_V3_SUPPORTED) || !defined(PACKET_FANOUT)
+	throwException(env, UNSUPPORTED_OPERATION_EXCEPTION, NULL);
+	return -1;
+#else
+	if (jerrbuf == NULL) {
+		throwException(env, NULL_PTR_EXCEPTION, NULL);
+		return -1;
+	}
+
+	if (groupId < 0 || groupId > 0xffff) {
+		throwException(env, ILLEGAL_ARGUMENT_EXCEPTION,
+				"Fanout group id must be in the range 0 to 65535.");
+		return -1;
+	}
+
+	tpacket_ring_t *ring = TPACKET_RING(handle);
+	int arg = (groupId & 0xffff) | ((mode & 0xffff) << 16);
+	if (setsockopt(ring->fd, SOL_PACKET, PACKET_FANOUT, &arg, sizeof(arg)) != 0) {
+		tpacket_set_errno(env, jerrbuf, "Setting the fanout group failed");
+		return -1;
+	}
+
+	return 0;
+#endif
+}
+
+/*
+ * Class:     org_jnetpcap_TpacketV3Ring
+ * Method:    sendPacket
+ * Signature: (J[BLjava/lang/StringBuilder;)I
+ */
+JNIEXPORT jint JNICALL Java_org_jnetpcap_TpacketV3Ring_sendPacket
+(JNIEnv *env, jclass clazz, jlong handle, jbyteArray jdata, jobject jerrbuf) {
+#ifndef TPACKET_V3_SUPPORTED
+	throwException(env, UNSUPPORTED_OPERATION_EXCEPTION, NULL);
+	return -1;
+#else
+	if (jdata == NULL || jerrbuf == NULL) {
+		throwException(env, NULL_PTR_EXCEPTION, NULL);
+		return -1;
+	}
+
+	tpacket_ring_t *ring = TPACKET_RING(handle);
+	if (ring->ifindex <= 0) {
+		setString(env, jerrbuf, "Sending requires a ring that is bound to a device.");
+		return -1;
+	}
+
+	jsize len = env->GetArrayLength(jdata);
+	jbyte *data = env->GetByteArrayElements(jdata, NULL);
+	ssize_t r = send(ring->fd, data, (size_t) len, 0);
+	env->ReleaseByteArrayElements(jdata, data, JNI_ABORT);
+
+	if (r < 0) {
+		tpacket_set_errno(env, jerrbuf, "Sending the packet failed");
+		return -1;
+	}
+
+	return 0;
+#endif
+}
+
+/*
+ * Class:     org_jnetpcap_TpacketV3Ring
+ * Method:    closeRing
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_org_jnetpcap_TpacketV3Ring_closeRing
+(JNIEnv *env, jclass clazz, jlong handle) {
+#ifndef TPACKET_V3_SUPPORTED
+	throwException(env, UNSUPPORTED_OPERATION_EXCEPTION, NULL);
+#else
+	if (handle != 0) {
+		tpacket_ring_free(TPACKET_RING(handle));
+	}
+#endif
+}
@@ -22,6 +22,7 @@
 #include <sys/ioctl.h>
 #include <net/if.h>
 #include <netinet/in.h>
+#include <time.h>
 #include <unistd.h>
 #endif /*WIN32*/
 
@@ -737,13 +738,59 @@ void pcap_callback(u_char *user, const pcap_pkthdr *pkt_header,
 }
 
 /**
- * Bulk dispatcher that allocates a new java.nio.ByteBuffer and dispatches
- * it to java listener. This version casts the timestamp values to int.
+ * Returns a monotonic time stamp in microseconds.
+ * This is used for determining how long a partially filled bulk was held.
  */
-void cb_bulk_byte_buffer_dispatch_int_ts(u_char *user, const pcap_pkthdr *pkt_header,
+jlong bulk_time_us() {
+#ifdef WIN32
+    return ((jlong) GetTickCount()) * 1000;
+#else
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ((jlong) ts.tv_sec) * 1000000 + ts.tv_nsec / 1000;
+#endif /*WIN32*/
+}
+
+/**
+ * Returns non-zero if the current write buffer has to be delivered.
+ * This is the case when the bulk holds the maximum number of packets, when
+ * the remaining space may not fit another packet, or, if a maximum latency
+ * was set, when the first packet in the bulk is older than the maximum latency.
+ */
+int bulk_is_due(cb_bulk_byte_buffer_t *data) {
+    if (data->write_buffer->packets <= 0) {
+        return 0;
+    }
+
+    if (data->bulk_size > 0 && data->write_buffer->packets >= data->bulk_size) {
+        return 1;
+    }
+
+    /*
+     * In layout v2, each record additionally needs space in the offset table.
+     */
+    long used = data->write_buffer->bytes;
+    if (data->layout == BULK_LAYOUT_V2) {
+        used += data->write_buffer->packets * sizeof(jint);
+    }
+    if (data->bulk_capacity - used < data->bulk_buffer_entry_size) {
+        return 1;
+    }
+
+    return data->max_latency_us > 0
+            && (bulk_time_us() - data->bulk_start_us) >= data->max_latency_us;
+}
+
+/**
+ * Append a single packet to the current write buffer.
+ * This version casts the timestamp values to int.
+ */
+void bulk_append_int_ts(cb_bulk_byte_buffer_t *data, const pcap_pkthdr *pkt_header,
 		const u_char *pkt_data) {
 
-	cb_bulk_byte_buffer_t *data = (cb_bulk_byte_buffer_t *)user;
+    if (data->write_buffer->packets == 0 && data->max_latency_us > 0) {
+        data->bulk_start_us = bulk_time_us();
+    }
 
     int offset = 0;
     char *data_ptr = (char *) data->write_buffer->data;
@@ -760,47 +807,17 @@ void cb_bulk_byte_buffer_dispatch_int_ts(u_char *user, const pcap_pkthdr *pkt_he
     memcpy((void *) (data_ptr + data->write_buffer->bytes + offset), (void *) pkt_data, pkt_header->caplen);
     data->write_buffer->bytes += offset + pkt_header->caplen;
     data->write_buffer->packets++;
-
-    if (data->write_buffer->packets < data->bulk_size) {
-        return;
-    }
-
-    bulk_buffer_t *tmp_buffer = data->read_buffer;
-    data->read_buffer = data->write_buffer;
-    data->write_buffer = tmp_buffer;
-    data->write_buffer->bytes = 0;
-    data->write_buffer->packets = 0;
-
-	JNIEnv *env = data->env;
-
-    jobject buffer = env->NewDirectByteBuffer((void *) data->read_buffer->data,
-			data->read_buffer->bytes);
-	if (buffer == NULL) {
-		return;
-	}
-
-	env->CallVoidMethod(
-			data->obj,
-			data->mid,
-			(jobject) buffer,
-			(jobject) data->user);
-
-	env->DeleteLocalRef(buffer);
-
-	if (env->ExceptionCheck() == JNI_TRUE) {
-		data->exception = env->ExceptionOccurred();
-		pcap_breakloop(data->p);
-	}
 }
 
 /**
- * Bulk dispatcher that allocates a new java.nio.ByteBuffer and dispatches
- * it to java listener.
+ * Append a single packet to the current write buffer.
  */
-void cb_bulk_byte_buffer_dispatch(u_char *user, const pcap_pkthdr *pkt_header,
+void bulk_append(cb_bulk_byte_buffer_t *data, const pcap_pkthdr *pkt_header,
 		const u_char *pkt_data) {
 
-	cb_bulk_byte_buffer_t *data = (cb_bulk_byte_buffer_t *)user;
+    if (data->write_buffer->packets == 0 && data->max_latency_us > 0) {
+        data->bulk_start_us = bulk_time_us();
+    }
 
     int offset = 0;
     char *data_ptr = (char *) data->write_buffer->data;
@@ -815,76 +832,182 @@ void cb_bulk_byte_buffer_dispatch(u_char *user, const pcap_pkthdr *pkt_header,
     memcpy((void *) (data_ptr + data->write_buffer->bytes + offset), (void *) pkt_data, pkt_header->caplen);
     data->write_buffer->bytes += offset + pkt_header->caplen;
     data->write_buffer->packets++;
+}
 
-    if (data->write_buffer->packets < data->bulk_size) {
-        return;
+/**
+ * Returns the space a record of at most snap_length bytes of captured data
+ * needs in layout v2, including padding and its entry in the offset table.
+ */
+long bulk_v2_entry_size(int snap_length) {
+    long size = BULK_V2_RECORD_HEADER_SIZE + snap_length;
+    size += (BULK_V2_ALIGNMENT - (size % BULK_V2_ALIGNMENT)) % BULK_V2_ALIGNMENT;
+    return size + sizeof(jint);
+}
+
+/**
+ * Reset the given buffer for receiving a new bulk.
+ * In layout v2, the space for the header is reserved at the start.
+ */
+void bulk_reset(cb_bulk_byte_buffer_t *data, bulk_buffer_t *buffer) {
+    buffer->bytes = (data->layout == BULK_LAYOUT_V2) ? BULK_V2_HEADER_SIZE : 0;
+    buffer->packets = 0;
+}
+
+/**
+ * Append a single packet to the current write buffer using layout v2.
+ */
+void bulk_append_v2(cb_bulk_byte_buffer_t *data, const pcap_pkthdr *pkt_header,
+		const u_char *pkt_data) {
+
+    if (data->write_buffer->packets == 0 && data->max_latency_us > 0) {
+        data->bulk_start_us = bulk_time_us();
     }
 
-    bulk_buffer_t *tmp_buffer = data->read_buffer;
-    data->read_buffer = data->write_buffer;
-    data->write_buffer = tmp_buffer;
-    data->write_buffer->bytes = 0;
-    data->write_buffer->packets = 0;
+    char *record = ((char *) data->write_buffer->data) + data->write_buffer->bytes;
+    jint record_header[4];
+    record_header[0] = (jint) pkt_header->ts.tv_sec;
+    record_header[1] = (jint) pkt_header->ts.tv_usec;
+    record_header[2] = (jint) pkt_header->caplen;
+    record_header[3] = (jint) pkt_header->len;
+    memcpy((void *) record, record_header, BULK_V2_RECORD_HEADER_SIZE);
+    memcpy((void *) (record + BULK_V2_RECORD_HEADER_SIZE), (void *) pkt_data, pkt_header->caplen);
+
+    long record_size = BULK_V2_RECORD_HEADER_SIZE + pkt_header->caplen;
+    long padding = (BULK_V2_ALIGNMENT - (record_size % BULK_V2_ALIGNMENT)) % BULK_V2_ALIGNMENT;
+    memset((void *) (record + record_size), 0, padding);
+
+    data->record_offsets[data->write_buffer->packets] = (jint) data->write_buffer->bytes;
+    data->write_buffer->bytes += record_size + padding;
+    data->write_buffer->packets++;
+}
 
-	JNIEnv *env = data->env;
+/**
+ * Write the header and the offset table of a bulk in layout v2.
+ * Afterwards, the bytes of the write buffer cover the entire bulk.
+ */
+void bulk_finish_v2(cb_bulk_byte_buffer_t *data) {
+    char *bulk = (char *) data->write_buffer->data;
+    jint table_offset = (jint) data->write_buffer->bytes;
+    jint count = (jint) data->write_buffer->packets;
+
+    memcpy((void *) (bulk + table_offset), data->record_offsets, count * sizeof(jint));
+    data->write_buffer->bytes += count * sizeof(jint);
+
+    jint one = 1;
+    jint magic = BULK_V2_MAGIC;
+    jshort version = BULK_LAYOUT_V2;
+    jbyte byte_order = (*((char *) &one) == 1) ? BULK_V2_LITTLE_ENDIAN : BULK_V2_BIG_ENDIAN;
+    jbyte ts_precision = BULK_V2_TS_PRECISION_US;
+    jint header_size = BULK_V2_HEADER_SIZE;
+    jint total = (jint) data->write_buffer->bytes;
+
+    memset((void *) bulk, 0, BULK_V2_HEADER_SIZE);
+    memcpy((void *) bulk, &magic, sizeof(magic));
+    memcpy((void *) (bulk + 4), &version, sizeof(version));
+    memcpy((void *) (bulk + 6), &byte_order, sizeof(byte_order));
+    memcpy((void *) (bulk + 7), &ts_precision, sizeof(ts_precision));
+    memcpy((void *) (bulk + 8), &count, sizeof(count));
+    memcpy((void *) (bulk + 12), &header_size, sizeof(header_size));
+    memcpy((void *) (bulk + 16), &table_offset, sizeof(table_offset));
+    memcpy((void *) (bulk + 20), &total, sizeof(total));
+}
 
-    jobject buffer = env->NewDirectByteBuffer((void *) data->read_buffer->data,
-			data->read_buffer->bytes);
-	if (buffer == NULL) {
-		return;
-	}
+/**
+ * Hand the bulk in the current pool slot over to the pool.
+ * The pool wraps the slot, dispatches it to the Java listener, and returns
+ * the slot into which subsequent packets are written. When the pool is
+ * exhausted and drops the bulk, the same slot is returned and overwritten.
+ */
+void bulk_deliver_pooled(cb_bulk_byte_buffer_t *data) {
 
-	env->CallVoidMethod(
-			data->obj,
-			data->mid,
-			(jobject) buffer,
-			(jobject) data->user);
+	JNIEnv *env = data->env;
+    bulk_pool_t *pool = data->pool;
 
-	env->DeleteLocalRef(buffer);
+    jint next = env->CallIntMethod(
+            pool->jpool,
+            pool->deliver_mid,
+            (jint) pool->slot,
+            (jint) data->write_buffer->bytes,
+            (jint) data->write_buffer->packets,
+            data->obj,
+            data->user);
+
+    bulk_reset(data, data->write_buffer);
 
 	if (env->ExceptionCheck() == JNI_TRUE) {
 		data->exception = env->ExceptionOccurred();
 		pcap_breakloop(data->p);
+		return;
 	}
+
+    pool->slot = next;
+    data->write_buffer->data = pool->memory + ((long) next * pool->slot_size);
 }
 
 /**
- * Bulk dispatcher that allocates a new java.nio.ByteBuffer and dispatches
- * it to java listener. This version casts the timestamp values to int.
+ * Hand the bulk in the write buffer over to the Java listener.
+ * When an intermediate buffer is used, write and read buffer are swapped.
+ * When a buffer pool is used, the bulk is handed over via the pool.
+ * Otherwise, the current write buffer is handed over as-is and a new write
+ * buffer is allocated. In this case, the Java side is responsible for freeing
+ * the memory of the handed over buffer.
  */
-void cb_bulk_byte_buffer_dispatch_direct_int_ts(u_char *user, const pcap_pkthdr *pkt_header,
-		const u_char *pkt_data) {
+void bulk_deliver(cb_bulk_byte_buffer_t *data) {
 
-	cb_bulk_byte_buffer_t *data = (cb_bulk_byte_buffer_t *)user;
+	JNIEnv *env = data->env;
+    jobject buffer;
 
-    int offset = 0;
-    char *data_ptr = (char *) data->write_buffer->data;
-    int tv_sec = (int) pkt_header->ts.tv_sec;
-    memcpy((void *) (data_ptr + data->write_buffer->bytes), &(tv_sec), sizeof(tv_sec));
-    offset += sizeof(tv_sec);
-    int tv_usec = (int) pkt_header->ts.tv_usec;
-    memcpy((void *) (data_ptr + data->write_buffer->bytes + offset), &(tv_usec), sizeof(tv_usec));
-    offset += sizeof(tv_usec);
-    memcpy((void *) (data_ptr + data->write_buffer->bytes + offset), &(pkt_header->caplen), sizeof(pkt_header->caplen));
-    offset += sizeof(pkt_header->caplen);
-    memcpy((void *) (data_ptr + data->write_buffer->bytes + offset), &(pkt_header->len), sizeof(pkt_header->len));
-    offset += sizeof(pkt_header->len);
-    memcpy((void *) (data_ptr + data->write_buffer->bytes + offset), (void *) pkt_data, pkt_header->caplen);
-    data->write_buffer->bytes += offset + pkt_header->caplen;
-    data->write_buffer->packets++;
+    if (data->layout == BULK_LAYOUT_V2) {
+        bulk_finish_v2(data);
+    }
 
-    if (data->write_buffer->packets < data->bulk_size) {
+    if (data->pool != NULL) {
+        bulk_deliver_pooled(data);
         return;
     }
 
-	JNIEnv *env = data->env;
-
-    jobject buffer = env->NewDirectByteBuffer((void *) data->write_buffer->data,
-			data->write_buffer->bytes);
-
-    data->write_buffer->data = malloc(data->bulk_buffer_entry_size * data->bulk_size);
-    data->write_buffer->bytes = 0;
-    data->write_buffer->packets = 0;
+    if (data->read_buffer != NULL) {
+        bulk_buffer_t *tmp_buffer = data->read_buffer;
+        data->read_buffer = data->write_buffer;
+        data->write_buffer = tmp_buffer;
+        bulk_reset(data, data->write_buffer);
+
+        buffer = env->NewDirectByteBuffer((void *) data->read_buffer->data,
+                data->read_buffer->bytes);
+    } else {
+        /*
+         * Allocate the next write buffer before the current one is handed
+         * over. On failure, the current memory is kept and reused such that
+         * the write buffer never points to unallocated memory.
+         */
+        void *next = malloc(data->bulk_capacity);
+        if (next == NULL) {
+            bulk_reset(data, data->write_buffer);
+            throwException(env, OUT_OF_MEMORY_ERROR,
+                    "Could not allocate the next bulk buffer.");
+            data->exception = env->ExceptionOccurred();
+            pcap_breakloop(data->p);
+            return;
+        }
+
+        buffer = env->NewDirectByteBuffer((void *) data->write_buffer->data,
+                data->write_buffer->bytes);
+
+        if (buffer == NULL) {
+            free(next);
+            bulk_reset(data, data->write_buffer);
+            if (env->ExceptionCheck() != JNI_TRUE) {
+                throwException(env, OUT_OF_MEMORY_ERROR,
+                        "Could not create a direct buffer for the bulk.");
+            }
+            data->exception = env->ExceptionOccurred();
+            pcap_breakloop(data->p);
+            return;
+        }
+
+        data->write_buffer->data = next;
+        bulk_reset(data, data->write_buffer);
+    }
 
 	if (buffer == NULL) {
 		return;
@@ -904,58 +1027,111 @@ void cb_bulk_byte_buffer_dispatch_direct_int_ts(u_char *user, const pcap_pkthdr
 	}
 }
 
+/**
+ * Deliver the current write buffer if it is due.
+ * This is intended for being called when no packet was received for some time
+ * so that bulks are delivered even when the bulk size is not reached.
+ */
+void cb_bulk_byte_buffer_check_latency(cb_bulk_byte_buffer_t *data) {
+    if (data->exception == NULL && bulk_is_due(data)) {
+        bulk_deliver(data);
+    }
+}
+
+/**
+ * Deliver any remaining packets in the write buffer regardless of the bulk
+ * size. This is used for the final flush when the capture loop ends.
+ */
+void cb_bulk_byte_buffer_flush(cb_bulk_byte_buffer_t *data) {
+    if (data->exception == NULL && data->write_buffer->packets > 0) {
+        bulk_deliver(data);
+    }
+}
+
+/**
+ * Bulk dispatcher that allocates a new java.nio.ByteBuffer and dispatches
+ * it to java listener. This version casts the timestamp values to int.
+ */
+void cb_bulk_byte_buffer_dispatch_int_ts(u_char *user, const pcap_pkthdr *pkt_header,
+		const u_char *pkt_data) {
+
+	cb_bulk_byte_buffer_t *data = (cb_bulk_byte_buffer_t *)user;
+
+    if (data->exception != NULL) {
+        return;
+    }
+
+    bulk_append_int_ts(data, pkt_header, pkt_data);
+
+    if (! bulk_is_due(data)) {
+        return;
+    }
+
+    bulk_deliver(data);
+}
+
 /**
  * Bulk dispatcher that allocates a new java.nio.ByteBuffer and dispatches
  * it to java listener.
  */
-void cb_bulk_byte_buffer_dispatch_direct(u_char *user, const pcap_pkthdr *pkt_header,
+void cb_bulk_byte_buffer_dispatch(u_char *user, const pcap_pkthdr *pkt_header,
 		const u_char *pkt_data) {
 
 	cb_bulk_byte_buffer_t *data = (cb_bulk_byte_buffer_t *)user;
 
-    int offset = 0;
-    char *data_ptr = (char *) data->write_buffer->data;
-    memcpy((void *) (data_ptr + data->write_buffer->bytes), &(pkt_header->ts.tv_sec), sizeof(pkt_header->ts.tv_sec));
-    offset += sizeof(pkt_header->ts.tv_sec);
-    memcpy((void *) (data_ptr + data->write_buffer->bytes + offset), &(pkt_header->ts.tv_usec), sizeof(pkt_header->ts.tv_usec));
-    offset += sizeof(pkt_header->ts.tv_usec);
-    memcpy((void *) (data_ptr + data->write_buffer->bytes + offset), &(pkt_header->caplen), sizeof(pkt_header->caplen));
-    offset += sizeof(pkt_header->caplen);
-    memcpy((void *) (data_ptr + data->write_buffer->bytes + offset), &(pkt_header->len), sizeof(pkt_header->len));
-    offset += sizeof(pkt_header->len);
-    memcpy((void *) (data_ptr + data->write_buffer->bytes + offset), (void *) pkt_data, pkt_header->caplen);
-    data->write_buffer->bytes += offset + pkt_header->caplen;
-    data->write_buffer->packets++;
+    if (data->exception != NULL) {
+        return;
+    }
 
-    if (data->write_buffer->packets < data->bulk_size) {
+    bulk_append(data, pkt_header, pkt_data);
+
+    if (! bulk_is_due(data)) {
         return;
     }
 
-	JNIEnv *env = data->env;
+    bulk_deliver(data);
+}
 
-    jobject buffer = env->NewDirectByteBuffer((void *) data->write_buffer->data,
-			data->write_buffer->bytes);
+/**
+ * Bulk dispatcher that allocates a new java.nio.ByteBuffer and dispatches
+ * it to java listener. This version casts the timestamp values to int.
+ */
+void cb_bulk_byte_buffer_dispatch_direct_int_ts(u_char *user, const pcap_pkthdr *pkt_header,
+		const u_char *pkt_data) {
 
-    data->write_buffer->data = malloc(data->bulk_buffer_entry_size * data->bulk_size);
-    data->write_buffer->bytes = 0;
-    data->write_buffer->packets = 0;
+    cb_bulk_byte_buffer_dispatch_int_ts(user, pkt_header, pkt_data);
+}
 
-	if (buffer == NULL) {
-		return;
-	}
+/**
+ * Bulk dispatcher that allocates a new java.nio.ByteBuffer and dispatches
+ * it to java listener.
+ */
+void cb_bulk_byte_buffer_dispatch_direct(u_char *user, const pcap_pkthdr *pkt_header,
+		const u_char *pkt_data) {
 
-	env->CallVoidMethod(
-			data->obj,
-			data->mid,
-			(jobject) buffer,
-			(jobject) data->user);
+    cb_bulk_byte_buffer_dispatch(user, pkt_header, pkt_data);
+}
 
-	env->DeleteLocalRef(buffer);
+/**
+ * Bulk dispatcher for layout v2 that is used with and without intermediate
+ * buffer.
+ */
+void cb_bulk_byte_buffer_dispatch_v2(u_char *user, const pcap_pkthdr *pkt_header,
+		const u_char *pkt_data) {
 
-	if (env->ExceptionCheck() == JNI_TRUE) {
-		data->exception = env->ExceptionOccurred();
-		pcap_breakloop(data->p);
-	}
+	cb_bulk_byte_buffer_t *data = (cb_bulk_byte_buffer_t *)user;
+
+    if (data->exception != NULL) {
+        return;
+    }
+
+    bulk_append_v2(data, pkt_header, pkt_data);
+
+    if (! bulk_is_due(data)) {
+        return;
+    }
+
+    bulk_deliver(data);
 }
 
 /**
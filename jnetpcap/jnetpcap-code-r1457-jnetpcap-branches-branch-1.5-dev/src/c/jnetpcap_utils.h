@@ -96,6 +96,52 @@ typedef struct bulk_buffer_t {
     long packets;
 } bulk_buffer_t;
 
+/*
+ * Bulk buffer layouts.
+ *
+ * Layout v1 is a plain sequence of records that consist of a header
+ * (timestamp, caplen, len) followed by the captured data. The size of the
+ * timestamp fields depends on the platform unless int timestamps are used.
+ *
+ * Layout v2 is self-describing. All fields are written in native byte order.
+ * The bulk starts with a header of BULK_V2_HEADER_SIZE bytes:
+ *   0: jint   magic (BULK_V2_MAGIC)
+ *   4: jshort version (BULK_LAYOUT_V2)
+ *   6: jbyte  byte order (BULK_V2_LITTLE_ENDIAN or BULK_V2_BIG_ENDIAN)
+ *   7: jbyte  timestamp precision as number of fractional digits, e.g., 6 for us
+ *   8: jint   record count
+ *  12: jint   header size
+ *  16: jint   offset of the record offset table
+ *  20: jint   total length of the bulk in bytes
+ *  24: 8 reserved bytes
+ * Each record is aligned to BULK_V2_ALIGNMENT bytes and consists of four jint
+ * fields (seconds, fraction of seconds, caplen, len) followed by the captured
+ * data. After the last record, the offset table holds one jint per record with
+ * the offset of the record relative to the start of the bulk.
+ */
+#define BULK_LAYOUT_V1 1
+#define BULK_LAYOUT_V2 2
+#define BULK_V2_MAGIC 0x32424e43
+#define BULK_V2_HEADER_SIZE 32
+#define BULK_V2_RECORD_HEADER_SIZE 16
+#define BULK_V2_ALIGNMENT 8
+#define BULK_V2_LITTLE_ENDIAN 0
+#define BULK_V2_BIG_ENDIAN 1
+#define BULK_V2_TS_PRECISION_US 6
+
+/*
+ * Pool of preallocated bulk buffers that is managed on the Java side by
+ * org.jnetpcap.DirectBulkByteBufferPool. The capture loop writes into one slot
+ * at a time and asks the pool for the next slot when a bulk is delivered.
+ */
+typedef struct bulk_pool_t {
+    jobject jpool;          // DirectBulkByteBufferPool
+    jmethodID deliver_mid;  // int deliver(int, int, int, DirectBulkByteBufferHandler, Object)
+    char *memory;           // Start of the memory of all slots
+    int slot_size;
+    int slot;               // Slot into which packets are currently written
+} bulk_pool_t;
+
 typedef struct cb_bulk_byte_buffer_t {
 	pcap_t *p;
 	jmethodID mid;
@@ -106,8 +152,14 @@ typedef struct cb_bulk_byte_buffer_t {
 	jobject user;
     bulk_buffer_t *write_buffer;
     bulk_buffer_t *read_buffer;
-    int bulk_size;
+    int bulk_size;        // Max number of packets per bulk; <= 0 means only the byte capacity limits bulks.
     int bulk_buffer_entry_size;
+    long bulk_capacity;   // Size of a bulk buffer in bytes.
+    jlong max_latency_us; // Max time a partially filled bulk is held; <= 0 disables this.
+    jlong bulk_start_us;  // Time at which the first packet of the current bulk was added.
+    bulk_pool_t *pool;    // Pool of bulk buffers; NULL when bulks are allocated individually.
+    int layout;           // BULK_LAYOUT_V1 or BULK_LAYOUT_V2
+    jint *record_offsets; // Offsets of the records in the current bulk; only used for layout v2.
 } cb_bulk_byte_buffer_t;
 
 typedef struct cb_byte_buffer_t {
@@ -159,6 +211,12 @@ void cb_bulk_byte_buffer_dispatch_int_ts(u_char*, const pcap_pkthdr*, const u_ch
 void cb_bulk_byte_buffer_dispatch(u_char*, const pcap_pkthdr*, const u_char*);
 void cb_bulk_byte_buffer_dispatch_direct_int_ts(u_char*, const pcap_pkthdr*, const u_char*);
 void cb_bulk_byte_buffer_dispatch_direct(u_char*, const pcap_pkthdr*, const u_char*);
+void cb_bulk_byte_buffer_dispatch_v2(u_char*, const pcap_pkthdr*, const u_char*);
+long bulk_v2_entry_size(int snap_length);
+void bulk_reset(cb_bulk_byte_buffer_t*, bulk_buffer_t*);
+void cb_bulk_byte_buffer_check_latency(cb_bulk_byte_buffer_t*);
+void cb_bulk_byte_buffer_flush(cb_bulk_byte_buffer_t*);
+jlong bulk_time_us();
 void cb_byte_buffer_dispatch(u_char*, const pcap_pkthdr*, const u_char*);
 void cb_jbuffer_dispatch(u_char*, const pcap_pkthdr*, const u_char*);
 void cb_pcap_packet_dispatch(u_char*, const pcap_pkthdr*, const u_char*);
@@ -0,0 +1,150 @@
+/*
+ * This file is part of jNetPcap.
+ *
+ * jNetPcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jnetpcap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Constants and accessors for the layouts of bulk buffers.
+ *
+ * Layout v1 is a plain sequence of records. Each record consists of a header
+ * (timestamp seconds, timestamp microseconds, caplen, len) followed by the
+ * captured data. Finding a record requires walking all previous records.
+ *
+ * Layout v2 is self-describing. All fields are in the byte order that is
+ * given in the header. The bulk starts with a header of HEADER_SIZE bytes:
+ * <pre>
+ *   0: int   magic (MAGIC)
+ *   4: short version (V2)
+ *   6: byte  byte order (LITTLE_ENDIAN or BIG_ENDIAN)
+ *   7: byte  timestamp precision as number of fractional digits, e.g., 6 for us
+ *   8: int   record count
+ *  12: int   header size
+ *  16: int   offset of the record offset table
+ *  20: int   total length of the bulk in bytes
+ *  24: 8 reserved bytes
+ * </pre>
+ * Records are aligned to ALIGNMENT bytes and have the same 16 byte record
+ * header as v1 with int timestamps. After the last record, the offset table
+ * holds one int per record with the offset of the record relative to the
+ * start of the bulk. Thus, records can be accessed in constant time.
+ *
+ * @author Ruediger Gad
+ */
+public final class BulkLayout {
+
+    public static final int V1 = 1;
+    public static final int V2 = 2;
+
+    public static final int MAGIC = 0x32424e43;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_HEADER_SIZE = 16;
+    public static final int ALIGNMENT = 8;
+
+    public static final byte LITTLE_ENDIAN = 0;
+    public static final byte BIG_ENDIAN = 1;
+
+    public static final int VERSION_OFFSET = 4;
+    public static final int BYTE_ORDER_OFFSET = 6;
+    public static final int TS_PRECISION_OFFSET = 7;
+    public static final int RECORD_COUNT_OFFSET = 8;
+    public static final int HEADER_SIZE_OFFSET = 12;
+    public static final int OFFSET_TABLE_OFFSET = 16;
+    public static final int TOTAL_LENGTH_OFFSET = 20;
+
+    private BulkLayout() {
+    }
+
+    /**
+     * Returns the space that a record with at most snapLength bytes of
+     * captured data needs in layout v2, including padding and its entry in
+     * the offset table.
+     */
+    public static int v2EntrySize(int snapLength) {
+        int size = RECORD_HEADER_SIZE + snapLength;
+        size += (ALIGNMENT - (size % ALIGNMENT)) % ALIGNMENT;
+        return size + 4;
+    }
+
+    /**
+     * Returns the size in bytes of a buffer for bulks of bulkSize packets with
+     * the given snap length in the given layout.
+     */
+    public static int bulkCapacity(int bulkSize, int snapLength, int layout) {
+        if (layout == V2) {
+            return HEADER_SIZE + bulkSize * v2EntrySize(snapLength);
+        }
+        return bulkSize * (snapLength + RECORD_HEADER_SIZE);
+    }
+
+    /**
+     * Returns true if the buffer starts with a bulk header of layout v2.
+     * The position of the buffer marks the start of the bulk.
+     */
+    public static boolean isV2(ByteBuffer bulk) {
+        if (bulk.remaining() < HEADER_SIZE) {
+            return false;
+        }
+        int magic = bulk.getInt(bulk.position());
+        return magic == MAGIC || magic == Integer.reverseBytes(MAGIC);
+    }
+
+    /**
+     * Returns the byte order of the fields of a bulk in layout v2.
+     */
+    public static ByteOrder byteOrder(ByteBuffer bulk) {
+        byte order = bulk.get(bulk.position() + BYTE_ORDER_OFFSET);
+        return order == BIG_ENDIAN ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+    }
+
+    /**
+     * Returns a view on the bulk in layout v2 with the byte order of the bulk
+     * and the start of the bulk at index 0.
+     * The accessors below expect buffers as returned by this method.
+     */
+    public static ByteBuffer v2View(ByteBuffer bulk) {
+        if (!isV2(bulk)) {
+            throw new IllegalArgumentException("Buffer does not contain a bulk in layout v2.");
+        }
+        return bulk.slice().order(byteOrder(bulk));
+    }
+
+    public static int version(ByteBuffer view) {
+        return view.getShort(VERSION_OFFSET);
+    }
+
+    public static int timestampPrecision(ByteBuffer view) {
+        return view.get(TS_PRECISION_OFFSET);
+    }
+
+    public static int recordCount(ByteBuffer view) {
+        return view.getInt(RECORD_COUNT_OFFSET);
+    }
+
+    /**
+     * Returns the offset of record i relative to the start of the bulk.
+     */
+    public static int recordOffset(ByteBuffer view, int i) {
+        return view.getInt(view.getInt(OFFSET_TABLE_OFFSET) + i * 4);
+    }
+
+    public static int recordCaplen(ByteBuffer view, int i) {
+        return view.getInt(recordOffset(view, i) + 8);
+    }
+
+}
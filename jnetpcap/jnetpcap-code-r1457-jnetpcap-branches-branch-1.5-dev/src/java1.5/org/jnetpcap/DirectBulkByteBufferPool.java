@@ -0,0 +1,261 @@
+/*
+ * This file is part of jNetPcap.
+ *
+ * jNetPcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jnetpcap;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Fixed-size ring of preallocated direct buffers for bulk capturing without
+ * intermediate buffer.
+ *
+ * The native capture loop writes into one slot of the pool at a time. Full
+ * bulks are handed over as DirectBulkByteBufferWrapper and the slot is only
+ * reused after the wrapper was released. This bounds the used off-heap memory
+ * and avoids allocating native memory in the capture thread.
+ *
+ * When no slot is free, the exhausted policy determines if the capture thread
+ * waits for a slot to be released (BLOCK) or if the bulk is dropped (DROP).
+ *
+ * @author Ruediger Gad
+ */
+public class DirectBulkByteBufferPool implements DirectBulkByteBufferRecycler {
+
+    /**
+     * Wait until a slot is released when the pool is exhausted.
+     */
+    public static final int BLOCK = 0;
+
+    /**
+     * Drop the full bulk and continue capturing into the same slot when the
+     * pool is exhausted.
+     */
+    public static final int DROP = 1;
+
+    /**
+     * Size of the header that is prepended to each packet in a bulk when int
+     * timestamps are used.
+     */
+    public static final int INT_TS_HEADER_SIZE = 16;
+
+    private static final long BLOCK_POLL_INTERVAL_MS = 10;
+
+    private final ByteBuffer memory;
+    private final ByteBuffer[] slots;
+    private final int slotSize;
+    private final int exhaustedPolicy;
+
+    private final Integer[] slotIds;
+    private final ArrayBlockingQueue<Integer> free;
+    private final AtomicIntegerArray inUse;
+
+    private volatile boolean closed = false;
+    private int writeSlot = -1;
+
+    private volatile long deliveredBulks = 0;
+    private volatile long droppedBulks = 0;
+    private volatile long droppedPackets = 0;
+    private volatile long blockedDeliveries = 0;
+
+    public DirectBulkByteBufferPool(int slotCount, int slotSize, int exhaustedPolicy) {
+        if (slotCount < 2) {
+            throw new IllegalArgumentException("A pool needs at least two slots: " + slotCount);
+        }
+        if (exhaustedPolicy != BLOCK && exhaustedPolicy != DROP) {
+            throw new IllegalArgumentException("Unknown exhausted policy: " + exhaustedPolicy);
+        }
+
+        this.slotSize = slotSize;
+        this.exhaustedPolicy = exhaustedPolicy;
+
+        memory = ByteBuffer.allocateDirect(slotCount * slotSize);
+        slots = new ByteBuffer[slotCount];
+        slotIds = new Integer[slotCount];
+        free = new ArrayBlockingQueue<Integer>(slotCount);
+        inUse = new AtomicIntegerArray(slotCount);
+
+        for (int i = 0; i < slotCount; i++) {
+            memory.limit((i + 1) * slotSize);
+            memory.position(i * slotSize);
+            slots[i] = memory.slice();
+            slotIds[i] = Integer.valueOf(i);
+            free.offer(slotIds[i]);
+        }
+        memory.clear();
+    }
+
+    /**
+     * Returns the slot size in bytes that is needed for bulks of bulkSize
+     * packets with the given snap length when int timestamps are used.
+     */
+    public static int slotSizeFor(int bulkSize, int snapLength) {
+        return bulkSize * (snapLength + INT_TS_HEADER_SIZE);
+    }
+
+    /**
+     * Returns the slot size in bytes that is needed for bulks that are bounded
+     * by bulkBytes. If bulkBytes is &lt;= 0, the size is determined by
+     * bulkSize and snapLength.
+     */
+    public static int slotSizeFor(int bulkSize, int bulkBytes, int snapLength) {
+        return bulkBytes > 0 ? bulkBytes : slotSizeFor(bulkSize, snapLength);
+    }
+
+    /**
+     * Returns the slot size in bytes that is needed for bulks in the given
+     * layout, see BulkLayout.
+     */
+    public static int slotSizeFor(int bulkSize, int bulkBytes, int snapLength, int layout) {
+        return bulkBytes > 0 ? bulkBytes : BulkLayout.bulkCapacity(bulkSize, snapLength, layout);
+    }
+
+    ByteBuffer getMemory() {
+        return memory;
+    }
+
+    public int getSlotCount() {
+        return slots.length;
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    public int getExhaustedPolicy() {
+        return exhaustedPolicy;
+    }
+
+    public int getAvailable() {
+        return free.size();
+    }
+
+    public long getDeliveredBulks() {
+        return deliveredBulks;
+    }
+
+    public long getDroppedBulks() {
+        return droppedBulks;
+    }
+
+    public long getDroppedPackets() {
+        return droppedPackets;
+    }
+
+    /**
+     * Returns how often the capture thread had to wait for a free slot.
+     */
+    public long getBlockedDeliveries() {
+        return blockedDeliveries;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close the pool.
+     * A capture thread that waits for a free slot stops waiting and drops the
+     * bulk instead. This is intended for being used when the capture is
+     * stopped while consumers may not release buffers anymore.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Take a free slot from the pool.
+     * Returns -1 if no slot is available and the policy or the closed state
+     * does not allow to wait.
+     */
+    int acquire() {
+        Integer slot = free.poll();
+
+        if (slot == null && exhaustedPolicy == BLOCK) {
+            blockedDeliveries++;
+            try {
+                while (slot == null && !closed) {
+                    slot = free.poll(BLOCK_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (slot == null) {
+            return -1;
+        }
+
+        inUse.set(slot.intValue(), 1);
+        writeSlot = slot.intValue();
+        return writeSlot;
+    }
+
+    /**
+     * Return the given slot to the pool.
+     * Releasing a slot that is not in use has no effect.
+     */
+    public void release(int slot) {
+        if (inUse.compareAndSet(slot, 1, 0)) {
+            free.offer(slotIds[slot]);
+        }
+    }
+
+    /**
+     * Release the slot into which the capture loop writes.
+     * This is called when the capture loop ended.
+     */
+    void releaseWriteSlot() {
+        if (writeSlot >= 0) {
+            release(writeSlot);
+            writeSlot = -1;
+        }
+    }
+
+    /**
+     * Called from the native capture loop when a bulk in the given slot is
+     * ready. Returns the slot into which the capture loop continues writing.
+     * If no free slot is available, the bulk is dropped and the same slot is
+     * returned for being reused.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    int deliver(int slot, int bytes, int packets, DirectBulkByteBufferHandler handler, Object user) {
+        int next = acquire();
+
+        if (next < 0) {
+            droppedBulks++;
+            droppedPackets += packets;
+            writeSlot = slot;
+            return slot;
+        }
+
+        ByteBuffer buf = slots[slot].duplicate();
+        buf.limit(bytes);
+
+        deliveredBulks++;
+        handler.nextPacket(new DirectBulkByteBufferWrapper(buf, this, slot), user);
+        return next;
+    }
+
+    @Override
+    public String toString() {
+        return "DirectBulkByteBufferPool: slots=" + slots.length + ", slotSize=" + slotSize
+            + ", available=" + getAvailable() + ", dropped=" + droppedBulks;
+    }
+
+}
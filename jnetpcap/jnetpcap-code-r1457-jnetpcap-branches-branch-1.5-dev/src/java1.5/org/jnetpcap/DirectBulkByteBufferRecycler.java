@@ -0,0 +1,33 @@
+/*
+ * This file is part of jNetPcap.
+ *
+ * jNetPcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jnetpcap;
+
+/**
+ * Owner of recycled bulk buffers, e.g., a DirectBulkByteBufferPool.
+ * Wrappers of recycled buffers hand their slot back to the owner when they are
+ * released instead of freeing the native memory.
+ *
+ * @author Ruediger Gad
+ */
+public interface DirectBulkByteBufferRecycler {
+
+    /**
+     * Return the given slot to its owner.
+     * Releasing a slot that is not in use has no effect.
+     */
+    public void release(int slot);
+}
@@ -24,9 +24,23 @@ import java.nio.ByteBuffer;
 public class DirectBulkByteBufferWrapper {
 
     private ByteBuffer buffer;
+    private final DirectBulkByteBufferRecycler pool;
+    private final int slot;
 
     public DirectBulkByteBufferWrapper (ByteBuffer buf) {
+        this(buf, null, -1);
+    }
+
+    /**
+     * Create a wrapper for a buffer that belongs to the given slot of a pool,
+     * or of another recycler such as a TpacketV3Ring.
+     * The memory of such buffers is not freed but the slot is returned to the
+     * pool when the wrapper is released.
+     */
+    public DirectBulkByteBufferWrapper (ByteBuffer buf, DirectBulkByteBufferRecycler pool, int slot) {
         buffer = buf;
+        this.pool = pool;
+        this.slot = slot;
     }
 
     public ByteBuffer getBuffer() {
@@ -44,7 +58,28 @@ public class DirectBulkByteBufferWrapper {
         super.finalize();
     }
 
+    public boolean isPooled() {
+        return pool != null;
+    }
+
+    /**
+     * Release the wrapped buffer.
+     * Pooled buffers are returned to their pool while the native memory of
+     * other buffers is freed. The buffer must not be accessed afterwards.
+     */
+    public void release() {
+        freeNativeMemory();
+    }
+
     public void freeNativeMemory() {
+        if (pool != null) {
+            if (buffer != null) {
+                buffer = null;
+                pool.release(slot);
+            }
+            return;
+        }
+
         if (buffer != null && buffer.isDirect()) {
             free(buffer);
             buffer = null;
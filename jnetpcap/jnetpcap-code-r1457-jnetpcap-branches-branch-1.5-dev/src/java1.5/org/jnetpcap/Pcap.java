@@ -353,6 +353,27 @@ public class Pcap {
 	 */
 	public static final int ERROR_RFMON_NOTSUP = -6;
 
+	/**
+	 * Fanout mode for use with {@link #setFanout(int, int, StringBuilder)
+	 * setFanout} which distributes packets among the sockets of a fanout group
+	 * by a hash of the flow. Packets of one flow end up in the same socket.
+	 */
+	public static final int FANOUT_HASH = 0;
+
+	/**
+	 * Fanout mode for use with {@link #setFanout(int, int, StringBuilder)
+	 * setFanout} which distributes packets round-robin among the sockets of a
+	 * fanout group.
+	 */
+	public static final int FANOUT_LB = 1;
+
+	/**
+	 * Fanout mode for use with {@link #setFanout(int, int, StringBuilder)
+	 * setFanout} which selects the socket of a fanout group by the CPU on which
+	 * the packet arrived.
+	 */
+	public static final int FANOUT_CPU = 2;
+
 	/**
 	 * Direction constant for use with {@link #setDirection(int) setDirection}
 	 * which indicates the inbound direction. @since 1.4
@@ -2417,23 +2438,101 @@ public class Pcap {
 			PcapHeader header);
 
     public int loop_direct(int cnt, int bulkSize, int snapLength, boolean useIntTs, final DirectBulkByteBufferHandler handler, Object user) {
-         BulkByteBufferHandler hdlr = new BulkByteBufferHandler() {
-             @Override
-             public void nextPacket(ByteBuffer buffer, Object userData) {
-                 handler.nextPacket(new DirectBulkByteBufferWrapper(buffer), userData);
-             }
-         };
-         return loop(cnt, bulkSize, snapLength, useIntTs, false, hdlr, user);
+         return loop_direct(cnt, bulkSize, snapLength, useIntTs, 0, handler, user);
+     }
+
+    /**
+     * Start a pcap loop for bulk processing without intermediate buffer.
+     * Partially filled bulks are delivered once they were held for longer
+     * than maxLatencyUs microseconds. Values &lt;= 0 disable this.
+     */
+    public int loop_direct(int cnt, int bulkSize, int snapLength, boolean useIntTs, long maxLatencyUs, final DirectBulkByteBufferHandler handler, Object user) {
+         return loop_direct(cnt, bulkSize, 0, snapLength, BulkLayout.V1, useIntTs, maxLatencyUs, null, handler, user);
+     }
+
+    /**
+     * Start a pcap loop for bulk processing without intermediate buffer in
+     * which bulks are written into the slots of the given pool.
+     * Handed over buffers have to be released via
+     * DirectBulkByteBufferWrapper.release() so that their slots can be reused.
+     * If pool is null, individually allocated buffers are used instead.
+     */
+    public int loop_direct(int cnt, int bulkSize, int snapLength, boolean useIntTs, long maxLatencyUs, DirectBulkByteBufferPool pool, final DirectBulkByteBufferHandler handler, Object user) {
+         return loop_direct(cnt, bulkSize, 0, snapLength, BulkLayout.V1, useIntTs, maxLatencyUs, pool, handler, user);
+     }
+
+    public int loop_direct(int cnt, int bulkSize, int bulkBytes, int snapLength, boolean useIntTs, long maxLatencyUs, DirectBulkByteBufferPool pool, final DirectBulkByteBufferHandler handler, Object user) {
+         return loop_direct(cnt, bulkSize, bulkBytes, snapLength, BulkLayout.V1, useIntTs, maxLatencyUs, pool, handler, user);
+     }
+
+    /**
+     * Start a pcap loop for bulk processing without intermediate buffer.
+     * If bulkBytes is larger than zero, packets are packed by their actual
+     * capture length and a bulk is delivered when it either holds bulkSize
+     * packets or when less than the space for a packet of snapLength bytes
+     * remains of the bulkBytes. Values of bulkSize &lt;= 0 only limit bulks
+     * by bulkBytes.
+     * The layout of the bulks is given by layout, see BulkLayout.
+     */
+    public int loop_direct(int cnt, int bulkSize, int bulkBytes, int snapLength, int layout, boolean useIntTs, long maxLatencyUs, DirectBulkByteBufferPool pool, final DirectBulkByteBufferHandler handler, Object user) {
+         if (pool == null) {
+             BulkByteBufferHandler hdlr = new BulkByteBufferHandler() {
+                 @Override
+                 public void nextPacket(ByteBuffer buffer, Object userData) {
+                     handler.nextPacket(new DirectBulkByteBufferWrapper(buffer), userData);
+                 }
+             };
+             return loop(cnt, bulkSize, bulkBytes, snapLength, layout, useIntTs, false, maxLatencyUs, hdlr, user);
+         }
+
+         int slot = pool.acquire();
+         if (slot < 0) {
+             throw new IllegalStateException("No free slot in pool: " + pool);
+         }
+
+         try {
+             return loopPooled(cnt, bulkSize, bulkBytes, snapLength, layout, useIntTs, maxLatencyUs, pool, pool.getMemory(), pool.getSlotSize(), slot, handler, user);
+         } finally {
+             pool.releaseWriteSlot();
+         }
      }
 
+    @LibraryMember("pcap_loop")
+    private native int loopPooled(int cnt, int bulkSize, int bulkBytes, int snapLength, int layout, boolean useIntTs, long maxLatencyUs, DirectBulkByteBufferPool pool, ByteBuffer memory, int slotSize, int firstSlot, DirectBulkByteBufferHandler handler, Object user);
+
     public <T> int loop(int cnt, int bulkSize, int snapLength, boolean useIntTs, BulkByteBufferHandler<T> handler, T user) {
-         return loop(cnt, bulkSize, snapLength, useIntTs, true, handler, user);
+         return loop(cnt, bulkSize, snapLength, useIntTs, true, 0, handler, user);
+     }
+
+    /**
+     * Start a pcap loop for bulk processing with intermediate buffer.
+     * Partially filled bulks are delivered once they were held for longer
+     * than maxLatencyUs microseconds. Values &lt;= 0 disable this.
+     */
+    public <T> int loop(int cnt, int bulkSize, int snapLength, boolean useIntTs, long maxLatencyUs, BulkByteBufferHandler<T> handler, T user) {
+         return loop(cnt, bulkSize, snapLength, useIntTs, true, maxLatencyUs, handler, user);
+     }
+
+    public <T> int loop(int cnt, int bulkSize, int snapLength, boolean useIntTs, boolean useIntermediateBuffer, BulkByteBufferHandler<T> handler, T user) {
+         return loop(cnt, bulkSize, snapLength, useIntTs, useIntermediateBuffer, 0, handler, user);
+     }
+
+    public <T> int loop(int cnt, int bulkSize, int snapLength, boolean useIntTs, boolean useIntermediateBuffer, long maxLatencyUs, BulkByteBufferHandler<T> handler, T user) {
+         return loop(cnt, bulkSize, 0, snapLength, BulkLayout.V1, useIntTs, useIntermediateBuffer, maxLatencyUs, handler, user);
      }
+
     /**
      * Start a pcap loop for bulk processing.
+     * When the loop ends, e.g., due to breakloop(), packets that are still
+     * held in a partially filled bulk are delivered to the handler.
+     * If bulkBytes is larger than zero, bulks are bounded by bulkBytes bytes
+     * in which packets are packed by their actual capture length. Otherwise,
+     * bulks are sized for bulkSize packets of snapLength bytes.
+     * The layout of the bulks is given by layout, see BulkLayout. In layout
+     * v2, useIntTs has no effect as records always use int fields.
      */
     @LibraryMember("pcap_loop")
-    public native <T> int loop(int cnt, int bulkSize, int snapLength, boolean useIntTs, boolean useIntermediateBuffer, BulkByteBufferHandler<T> handler, T user);
+    public native <T> int loop(int cnt, int bulkSize, int bulkBytes, int snapLength, int layout, boolean useIntTs, boolean useIntermediateBuffer, long maxLatencyUs, BulkByteBufferHandler<T> handler, T user);
 
 	/**
 	 * Collect a group of packets. pcap_loop() is similar to pcap_dispatch()
@@ -3421,6 +3520,25 @@ public class Pcap {
 	@LibraryMember("pcap_setdirection")
 	public native int setDirection(int dir);
 
+	/**
+	 * Joins this pcap handle into the Linux PACKET_FANOUT group with the given
+	 * id. The kernel distributes the packets of the device among all handles
+	 * of a group according to mode, see {@link #FANOUT_HASH},
+	 * {@link #FANOUT_LB} and {@link #FANOUT_CPU}. All handles of a group have
+	 * to use the same mode. The handle has to be activated before.
+	 * 
+	 * @param groupId
+	 *            id of the fanout group in the range 0 to 65535
+	 * @param mode
+	 *            fanout mode
+	 * @param errbuf
+	 *            buffer that receives the error message on failure
+	 * @return 0 on success or -1 on failure
+	 * @throws UnsupportedOperationException
+	 *             when not running on Linux
+	 */
+	public native int setFanout(int groupId, int mode, StringBuilder errbuf);
+
 	/**
 	 * Associate a filter to a capture. pcap_setfilter() is used to specify a
 	 * filter program. fp is a pointer to a bpf_program struct, usually the
@@ -0,0 +1,397 @@
+/*
+ * This file is part of jNetPcap.
+ *
+ * jNetPcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jnetpcap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.slytechs.library.JNILibrary;
+
+/**
+ * Linux AF_PACKET TPACKET_V3 receive ring as alternative to capturing via
+ * libpcap.
+ *
+ * The kernel writes packets directly into the blocks of a ring that is
+ * memory mapped by this class. Blocks are handed to a
+ * DirectBulkByteBufferHandler as they are, i.e., without copying the packets
+ * again. A block is returned to the kernel when its wrapper is released. While
+ * all blocks are held by consumers, the kernel drops packets.
+ *
+ * Each delivered buffer holds one block in native byte order. The block
+ * starts with a block descriptor:
+ * <pre>
+ *   8: int block status
+ *  12: int number of packets
+ *  16: int offset of the first packet
+ *  20: int length of the used part of the block, including the descriptor
+ * </pre>
+ * Each packet starts with a tpacket3_hdr:
+ * <pre>
+ *   0: int   offset of the next packet relative to this packet
+ *   4: int   timestamp seconds
+ *   8: int   timestamp nanoseconds
+ *  12: int   caplen
+ *  16: int   len
+ *  24: short offset of the captured data relative to this packet
+ * </pre>
+ *
+ * This is only supported on Linux.
+ *
+ * @author Ruediger Gad
+ */
+public class TpacketV3Ring implements DirectBulkByteBufferRecycler {
+
+    static {
+        JNILibrary.register(TpacketV3Ring.class);
+    }
+
+    public static final int BLOCK_STATUS_OFFSET = 8;
+    public static final int BLOCK_NUM_PACKETS_OFFSET = 12;
+    public static final int BLOCK_FIRST_PACKET_OFFSET = 16;
+    public static final int BLOCK_LENGTH_OFFSET = 20;
+
+    public static final int PACKET_NEXT_OFFSET = 0;
+    public static final int PACKET_SEC_OFFSET = 4;
+    public static final int PACKET_NSEC_OFFSET = 8;
+    public static final int PACKET_CAPLEN_OFFSET = 12;
+    public static final int PACKET_LEN_OFFSET = 16;
+    public static final int PACKET_MAC_OFFSET = 24;
+
+    /**
+     * Size of the frames the kernel uses for computing the ring geometry.
+     * With TPACKET_V3, packets are packed by their actual size, though.
+     */
+    public static final int FRAME_SIZE = 2048;
+
+    private static final int POLL_TIMEOUT_MS = 100;
+
+    private long handle;
+    private final ByteBuffer[] blocks;
+    private final int blockSize;
+    private final AtomicIntegerArray inUse;
+
+    private volatile boolean breakloop = false;
+    private volatile boolean closed = false;
+    private boolean looping = false;
+    private int blocksInUse = 0;
+
+    private final long[] statsTmp = new long[3];
+    private long received = 0;
+    private long dropped = 0;
+    private long freezeCount = 0;
+    private volatile long deliveredBlocks = 0;
+
+    private TpacketV3Ring(long handle, int blockSize, int blockCount) {
+        this.handle = handle;
+        this.blockSize = blockSize;
+
+        ByteBuffer memory = mapping(handle);
+        blocks = new ByteBuffer[blockCount];
+        inUse = new AtomicIntegerArray(blockCount);
+
+        for (int i = 0; i < blockCount; i++) {
+            memory.limit((i + 1) * blockSize);
+            memory.position(i * blockSize);
+            blocks[i] = memory.slice().order(ByteOrder.nativeOrder());
+        }
+    }
+
+    /**
+     * Open a ring on the given device, "any" captures on all devices.
+     * The block size is rounded up to a multiple of FRAME_SIZE and the page
+     * size of 4096 bytes. blockTimeoutMs is the time after which the kernel
+     * hands over a partially filled block; values &lt;= 0 let the kernel
+     * choose the timeout. Packets are truncated to snapLength via the attached
+     * filter.
+     * Returns null on failure with the error message in errbuf.
+     */
+    public static TpacketV3Ring open(String device, int blockSize, int blockCount, int blockTimeoutMs,
+            int snapLength, boolean promisc, StringBuilder errbuf) {
+        int granularity = Math.max(FRAME_SIZE, 4096);
+        int size = ((Math.max(blockSize, 1) + granularity - 1) / granularity) * granularity;
+
+        long h = openRing(device, size, blockCount, FRAME_SIZE, blockTimeoutMs, snapLength, promisc, errbuf);
+        if (h == 0) {
+            return null;
+        }
+
+        TpacketV3Ring ring = new TpacketV3Ring(h, size, blockCount);
+        if (ring.setFilter("", 1, errbuf) != Pcap.OK) {
+            ring.close();
+            return null;
+        }
+        return ring;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return blocks.length;
+    }
+
+    public synchronized int getBlocksInUse() {
+        return blocksInUse;
+    }
+
+    public long getDeliveredBlocks() {
+        return deliveredBlocks;
+    }
+
+    /**
+     * Returns the number of packets received by the socket.
+     */
+    public synchronized long getReceived() {
+        updateStats();
+        return received;
+    }
+
+    /**
+     * Returns the number of packets the kernel dropped, e.g., because no free
+     * block was available.
+     */
+    public synchronized long getDropped() {
+        updateStats();
+        return dropped;
+    }
+
+    /**
+     * Returns how often the kernel had to stop filling blocks because all
+     * blocks were held by user space.
+     */
+    public synchronized long getFreezeCount() {
+        updateStats();
+        return freezeCount;
+    }
+
+    private void updateStats() {
+        /* The kernel resets its counters on each read. */
+        if (handle != 0 && stats(handle, statsTmp) == Pcap.OK) {
+            received += statsTmp[0];
+            dropped += statsTmp[1];
+            freezeCount += statsTmp[2];
+        }
+    }
+
+    /**
+     * Compile the given filter and attach it to the socket.
+     * Returns Pcap.OK on success or -1 with the error message in errbuf.
+     */
+    public synchronized int setFilter(String filter, int optimize, StringBuilder errbuf) {
+        if (handle == 0) {
+            throw new PcapClosedException();
+        }
+        return setFilter(handle, filter, optimize, errbuf);
+    }
+
+    /**
+     * Join the socket into the PACKET_FANOUT group groupId, see
+     * Pcap.setFanout(int, int, StringBuilder).
+     */
+    public synchronized int setFanout(int groupId, int mode, StringBuilder errbuf) {
+        if (handle == 0) {
+            throw new PcapClosedException();
+        }
+        return setFanout(handle, groupId, mode, errbuf);
+    }
+
+    public synchronized int sendPacket(byte[] data, StringBuilder errbuf) {
+        if (handle == 0) {
+            throw new PcapClosedException();
+        }
+        return sendPacket(handle, data, errbuf);
+    }
+
+    /**
+     * Deliver the blocks of the ring to handler until breakloop() is called.
+     * A block that is still held by a consumer when the ring wrapped around
+     * is waited for before continuing.
+     * Returns Pcap.OK or Pcap.ERROR_BREAK when the loop was stopped via
+     * breakloop().
+     */
+    public int loop(DirectBulkByteBufferHandler handler, Object user) {
+        synchronized (this) {
+            if (handle == 0) {
+                throw new PcapClosedException();
+            }
+            looping = true;
+        }
+
+        try {
+            return runLoop(handler, user);
+        } finally {
+            synchronized (this) {
+                looping = false;
+                freeIfUnused();
+            }
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private int runLoop(DirectBulkByteBufferHandler handler, Object user) {
+        int block = 0;
+        breakloop = false;
+
+        while (!breakloop && !closed) {
+            if (inUse.get(block) != 0) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return Pcap.ERROR_BREAK;
+                }
+                continue;
+            }
+
+            int r = nextBlock(handle, block, POLL_TIMEOUT_MS);
+            if (r < 0) {
+                return Pcap.ERROR;
+            } else if (r == 0) {
+                continue;
+            }
+
+            ByteBuffer buf = blocks[block].duplicate().order(ByteOrder.nativeOrder());
+            buf.limit(buf.getInt(BLOCK_LENGTH_OFFSET));
+
+            synchronized (this) {
+                inUse.set(block, 1);
+                blocksInUse++;
+            }
+            deliveredBlocks++;
+            handler.nextPacket(new DirectBulkByteBufferWrapper(buf, this, block), user);
+
+            block = (block + 1) % blocks.length;
+        }
+
+        return Pcap.ERROR_BREAK;
+    }
+
+    /**
+     * Stop a running loop. The loop returns within about 100 ms.
+     */
+    public void breakloop() {
+        breakloop = true;
+    }
+
+    /**
+     * Return the given block to the kernel.
+     */
+    public synchronized void release(int slot) {
+        if (inUse.compareAndSet(slot, 1, 0)) {
+            blocksInUse--;
+            if (handle != 0) {
+                releaseBlock(handle, slot);
+            }
+            freeIfUnused();
+        }
+    }
+
+    /**
+     * Close the ring. The native resources are freed as soon as a running loop
+     * ended and all delivered blocks were released.
+     */
+    public synchronized void close() {
+        closed = true;
+        breakloop = true;
+        freeIfUnused();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void freeIfUnused() {
+        if (closed && !looping && blocksInUse == 0 && handle != 0) {
+            closeRing(handle);
+            handle = 0;
+        }
+    }
+
+    /**
+     * Returns the number of packets in the block in buf.
+     */
+    public static int blockPacketCount(ByteBuffer buf) {
+        return buf.getInt(buf.position() + BLOCK_NUM_PACKETS_OFFSET);
+    }
+
+    /**
+     * Returns the offset of the first packet in the block in buf relative to
+     * the start of the block.
+     */
+    public static int firstPacketOffset(ByteBuffer buf) {
+        return buf.getInt(buf.position() + BLOCK_FIRST_PACKET_OFFSET);
+    }
+
+    /**
+     * Returns the offset of the packet after the packet at offset.
+     */
+    public static int nextPacketOffset(ByteBuffer buf, int offset) {
+        return offset + buf.getInt(buf.position() + offset + PACKET_NEXT_OFFSET);
+    }
+
+    public static int packetCaplen(ByteBuffer buf, int offset) {
+        return buf.getInt(buf.position() + offset + PACKET_CAPLEN_OFFSET);
+    }
+
+    public static int packetLen(ByteBuffer buf, int offset) {
+        return buf.getInt(buf.position() + offset + PACKET_LEN_OFFSET);
+    }
+
+    /**
+     * Returns the offset of the captured data of the packet at offset.
+     */
+    public static int packetDataOffset(ByteBuffer buf, int offset) {
+        return offset + (buf.getShort(buf.position() + offset + PACKET_MAC_OFFSET) & 0xffff);
+    }
+
+    /**
+     * Returns the timestamp of the packet at offset in nanoseconds.
+     */
+    public static long packetTimestampNanos(ByteBuffer buf, int offset) {
+        long sec = buf.getInt(buf.position() + offset + PACKET_SEC_OFFSET) & 0xffffffffL;
+        long nsec = buf.getInt(buf.position() + offset + PACKET_NSEC_OFFSET) & 0xffffffffL;
+        return sec * 1000000000L + nsec;
+    }
+
+    @Override
+    public String toString() {
+        return "TpacketV3Ring: blocks=" + blocks.length + ", blockSize=" + blockSize
+            + ", delivered=" + deliveredBlocks + ", closed=" + closed;
+    }
+
+    private static native long openRing(String device, int blockSize, int blockCount, int frameSize,
+            int blockTimeoutMs, int snapLength, boolean promisc, StringBuilder errbuf);
+
+    private static native ByteBuffer mapping(long handle);
+
+    private static native int nextBlock(long handle, int block, int timeoutMs);
+
+    private static native void releaseBlock(long handle, int block);
+
+    private static native int stats(long handle, long[] out);
+
+    private static native int setFilter(long handle, String filter, int optimize, StringBuilder errbuf);
+
+    private static native int setFanout(long handle, int groupId, int mode, StringBuilder errbuf);
+
+    private static native int sendPacket(long handle, byte[] data, StringBuilder errbuf);
+
+    private static native void closeRing(long handle);
+
+}
@@ -6,7 +6,7 @@
                  [org.clojure/tools.cli "1.0.214"]
                  [cli4clj "1.9.0"]
                  [clj-assorted-utils "1.19.0"]
-                 [jnetpcap "1.5.r1457-1i"]]
+                 [jnetpcap "1.5.r1457-1o"]]
   :min-lein-version "2.0.0"
   :aot [#"^clj-net-pcap.*"]
   :global-vars {*warn-on-reflection* true}
@@ -20,8 +20,9 @@
   :html5-docs-repository-url "https://github.com/ruedigergad/clj-net-pcap/blob/master"
   :test2junit-output-dir "docs/test-results"
   :test2junit-run-ant true
-  :test-selectors {:default (complement :main-cli)
-                   :main-cli :main-cli}
+  :test-selectors {:default (complement #(or (:main-cli %) (:benchmark %)))
+                   :main-cli :main-cli
+                   :benchmark :benchmark}
   :plugins [[lein-cloverage "1.2.4"] [test2junit "1.4.4"] [lein-html5-docs "3.0.3"]]
   :profiles {:uberjar {:source-paths ["src" "src-main"]}
              :run {:source-paths ["src" "src-main"]}}
@@ -0,0 +1,260 @@
+/*
+ *
+ * Copyright (C) 2026 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * LinkedTransferQueue with a constant time size().
+ *
+ * The size of a LinkedTransferQueue is determined by traversing its elements.
+ * This queue tracks the number of elements with a counter that is incremented
+ * by the producers and decremented by the consumers instead. Such that the
+ * counter does not become negative, it is incremented before an element is
+ * added. Hence, size() may briefly include elements that are about to be
+ * added.
+ */
+public class CountingTransferQueue<E> extends LinkedTransferQueue<E> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final LongAdder depth = new LongAdder();
+
+    @Override
+    public int size() {
+        long n = depth.sum();
+        return (int) Math.max(0, Math.min(n, Integer.MAX_VALUE));
+    }
+
+    /*
+     * Producer side
+     */
+
+    @Override
+    public boolean add(E e) {
+        depth.increment();
+        return super.add(e);
+    }
+
+    @Override
+    public boolean offer(E e) {
+        depth.increment();
+        return super.offer(e);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) {
+        depth.increment();
+        return super.offer(e, timeout, unit);
+    }
+
+    @Override
+    public void put(E e) {
+        depth.increment();
+        super.put(e);
+    }
+
+    @Override
+    public void transfer(E e) throws InterruptedException {
+        depth.increment();
+        try {
+            super.transfer(e);
+        } catch (InterruptedException ex) {
+            depth.decrement();
+            throw ex;
+        }
+    }
+
+    @Override
+    public boolean tryTransfer(E e) {
+        depth.increment();
+        if (super.tryTransfer(e)) {
+            return true;
+        }
+        depth.decrement();
+        return false;
+    }
+
+    @Override
+    public boolean tryTransfer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        depth.increment();
+        boolean transferred = false;
+        try {
+            transferred = super.tryTransfer(e, timeout, unit);
+            return transferred;
+        } finally {
+            if (!transferred) {
+                depth.decrement();
+            }
+        }
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends E> c) {
+        if (c == this) {
+            throw new IllegalArgumentException("Cannot add a queue to itself.");
+        }
+        boolean modified = false;
+        for (E e : c) {
+            modified |= add(e);
+        }
+        return modified;
+    }
+
+    /*
+     * Consumer side
+     */
+
+    @Override
+    public E poll() {
+        E e = super.poll();
+        if (e != null) {
+            depth.decrement();
+        }
+        return e;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E e = super.poll(timeout, unit);
+        if (e != null) {
+            depth.decrement();
+        }
+        return e;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E e = super.take();
+        depth.decrement();
+        return e;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (super.remove(o)) {
+            depth.decrement();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException("Cannot drain a queue to itself.");
+        }
+        int n = 0;
+        E e;
+        while (n < maxElements && (e = poll()) != null) {
+            c.add(e);
+            n++;
+        }
+        return n;
+    }
+
+    @Override
+    public void clear() {
+        while (poll() != null) {
+            // Remove all elements via poll() to decrement the counter.
+        }
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super E> filter) {
+        boolean modified = false;
+        for (Iterator<E> it = iterator(); it.hasNext();) {
+            if (filter.test(it.next())) {
+                it.remove();
+                modified = true;
+            }
+        }
+        return modified;
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        boolean modified = false;
+        for (Iterator<E> it = iterator(); it.hasNext();) {
+            if (c.contains(it.next())) {
+                it.remove();
+                modified = true;
+            }
+        }
+        return modified;
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        boolean modified = false;
+        for (Iterator<E> it = iterator(); it.hasNext();) {
+            if (!c.contains(it.next())) {
+                it.remove();
+                modified = true;
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * Removing via the iterator removes the first element that equals the
+     * last returned one, like remove(Object).
+     */
+    @Override
+    public Iterator<E> iterator() {
+        final Iterator<E> it = super.iterator();
+        return new Iterator<E>() {
+            private E last;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public E next() {
+                last = it.next();
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                CountingTransferQueue.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+}
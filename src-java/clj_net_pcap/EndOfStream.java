@@ -0,0 +1,89 @@
+/*
+ *
+ * Copyright (C) 2026 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Marker that is passed through the stages of the processing pipeline after
+ * the last packet.
+ *
+ * When a stage hands the marker to n parallel threads, it calls fork(n)
+ * before. Each of these threads calls join() when it takes the marker and
+ * only the last one hands the marker on. The forwarder threads call arrive()
+ * and the last one completes the marker, which releases the threads waiting
+ * in await().
+ */
+public final class EndOfStream {
+
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private final CountDownLatch completed = new CountDownLatch(1);
+
+    /**
+     * Announce that the marker is handed to n parallel threads.
+     */
+    public void fork(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("The number of threads has to be positive: " + n);
+        }
+        pending.set(n);
+    }
+
+    /**
+     * Returns true for the last of the forked threads, which hands the
+     * marker on.
+     */
+    public boolean join() {
+        if (pending.decrementAndGet() == 0) {
+            pending.set(1);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Complete the marker when called by the last of the forked threads.
+     */
+    public void arrive() {
+        if (join()) {
+            completed.countDown();
+        }
+    }
+
+    public boolean isCompleted() {
+        return completed.getCount() == 0;
+    }
+
+    public void await() throws InterruptedException {
+        completed.await();
+    }
+
+    /**
+     * Returns false if the marker was not completed within the timeout.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return completed.await(timeout, unit);
+    }
+
+}
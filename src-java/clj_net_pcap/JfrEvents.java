@@ -0,0 +1,382 @@
+/*
+ *
+ * Copyright (C) 2026 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder events of the capture pipeline.
+ *
+ * The events are enabled and disabled via the usual JFR settings. The static
+ * methods of this class can be called on JVMs without JFR. They only check
+ * isAvailable() and delegate to nested classes such that the jdk.jfr classes
+ * are only loaded when JFR is available.
+ *
+ * Drops are aggregated into bursts. A burst ends when no element was dropped
+ * for DROP_BURST_GAP_NANOS. The pipeline statistics are emitted periodically
+ * for each registered pipeline, by default every second.
+ */
+public final class JfrEvents {
+
+    public static final long DROP_BURST_GAP_NANOS = 10000000L;
+
+    private static final boolean AVAILABLE = detectAvailable();
+
+    private JfrEvents() {
+    }
+
+    private static boolean detectAvailable() {
+        try {
+            Class<?> flightRecorder = Class.forName("jdk.jfr.FlightRecorder");
+            return Boolean.TRUE.equals(flightRecorder.getMethod("isAvailable").invoke(null));
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    public static boolean isBulkDeliveredEnabled() {
+        return AVAILABLE && Impl.isBulkDeliveredEnabled();
+    }
+
+    /**
+     * fillNanos is the time since the previous bulk was delivered.
+     */
+    public static void bulkDelivered(long records, long bytes, long fillNanos) {
+        if (AVAILABLE) {
+            Impl.bulkDelivered(records, bytes, fillNanos);
+        }
+    }
+
+    public static void filterChanged(String operation, String filter) {
+        if (AVAILABLE) {
+            Impl.filterChanged(operation, filter);
+        }
+    }
+
+    public static void selfAdaptationStateChanged(long oldState, long newState, String expression) {
+        if (AVAILABLE) {
+            Impl.selfAdaptationStateChanged(oldState, newState, expression);
+        }
+    }
+
+    /**
+     * Returns null if JFR is not available.
+     */
+    public static DropBurstTracker createDropBurstTracker(String stage) {
+        return AVAILABLE ? Impl.createDropBurstTracker(stage) : null;
+    }
+
+    /**
+     * Register a pipeline for the periodic pipeline statistics event.
+     * statsFn has to return the stats map of the pipeline as returned by
+     * get-stats. Returns the id of the pipeline for unregisterPipeline() or
+     * -1 if JFR is not available.
+     */
+    public static long registerPipeline(Callable<?> statsFn) {
+        return AVAILABLE ? Impl.registerPipeline(statsFn) : -1;
+    }
+
+    public static void unregisterPipeline(long id) {
+        if (AVAILABLE) {
+            Impl.unregisterPipeline(id);
+        }
+    }
+
+    @Name("clj_net_pcap.BulkDelivered")
+    @Label("Bulk Delivered")
+    @Category("clj-net-pcap")
+    @Description("A bulk of packets was delivered from the native capture loop.")
+    public static class BulkDelivered extends Event {
+        @Label("Records")
+        public long records;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+
+        @Label("Fill Time")
+        @Timespan
+        public long fillTime;
+    }
+
+    @Name("clj_net_pcap.QueueDropBurst")
+    @Label("Queue Drop Burst")
+    @Category("clj-net-pcap")
+    @Description("Elements were dropped when enqueueing into the queue of a pipeline stage.")
+    public static class QueueDropBurst extends Event {
+        @Label("Stage")
+        public String stage;
+
+        @Label("Dropped")
+        public long dropped;
+    }
+
+    @Name("clj_net_pcap.FilterChanged")
+    @Label("Filter Changed")
+    @Category("clj-net-pcap")
+    public static class FilterChanged extends Event {
+        @Label("Operation")
+        public String operation;
+
+        @Label("Filter")
+        public String filter;
+    }
+
+    @Name("clj_net_pcap.SelfAdaptationStateChanged")
+    @Label("Self-Adaptation State Changed")
+    @Category("clj-net-pcap")
+    public static class SelfAdaptationStateChanged extends Event {
+        @Label("Old State")
+        public long oldState;
+
+        @Label("New State")
+        public long newState;
+
+        @Label("Expression")
+        public String expression;
+    }
+
+    @Name("clj_net_pcap.PipelineStatistics")
+    @Label("Pipeline Statistics")
+    @Category("clj-net-pcap")
+    @Period("1 s")
+    public static class PipelineStatistics extends Event {
+        @Label("Pipeline")
+        public long pipeline;
+
+        @Label("Received")
+        public long recv;
+
+        @Label("Dropped")
+        public long drop;
+
+        @Label("Interface Dropped")
+        public long ifdrop;
+
+        @Label("Buffer Dropped")
+        public long bufferDropped;
+
+        @Label("Scanner Dropped")
+        public long scannerDropped;
+
+        @Label("Out Queued")
+        public long outQueued;
+
+        @Label("Out Dropped")
+        public long outDropped;
+
+        @Label("Handler Failed")
+        public long handlerFailed;
+
+        @Label("Forwarder Failed")
+        public long forwarderFailed;
+
+        @Label("Buffer Queue Depth")
+        public long bufferQueueDepth;
+
+        @Label("Scanner Queue Depth")
+        public long scannerQueueDepth;
+
+        @Label("Out Queue Depth")
+        public long outQueueDepth;
+    }
+
+    /**
+     * Aggregates the drops of a pipeline stage into QueueDropBurst events.
+     */
+    public static final class DropBurstTracker {
+        private final String stage;
+        private QueueDropBurst burst;
+        private long lastDrop;
+
+        DropBurstTracker(String stage) {
+            this.stage = stage;
+        }
+
+        public synchronized void dropped(long n) {
+            if (!Impl.QUEUE_DROP_BURST.isEnabled()) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            if (burst != null && now - lastDrop > DROP_BURST_GAP_NANOS) {
+                commit();
+            }
+            if (burst == null) {
+                burst = new QueueDropBurst();
+                burst.stage = stage;
+                burst.begin();
+            }
+            burst.dropped += n;
+            lastDrop = now;
+        }
+
+        /**
+         * Commit the current burst if it ended.
+         */
+        public synchronized void flush() {
+            if (burst != null && System.nanoTime() - lastDrop > DROP_BURST_GAP_NANOS) {
+                commit();
+            }
+        }
+
+        private void commit() {
+            burst.commit();
+            burst = null;
+        }
+    }
+
+    private static final class Impl {
+        static final EventType BULK_DELIVERED = EventType.getEventType(BulkDelivered.class);
+        static final EventType QUEUE_DROP_BURST = EventType.getEventType(QueueDropBurst.class);
+
+        private static final AtomicLong PIPELINE_IDS = new AtomicLong();
+        private static final Map<Long, Callable<?>> PIPELINES = new ConcurrentHashMap<Long, Callable<?>>();
+        private static final Set<DropBurstTracker> TRACKERS =
+            Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<DropBurstTracker, Boolean>()));
+
+        static {
+            FlightRecorder.addPeriodicEvent(PipelineStatistics.class, new Runnable() {
+                @Override
+                public void run() {
+                    emitPipelineStatistics();
+                }
+            });
+        }
+
+        static boolean isBulkDeliveredEnabled() {
+            return BULK_DELIVERED.isEnabled();
+        }
+
+        static void bulkDelivered(long records, long bytes, long fillNanos) {
+            BulkDelivered event = new BulkDelivered();
+            if (event.isEnabled()) {
+                event.records = records;
+                event.bytes = bytes;
+                event.fillTime = fillNanos;
+                event.commit();
+            }
+        }
+
+        static void filterChanged(String operation, String filter) {
+            FilterChanged event = new FilterChanged();
+            if (event.isEnabled()) {
+                event.operation = operation;
+                event.filter = filter;
+                event.commit();
+            }
+        }
+
+        static void selfAdaptationStateChanged(long oldState, long newState, String expression) {
+            SelfAdaptationStateChanged event = new SelfAdaptationStateChanged();
+            if (event.isEnabled()) {
+                event.oldState = oldState;
+                event.newState = newState;
+                event.expression = expression;
+                event.commit();
+            }
+        }
+
+        static DropBurstTracker createDropBurstTracker(String stage) {
+            DropBurstTracker tracker = new DropBurstTracker(stage);
+            TRACKERS.add(tracker);
+            return tracker;
+        }
+
+        static long registerPipeline(Callable<?> statsFn) {
+            long id = PIPELINE_IDS.incrementAndGet();
+            PIPELINES.put(id, statsFn);
+            return id;
+        }
+
+        static void unregisterPipeline(long id) {
+            PIPELINES.remove(id);
+        }
+
+        private static long stat(Map<?, ?> stats, String key) {
+            Object v = stats.get(key);
+            return v instanceof Number ? ((Number) v).longValue() : 0;
+        }
+
+        static void emitPipelineStatistics() {
+            synchronized (TRACKERS) {
+                for (DropBurstTracker tracker : TRACKERS) {
+                    tracker.flush();
+                }
+            }
+
+            for (Map.Entry<Long, Callable<?>> pipeline : PIPELINES.entrySet()) {
+                PipelineStatistics event = new PipelineStatistics();
+                if (!event.isEnabled()) {
+                    return;
+                }
+
+                Map<?, ?> stats;
+                try {
+                    stats = (Map<?, ?>) pipeline.getValue().call();
+                } catch (Exception e) {
+                    continue;
+                }
+                if (stats == null) {
+                    continue;
+                }
+
+                event.pipeline = pipeline.getKey();
+                event.recv = stat(stats, "recv");
+                event.drop = stat(stats, "drop");
+                event.ifdrop = stat(stats, "ifdrop");
+                event.bufferDropped = stat(stats, "buffer-dropped");
+                event.scannerDropped = stat(stats, "scanner-dropped");
+                event.outQueued = stat(stats, "out-queued");
+                event.outDropped = stat(stats, "out-dropped");
+                event.handlerFailed = stat(stats, "handler-failed");
+                event.forwarderFailed = stat(stats, "forwarder-failed");
+                event.bufferQueueDepth = stat(stats, "buffer-queue-depth");
+                event.scannerQueueDepth = stat(stats, "scanner-queue-depth");
+                event.outQueueDepth = stat(stats, "out-queue-depth");
+                event.commit();
+            }
+        }
+    }
+
+}
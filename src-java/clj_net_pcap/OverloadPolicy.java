@@ -0,0 +1,207 @@
+/*
+ *
+ * Copyright (C) 2026 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Determines what happens when data is enqueued into the queue of a pipeline
+ * stage that is full or filling up.
+ *
+ * DROP_NEWEST drops the new element when the queue is full.
+ * DROP_OLDEST removes the oldest element of a full queue to make room for the
+ * new one. This takes from the consumer side of the queue and cannot be used
+ * with single-consumer queues such as SpscRingBuffer.
+ * EARLY_DROP drops new elements with a probability that increases linearly
+ * from 0, at the threshold fill level, to 1, at the capacity.
+ * BLOCK_TIMEOUT waits up to the timeout for space before dropping.
+ * SAMPLE only enqueues every sampleRate-th element while the fill level is
+ * above the threshold.
+ *
+ * The fill level is determined with queue.size() for every element and while
+ * waiting with BLOCK_TIMEOUT. Hence, size() should be a constant time
+ * operation. Use CountingTransferQueue instead of LinkedTransferQueue, for
+ * which size() traverses all elements.
+ */
+public class OverloadPolicy {
+
+    public static final int DROP_NEWEST = 0;
+    public static final int DROP_OLDEST = 1;
+    public static final int EARLY_DROP = 2;
+    public static final int BLOCK_TIMEOUT = 3;
+    public static final int SAMPLE = 4;
+
+    private static final long BLOCK_PARK_NANOS = 50000;
+
+    private final BlockingQueue<Object> queue;
+    private final int policy;
+    private final int capacity;
+    private final double threshold;
+    private final long timeoutNanos;
+    private final int sampleRate;
+
+    private long sampleCount = 0;
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder droppedFull = new LongAdder();
+    private final LongAdder droppedOldest = new LongAdder();
+    private final LongAdder droppedEarly = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder sampledOut = new LongAdder();
+
+    /**
+     * threshold is the fill level, as fraction of capacity, above which
+     * EARLY_DROP and SAMPLE start dropping.
+     */
+    @SuppressWarnings("unchecked")
+    public OverloadPolicy(BlockingQueue<?> queue, int policy, int capacity, double threshold, long timeoutNanos, int sampleRate) {
+        if (policy < DROP_NEWEST || policy > SAMPLE) {
+            throw new IllegalArgumentException("Unknown overload policy: " + policy);
+        }
+        if (policy == DROP_OLDEST && queue instanceof SpscRingBuffer) {
+            throw new IllegalArgumentException("DROP_OLDEST cannot be used with a single-consumer SpscRingBuffer.");
+        }
+        if (capacity < 1 || threshold < 0.0 || threshold >= 1.0 || sampleRate < 1) {
+            throw new IllegalArgumentException("Invalid overload policy parameters: capacity " + capacity
+                                               + ", threshold " + threshold + ", sample rate " + sampleRate);
+        }
+
+        this.queue = (BlockingQueue<Object>) queue;
+        this.policy = policy;
+        this.capacity = capacity;
+        this.threshold = threshold;
+        this.timeoutNanos = timeoutNanos;
+        this.sampleRate = sampleRate;
+    }
+
+    public int getPolicy() {
+        return policy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private boolean add(Object e) {
+        if (queue.offer(e)) {
+            enqueued.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Enqueue e according to this policy.
+     * Returns null if e was enqueued, e if e was dropped, or the oldest
+     * element if that was dropped in favor of e.
+     */
+    public Object enqueue(Object e) throws InterruptedException {
+        int size = queue.size();
+
+        switch (policy) {
+            case DROP_OLDEST:
+                if (size < capacity && add(e)) {
+                    return null;
+                }
+                Object oldest = queue.poll();
+                if (oldest != null) {
+                    droppedOldest.increment();
+                }
+                if (add(e)) {
+                    return oldest;
+                }
+                droppedFull.increment();
+                return e;
+            case EARLY_DROP:
+                if (size > threshold * capacity && size < capacity) {
+                    double p = (size - threshold * capacity) / ((1.0 - threshold) * capacity);
+                    if (ThreadLocalRandom.current().nextDouble() < p) {
+                        droppedEarly.increment();
+                        return e;
+                    }
+                }
+                break;
+            case BLOCK_TIMEOUT:
+                if (size >= capacity) {
+                    long deadline = System.nanoTime() + timeoutNanos;
+                    while ((size = queue.size()) >= capacity) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            timedOut.increment();
+                            return e;
+                        }
+                        if (Thread.interrupted()) {
+                            throw new InterruptedException();
+                        }
+                        LockSupport.parkNanos(Math.min(remaining, BLOCK_PARK_NANOS));
+                    }
+                }
+                break;
+            case SAMPLE:
+                if (size > threshold * capacity && size < capacity && (sampleCount++ % sampleRate) != 0) {
+                    sampledOut.increment();
+                    return e;
+                }
+                break;
+            default:
+                break;
+        }
+
+        if (size < capacity && add(e)) {
+            return null;
+        }
+        droppedFull.increment();
+        return e;
+    }
+
+    public long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    /**
+     * Returns the number of new elements that were dropped because the queue
+     * was full.
+     */
+    public long getDroppedFull() {
+        return droppedFull.sum();
+    }
+
+    public long getDroppedOldest() {
+        return droppedOldest.sum();
+    }
+
+    public long getDroppedEarly() {
+        return droppedEarly.sum();
+    }
+
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    public long getSampledOut() {
+        return sampledOut.sum();
+    }
+
+}
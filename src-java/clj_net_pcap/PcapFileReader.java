@@ -0,0 +1,351 @@
+/*
+ *
+ * Copyright (C) 2026 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reader for pcap files that parses the file format directly without
+ * libpcap or jNetPcap.
+ *
+ * The file is memory mapped in windows, so files larger than 2 GB can be read
+ * as well. Packets are emitted in the same raw format as the live capture:
+ * a 16 byte header (timestamp seconds, timestamp microseconds, caplen, len)
+ * followed by the captured data. Single records use big endian headers like
+ * the raw single packet handler and bulks use native byte order like the
+ * native bulk capture. Files with nanosecond resolution are converted to
+ * microseconds.
+ */
+public class PcapFileReader implements RawRecordReader {
+
+    public static final int MAGIC_US = 0xa1b2c3d4;
+    public static final int MAGIC_NS = 0xa1b23c4d;
+
+    public static final int FILE_HEADER_SIZE = 24;
+    public static final int FILE_RECORD_HEADER_SIZE = 16;
+    public static final int RECORD_HEADER_SIZE = 16;
+
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Caplens above this are treated as corrupt file.
+     */
+    public static final int MAX_CAPLEN = 16 * 1024 * 1024;
+
+    /**
+     * Number of chained record headers that have to be plausible for
+     * detecting a record start, see findRecordStart.
+     */
+    public static final int RESYNC_RECORDS = 8;
+
+    /**
+     * Maximum difference in seconds of the timestamps of chained record
+     * headers for detecting a record start, see findRecordStart.
+     */
+    public static final int RESYNC_MAX_TIMESTAMP_GAP = 24 * 60 * 60;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int windowSize;
+
+    private final ByteOrder fileOrder;
+    private final boolean nanos;
+    private final int snapLength;
+    private final int linkType;
+
+    private MappedByteBuffer window;
+    private long windowStart = 0;
+    private long position = FILE_HEADER_SIZE;
+    private final long end;
+    private long packetCount = 0;
+
+    public PcapFileReader(String fileName) throws IOException {
+        this(fileName, DEFAULT_WINDOW_SIZE);
+    }
+
+    public PcapFileReader(String fileName, int windowSize) throws IOException {
+        this(fileName, 0, Long.MAX_VALUE, windowSize);
+    }
+
+    /**
+     * Create a reader that only reads the records that start in the byte
+     * range [start, end) of the file. start has to be the offset of a record,
+     * e.g., as returned by findRecordStart, or 0 for the first record.
+     */
+    public PcapFileReader(String fileName, long start, long end, int windowSize) throws IOException {
+        this.windowSize = windowSize;
+        file = new RandomAccessFile(fileName, "r");
+        channel = file.getChannel();
+        fileSize = channel.size();
+        this.end = Math.min(end, fileSize);
+        position = Math.max(start, FILE_HEADER_SIZE);
+
+        try {
+            if (fileSize < FILE_HEADER_SIZE) {
+                throw new IOException("File is too short for a pcap file: " + fileName);
+            }
+
+            map(0, FILE_HEADER_SIZE);
+            window.order(ByteOrder.LITTLE_ENDIAN);
+            int magic = window.getInt(0);
+            if (magic == MAGIC_US || magic == MAGIC_NS) {
+                fileOrder = ByteOrder.LITTLE_ENDIAN;
+            } else if (Integer.reverseBytes(magic) == MAGIC_US || Integer.reverseBytes(magic) == MAGIC_NS) {
+                fileOrder = ByteOrder.BIG_ENDIAN;
+                magic = Integer.reverseBytes(magic);
+            } else {
+                throw new IOException("Not a pcap file, unknown magic number: 0x" + Integer.toHexString(magic));
+            }
+            nanos = magic == MAGIC_NS;
+
+            window.order(fileOrder);
+            snapLength = window.getInt(16);
+            linkType = window.getInt(20);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getLinkType() {
+        return linkType;
+    }
+
+    public int getSnapLength() {
+        return snapLength;
+    }
+
+    public boolean isNanosecondResolution() {
+        return nanos;
+    }
+
+    public ByteOrder getFileByteOrder() {
+        return fileOrder;
+    }
+
+    /**
+     * Returns the number of packets that were read so far.
+     */
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * Map the part of the file that contains [pos, pos + len).
+     * The current window is kept if it already contains this range.
+     */
+    private void map(long pos, int len) throws IOException {
+        if (window != null && pos >= windowStart && pos + len <= windowStart + window.capacity()) {
+            return;
+        }
+
+        long size = Math.min(Math.max(windowSize, len), fileSize - pos);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+        window.order(fileOrder != null ? fileOrder : ByteOrder.LITTLE_ENDIAN);
+        windowStart = pos;
+    }
+
+    /**
+     * Returns the caplen of the record at pos or -1 if the file ends before
+     * the complete record.
+     */
+    private int caplenAt(long pos) throws IOException {
+        if (pos >= end || pos + FILE_RECORD_HEADER_SIZE > fileSize) {
+            return -1;
+        }
+
+        map(pos, FILE_RECORD_HEADER_SIZE);
+        int caplen = window.getInt((int) (pos - windowStart) + 8);
+        if (caplen < 0 || caplen > MAX_CAPLEN) {
+            throw new IOException("Corrupt pcap record at offset " + pos + ", caplen: " + caplen);
+        }
+
+        if (pos + FILE_RECORD_HEADER_SIZE + caplen > fileSize) {
+            return -1;
+        }
+        return caplen;
+    }
+
+    /**
+     * Returns true if a plausible record header is at pos.
+     */
+    private boolean isPlausibleHeader(long pos) throws IOException {
+        map(pos, FILE_RECORD_HEADER_SIZE);
+        int offset = (int) (pos - windowStart);
+        int frac = window.getInt(offset + 4);
+        int caplen = window.getInt(offset + 8);
+        int len = window.getInt(offset + 12);
+
+        return frac >= 0 && frac < (nanos ? 1000000000 : 1000000)
+            && caplen >= 0 && caplen <= MAX_CAPLEN
+            && (snapLength <= 0 || caplen <= snapLength)
+            && len >= caplen && len <= MAX_CAPLEN;
+    }
+
+    /**
+     * Returns the offset of the first record that starts at or after from and
+     * before limit or -1 if no record start was found.
+     *
+     * As the pcap format has no sync markers, a record start is detected by
+     * checking that the next RESYNC_RECORDS record headers are plausible,
+     * that they are chained by their caplens, or that the chain ends exactly
+     * at the end of the file, and that their timestamps differ by at most
+     * RESYNC_MAX_TIMESTAMP_GAP seconds. A candidate is only confirmed if at
+     * least the header of the following record is plausible as well. Hence,
+     * the start of the last record of the file is not detected.
+     */
+    public long findRecordStart(long from, long limit) throws IOException {
+        long pos = Math.max(from, FILE_HEADER_SIZE);
+        long end = Math.min(limit, fileSize - FILE_RECORD_HEADER_SIZE + 1);
+
+        for (; pos < end; pos++) {
+            if (isRecordChain(pos)) {
+                return pos;
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean isRecordChain(long pos) throws IOException {
+        long previousSec = -1;
+        for (int i = 0; i < RESYNC_RECORDS; i++) {
+            if (pos == fileSize) {
+                return i > 1;
+            }
+            if (pos + FILE_RECORD_HEADER_SIZE > fileSize || !isPlausibleHeader(pos)) {
+                return false;
+            }
+
+            int offset = (int) (pos - windowStart);
+            long sec = window.getInt(offset) & 0xffffffffL;
+            if (previousSec >= 0 && Math.abs(sec - previousSec) > RESYNC_MAX_TIMESTAMP_GAP) {
+                return false;
+            }
+            previousSec = sec;
+
+            pos += FILE_RECORD_HEADER_SIZE + window.getInt(offset + 8);
+            if (pos > fileSize) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy the record at pos, with the given caplen, into dst.
+     */
+    private void copyRecord(long pos, int caplen, ByteBuffer dst) throws IOException {
+        map(pos, FILE_RECORD_HEADER_SIZE + caplen);
+        int offset = (int) (pos - windowStart);
+
+        int sec = window.getInt(offset);
+        int frac = window.getInt(offset + 4);
+        dst.putInt(sec);
+        dst.putInt(nanos ? frac / 1000 : frac);
+        dst.putInt(caplen);
+        dst.putInt(window.getInt(offset + 12));
+
+        ByteBuffer data = window.duplicate();
+        data.limit(offset + FILE_RECORD_HEADER_SIZE + caplen);
+        data.position(offset + FILE_RECORD_HEADER_SIZE);
+        dst.put(data);
+    }
+
+    /**
+     * Returns the next packet as single record with big endian header or
+     * null when the end of the file was reached.
+     */
+    public ByteBuffer nextRecord() throws IOException {
+        int caplen = caplenAt(position);
+        if (caplen < 0) {
+            return null;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + caplen);
+        copyRecord(position, caplen, record);
+        record.flip();
+
+        position += FILE_RECORD_HEADER_SIZE + caplen;
+        packetCount++;
+        return record;
+    }
+
+    /**
+     * Returns a bulk of at most maxPackets records with native byte order
+     * headers or null when the end of the file was reached.
+     * If maxBytes is larger than zero, the bulk is also limited to maxBytes,
+     * unless a single record is larger.
+     */
+    public ByteBuffer nextBulk(int maxPackets, int maxBytes) throws IOException {
+        long pos = position;
+        int count = 0;
+        int size = 0;
+
+        while (count < maxPackets) {
+            int caplen = caplenAt(pos);
+            if (caplen < 0) {
+                break;
+            }
+
+            int recordSize = RECORD_HEADER_SIZE + caplen;
+            if (count > 0 && maxBytes > 0 && size + recordSize > maxBytes) {
+                break;
+            }
+
+            size += recordSize;
+            pos += FILE_RECORD_HEADER_SIZE + caplen;
+            count++;
+        }
+
+        if (count == 0) {
+            return null;
+        }
+
+        ByteBuffer bulk = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < count; i++) {
+            int caplen = caplenAt(position);
+            copyRecord(position, caplen, bulk);
+            position += FILE_RECORD_HEADER_SIZE + caplen;
+        }
+        bulk.flip();
+
+        packetCount += count;
+        return bulk;
+    }
+
+    public void close() throws IOException {
+        window = null;
+        file.close();
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ *
+ * Copyright (C) 2026 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of PcapPacketWrapper instances that are reused for peering packets.
+ *
+ * Reusing the packets and their headers avoids creating native peered
+ * objects, which are tracked via phantom references, for each packet.
+ * Packets are returned to the pool when their last reference is released,
+ * see PcapPacketWrapper.release(). When the pool is empty, new packets are
+ * created. Packets that do not fit into a full pool are left to the GC.
+ */
+public class PcapPacketPool {
+
+    private final ArrayBlockingQueue<PcapPacketWrapper> free;
+
+    private volatile long created = 0;
+    private volatile long acquired = 0;
+    private final LongAdder recycled = new LongAdder();
+
+    public PcapPacketPool(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Pool size has to be positive: " + size);
+        }
+        free = new ArrayBlockingQueue<PcapPacketWrapper>(size);
+    }
+
+    /**
+     * Returns a packet with a single reference.
+     * This must only be called from a single thread.
+     */
+    public PcapPacketWrapper acquire() {
+        acquired++;
+
+        PcapPacketWrapper pkt = free.poll();
+        if (pkt == null) {
+            created++;
+            return new PcapPacketWrapper(this);
+        }
+        pkt.resetReferences();
+        return pkt;
+    }
+
+    void recycle(PcapPacketWrapper pkt) {
+        recycled.increment();
+        free.offer(pkt);
+    }
+
+    public int getAvailable() {
+        return free.size();
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public long getAcquired() {
+        return acquired;
+    }
+
+    public long getRecycled() {
+        return recycled.sum();
+    }
+
+}
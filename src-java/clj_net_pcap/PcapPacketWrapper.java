@@ -1,21 +1,120 @@
 package clj_net_pcap;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jnetpcap.PcapHeader;
 import org.jnetpcap.nio.JMemory;
 import org.jnetpcap.packet.PcapPacket;
+import org.jnetpcap.packet.PeeringException;
 
 public class PcapPacketWrapper extends PcapPacket {
 
+    private SlabAllocator.Slab slab;
+    private final PcapPacketPool pool;
+    private PcapHeader ownHeader;
+
+    /**
+     * References held by the pipeline and by consumers that retained this
+     * packet.
+     */
+    private final AtomicInteger refs = new AtomicInteger(1);
+
     public PcapPacketWrapper (PcapPacket pkt) {
         super(pkt);
+        pool = null;
     }
 
     public PcapPacketWrapper (JMemory.Type type) {
         super(type);
+        pool = null;
+    }
+
+    /**
+     * Create a packet that is returned to the given pool when it is released.
+     */
+    public PcapPacketWrapper (PcapPacketPool pool) {
+        super(JMemory.Type.POINTER);
+        this.pool = pool;
     }
 
     public void free() {
         cleanup();
     }
 
-}
+    /**
+     * Peer this packet with the given data and a header with the given
+     * values. The header memory is owned by this packet and reused.
+     */
+    public void peerHeaderAndData(long sec, int usec, int caplen, int wirelen, ByteBuffer data)
+        throws PeeringException {
+        if (ownHeader == null) {
+            ownHeader = new PcapHeader(caplen, wirelen, sec, usec);
+        } else {
+            ownHeader.hdr_sec(sec);
+            ownHeader.hdr_usec(usec);
+            ownHeader.hdr_len(caplen);
+            ownHeader.hdr_wirelen(wirelen);
+        }
+        peerHeaderAndData(ownHeader, data);
+    }
+
+    /**
+     * Attach the slab from which the memory this packet is peered with was
+     * allocated.
+     */
+    public void setSlab(SlabAllocator.Slab slab) {
+        this.slab = slab;
+    }
+
+    /**
+     * Release the memory of this packet to its slab, if any.
+     * The packet must not be accessed afterwards.
+     */
+    public void releaseSlab() {
+        if (slab != null) {
+            SlabAllocator.Slab s = slab;
+            slab = null;
+            s.release();
+        }
+    }
 
+    public boolean isPooled() {
+        return pool != null;
+    }
+
+    /**
+     * Keep this packet beyond the call in which it was handed over.
+     * Each retain has to be matched by a release.
+     */
+    public PcapPacketWrapper retain() {
+        refs.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Drop one reference to this packet. When the last reference is dropped,
+     * the memory is released to its slab and the packet is returned to its
+     * pool. The packet must not be accessed after the last release.
+     */
+    public void release() {
+        int r = refs.decrementAndGet();
+        if (r > 0) {
+            return;
+        }
+        if (r < 0) {
+            refs.incrementAndGet();
+            throw new IllegalStateException("Packet was released more often than it was retained.");
+        }
+
+        releaseSlab();
+        if (pool != null) {
+            pool.recycle(this);
+        }
+    }
+
+    void resetReferences() {
+        refs.set(1);
+    }
+
+}
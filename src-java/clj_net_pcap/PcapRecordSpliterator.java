@@ -0,0 +1,280 @@
+/*
+ *
+ * Copyright (C) 2026 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Spliterator over the single raw records of a byte range of a pcap file.
+ *
+ * Splitting is done at record starts that are found with
+ * PcapFileReader.findRecordStart, so a large file can be processed in
+ * parallel, e.g., via a parallel stream. The records are emitted in the same
+ * format as by PcapFileReader.nextRecord. Each spliterator opens its own
+ * reader when the first record is read and closes it when its range was
+ * completely consumed or when close is called. closeAll closes a spliterator
+ * and all spliterators that were split off from it, directly or indirectly.
+ */
+public class PcapRecordSpliterator implements Spliterator<ByteBuffer>, Closeable {
+
+    /**
+     * Ranges smaller than this are not split any further.
+     */
+    public static final long DEFAULT_MIN_SPLIT_SIZE = 4 * 1024 * 1024;
+
+    private final String fileName;
+    private final long minSplitSize;
+    /* This spliterator and all spliterators that were split off from it or from its splits. */
+    private final List<PcapRecordSpliterator> family;
+    private long start;
+    private long end;
+    private PcapFileReader reader;
+
+    public PcapRecordSpliterator(String fileName) throws IOException {
+        this(fileName, DEFAULT_MIN_SPLIT_SIZE);
+    }
+
+    public PcapRecordSpliterator(String fileName, long minSplitSize) throws IOException {
+        this(fileName, 0, fileSize(fileName), minSplitSize);
+    }
+
+    PcapRecordSpliterator(String fileName, long start, long end, long minSplitSize) {
+        this(fileName, start, end, minSplitSize, Collections.synchronizedList(new ArrayList<PcapRecordSpliterator>()));
+    }
+
+    private PcapRecordSpliterator(String fileName, long start, long end, long minSplitSize, List<PcapRecordSpliterator> family) {
+        this.fileName = fileName;
+        this.start = start;
+        this.end = end;
+        this.minSplitSize = minSplitSize;
+        this.family = family;
+        family.add(this);
+    }
+
+    private static long fileSize(String fileName) throws IOException {
+        PcapFileReader r = new PcapFileReader(fileName, PcapFileReader.FILE_HEADER_SIZE);
+        try {
+            return r.getFileSize();
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Split the given file into at most chunks spliterators that cover
+     * consecutive byte ranges of roughly equal size.
+     */
+    public static List<PcapRecordSpliterator> split(String fileName, int chunks) throws IOException {
+        List<PcapRecordSpliterator> result = new ArrayList<PcapRecordSpliterator>();
+        PcapFileReader r = new PcapFileReader(fileName, PcapFileReader.DEFAULT_WINDOW_SIZE);
+        try {
+            long size = r.getFileSize();
+            long chunkStart = 0;
+            for (int i = 1; i < chunks; i++) {
+                long from = Math.max(size * i / chunks, chunkStart + 1);
+                long boundary = r.findRecordStart(from, size);
+                if (boundary < 0) {
+                    break;
+                }
+                result.add(new PcapRecordSpliterator(fileName, chunkStart, boundary, DEFAULT_MIN_SPLIT_SIZE));
+                chunkStart = boundary;
+            }
+            result.add(new PcapRecordSpliterator(fileName, chunkStart, size, DEFAULT_MIN_SPLIT_SIZE));
+        } finally {
+            r.close();
+        }
+        return result;
+    }
+
+    /**
+     * Returns a stream of the single raw records of the given file.
+     *
+     * The stream has to be closed, e.g., with try-with-resources, as
+     * short-circuiting operations and exceptions leave the readers of
+     * partially consumed spliterators open otherwise. Closing the stream
+     * closes all of its spliterators via closeAll.
+     */
+    public static Stream<ByteBuffer> stream(String fileName, boolean parallel) throws IOException {
+        final PcapRecordSpliterator root = new PcapRecordSpliterator(fileName);
+        return StreamSupport.stream(root, parallel).onClose(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    root.closeAll();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    private void open() throws IOException {
+        if (reader == null) {
+            reader = new PcapFileReader(fileName, start, end, PcapFileReader.DEFAULT_WINDOW_SIZE);
+        }
+    }
+
+    private synchronized void closeReader() throws IOException {
+        start = end;
+        if (reader != null) {
+            PcapFileReader r = reader;
+            reader = null;
+            r.close();
+        }
+    }
+
+    /**
+     * Close the reader and skip the remaining records.
+     */
+    public void close() throws IOException {
+        closeReader();
+    }
+
+    /**
+     * Close this spliterator and all spliterators that were split off from
+     * it, directly or indirectly. All are closed even if closing one fails,
+     * in which case the first IOException is thrown.
+     */
+    public void closeAll() throws IOException {
+        List<PcapRecordSpliterator> spliterators;
+        synchronized (family) {
+            spliterators = new ArrayList<PcapRecordSpliterator>(family);
+        }
+
+        IOException error = null;
+        for (PcapRecordSpliterator s : spliterators) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                } else {
+                    error.addSuppressed(e);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super ByteBuffer> action) {
+        if (start >= end) {
+            return false;
+        }
+
+        try {
+            open();
+            ByteBuffer record = reader.nextRecord();
+            if (record == null) {
+                closeReader();
+                return false;
+            }
+            action.accept(record);
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super ByteBuffer> action) {
+        if (start >= end) {
+            return;
+        }
+
+        try {
+            open();
+            try {
+                ByteBuffer record;
+                while ((record = reader.nextRecord()) != null) {
+                    action.accept(record);
+                }
+            } finally {
+                closeReader();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Split off the second half of the remaining range.
+     * A spliterator from which records were already read is not split.
+     */
+    @Override
+    public Spliterator<ByteBuffer> trySplit() {
+        if (reader != null || end - start < 2 * minSplitSize) {
+            return null;
+        }
+
+        try {
+            PcapFileReader r = new PcapFileReader(fileName, PcapFileReader.DEFAULT_WINDOW_SIZE);
+            try {
+                long boundary = r.findRecordStart(start + (end - start) / 2, end);
+                if (boundary < 0) {
+                    return null;
+                }
+                PcapRecordSpliterator second = new PcapRecordSpliterator(fileName, boundary, end, minSplitSize, family);
+                end = boundary;
+                return second;
+            } finally {
+                r.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the remaining byte range size as estimate.
+     */
+    @Override
+    public long estimateSize() {
+        return end - start;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL | IMMUTABLE;
+    }
+
+}
@@ -0,0 +1,226 @@
+/*
+ *
+ * Copyright (C) 2026 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Reader for pcap data from an InputStream, e.g., a decompressing stream.
+ *
+ * Unlike PcapFileReader, the data is read sequentially and cannot be memory
+ * mapped. The emitted records and bulks have the same format as the ones of
+ * PcapFileReader.
+ */
+public class PcapStreamReader implements RawRecordReader {
+
+    public static final int RECORD_HEADER_SIZE = PcapFileReader.RECORD_HEADER_SIZE;
+    public static final int MAX_CAPLEN = PcapFileReader.MAX_CAPLEN;
+
+    private final InputStream in;
+
+    private final ByteOrder fileOrder;
+    private final boolean nanos;
+    private final int snapLength;
+    private final int linkType;
+
+    private final ByteBuffer header = ByteBuffer.allocate(PcapFileReader.FILE_RECORD_HEADER_SIZE);
+    private boolean headerPending = false;
+    private long packetCount = 0;
+
+    private ByteBuffer staging = ByteBuffer.allocate(64 * 1024).order(ByteOrder.nativeOrder());
+
+    public PcapStreamReader(InputStream in) throws IOException {
+        this.in = in;
+
+        try {
+            ByteBuffer fileHeader = ByteBuffer.allocate(PcapFileReader.FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (!readFully(fileHeader.array(), 0, PcapFileReader.FILE_HEADER_SIZE)) {
+                throw new IOException("Stream is too short for pcap data.");
+            }
+
+            int magic = fileHeader.getInt(0);
+            if (magic == PcapFileReader.MAGIC_US || magic == PcapFileReader.MAGIC_NS) {
+                fileOrder = ByteOrder.LITTLE_ENDIAN;
+            } else if (Integer.reverseBytes(magic) == PcapFileReader.MAGIC_US
+                       || Integer.reverseBytes(magic) == PcapFileReader.MAGIC_NS) {
+                fileOrder = ByteOrder.BIG_ENDIAN;
+                magic = Integer.reverseBytes(magic);
+            } else {
+                throw new IOException("Not pcap data, unknown magic number: 0x" + Integer.toHexString(magic));
+            }
+            nanos = magic == PcapFileReader.MAGIC_NS;
+
+            fileHeader.order(fileOrder);
+            snapLength = fileHeader.getInt(16);
+            linkType = fileHeader.getInt(20);
+            header.order(fileOrder);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    public int getLinkType() {
+        return linkType;
+    }
+
+    public int getSnapLength() {
+        return snapLength;
+    }
+
+    public boolean isNanosecondResolution() {
+        return nanos;
+    }
+
+    public ByteOrder getFileByteOrder() {
+        return fileOrder;
+    }
+
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * Returns false if the stream ended before len bytes were read.
+     */
+    private boolean readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = in.read(b, off, len);
+            if (n < 0) {
+                return false;
+            }
+            off += n;
+            len -= n;
+        }
+        return true;
+    }
+
+    /**
+     * Read the next record header unless it was already read.
+     * Returns the caplen or -1 at the end of the stream.
+     */
+    private int readHeader() throws IOException {
+        if (!headerPending) {
+            if (!readFully(header.array(), 0, PcapFileReader.FILE_RECORD_HEADER_SIZE)) {
+                return -1;
+            }
+            headerPending = true;
+        }
+
+        int caplen = header.getInt(8);
+        if (caplen < 0 || caplen > MAX_CAPLEN) {
+            throw new IOException("Corrupt pcap record after " + packetCount + " packets, caplen: " + caplen);
+        }
+        return caplen;
+    }
+
+    /**
+     * Put the pending header, converted to microseconds, into dst and read the
+     * record data after it. Returns false if the stream ended before the
+     * complete record.
+     */
+    private boolean readRecord(int caplen, ByteBuffer dst) throws IOException {
+        int frac = header.getInt(4);
+        dst.putInt(header.getInt(0));
+        dst.putInt(nanos ? frac / 1000 : frac);
+        dst.putInt(caplen);
+        dst.putInt(header.getInt(12));
+        headerPending = false;
+
+        if (!readFully(dst.array(), dst.arrayOffset() + dst.position(), caplen)) {
+            return false;
+        }
+        dst.position(dst.position() + caplen);
+        return true;
+    }
+
+    public ByteBuffer nextRecord() throws IOException {
+        int caplen = readHeader();
+        if (caplen < 0) {
+            return null;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + caplen);
+        if (!readRecord(caplen, record)) {
+            return null;
+        }
+        record.flip();
+
+        packetCount++;
+        return record;
+    }
+
+    /**
+     * The records are read into a staging buffer. When the next record
+     * would exceed maxBytes, its header is kept for the next bulk.
+     */
+    public ByteBuffer nextBulk(int maxPackets, int maxBytes) throws IOException {
+        staging.clear();
+        int count = 0;
+
+        while (count < maxPackets) {
+            int caplen = readHeader();
+            if (caplen < 0) {
+                break;
+            }
+
+            int recordSize = RECORD_HEADER_SIZE + caplen;
+            if (count > 0 && maxBytes > 0 && staging.position() + recordSize > maxBytes) {
+                break;
+            }
+
+            if (staging.remaining() < recordSize) {
+                int capacity = Math.max(staging.capacity() * 2, staging.position() + recordSize);
+                ByteBuffer grown = ByteBuffer.allocate(capacity).order(ByteOrder.nativeOrder());
+                staging.flip();
+                grown.put(staging);
+                staging = grown;
+            }
+
+            int recordStart = staging.position();
+            if (!readRecord(caplen, staging)) {
+                staging.position(recordStart);
+                break;
+            }
+            count++;
+        }
+
+        if (count == 0) {
+            return null;
+        }
+
+        ByteBuffer bulk = ByteBuffer.wrap(Arrays.copyOf(staging.array(), staging.position()))
+            .order(ByteOrder.nativeOrder());
+
+        packetCount += count;
+        return bulk;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+}
@@ -0,0 +1,471 @@
+/*
+ *
+ * Copyright (C) 2026 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reader for pcapng files that parses the file format directly without
+ * libpcap or jNetPcap.
+ *
+ * Section Header, Interface Description, Enhanced Packet, Simple Packet, and
+ * the obsolete Packet Blocks are parsed. All other blocks are skipped via
+ * their block length without looking at their content. Timestamps are
+ * converted to microseconds with the resolution and offset of the interface
+ * on which a packet was captured. Simple Packet Blocks belong to the first
+ * interface and have no timestamp, so their records have a timestamp of 0.
+ * Their caplen is the original length truncated to the snap length and the
+ * block size.
+ *
+ * Like PcapFileReader, the file is memory mapped in windows and records are
+ * emitted in the same raw format as the live capture.
+ */
+public class PcapngFileReader implements RawRecordReader {
+
+    public static final int SECTION_HEADER_BLOCK = 0x0a0d0d0a;
+    public static final int INTERFACE_DESCRIPTION_BLOCK = 1;
+    public static final int PACKET_BLOCK = 2;
+    public static final int SIMPLE_PACKET_BLOCK = 3;
+    public static final int ENHANCED_PACKET_BLOCK = 6;
+
+    public static final int BYTE_ORDER_MAGIC = 0x1a2b3c4d;
+
+    public static final int OPT_END_OF_OPT = 0;
+    public static final int OPT_IF_TSRESOL = 9;
+    public static final int OPT_IF_TSOFFSET = 14;
+
+    /**
+     * Size of block type, block total length, and trailing block total length.
+     */
+    public static final int BLOCK_OVERHEAD = 12;
+    /**
+     * Size of the headers of enhanced and obsolete packet blocks, which have
+     * the same layout except for the interface id.
+     */
+    public static final int EPB_HEADER_SIZE = 28;
+    public static final int SPB_HEADER_SIZE = 12;
+
+    public static final int RECORD_HEADER_SIZE = PcapFileReader.RECORD_HEADER_SIZE;
+    public static final int DEFAULT_WINDOW_SIZE = PcapFileReader.DEFAULT_WINDOW_SIZE;
+    public static final int MAX_CAPLEN = PcapFileReader.MAX_CAPLEN;
+
+    private static final long MICROS_PER_SECOND = 1000000;
+
+    private static final class Interface {
+        int linkType;
+        int snapLength;
+        long unitsPerSecond = MICROS_PER_SECOND;
+        long offsetSeconds = 0;
+        ByteOrder order;
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int windowSize;
+
+    private MappedByteBuffer window;
+    private long windowStart = 0;
+    private long position = 0;
+    private long packetCount = 0;
+
+    private ByteOrder sectionOrder = ByteOrder.LITTLE_ENDIAN;
+    private List<Interface> interfaces = new ArrayList<Interface>();
+
+    private long[] bulkPositions = new long[64];
+    private Interface[] bulkInterfaces = new Interface[64];
+
+    public PcapngFileReader(String fileName) throws IOException {
+        this(fileName, DEFAULT_WINDOW_SIZE);
+    }
+
+    public PcapngFileReader(String fileName, int windowSize) throws IOException {
+        this.windowSize = windowSize;
+        file = new RandomAccessFile(fileName, "r");
+        channel = file.getChannel();
+        fileSize = channel.size();
+
+        try {
+            if (fileSize < BLOCK_OVERHEAD || !isPcapngFile(fileName)) {
+                throw new IOException("Not a pcapng file, no section header block: " + fileName);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns true if the given file starts with a pcapng section header
+     * block.
+     */
+    public static boolean isPcapngFile(String fileName) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(fileName, "r");
+        try {
+            return f.length() >= 4 && f.readInt() == SECTION_HEADER_BLOCK;
+        } finally {
+            f.close();
+        }
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Returns the number of interfaces of the current section.
+     */
+    public int getInterfaceCount() {
+        return interfaces.size();
+    }
+
+    public int getLinkType(int interfaceId) {
+        return interfaces.get(interfaceId).linkType;
+    }
+
+    public int getSnapLength(int interfaceId) {
+        return interfaces.get(interfaceId).snapLength;
+    }
+
+    /**
+     * Returns the timestamp units per second of the given interface.
+     */
+    public long getTimestampUnitsPerSecond(int interfaceId) {
+        return interfaces.get(interfaceId).unitsPerSecond;
+    }
+
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * Map the part of the file that contains [pos, pos + len).
+     * The current window is kept if it already contains this range.
+     */
+    private void map(long pos, int len) throws IOException {
+        if (window != null && pos >= windowStart && pos + len <= windowStart + window.capacity()) {
+            return;
+        }
+
+        long size = Math.min(Math.max(windowSize, len), fileSize - pos);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+        windowStart = pos;
+    }
+
+    /**
+     * Map the complete block at pos and return its length or -1 if the file
+     * ends before the complete block.
+     * Section header blocks are parsed here as they determine the byte order
+     * of the following blocks.
+     */
+    private int mapBlock(long pos) throws IOException {
+        if (pos + BLOCK_OVERHEAD > fileSize) {
+            return -1;
+        }
+
+        map(pos, BLOCK_OVERHEAD);
+        int offset = (int) (pos - windowStart);
+        if (window.order(ByteOrder.BIG_ENDIAN).getInt(offset) == SECTION_HEADER_BLOCK) {
+            readSectionOrder(pos);
+            offset = (int) (pos - windowStart);
+        }
+
+        window.order(sectionOrder);
+        int length = window.getInt(offset + 4);
+        if (length < BLOCK_OVERHEAD || (length & 3) != 0) {
+            throw new IOException("Corrupt pcapng block at offset " + pos + ", length: " + length);
+        }
+        if (pos + length > fileSize) {
+            return -1;
+        }
+
+        map(pos, length);
+        window.order(sectionOrder);
+        return length;
+    }
+
+    private void readSectionOrder(long pos) throws IOException {
+        if (pos + BLOCK_OVERHEAD > fileSize) {
+            throw new IOException("Truncated pcapng section header block at offset " + pos);
+        }
+        map(pos, BLOCK_OVERHEAD);
+        int magic = window.order(ByteOrder.LITTLE_ENDIAN).getInt((int) (pos - windowStart) + 8);
+        if (magic == BYTE_ORDER_MAGIC) {
+            sectionOrder = ByteOrder.LITTLE_ENDIAN;
+        } else if (Integer.reverseBytes(magic) == BYTE_ORDER_MAGIC) {
+            sectionOrder = ByteOrder.BIG_ENDIAN;
+        } else {
+            throw new IOException("Unknown pcapng byte order magic: 0x" + Integer.toHexString(magic));
+        }
+    }
+
+    private void readInterfaceDescription(long pos, int length) {
+        int offset = (int) (pos - windowStart);
+        Interface iface = new Interface();
+        iface.linkType = window.getShort(offset + 8) & 0xffff;
+        iface.snapLength = window.getInt(offset + 12);
+        iface.order = sectionOrder;
+
+        int opt = offset + 16;
+        int optEnd = offset + length - 4;
+        while (opt + 4 <= optEnd) {
+            int code = window.getShort(opt) & 0xffff;
+            int optLength = window.getShort(opt + 2) & 0xffff;
+            if (code == OPT_END_OF_OPT || opt + 4 + optLength > optEnd) {
+                break;
+            }
+
+            if (code == OPT_IF_TSRESOL && optLength >= 1) {
+                int resol = window.get(opt + 4) & 0xff;
+                int exp = resol & 0x7f;
+                if ((resol & 0x80) != 0) {
+                    iface.unitsPerSecond = exp < 63 ? 1L << exp : Long.MAX_VALUE;
+                } else {
+                    long units = 1;
+                    for (int i = 0; i < exp && units <= Long.MAX_VALUE / 10; i++) {
+                        units *= 10;
+                    }
+                    iface.unitsPerSecond = units;
+                }
+            } else if (code == OPT_IF_TSOFFSET && optLength >= 8) {
+                iface.offsetSeconds = window.getLong(opt + 4);
+            }
+
+            opt += 4 + ((optLength + 3) & ~3);
+        }
+
+        interfaces.add(iface);
+    }
+
+    private static boolean isPacketBlock(int type) {
+        return type == ENHANCED_PACKET_BLOCK || type == SIMPLE_PACKET_BLOCK || type == PACKET_BLOCK;
+    }
+
+    /**
+     * Returns the type of the mapped block at pos.
+     */
+    private int typeOf(long pos) {
+        return window.getInt((int) (pos - windowStart));
+    }
+
+    /**
+     * Process the non packet blocks starting at pos until the next packet
+     * block. Returns the position of the next packet block or -1 at the end
+     * of the file.
+     */
+    private long nextPacketBlock(long pos) throws IOException {
+        while (true) {
+            int length = mapBlock(pos);
+            if (length < 0) {
+                return -1;
+            }
+
+            int type = typeOf(pos);
+            if (isPacketBlock(type)) {
+                return pos;
+            } else if (type == SECTION_HEADER_BLOCK) {
+                interfaces = new ArrayList<Interface>();
+            } else if (type == INTERFACE_DESCRIPTION_BLOCK) {
+                readInterfaceDescription(pos, length);
+            }
+            pos += length;
+        }
+    }
+
+    /**
+     * Returns the interface of the packet block at pos, which has to be
+     * mapped.
+     */
+    private Interface interfaceOf(long pos) throws IOException {
+        int type = typeOf(pos);
+        int id;
+        if (type == SIMPLE_PACKET_BLOCK) {
+            id = 0;
+        } else if (type == PACKET_BLOCK) {
+            id = window.getShort((int) (pos - windowStart) + 8) & 0xffff;
+        } else {
+            id = window.getInt((int) (pos - windowStart) + 8);
+        }
+        if (id < 0 || id >= interfaces.size()) {
+            throw new IOException("Unknown pcapng interface id " + id + " at offset " + pos);
+        }
+        return interfaces.get(id);
+    }
+
+    /**
+     * Returns the caplen of the mapped packet block at pos.
+     */
+    private int caplenOf(long pos) throws IOException {
+        int offset = (int) (pos - windowStart);
+        if (typeOf(pos) == SIMPLE_PACKET_BLOCK) {
+            int len = window.getInt(offset + 8);
+            if (len < 0) {
+                throw new IOException("Corrupt pcapng simple packet block at offset " + pos + ", len: " + len);
+            }
+            int caplen = Math.min(len, window.getInt(offset + 4) - SPB_HEADER_SIZE - 4);
+            int snapLength = interfaceOf(pos).snapLength;
+            if (snapLength > 0) {
+                caplen = Math.min(caplen, snapLength);
+            }
+            if (caplen > MAX_CAPLEN) {
+                throw new IOException("Corrupt pcapng simple packet block at offset " + pos + ", caplen: " + caplen);
+            }
+            return caplen;
+        }
+
+        int caplen = window.getInt(offset + 20);
+        if (caplen < 0 || caplen > MAX_CAPLEN || caplen > window.getInt(offset + 4) - EPB_HEADER_SIZE - 4) {
+            throw new IOException("Corrupt pcapng packet block at offset " + pos + ", caplen: " + caplen);
+        }
+        return caplen;
+    }
+
+    /**
+     * Copy the packet block at pos, which has to be mapped, into dst.
+     */
+    private void copyRecord(long pos, Interface iface, int caplen, ByteBuffer dst) {
+        window.order(iface.order);
+        int offset = (int) (pos - windowStart);
+
+        if (typeOf(pos) == SIMPLE_PACKET_BLOCK) {
+            dst.putInt(0);
+            dst.putInt(0);
+            dst.putInt(caplen);
+            dst.putInt(window.getInt(offset + 8));
+            copyData(offset + SPB_HEADER_SIZE, caplen, dst);
+            return;
+        }
+
+        long ts = ((window.getInt(offset + 12) & 0xffffffffL) << 32) | (window.getInt(offset + 16) & 0xffffffffL);
+        long units = iface.unitsPerSecond;
+        long frac = Long.remainderUnsigned(ts, units);
+        long usec;
+        if (units == MICROS_PER_SECOND) {
+            usec = frac;
+        } else if (units % MICROS_PER_SECOND == 0) {
+            usec = frac / (units / MICROS_PER_SECOND);
+        } else {
+            usec = (long) (frac * ((double) MICROS_PER_SECOND / units));
+        }
+
+        dst.putInt((int) (Long.divideUnsigned(ts, units) + iface.offsetSeconds));
+        dst.putInt((int) usec);
+        dst.putInt(caplen);
+        dst.putInt(window.getInt(offset + 24));
+        copyData(offset + EPB_HEADER_SIZE, caplen, dst);
+    }
+
+    private void copyData(int offset, int caplen, ByteBuffer dst) {
+        ByteBuffer data = window.duplicate();
+        data.limit(offset + caplen);
+        data.position(offset);
+        dst.put(data);
+    }
+
+    public ByteBuffer nextRecord() throws IOException {
+        long pos = nextPacketBlock(position);
+        if (pos < 0) {
+            position = fileSize;
+            return null;
+        }
+
+        Interface iface = interfaceOf(pos);
+        int caplen = caplenOf(pos);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + caplen);
+        copyRecord(pos, iface, caplen, record);
+        record.flip();
+
+        position = pos + window.getInt((int) (pos - windowStart) + 4);
+        packetCount++;
+        return record;
+    }
+
+    /**
+     * In the first pass, the positions and interfaces of the packet blocks
+     * are collected while all other blocks are processed. In the second pass,
+     * the packet blocks are copied into the bulk.
+     */
+    public ByteBuffer nextBulk(int maxPackets, int maxBytes) throws IOException {
+        long pos = position;
+        int count = 0;
+        int size = 0;
+
+        while (count < maxPackets) {
+            long packetPos = nextPacketBlock(pos);
+            if (packetPos < 0) {
+                pos = fileSize;
+                break;
+            }
+
+            int recordSize = RECORD_HEADER_SIZE + caplenOf(packetPos);
+            if (count > 0 && maxBytes > 0 && size + recordSize > maxBytes) {
+                pos = packetPos;
+                break;
+            }
+
+            if (count == bulkPositions.length) {
+                bulkPositions = Arrays.copyOf(bulkPositions, count * 2);
+                bulkInterfaces = Arrays.copyOf(bulkInterfaces, count * 2);
+            }
+            bulkPositions[count] = packetPos;
+            bulkInterfaces[count] = interfaceOf(packetPos);
+
+            size += recordSize;
+            pos = packetPos + window.getInt((int) (packetPos - windowStart) + 4);
+            count++;
+        }
+        position = pos;
+
+        if (count == 0) {
+            return null;
+        }
+
+        ByteBuffer bulk = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < count; i++) {
+            map(bulkPositions[i], EPB_HEADER_SIZE);
+            window.order(bulkInterfaces[i].order);
+            int length = window.getInt((int) (bulkPositions[i] - windowStart) + 4);
+            map(bulkPositions[i], length);
+            window.order(bulkInterfaces[i].order);
+            copyRecord(bulkPositions[i], bulkInterfaces[i], caplenOf(bulkPositions[i]), bulk);
+            bulkInterfaces[i] = null;
+        }
+        bulk.flip();
+
+        packetCount += count;
+        return bulk;
+    }
+
+    public void close() throws IOException {
+        window = null;
+        file.close();
+    }
+
+}
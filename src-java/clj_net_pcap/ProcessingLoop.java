@@ -8,16 +8,30 @@ package clj_net_pcap;
 public class ProcessingLoop extends Thread {
     
     private Runnable runnable;
-    private boolean running;
+    private volatile boolean running;
 
     public ProcessingLoop (Runnable runnable) {
         this.runnable = runnable;
     }
 
+    /**
+     * Exceptions after interrupt() was called, e.g., an InterruptedException
+     * of a blocking take, end the loop silently.
+     */
     @Override
     public void run () {
         while (running) {
-            runnable.run();
+            try {
+                runnable.run();
+            } catch (RuntimeException e) {
+                if (running) {
+                    throw e;
+                }
+            } catch (Exception e) {
+                if (running) {
+                    throw new RuntimeException(e);
+                }
+            }
         }
     }
 
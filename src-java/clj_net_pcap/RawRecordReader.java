@@ -0,0 +1,55 @@
+/*
+ *
+ * Copyright (C) 2026 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Common interface of the readers that parse capture files without libpcap.
+ *
+ * Records consist of a 16 byte header (timestamp seconds, timestamp
+ * microseconds, caplen, len) followed by the captured data.
+ */
+public interface RawRecordReader extends Closeable {
+
+    /**
+     * Returns the next packet as single record with big endian header or
+     * null when the end of the file was reached.
+     */
+    ByteBuffer nextRecord() throws IOException;
+
+    /**
+     * Returns a bulk of at most maxPackets records with native byte order
+     * headers or null when the end of the file was reached.
+     * If maxBytes is larger than zero, the bulk is also limited to maxBytes,
+     * unless a single record is larger.
+     */
+    ByteBuffer nextBulk(int maxPackets, int maxBytes) throws IOException;
+
+    /**
+     * Returns the number of packets that were read so far.
+     */
+    long getPacketCount();
+
+}
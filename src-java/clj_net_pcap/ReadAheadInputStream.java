@@ -0,0 +1,213 @@
+/*
+ *
+ * Copyright (C) 2026 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * InputStream that reads ahead from another InputStream in a dedicated
+ * thread.
+ *
+ * The read-ahead thread fills blocks of blockSize bytes from the wrapped
+ * stream while the consumer reads the previously filled block. With the
+ * default of two blocks, this is a double buffer. This is intended for
+ * decompressing streams, e.g., GZIPInputStream, such that parsing does not
+ * wait for the decompression.
+ *
+ * IOExceptions and RuntimeExceptions of the read-ahead thread are rethrown to
+ * the reader once the data that was read before was consumed.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    public static final int DEFAULT_BLOCK_COUNT = 2;
+
+    private static final class Block {
+        final byte[] data;
+        int length;
+
+        Block(int size) {
+            data = new byte[size];
+        }
+    }
+
+    private static final Block EOF = new Block(0);
+
+    private final InputStream in;
+    private final ArrayBlockingQueue<Block> free;
+    private final ArrayBlockingQueue<Block> filled;
+    private final Thread readAheadThread;
+
+    private volatile boolean closed = false;
+    /* IOException or RuntimeException of the read-ahead thread. */
+    private volatile Exception error;
+
+    private Block current;
+    private int currentPos = 0;
+
+    public ReadAheadInputStream(InputStream in) {
+        this(in, DEFAULT_BLOCK_SIZE, DEFAULT_BLOCK_COUNT);
+    }
+
+    public ReadAheadInputStream(InputStream in, int blockSize, int blockCount) {
+        if (blockSize < 1 || blockCount < 1) {
+            throw new IllegalArgumentException("Block size and count have to be positive: " + blockSize + ", " + blockCount);
+        }
+
+        this.in = in;
+        free = new ArrayBlockingQueue<Block>(blockCount);
+        filled = new ArrayBlockingQueue<Block>(blockCount + 1);
+        for (int i = 0; i < blockCount; i++) {
+            free.offer(new Block(blockSize));
+        }
+
+        readAheadThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readAhead();
+            }
+        }, "ReadAheadInputStream");
+        readAheadThread.setDaemon(true);
+        readAheadThread.start();
+    }
+
+    private void readAhead() {
+        try {
+            while (!closed) {
+                Block block = free.take();
+
+                int length = 0;
+                int n = 0;
+                while (!closed && length < block.data.length && (n = in.read(block.data, length, block.data.length - length)) >= 0) {
+                    length += n;
+                }
+
+                if (length > 0) {
+                    block.length = length;
+                    filled.put(block);
+                }
+                if (n < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            filled.offer(EOF);
+        }
+    }
+
+    /**
+     * Returns false if no more data is available.
+     */
+    private boolean nextBlock() throws IOException {
+        if (current == EOF) {
+            return false;
+        }
+        if (current != null) {
+            free.offer(current);
+        }
+
+        try {
+            current = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for read-ahead data.", e);
+        }
+        currentPos = 0;
+
+        if (current == EOF) {
+            Exception e = error;
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if ((current == null || currentPos >= current.length) && !nextBlock()) {
+            return -1;
+        }
+        return current.data[currentPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if ((current == null || currentPos >= current.length) && !nextBlock()) {
+            return -1;
+        }
+
+        int n = Math.min(len, current.length - currentPos);
+        System.arraycopy(current.data, currentPos, b, off, n);
+        currentPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current == null || current == EOF ? 0 : current.length - currentPos;
+    }
+
+    /**
+     * Stops the read-ahead thread and closes the wrapped stream once the
+     * thread terminated. A read of the wrapped stream that is in progress
+     * cannot be interrupted and is waited for.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        readAheadThread.interrupt();
+
+        boolean interrupted = false;
+        while (readAheadThread.isAlive()) {
+            try {
+                readAheadThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        in.close();
+    }
+
+}
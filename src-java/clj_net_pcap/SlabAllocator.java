@@ -0,0 +1,253 @@
+/*
+ *
+ * Copyright (C) 2026 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Allocator that hands out per-packet buffers as slices of large slabs.
+ *
+ * Buffers are appended into the current slab until it is full. A slab is
+ * recycled when all of its slices were released. Allocating is only allowed
+ * from a single thread while slices can be released from any thread.
+ *
+ * Slices of heap slabs are released via release(ByteBuffer). Slices of direct
+ * slabs cannot be mapped back to their slab. For these, the slab is taken via
+ * getLastSlab() right after allocating and released via Slab.release().
+ *
+ * When the maximum number of slabs is in use or a buffer is larger than a
+ * slab, the buffer is allocated individually, which is counted as fallback.
+ */
+public class SlabAllocator {
+
+    public static final class Slab {
+
+        private final SlabAllocator allocator;
+        private final ByteBuffer memory;
+        private final ByteBuffer cursor;
+
+        /**
+         * Outstanding slices plus one reference held while the slab is the
+         * current slab of the allocator.
+         */
+        private final AtomicInteger refs = new AtomicInteger();
+
+        private Slab(SlabAllocator allocator, ByteBuffer memory) {
+            this.allocator = allocator;
+            this.memory = memory;
+            cursor = memory.duplicate();
+        }
+
+        private ByteBuffer slice(int size) {
+            int pos = cursor.limit();
+            cursor.position(pos);
+            cursor.limit(pos + size);
+            refs.incrementAndGet();
+            return cursor.slice();
+        }
+
+        private int remaining() {
+            return memory.capacity() - cursor.limit();
+        }
+
+        private void reset() {
+            cursor.limit(0);
+            refs.set(1);
+        }
+
+        /**
+         * Release one slice of this slab.
+         */
+        public void release() {
+            allocator.outstandingSlices.decrement();
+            unref();
+        }
+
+        private void unref() {
+            if (refs.decrementAndGet() == 0) {
+                allocator.recycle(this);
+            }
+        }
+
+        public int capacity() {
+            return memory.capacity();
+        }
+    }
+
+    private final int slabSize;
+    private final int maxSlabs;
+    private final boolean direct;
+
+    private final ConcurrentLinkedQueue<Slab> free = new ConcurrentLinkedQueue<Slab>();
+    private final ConcurrentHashMap<Object, Slab> slabsByArray = new ConcurrentHashMap<Object, Slab>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+
+    private Slab current;
+    private Slab lastSlab;
+    private volatile int slabCount = 0;
+
+    private volatile long allocations = 0;
+    private volatile long fallbackAllocations = 0;
+    private final LongAdder outstandingSlices = new LongAdder();
+
+    public SlabAllocator(int slabSize, int maxSlabs, boolean direct) {
+        if (slabSize < 1 || maxSlabs < 1) {
+            throw new IllegalArgumentException("Slab size and count have to be positive: " + slabSize + ", " + maxSlabs);
+        }
+
+        this.slabSize = slabSize;
+        this.maxSlabs = maxSlabs;
+        this.direct = direct;
+    }
+
+    private ByteBuffer allocateMemory(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    private void recycle(Slab slab) {
+        free.offer(slab);
+        freeCount.incrementAndGet();
+    }
+
+    /**
+     * Returns a fresh slab or null if the maximum number of slabs is in use.
+     */
+    private Slab nextSlab() {
+        Slab slab = free.poll();
+        if (slab != null) {
+            freeCount.decrementAndGet();
+        } else if (slabCount < maxSlabs) {
+            slab = new Slab(this, allocateMemory(slabSize));
+            if (!direct) {
+                slabsByArray.put(slab.memory.array(), slab);
+            }
+            slabCount++;
+        } else {
+            return null;
+        }
+
+        slab.reset();
+        return slab;
+    }
+
+    /**
+     * Returns a buffer with position 0 and limit and capacity size.
+     */
+    public ByteBuffer allocate(int size) {
+        allocations++;
+
+        if (size <= slabSize) {
+            if (current == null || current.remaining() < size) {
+                if (current != null) {
+                    current.unref();
+                }
+                current = nextSlab();
+            }
+
+            if (current != null) {
+                outstandingSlices.increment();
+                lastSlab = current;
+                return current.slice(size);
+            }
+        }
+
+        lastSlab = null;
+        fallbackAllocations++;
+        return allocateMemory(size);
+    }
+
+    /**
+     * Returns the slab from which the last buffer was allocated or null if
+     * the last buffer was allocated individually.
+     * This must only be called from the allocating thread.
+     */
+    public Slab getLastSlab() {
+        return lastSlab;
+    }
+
+    /**
+     * Release a buffer.
+     * Heap slices are released via their slab and PcapPacketWrappers via
+     * PcapPacketWrapper.release(). Other objects, e.g., individually allocated
+     * buffers, are ignored.
+     */
+    public void release(Object obj) {
+        if (obj instanceof ByteBuffer) {
+            ByteBuffer buf = (ByteBuffer) obj;
+            if (buf.hasArray()) {
+                Slab slab = slabsByArray.get(buf.array());
+                if (slab != null) {
+                    slab.release();
+                }
+            }
+        } else if (obj instanceof PcapPacketWrapper) {
+            ((PcapPacketWrapper) obj).release();
+        } else if (obj instanceof Slab) {
+            ((Slab) obj).release();
+        }
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    public int getMaxSlabs() {
+        return maxSlabs;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public int getSlabCount() {
+        return slabCount;
+    }
+
+    public int getFreeSlabCount() {
+        return freeCount.get();
+    }
+
+    /**
+     * Returns the fraction of the allocated slabs that are in use.
+     */
+    public double getOccupancy() {
+        int count = slabCount;
+        return count == 0 ? 0.0 : (double) (count - freeCount.get()) / count;
+    }
+
+    public long getOutstandingSlices() {
+        return outstandingSlices.sum();
+    }
+
+    public long getAllocations() {
+        return allocations;
+    }
+
+    public long getFallbackAllocations() {
+        return fallbackAllocations;
+    }
+
+}
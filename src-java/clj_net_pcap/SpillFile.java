@@ -0,0 +1,251 @@
+/*
+ *
+ * Copyright (C) 2026 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-mapped file that is used as FIFO ring for records that overflow
+ * an in-memory queue.
+ *
+ * Records are appended by exactly one producer thread and read by exactly
+ * one consumer thread in the order in which they were appended. Each record
+ * is stored with its length and the time at which it was appended, which is
+ * used for reporting the lag of the spilled records.
+ *
+ * Records are stored contiguously. When a record does not fit into the end
+ * of the file, a wrap marker is written and the record is stored at the
+ * beginning of the file.
+ */
+public class SpillFile {
+
+    public static final int RECORD_HEADER_SIZE = 12;
+
+    private static final int WRAP = -1;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer map;
+    private final ByteBuffer writeView;
+    private final ByteBuffer readView;
+    private final int capacity;
+
+    /**
+     * Absolute positions, the offset in the file is the position modulo the
+     * capacity.
+     */
+    private volatile long writePos = 0;
+    private volatile long readPos = 0;
+
+    private volatile long appended = 0;
+    private volatile long replayed = 0;
+    private volatile long rejected = 0;
+
+    public SpillFile(File file, int capacity) throws IOException {
+        if (capacity < RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Spill file capacity is too small: " + capacity);
+        }
+
+        this.file = file;
+        this.capacity = capacity;
+
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(capacity);
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        writeView = map.duplicate();
+        readView = map.duplicate();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /*
+     * Producer side
+     */
+
+    /**
+     * Append the remaining bytes of src as one record.
+     * Returns false if the record does not fit into the free space.
+     */
+    public boolean append(ByteBuffer src) {
+        int len = src.remaining();
+        int need = RECORD_HEADER_SIZE + len;
+        long pos = writePos;
+        int offset = (int) (pos % capacity);
+        int tail = capacity - offset;
+        int skip = tail < need ? tail : 0;
+
+        if (need > capacity || (pos - readPos) + skip + need > capacity) {
+            rejected++;
+            return false;
+        }
+
+        if (skip > 0) {
+            if (tail >= RECORD_HEADER_SIZE) {
+                writeView.putInt(offset, WRAP);
+            }
+            offset = 0;
+        }
+
+        writeView.putInt(offset, len);
+        writeView.putLong(offset + 4, System.nanoTime());
+        writeView.position(offset + RECORD_HEADER_SIZE);
+        writeView.put(src.duplicate());
+
+        appended++;
+        writePos = pos + skip + need;
+        return true;
+    }
+
+    /*
+     * Consumer side
+     */
+
+    /**
+     * Returns the offset of the record at pos, taking a wrap marker into
+     * account.
+     */
+    private int recordOffset(long pos) {
+        int offset = (int) (pos % capacity);
+        int tail = capacity - offset;
+        if (tail < RECORD_HEADER_SIZE || readView.getInt(offset) == WRAP) {
+            return 0;
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the offset of the next record, skipping a wrap marker, or -1
+     * if no record is available.
+     */
+    private int nextOffset() {
+        long pos = readPos;
+        if (pos == writePos) {
+            return -1;
+        }
+
+        int offset = recordOffset(pos);
+        if (offset == 0 && pos % capacity != 0) {
+            readPos = pos + (capacity - pos % capacity);
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the data of the next record without removing it or null if
+     * the file is empty.
+     * The returned buffer is a view of the mapped file that is only valid
+     * until remove() is called.
+     */
+    public ByteBuffer peek() {
+        int offset = nextOffset();
+        if (offset < 0) {
+            return null;
+        }
+
+        ByteBuffer view = readView.duplicate();
+        view.position(offset + RECORD_HEADER_SIZE);
+        view.limit(offset + RECORD_HEADER_SIZE + readView.getInt(offset));
+        return view.slice();
+    }
+
+    /**
+     * Remove the next record.
+     */
+    public void remove() {
+        int offset = nextOffset();
+        if (offset < 0) {
+            return;
+        }
+
+        replayed++;
+        readPos = readPos + RECORD_HEADER_SIZE + readView.getInt(offset);
+    }
+
+    public boolean isEmpty() {
+        return readPos == writePos;
+    }
+
+    /**
+     * Returns the number of records in the file.
+     */
+    public long getDepth() {
+        return appended - replayed;
+    }
+
+    /**
+     * Returns the number of used bytes including headers and wrap gaps.
+     */
+    public long getUsedBytes() {
+        return writePos - readPos;
+    }
+
+    /**
+     * Returns the time in nanoseconds since the oldest record in the file
+     * was appended or 0 if the file is empty.
+     * As this is not synchronized with the consumer, the value is approximate.
+     */
+    public long getLagNanos() {
+        long pos = readPos;
+        if (pos == writePos) {
+            return 0;
+        }
+        return Math.max(0, System.nanoTime() - readView.getLong(recordOffset(pos) + 4));
+    }
+
+    public long getAppended() {
+        return appended;
+    }
+
+    public long getReplayed() {
+        return replayed;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Close and delete the file.
+     * The mapping is released when the MappedByteBuffer is garbage collected.
+     */
+    public void close() throws IOException {
+        raf.close();
+        file.delete();
+    }
+
+}
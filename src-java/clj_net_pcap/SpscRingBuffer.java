@@ -0,0 +1,586 @@
+/*
+ *
+ * Copyright (C) 2026 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TransferQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated lock-free ring buffer for handing data from exactly one
+ * producer thread to exactly one consumer thread.
+ *
+ * Producer and consumer only communicate via their sequence counters and each
+ * side caches the last seen counter of the other side. The counters and the
+ * fields of each side are padded against false sharing. Besides the single element operations, slots can
+ * be claimed and published in batches (claim, set, publish, offerBatch) and
+ * elements can be taken in batches (drainTo, takeBatch).
+ *
+ * The wait strategy determines how a side waits for data or free slots:
+ * BLOCK parks the thread, YIELD yields, and BUSY_SPIN spins.
+ *
+ * The TransferQueue interface is implemented such that the ring buffer can
+ * replace the queues of the processing pipeline. The iterator is weakly
+ * consistent and does not support removing elements. As elements can only be
+ * removed by the consumer in order, remove(Object) is not supported.
+ */
+public class SpscRingBuffer<E> extends AbstractQueue<E> implements TransferQueue<E> {
+
+    public static final int BLOCK = 0;
+    public static final int YIELD = 1;
+    public static final int BUSY_SPIN = 2;
+
+    /**
+     * Upper bound for parking with the BLOCK wait strategy.
+     * The other side unparks a waiting thread, the timeout only guards
+     * against missed signals.
+     */
+    private static final long PARK_NANOS = 1000000;
+
+    /**
+     * Upper bound for parking while waiting for a consumer in
+     * tryTransfer(e, timeout, unit) with the BLOCK wait strategy.
+     * The consumer does not signal that it starts waiting.
+     */
+    private static final long TRANSFER_PARK_NANOS = 10000;
+
+    @SuppressWarnings("unused")
+    private static final class PaddedAtomicLong extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    /*
+     * The fields of a subclass are laid out after the fields of its super
+     * class, which pads the fields of each side on both ends.
+     */
+    @SuppressWarnings("unused")
+    private static class LeftPadding {
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    @SuppressWarnings("unused")
+    private static final class ProducerFields extends LeftPadding {
+        long cachedHead = 0;
+        long claimStart = 0;
+        int claimCount = 0;
+        long q1, q2, q3, q4, q5, q6, q7;
+    }
+
+    @SuppressWarnings("unused")
+    private static final class ConsumerFields extends LeftPadding {
+        long cachedTail = 0;
+        long q1, q2, q3, q4, q5, q6, q7;
+    }
+
+    private final Object[] buffer;
+    private final int mask;
+    private final int waitStrategy;
+
+    /**
+     * Sequence of the next element to be read by the consumer.
+     */
+    private final AtomicLong head = new PaddedAtomicLong();
+
+    /**
+     * Sequence of the next element to be written by the producer.
+     */
+    private final AtomicLong tail = new PaddedAtomicLong();
+
+    private final ProducerFields producer = new ProducerFields();
+    private final ConsumerFields consumer = new ConsumerFields();
+
+    private volatile Thread waitingConsumer;
+    private volatile Thread waitingProducer;
+
+    /**
+     * Creates a ring buffer with at least the given capacity, which is
+     * rounded up to the next power of two.
+     */
+    public SpscRingBuffer(int capacity, int waitStrategy) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Capacity out of range: " + capacity);
+        }
+        if (waitStrategy != BLOCK && waitStrategy != YIELD && waitStrategy != BUSY_SPIN) {
+            throw new IllegalArgumentException("Unknown wait strategy: " + waitStrategy);
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        buffer = new Object[size];
+        mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    public int getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    @Override
+    public int size() {
+        long h = head.get();
+        long size = tail.get() - h;
+        return (int) Math.max(0, Math.min(size, buffer.length));
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return buffer.length - size();
+    }
+
+    /*
+     * Producer side
+     */
+
+    private int freeSlots(long t) {
+        long free = buffer.length - (t - producer.cachedHead);
+        if (free <= 0) {
+            producer.cachedHead = head.get();
+            free = buffer.length - (t - producer.cachedHead);
+        }
+        return (int) free;
+    }
+
+    private void signalConsumer() {
+        if (waitStrategy != BLOCK) {
+            return;
+        }
+        Thread t = waitingConsumer;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Wait once, according to the wait strategy, for the consumer to reach
+     * the given head sequence.
+     */
+    private void awaitHead(long target) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        if (waitStrategy == YIELD) {
+            Thread.yield();
+        } else if (waitStrategy == BLOCK) {
+            waitingProducer = Thread.currentThread();
+            if (head.get() < target) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            waitingProducer = null;
+        }
+    }
+
+    private void awaitSpace() throws InterruptedException {
+        awaitHead(tail.get() - buffer.length + 1);
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+
+        long t = tail.get();
+        if (freeSlots(t) <= 0) {
+            return false;
+        }
+
+        buffer[(int) t & mask] = e;
+        tail.lazySet(t + 1);
+        signalConsumer();
+        return true;
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        while (!offer(e)) {
+            awaitSpace();
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(e)) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            awaitSpace();
+        }
+        return true;
+    }
+
+    /**
+     * Claim up to n slots for writing, waiting until at least one slot is
+     * free. The claimed slots are written with set and made visible to the
+     * consumer with publish. Returns the number of claimed slots.
+     */
+    public int claim(int n) throws InterruptedException {
+        long t = tail.get();
+        int free;
+        while ((free = freeSlots(t)) <= 0) {
+            awaitSpace();
+        }
+
+        producer.claimStart = t;
+        producer.claimCount = Math.min(n, free);
+        return producer.claimCount;
+    }
+
+    /**
+     * Write e into the i-th of the claimed slots.
+     */
+    public void set(int i, E e) {
+        if (i < 0 || i >= producer.claimCount) {
+            throw new IndexOutOfBoundsException("Slot " + i + " is not claimed, claimed: " + producer.claimCount);
+        }
+        buffer[(int) (producer.claimStart + i) & mask] = e;
+    }
+
+    /**
+     * Publish all claimed slots at once.
+     */
+    public void publish() {
+        tail.lazySet(producer.claimStart + producer.claimCount);
+        producer.claimCount = 0;
+        signalConsumer();
+    }
+
+    /**
+     * Offer up to len elements from src starting at off without waiting.
+     * The elements are published at once. Returns the number of elements
+     * that were added.
+     */
+    public int offerBatch(E[] src, int off, int len) {
+        long t = tail.get();
+        int n = Math.min(len, freeSlots(t));
+        if (n <= 0) {
+            return 0;
+        }
+
+        for (int i = 0; i < n; i++) {
+            buffer[(int) (t + i) & mask] = src[off + i];
+        }
+        tail.lazySet(t + n);
+        signalConsumer();
+        return n;
+    }
+
+    /*
+     * Consumer side
+     */
+
+    private int availableElements(long h) {
+        long available = consumer.cachedTail - h;
+        if (available <= 0) {
+            consumer.cachedTail = tail.get();
+            available = consumer.cachedTail - h;
+        }
+        return (int) available;
+    }
+
+    private void signalProducer() {
+        Thread t = waitingProducer;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Wait once, according to the wait strategy, for data. The consumer has
+     * to be registered as waitingConsumer while calling this, such that the
+     * producer can signal it and hasWaitingConsumer() reports it.
+     */
+    private void awaitData() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        if (waitStrategy == YIELD) {
+            Thread.yield();
+        } else if (waitStrategy == BLOCK) {
+            if (head.get() >= tail.get()) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        if (availableElements(h) <= 0) {
+            return null;
+        }
+
+        int i = (int) h & mask;
+        E e = (E) buffer[i];
+        buffer[i] = null;
+        head.lazySet(h + 1);
+        signalProducer();
+        return e;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        long h = head.get();
+        if (availableElements(h) <= 0) {
+            return null;
+        }
+        return (E) buffer[(int) h & mask];
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E e = poll();
+        if (e != null) {
+            return e;
+        }
+
+        waitingConsumer = Thread.currentThread();
+        try {
+            while ((e = poll()) == null) {
+                awaitData();
+            }
+        } finally {
+            waitingConsumer = null;
+        }
+        return e;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E e = poll();
+        if (e != null) {
+            return e;
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waitingConsumer = Thread.currentThread();
+        try {
+            while ((e = poll()) == null) {
+                if (System.nanoTime() - deadline >= 0) {
+                    return null;
+                }
+                awaitData();
+            }
+        } finally {
+            waitingConsumer = null;
+        }
+        return e;
+    }
+
+    /**
+     * Move up to max elements into dst starting at off without waiting.
+     * Returns the number of elements that were moved.
+     */
+    public int drainTo(Object[] dst, int off, int max) {
+        long h = head.get();
+        int n = Math.min(max, availableElements(h));
+        if (n <= 0) {
+            return 0;
+        }
+
+        for (int i = 0; i < n; i++) {
+            int idx = (int) (h + i) & mask;
+            dst[off + i] = buffer[idx];
+            buffer[idx] = null;
+        }
+        head.lazySet(h + n);
+        signalProducer();
+        return n;
+    }
+
+    /**
+     * Like drainTo but waits until at least one element is available.
+     */
+    public int takeBatch(Object[] dst, int off, int max) throws InterruptedException {
+        int n = drainTo(dst, off, max);
+        if (n > 0) {
+            return n;
+        }
+
+        waitingConsumer = Thread.currentThread();
+        try {
+            while ((n = drainTo(dst, off, max)) == 0) {
+                awaitData();
+            }
+        } finally {
+            waitingConsumer = null;
+        }
+        return n;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        int n = 0;
+        E e;
+        while (n < maxElements && (e = poll()) != null) {
+            c.add(e);
+            n++;
+        }
+        return n;
+    }
+
+    /*
+     * TransferQueue
+     */
+
+    @Override
+    public boolean hasWaitingConsumer() {
+        return waitingConsumer != null;
+    }
+
+    @Override
+    public int getWaitingConsumerCount() {
+        return hasWaitingConsumer() ? 1 : 0;
+    }
+
+    /**
+     * Only adds e if the consumer is currently waiting for data.
+     */
+    @Override
+    public boolean tryTransfer(E e) {
+        return hasWaitingConsumer() && offer(e);
+    }
+
+    /**
+     * Waits up to timeout for the consumer to wait for data and only adds e
+     * then. As elements cannot be removed by the producer, it is not waited
+     * until e was taken.
+     */
+    @Override
+    public boolean tryTransfer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!tryTransfer(e)) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            if (waitStrategy == YIELD) {
+                Thread.yield();
+            } else if (waitStrategy == BLOCK) {
+                LockSupport.parkNanos(this, Math.min(remaining, TRANSFER_PARK_NANOS));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add e and wait until it was taken by the consumer.
+     */
+    @Override
+    public void transfer(E e) throws InterruptedException {
+        put(e);
+        long seq = tail.get();
+        while (head.get() < seq) {
+            awaitHead(seq);
+        }
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the elements from the head to
+     * the tail at the time the iterator was created. Elements that are taken
+     * by the consumer while iterating are skipped.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private final long end = tail.get();
+            private long seq = head.get();
+            private E next;
+
+            @SuppressWarnings("unchecked")
+            private E advance() {
+                while (seq < end) {
+                    long h = head.get();
+                    if (seq < h) {
+                        seq = h;
+                        continue;
+                    }
+                    E e = (E) buffer[(int) seq & mask];
+                    seq++;
+                    if (e != null) {
+                        return e;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    next = advance();
+                }
+                return next != null;
+            }
+
+            @Override
+            public E next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                E e = next;
+                next = null;
+                return e;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Removing elements of a SpscRingBuffer via an iterator is not supported.");
+            }
+        };
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        throw new UnsupportedOperationException("Removing arbitrary elements of a SpscRingBuffer is not supported.");
+    }
+
+    @Override
+    public String toString() {
+        return "SpscRingBuffer: capacity=" + buffer.length + ", size=" + size() + ", waitStrategy=" + waitStrategy;
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ *
+ * Copyright (C) 2026 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accounts the CPU time and the allocated heap bytes of a pipeline stage.
+ *
+ * Threads that run the stage exclusively are registered via addThread() or,
+ * from the thread itself, via addCurrentThread(). Their CPU time and
+ * allocated bytes are read from the ThreadMXBean when the getters are called,
+ * such that registered threads cost nothing while processing. The last values
+ * read for a thread are kept once the thread terminated. Threads that register
+ * via addCurrentThread() additionally refresh their values every
+ * REFRESH_INTERVAL calls such that little is lost when they terminate.
+ *
+ * Threads that are shared by several stages, e.g., the threads of an EXECUTOR
+ * StageRunner, measure the deltas around the work for the stage with
+ * currentThreadCpuNanos() and currentThreadAllocatedBytes() and add() them.
+ *
+ * The CPU time of virtual threads is not reported by the ThreadMXBean.
+ */
+public class StageCost {
+
+    public static final int REFRESH_INTERVAL = 1024;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME_SUPPORTED = enableCpuTime();
+    private static final boolean ALLOCATION_SUPPORTED = enableAllocation();
+
+    private final Map<Long, long[]> threads = new HashMap<Long, long[]>();
+    private final AtomicLong addedCpuNanos = new AtomicLong();
+    private final AtomicLong addedAllocatedBytes = new AtomicLong();
+    private volatile Thread lastThread;
+    private int untilRefresh;
+    private volatile boolean sampled;
+
+    private static boolean enableCpuTime() {
+        try {
+            if (!THREADS.isThreadCpuTimeSupported()) {
+                return false;
+            }
+            if (!THREADS.isThreadCpuTimeEnabled()) {
+                THREADS.setThreadCpuTimeEnabled(true);
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static boolean enableAllocation() {
+        try {
+            if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+                return false;
+            }
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (!threads.isThreadAllocatedMemorySupported()) {
+                return false;
+            }
+            if (!threads.isThreadAllocatedMemoryEnabled()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+            }
+            return true;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    public static boolean isCpuTimeSupported() {
+        return CPU_TIME_SUPPORTED;
+    }
+
+    public static boolean isAllocationSupported() {
+        return ALLOCATION_SUPPORTED;
+    }
+
+    /**
+     * Returns 0 if the CPU time is not supported.
+     */
+    public static long currentThreadCpuNanos() {
+        return CPU_TIME_SUPPORTED ? Math.max(0, THREADS.getCurrentThreadCpuTime()) : 0;
+    }
+
+    /**
+     * Returns 0 if the allocated bytes are not supported.
+     */
+    public static long currentThreadAllocatedBytes() {
+        return ALLOCATION_SUPPORTED ? allocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    private static long allocatedBytes(long id) {
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(id);
+    }
+
+    public synchronized void addThread(Thread thread) {
+        Long id = thread.getId();
+        if (!threads.containsKey(id)) {
+            threads.put(id, new long[2]);
+        }
+        sampled = true;
+    }
+
+    /**
+     * Cheap enough to be called for every element processed by the thread.
+     */
+    public void addCurrentThread() {
+        Thread current = Thread.currentThread();
+        if (current != lastThread) {
+            addThread(current);
+            lastThread = current;
+            untilRefresh = 0;
+        }
+        if (--untilRefresh <= 0) {
+            untilRefresh = REFRESH_INTERVAL;
+            refresh(current);
+        }
+    }
+
+    private synchronized void refresh(Thread current) {
+        long[] last = threads.get(current.getId());
+        if (CPU_TIME_SUPPORTED) {
+            last[0] = currentThreadCpuNanos();
+        }
+        if (ALLOCATION_SUPPORTED) {
+            last[1] = currentThreadAllocatedBytes();
+        }
+    }
+
+    public void add(long cpuNanos, long allocatedBytes) {
+        addedCpuNanos.addAndGet(cpuNanos);
+        addedAllocatedBytes.addAndGet(allocatedBytes);
+        sampled = true;
+    }
+
+    /**
+     * Returns true if a thread was registered or a delta was added.
+     */
+    public boolean hasSamples() {
+        return sampled;
+    }
+
+    private synchronized void update() {
+        for (Map.Entry<Long, long[]> thread : threads.entrySet()) {
+            long[] last = thread.getValue();
+            if (CPU_TIME_SUPPORTED) {
+                long cpu = THREADS.getThreadCpuTime(thread.getKey());
+                if (cpu >= 0) {
+                    last[0] = cpu;
+                }
+            }
+            if (ALLOCATION_SUPPORTED) {
+                long allocated = allocatedBytes(thread.getKey());
+                if (allocated >= 0) {
+                    last[1] = allocated;
+                }
+            }
+        }
+    }
+
+    private synchronized long sum(int idx) {
+        update();
+        long sum = 0;
+        for (long[] last : threads.values()) {
+            sum += last[idx];
+        }
+        return sum;
+    }
+
+    public long getCpuNanos() {
+        return sum(0) + addedCpuNanos.get();
+    }
+
+    public long getAllocatedBytes() {
+        return sum(1) + addedAllocatedBytes.get();
+    }
+
+}
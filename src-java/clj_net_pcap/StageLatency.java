@@ -0,0 +1,140 @@
+/*
+ *
+ * Copyright (C) 2026 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Samples the time that the elements of a pipeline stage spend queued and
+ * the time that the stage spends processing them.
+ *
+ * As elements cannot carry time stamps, one element at a time is used as
+ * probe. Producers call enqueue() before enqueueing an element. Every
+ * sampleRate-th element becomes the probe, if no probe is in flight. The
+ * queued time is recorded when the consumer takes the probe in taken().
+ * Producers have to call dropped() for elements that are dropped instead of
+ * being enqueued or that are evicted from the queue, such that a dropped probe
+ * does not block further samples.
+ *
+ * Consumers call taken() for each taken element and begin() and end(), with
+ * the value returned by begin(), around the processing. The processing time
+ * of every sampleRate-th call is recorded.
+ *
+ * The sample counters are not synchronized as the sampling only has to be
+ * approximately 1-in-sampleRate with multiple producers or consumers.
+ */
+public class StageLatency {
+
+    private static final class Probe {
+        final Object element;
+        final long nanos;
+
+        Probe(Object element, long nanos) {
+            this.element = element;
+            this.nanos = nanos;
+        }
+    }
+
+    private final int sampleRate;
+    private final LatencyHistogram queued = new LatencyHistogram();
+    private final LatencyHistogram processing = new LatencyHistogram();
+    private final AtomicReference<Probe> probe = new AtomicReference<Probe>();
+
+    private int untilEnqueueSample;
+    private int untilProcessingSample;
+
+    public StageLatency(int sampleRate) {
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("The sample rate has to be positive: " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+        untilEnqueueSample = sampleRate;
+        untilProcessingSample = sampleRate;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public LatencyHistogram getQueued() {
+        return queued;
+    }
+
+    public LatencyHistogram getProcessing() {
+        return processing;
+    }
+
+    /*
+     * Producer side
+     */
+
+    public void enqueue(Object e) {
+        if (--untilEnqueueSample > 0) {
+            return;
+        }
+        untilEnqueueSample = sampleRate;
+
+        if (probe.get() == null) {
+            probe.compareAndSet(null, new Probe(e, System.nanoTime()));
+        }
+    }
+
+    public void dropped(Object e) {
+        Probe p = probe.get();
+        if (p != null && p.element == e) {
+            probe.compareAndSet(p, null);
+        }
+    }
+
+    /*
+     * Consumer side
+     */
+
+    /**
+     * Records the queued time if e is the probe.
+     */
+    public void taken(Object e) {
+        Probe p = probe.get();
+        if (p != null && p.element == e && probe.compareAndSet(p, null)) {
+            queued.record(System.nanoTime() - p.nanos);
+        }
+    }
+
+    /**
+     * Returns the start time for end() if the processing is sampled and 0
+     * otherwise.
+     */
+    public long begin() {
+        if (--untilProcessingSample > 0) {
+            return 0;
+        }
+        untilProcessingSample = sampleRate;
+        return System.nanoTime();
+    }
+
+    public void end(long start) {
+        if (start != 0) {
+            processing.record(System.nanoTime() - start);
+        }
+    }
+
+}
@@ -0,0 +1,396 @@
+/*
+ *
+ * Copyright (C) 2026 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Determines how the stages of the processing pipeline are executed.
+ *
+ * A stage is given as two functions. step processes the next element and
+ * may block until one is available. pollStep processes the next element
+ * without blocking for it and returns false if none was available.
+ *
+ * DEDICATED runs step in a loop in a ProcessingLoop platform thread.
+ * VIRTUAL runs step in a loop in a virtual thread, which requires Java 21 or
+ * later. As this is compiled for older Java versions, the virtual threads are
+ * created via reflection.
+ * EXECUTOR runs the stages of all pipelines that use the same runner as tasks
+ * in a shared ForkJoinPool with a bounded number of threads. Each task calls
+ * pollStep up to batchSize times and then yields the thread by resubmitting
+ * itself. A task of an idle stage is resubmitted after idleNanos.
+ *
+ * Stages that block, e.g., on a full queue, should enqueue with put() such
+ * that the pool of an EXECUTOR runner can compensate for the blocked thread.
+ *
+ * The CPU time and allocated bytes of stages are accounted in a StageCost
+ * when the stages are started via a runner returned by withCost().
+ * DEDICATED registers the thread of the stage. EXECUTOR measures each task.
+ * VIRTUAL does not account the stages as the CPU time of virtual threads is
+ * not available.
+ */
+public abstract class StageRunner {
+
+    public static final int DEDICATED = 0;
+    public static final int VIRTUAL = 1;
+    public static final int EXECUTOR = 2;
+
+    /**
+     * stop() interrupts a stage that is blocked, e.g., in put() or take().
+     * Exceptions that are thrown after a stage was stopped are ignored.
+     */
+    public interface Stage {
+        void stop();
+    }
+
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderUnstarted = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builder.getMethod("name", String.class);
+            builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_UNSTARTED = builderUnstarted;
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    public abstract int getMode();
+
+    public Stage start(String name, Runnable step, Callable<?> pollStep) {
+        return start(name, step, pollStep, null);
+    }
+
+    /**
+     * cost may be null.
+     */
+    public abstract Stage start(String name, Runnable step, Callable<?> pollStep, StageCost cost);
+
+    /**
+     * Returns a runner that starts the stages with this runner and accounts
+     * them in cost. Shutting the returned runner down has no effect.
+     */
+    public StageRunner withCost(final StageCost cost) {
+        final StageRunner runner = this;
+        return new StageRunner() {
+            @Override
+            public int getMode() {
+                return runner.getMode();
+            }
+
+            @Override
+            public Stage start(String name, Runnable step, Callable<?> pollStep, StageCost c) {
+                return runner.start(name, step, pollStep, c != null ? c : cost);
+            }
+        };
+    }
+
+    /**
+     * Stop the threads of the runner. Only has an effect for EXECUTOR.
+     */
+    public void shutdown() {
+    }
+
+    public static StageRunner dedicated() {
+        return new DedicatedRunner();
+    }
+
+    public static StageRunner virtual() {
+        if (!isVirtualThreadSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later.");
+        }
+        return new VirtualRunner();
+    }
+
+    public static StageRunner executor(int threads, int batchSize, long idleNanos) {
+        return new ExecutorRunner(threads, batchSize, idleNanos);
+    }
+
+    /**
+     * Put e into queue, waiting for space.
+     * In a thread of an EXECUTOR runner, the wait is announced to the pool
+     * such that other stages can still be executed.
+     */
+    public static void put(final BlockingQueue<Object> queue, final Object e) throws InterruptedException {
+        if (!(Thread.currentThread() instanceof ForkJoinWorkerThread)) {
+            queue.put(e);
+            return;
+        }
+
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            private boolean done = false;
+
+            @Override
+            public boolean block() throws InterruptedException {
+                if (!done) {
+                    queue.put(e);
+                    done = true;
+                }
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return done || (done = queue.offer(e));
+            }
+        });
+    }
+
+    private static class LoopStage implements Stage, Runnable {
+        private final Runnable step;
+        private volatile boolean running = true;
+        private Thread thread;
+
+        LoopStage(Runnable step) {
+            this.step = step;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    step.run();
+                } catch (RuntimeException e) {
+                    if (running) {
+                        throw e;
+                    }
+                } catch (Exception e) {
+                    if (running) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void stop() {
+            running = false;
+            thread.interrupt();
+        }
+    }
+
+    private static class DedicatedRunner extends StageRunner {
+        @Override
+        public int getMode() {
+            return DEDICATED;
+        }
+
+        @Override
+        public Stage start(String name, Runnable step, Callable<?> pollStep, StageCost cost) {
+            final ProcessingLoop loop = new ProcessingLoop(step);
+            loop.setName(name);
+            loop.setDaemon(true);
+            if (cost != null) {
+                cost.addThread(loop);
+            }
+            loop.start();
+            return new Stage() {
+                @Override
+                public void stop() {
+                    loop.interrupt();
+                }
+            };
+        }
+    }
+
+    private static class VirtualRunner extends StageRunner {
+        @Override
+        public int getMode() {
+            return VIRTUAL;
+        }
+
+        @Override
+        public Stage start(String name, Runnable step, Callable<?> pollStep, StageCost cost) {
+            LoopStage stage = new LoopStage(step);
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                stage.thread = (Thread) BUILDER_UNSTARTED.invoke(builder, stage);
+            } catch (ReflectiveOperationException e) {
+                throw new UnsupportedOperationException("Could not create virtual thread.", e);
+            }
+            stage.thread.start();
+            return stage;
+        }
+    }
+
+    private static class ExecutorRunner extends StageRunner {
+        private final ForkJoinPool pool;
+        private final ScheduledExecutorService timer;
+        private final int batchSize;
+        private final long idleNanos;
+
+        ExecutorRunner(int threads, int batchSize, long idleNanos) {
+            if (threads < 1 || batchSize < 1 || idleNanos < 0) {
+                throw new IllegalArgumentException("Invalid stage executor parameters: threads " + threads
+                                                   + ", batch size " + batchSize + ", idle ns " + idleNanos);
+            }
+
+            this.batchSize = batchSize;
+            this.idleNanos = idleNanos;
+            pool = new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool p) {
+                    ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                    t.setName("StageExecutor-" + t.getPoolIndex());
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, null, true);
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "StageExecutorTimer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        @Override
+        public int getMode() {
+            return EXECUTOR;
+        }
+
+        @Override
+        public Stage start(String name, Runnable step, Callable<?> pollStep, StageCost cost) {
+            TaskStage stage = new TaskStage(pollStep, cost);
+            pool.execute(stage);
+            return stage;
+        }
+
+        @Override
+        public void shutdown() {
+            timer.shutdownNow();
+            pool.shutdownNow();
+        }
+
+        private class TaskStage implements Stage, Runnable {
+            private final Callable<?> pollStep;
+            private final StageCost cost;
+            private volatile boolean running = true;
+            /* The pool thread that currently runs this task, if any, such that stop() can interrupt it. */
+            private Thread thread;
+
+            private final Runnable resubmit = new Runnable() {
+                @Override
+                public void run() {
+                    if (running && !pool.isShutdown()) {
+                        pool.execute(TaskStage.this);
+                    }
+                }
+            };
+
+            TaskStage(Callable<?> pollStep, StageCost cost) {
+                this.pollStep = pollStep;
+                this.cost = cost;
+            }
+
+            @Override
+            public void run() {
+                synchronized (this) {
+                    if (!running) {
+                        return;
+                    }
+                    thread = Thread.currentThread();
+                }
+                try {
+                    runBatch();
+                } finally {
+                    synchronized (this) {
+                        thread = null;
+                        /* Do not leak an interrupt of stop() to the next task of the pool thread. */
+                        Thread.interrupted();
+                    }
+                }
+            }
+
+            private void runBatch() {
+                boolean idle = true;
+                long cpuNanos = 0;
+                long allocatedBytes = 0;
+                if (cost != null) {
+                    cpuNanos = StageCost.currentThreadCpuNanos();
+                    allocatedBytes = StageCost.currentThreadAllocatedBytes();
+                }
+                try {
+                    for (int i = 0; running && i < batchSize; i++) {
+                        if (!Boolean.TRUE.equals(pollStep.call())) {
+                            break;
+                        }
+                        idle = false;
+                    }
+                } catch (Exception e) {
+                    /* Like an uncaught exception in a dedicated thread, an exception ends the stage. */
+                    if (running) {
+                        running = false;
+                        e.printStackTrace();
+                    }
+                    return;
+                } finally {
+                    if (cost != null) {
+                        cost.add(StageCost.currentThreadCpuNanos() - cpuNanos,
+                                 StageCost.currentThreadAllocatedBytes() - allocatedBytes);
+                    }
+                }
+
+                if (!running || pool.isShutdown()) {
+                    return;
+                }
+                if (idle && idleNanos > 0) {
+                    timer.schedule(resubmit, idleNanos, TimeUnit.NANOSECONDS);
+                } else {
+                    pool.execute(this);
+                }
+            }
+
+            @Override
+            public synchronized void stop() {
+                running = false;
+                if (thread != null) {
+                    thread.interrupt();
+                }
+            }
+        }
+    }
+
+}
@@ -23,23 +23,69 @@
   clj-net-pcap.core
   (:require
     (clojure [string :as string])
+    (clojure.core [reducers :as r])
     (clj-assorted-utils [util :as utils])
     (clj-net-pcap [packet-gen :as pkt-gen])
     (clj-net-pcap [pcap :as pcap])
     (clj-net-pcap [pcap-data :as pcap-data])
     (clj-net-pcap [sniffer :as sniffer]))
-  (:import (clj_net_pcap Counter ProcessingLoop)
+  (:import (clj_net_pcap CountingTransferQueue EndOfStream JfrEvents JfrEvents$DropBurstTracker LatencyHistogram OverloadPolicy PcapFileReader PcapngFileReader PcapPacketPool PcapPacketWrapper PcapRecordSpliterator ProcessingLoop
+                         PcapStreamReader RawRecordReader ReadAheadInputStream SlabAllocator SlabAllocator$Slab
+                         SpillFile SpscRingBuffer StageCost StageLatency StageRunner StripedCounter)
+           (clojure.lang IReduceInit)
+           (java.io File FileInputStream InputStream)
            (java.nio ByteBuffer)
-           (java.util.concurrent ArrayBlockingQueue LinkedTransferQueue)
-           (org.jnetpcap DirectBulkByteBufferWrapper PcapDLT PcapHeader)
+           (java.time Instant)
+           (java.util List)
+           (java.util.concurrent ArrayBlockingQueue BlockingQueue ForkJoinPool Future
+                                 TransferQueue)
+           (java.util.concurrent.locks LockSupport)
+           (java.util.function Consumer)
+           (java.util.zip GZIPInputStream)
+           (org.jnetpcap DirectBulkByteBufferPool DirectBulkByteBufferWrapper PcapDLT PcapHeader)
            (org.jnetpcap.nio JMemory$Type)
-           (org.jnetpcap.packet PcapPacket)))
+           (org.jnetpcap.packet JScanner PcapPacket)))
 
 
 (def ^:dynamic *bulk-size* 1)
+(def ^:dynamic *bulk-bytes* 0)
+(def ^:dynamic *bulk-layout* :v1)
+(def ^:dynamic *bulk-max-latency-us* 0)
+(def ^:dynamic *bulk-pool-size* 0)
+(def ^:dynamic *bulk-pool-exhausted-policy* :block)
+(def ^:dynamic *capture-engine* :pcap)
 (def ^:dynamic *emit-raw-data* false)
+(def ^:dynamic *fanout-count* 1)
+(def ^:dynamic *fanout-group-id* nil)
+(def ^:dynamic *fanout-mode* :hash)
 (def ^:dynamic *forward-exceptions* false)
+(def ^:dynamic *latency-sample-rate* 0)
+(def ^:dynamic *overload-policy* :drop-newest)
+(def ^:dynamic *stage-overload-policies* {})
+(def ^:dynamic *overload-threshold* 0.5)
+(def ^:dynamic *overload-block-timeout-ms* 10)
+(def ^:dynamic *overload-sample-rate* 10)
 (def ^:dynamic *queue-size* 100000)
+(def ^:dynamic *queue-type* :blocking)
+(def ^:dynamic *queue-wait-strategy* :block)
+(def ^:dynamic *scanner-count* 1)
+(def ^:dynamic *scanner-reorder* false)
+(def ^:dynamic *forwarder-shards* 1)
+(def ^:dynamic *forwarder-shard-key-fn* sniffer/packet-flow-hash)
+(def ^:dynamic *forwarder-drain-batch-size* 0)
+(def ^:dynamic *forwarder-drain-max-wait-ms* 0)
+(def ^:dynamic *read-ahead-block-size* (* 1024 1024))
+(def ^:dynamic *spill-file* nil)
+(def ^:dynamic *spill-size* (* 256 1024 1024))
+(def ^:dynamic *spill-high-water* 0.8)
+(def ^:dynamic *stage-cost-accounting* true)
+(def ^:dynamic *stage-execution* :dedicated)
+(def ^:dynamic *stage-executor-threads* (.availableProcessors (Runtime/getRuntime)))
+(def ^:dynamic *stage-executor-batch-size* 256)
+(def ^:dynamic *stage-executor-idle-us* 100)
+(def ^:dynamic *slab-size* 0)
+(def ^:dynamic *slab-count* 64)
+(def ^:dynamic *packet-pool-size* 0)
 (def ^:dynamic *use-intermediate-buffer* true)
 
 
@@ -47,7 +93,7 @@
 
 
 (defrecord BufferRecord
-  [s us cl wl buf])
+  [s us cl wl buf slab])
 
 (defn deep-copy
   "Creates a deep-copy of the supplied data.
@@ -56,13 +102,18 @@
    This copy is primarily intended for being directly peered with a PcapPacket instance.
    When a ByteBuffer and a PcapHeader is supplied the field values of the PcapHeader
    are prepended to the deep copy of the ByteBuffer.
-   This is intended for being transferred as byte array."
+   This is intended for being transferred as byte array.
+   If a clj_net_pcap.SlabAllocator is supplied, the copy is allocated from it."
   ([^ByteBuffer buf]
    (doto (ByteBuffer/allocateDirect (.remaining buf))
      (.put buf)
      (.flip)))
   ([^ByteBuffer buf ^PcapHeader ph]
-   (doto (ByteBuffer/allocate (+ (.remaining buf) 16))
+   (deep-copy buf ph nil))
+  ([^ByteBuffer buf ^PcapHeader ph ^SlabAllocator slab-allocator]
+   (doto (if slab-allocator
+           (.allocate slab-allocator (+ (.remaining buf) 16))
+           (ByteBuffer/allocate (+ (.remaining buf) 16)))
      (.putInt (int (.hdr_sec ph)))
      (.putInt (.hdr_usec ph))
      (.putInt (.caplen ph))
@@ -73,23 +124,87 @@
 (defn create-buffer-record
   "Create a BufferRecord.
    The BufferRecord contains the values of the PcapHeader and a directly allocated
-   deep-copy of the ByteBuffer."
-  [^ByteBuffer buf ^PcapHeader ph]
-  (BufferRecord.
-    (.hdr_sec ph)
-    (.hdr_usec ph)
-    (.caplen ph)
-    (.wirelen ph)
-    (deep-copy buf)))
+   deep-copy of the ByteBuffer.
+   If a direct clj_net_pcap.SlabAllocator is supplied, the copy is allocated from it
+   and the slab of the copy is kept in the BufferRecord."
+  ([^ByteBuffer buf ^PcapHeader ph]
+   (create-buffer-record buf ph nil))
+  ([^ByteBuffer buf ^PcapHeader ph ^SlabAllocator slab-allocator]
+   (if slab-allocator
+     (let [copy (doto (.allocate slab-allocator (.remaining buf))
+                  (.put buf)
+                  (.flip))]
+       (BufferRecord.
+         (.hdr_sec ph)
+         (.hdr_usec ph)
+         (.caplen ph)
+         (.wirelen ph)
+         copy
+         (.getLastSlab slab-allocator)))
+     (BufferRecord.
+       (.hdr_sec ph)
+       (.hdr_usec ph)
+       (.caplen ph)
+       (.wirelen ph)
+       (deep-copy buf)
+       nil))))
 
-(defn peer-packet
-  "Create a new PcapPacket instance and fill/peer it with the data from the supplied BufferRecord."
+(defn release-buffer-record
+  "Release the slab memory of the supplied BufferRecord, if any."
   [^BufferRecord bufrec]
-  (let [^ByteBuffer buf (:buf bufrec)
-        ^PcapHeader ph (PcapHeader. (:cl bufrec) (:wl bufrec) (:s bufrec) (:us bufrec))
-        ^PcapPacket pkt (doto (PcapPacket. JMemory$Type/POINTER)
-                          (.peerHeaderAndData ph buf))]
-    pkt))
+  (when-let [^SlabAllocator$Slab slab (:slab bufrec)]
+    (.release slab)))
+
+(defn peer-packet
+  "Create a new PcapPacket instance and fill/peer it with the data from the supplied BufferRecord.
+   If the data was allocated from a slab, a clj_net_pcap.PcapPacketWrapper is created
+   to which the slab is attached.
+   If a clj_net_pcap.PcapPacketPool is supplied, the packet is taken from the pool instead."
+  ([^BufferRecord bufrec]
+   (peer-packet bufrec nil))
+  ([^BufferRecord bufrec ^PcapPacketPool packet-pool]
+   (let [^ByteBuffer buf (:buf bufrec)]
+     (if packet-pool
+       (doto (.acquire packet-pool)
+         (.setSlab (:slab bufrec))
+         (.peerHeaderAndData (long (:s bufrec)) (int (:us bufrec)) (int (:cl bufrec)) (int (:wl bufrec)) buf))
+       (let [^PcapHeader ph (PcapHeader. (:cl bufrec) (:wl bufrec) (:s bufrec) (:us bufrec))
+             ^PcapPacket pkt (if-let [slab (:slab bufrec)]
+                               (doto (PcapPacketWrapper. JMemory$Type/POINTER)
+                                 (.setSlab slab))
+                               (PcapPacket. JMemory$Type/POINTER))]
+         (.peerHeaderAndData pkt ph buf)
+         pkt)))))
+
+(defn retain-packet
+  "Keep a packet that was handed to a forwarder-fn beyond the forwarder-fn call.
+   Pooled packets and packets allocated from slabs are released after the forwarder-fn
+   returned, see *packet-pool-size* and *slab-size*. Retained packets are only released
+   after release-packet was called for each retain-packet call.
+   Other packets are not affected. Returns pkt."
+  [pkt]
+  (when (instance? PcapPacketWrapper pkt)
+    (.retain ^PcapPacketWrapper pkt))
+  pkt)
+
+(defn release-packet
+  "Release a packet, see retain-packet.
+   Packets that are no clj_net_pcap.PcapPacketWrapper are released via the
+   slab-allocator, if given."
+  ([pkt]
+   (release-packet nil pkt))
+  ([^SlabAllocator slab-allocator pkt]
+   (cond
+     (instance? PcapPacketWrapper pkt) (.release ^PcapPacketWrapper pkt)
+     slab-allocator (.release slab-allocator pkt))))
+
+(defn packet-pool-stats
+  "Returns a map with statistics of the given clj_net_pcap.PcapPacketPool."
+  [^PcapPacketPool pool]
+  {"packet-pool-available" (.getAvailable pool)
+   "packet-pool-created" (.getCreated pool)
+   "packet-pool-acquired" (.getAcquired pool)
+   "packet-pool-recycled" (.getRecycled pool)})
 
 (defn scan-packet
   "Scan the supplied packet and return it."
@@ -115,113 +230,718 @@
                   (.offer ~queue ~op)))))
 
 (defmacro enqueue-data-put
-  [queue op force-put queued-cntr dropped-cntr]
-  (cond
-    (>= trace-level 1) `(if ~force-put
-                          (.put ~queue ~op)
-                          (if (< (.size ~queue) *queue-size*)
-                            (if (.put ~queue ~op)
-                              (.inc ~queued-cntr)
-                              (.inc ~dropped-cntr))
-                            (.inc ~dropped-cntr)))
-    :else `(if ~force-put
-             (.put ~queue ~op)
-             (if (< (.size ~queue) *queue-size*)
-               (.offer ~queue ~op)))))
+  ([queue op force-put queued-cntr dropped-cntr]
+   `(enqueue-data-put ~queue ~op ~force-put ~queued-cntr ~dropped-cntr nil))
+  ([queue op force-put queued-cntr dropped-cntr on-drop]
+   (cond
+     (>= trace-level 1) `(if ~force-put
+                           (.put ~queue ~op)
+                           (if (< (.size ~queue) *queue-size*)
+                             (do
+                               (.put ~queue ~op)
+                               (.inc ~queued-cntr))
+                             (do
+                               (.inc ~dropped-cntr)
+                               ~on-drop)))
+     :else `(if ~force-put
+              (.put ~queue ~op)
+              (when (not (and (< (.size ~queue) *queue-size*)
+                              (.offer ~queue ~op)))
+                ~on-drop)))))
+
+(defn queue-wait-strategy-id
+  "Returns the clj_net_pcap.SpscRingBuffer wait strategy for the given keyword:
+   :block, :yield, or :busy-spin."
+  [wait-strategy]
+  (condp = wait-strategy
+    :block SpscRingBuffer/BLOCK
+    :yield SpscRingBuffer/YIELD
+    :busy-spin SpscRingBuffer/BUSY_SPIN
+    (throw (IllegalArgumentException. (str "Unknown queue wait strategy: " wait-strategy)))))
+
+(defn create-queue
+  "Creates a queue for handing over data between two stages of the processing pipeline.
+   With *queue-type* :ring-buffer, a preallocated single-producer/single-consumer
+   clj_net_pcap.SpscRingBuffer with at least *queue-size* slots and *queue-wait-strategy*
+   is created.
+   With *queue-type* :blocking, an unbounded clj_net_pcap.CountingTransferQueue, a
+   LinkedTransferQueue with a constant time size, is created if transfer is true and an
+   ArrayBlockingQueue with *queue-size* slots otherwise."
+  ^BlockingQueue [transfer]
+  (condp = *queue-type*
+    :blocking (if transfer
+                (CountingTransferQueue.)
+                (ArrayBlockingQueue. (int *queue-size*)))
+    :ring-buffer (SpscRingBuffer. (int *queue-size*) (int (queue-wait-strategy-id *queue-wait-strategy*)))
+    (throw (IllegalArgumentException. (str "Unknown queue type: " *queue-type*)))))
+
+(defonce stage-executors (atom {}))
+
+(defn stage-runner
+  "Returns the clj_net_pcap.StageRunner that executes the buffer processor, scanner, and
+   forwarder stages of the processing pipeline according to *stage-execution*:
+   :dedicated runs each stage in its own platform thread.
+   :virtual runs each stage in its own virtual thread, which requires Java 21 or later.
+   :executor runs the stages as tasks in a pool of *stage-executor-threads* threads that is
+   shared by all pipelines with the same executor settings. A task processes up to
+   *stage-executor-batch-size* elements before yielding its thread and an idle stage is
+   checked again after *stage-executor-idle-us*.
+   *stage-execution* can also be set to a clj_net_pcap.StageRunner instance directly."
+  ^StageRunner []
+  (if (instance? StageRunner *stage-execution*)
+    *stage-execution*
+    (condp = *stage-execution*
+      :dedicated sniffer/default-stage-runner
+      :virtual (StageRunner/virtual)
+      :executor (let [k [*stage-executor-threads* *stage-executor-batch-size* *stage-executor-idle-us*]]
+                  (locking stage-executors
+                    (or (@stage-executors k)
+                        (let [runner (StageRunner/executor (int *stage-executor-threads*)
+                                                           (int *stage-executor-batch-size*)
+                                                           (long (* *stage-executor-idle-us* 1000)))]
+                          (swap! stage-executors assoc k runner)
+                          runner))))
+      (throw (IllegalArgumentException. (str "Unknown stage execution: " *stage-execution*))))))
+
+(defn overload-policy-id
+  "Returns the clj_net_pcap.OverloadPolicy for the given keyword:
+   :drop-newest, :drop-oldest, :early-drop, :block-timeout, or :sample."
+  [policy]
+  (condp = policy
+    :drop-newest OverloadPolicy/DROP_NEWEST
+    :drop-oldest OverloadPolicy/DROP_OLDEST
+    :early-drop OverloadPolicy/EARLY_DROP
+    :block-timeout OverloadPolicy/BLOCK_TIMEOUT
+    :sample OverloadPolicy/SAMPLE
+    (throw (IllegalArgumentException. (str "Unknown overload policy: " policy)))))
+
+(defn stage-overload-policy
+  "Returns the overload policy keyword for the given pipeline stage, :buffer, :scanner, or :out.
+   Policies set per stage in *stage-overload-policies* take precedence over *overload-policy*."
+  [stage]
+  (get *stage-overload-policies* stage *overload-policy*))
+
+(defn create-overload-policy
+  "Create a clj_net_pcap.OverloadPolicy for enqueueing into queue at the given pipeline stage.
+   The capacity is *queue-size*. :early-drop and :sample start dropping above the fill level
+   *overload-threshold*, :sample keeps every *overload-sample-rate*-th packet, and
+   :block-timeout waits up to *overload-block-timeout-ms* for space.
+   The returned policy must only be used by a single producer thread."
+  ^OverloadPolicy [stage ^BlockingQueue queue]
+  (OverloadPolicy. queue
+                   (int (overload-policy-id (stage-overload-policy stage)))
+                   (int *queue-size*)
+                   (double *overload-threshold*)
+                   (long (* *overload-block-timeout-ms* 1000000))
+                   (int *overload-sample-rate*)))
+
+(defn overload-policy-stats
+  "Returns a map with the drop statistics of the given clj_net_pcap.OverloadPolicy instances
+   of a pipeline stage, summed up and prefixed with the stage name.
+   Returns nil for the :drop-newest policy for which the regular dropped counter suffices."
+  [stage policies]
+  (when (some #(not= OverloadPolicy/DROP_NEWEST (.getPolicy ^OverloadPolicy %)) policies)
+    (let [prefix (name stage)
+          sum (fn [f] (reduce + (map f policies)))]
+      {(str prefix "-dropped-oldest") (sum #(.getDroppedOldest ^OverloadPolicy %))
+       (str prefix "-dropped-early") (sum #(.getDroppedEarly ^OverloadPolicy %))
+       (str prefix "-timed-out") (sum #(.getTimedOut ^OverloadPolicy %))
+       (str prefix "-sampled-out") (sum #(.getSampledOut ^OverloadPolicy %))})))
+
+(defn enqueue-with-policy
+  "Enqueue op into queue according to the given clj_net_pcap.OverloadPolicy.
+   If force-put is true, the policy is bypassed and op is put into the queue, waiting for space.
+   on-drop, if not nil, is called with each element that gets dropped, i.e., op or, with
+   :drop-oldest, the evicted oldest element. The counters are increased by (weight-fn element).
+   Returns true if op was enqueued and false if it was dropped."
+  ([policy queue op force-put queued-cntr dropped-cntr on-drop]
+   (enqueue-with-policy policy queue op force-put queued-cntr dropped-cntr on-drop (constantly 1)))
+  ([^OverloadPolicy policy ^BlockingQueue queue op force-put ^StripedCounter queued-cntr ^StripedCounter dropped-cntr on-drop weight-fn]
+   (if force-put
+     (do
+       (StageRunner/put queue op)
+       true)
+     (let [dropped (.enqueue policy op)]
+       (when (not (identical? dropped op))
+         (.add queued-cntr (int (weight-fn op))))
+       (if (nil? dropped)
+         true
+         (do
+           (.add dropped-cntr (int (weight-fn dropped)))
+           (when on-drop
+             (on-drop dropped))
+           (not (identical? dropped op))))))))
+
+(defn create-stage-latency
+  "Create a clj_net_pcap.StageLatency that samples every *latency-sample-rate*-th element
+   of a pipeline stage or nil if *latency-sample-rate* is 0, which disables the latency
+   instrumentation."
+  ^StageLatency []
+  (when (> *latency-sample-rate* 0)
+    (StageLatency. (int *latency-sample-rate*))))
+
+(defn latency-on-drop
+  "Returns an on-drop function for enqueue-with-policy that announces the dropped
+   elements to latency, if not nil, before calling on-drop, if not nil."
+  [^StageLatency latency on-drop]
+  (if latency
+    (fn [obj]
+      (.dropped latency obj)
+      (when on-drop
+        (on-drop obj)))
+    on-drop))
+
+(defn drop-burst-on-drop
+  "Returns an on-drop function for enqueue-with-policy that records the drops of the
+   given stage as JFR drop burst events, see clj_net_pcap.JfrEvents, before calling
+   on-drop, if not nil. Returns on-drop if JFR is not available."
+  [stage on-drop]
+  (if-let [^JfrEvents$DropBurstTracker tracker (JfrEvents/createDropBurstTracker (name stage))]
+    (fn [obj]
+      (.dropped tracker 1)
+      (when on-drop
+        (on-drop obj)))
+    on-drop))
+
+(defn latency-stage-fn
+  "Wraps the function f of a pipeline stage, which is called with each element taken
+   from the queue of the stage, such that the queued and processing times are sampled
+   with latency. Returns f if latency is nil."
+  [^StageLatency latency f]
+  (if latency
+    (fn [obj]
+      (.taken latency obj)
+      (let [start (.begin latency)]
+        (f obj)
+        (.end latency start)))
+    f))
+
+(defn record-end-to-end-latency
+  "Records the time in nanoseconds from the capture time stamp of pkt until now into
+   the clj_net_pcap.LatencyHistogram histogram.
+   As the capture time stamps have microsecond resolution and are taken from the wall
+   clock, this is only meaningful for live captures."
+  [^LatencyHistogram histogram ^PcapPacket pkt]
+  (let [hdr (.getCaptureHeader pkt)
+        now (Instant/now)
+        now-us (+ (* 1000000 (.getEpochSecond now)) (quot (.getNano now) 1000))]
+    (.record histogram (* 1000 (- now-us (+ (* 1000000 (.hdr_sec hdr)) (.hdr_usec hdr)))))))
+
+(defn latency-histogram-stats
+  "Returns a map with the sample count, p50, p99, p99.9, and maximum of the given
+   clj_net_pcap.LatencyHistogram in nanoseconds, prefixed with prefix.
+   Returns nil if no value was recorded."
+  [prefix ^LatencyHistogram histogram]
+  (let [samples (.getCount histogram)]
+    (when (> samples 0)
+      {(str prefix "-samples") samples
+       (str prefix "-p50-ns") (.getValueAtPercentile histogram 50.0)
+       (str prefix "-p99-ns") (.getValueAtPercentile histogram 99.0)
+       (str prefix "-p999-ns") (.getValueAtPercentile histogram 99.9)
+       (str prefix "-max-ns") (.getMax histogram)})))
+
+(defn stage-latency-stats
+  "Returns a map with the queued and processing time stats of the given
+   clj_net_pcap.StageLatency, prefixed with the stage name, or nil if latency is nil."
+  [stage ^StageLatency latency]
+  (when latency
+    (merge (latency-histogram-stats (str (name stage) "-queued") (.getQueued latency))
+           (latency-histogram-stats (str (name stage) "-processing") (.getProcessing latency)))))
+
+(defn create-stage-cost
+  "Create a clj_net_pcap.StageCost that accounts the CPU time and allocated bytes of a
+   pipeline stage or nil if *stage-cost-accounting* is false."
+  ^StageCost []
+  (when *stage-cost-accounting*
+    (StageCost.)))
+
+(defn stage-cost-runner
+  "Returns a clj_net_pcap.StageRunner that starts stages with runner and accounts them in
+   the clj_net_pcap.StageCost cost. Returns runner if cost is nil."
+  ^StageRunner [^StageRunner runner ^StageCost cost]
+  (if cost
+    (.withCost runner cost)
+    runner))
+
+(defn stage-cost-stats
+  "Returns a map with the CPU time in nanoseconds and the allocated heap bytes of the
+   stages in stage-costs, a map of stage names to clj_net_pcap.StageCost instances, as
+   \"<stage>-cpu-nanos\" and \"<stage>-alloc-bytes\". Stages without samples, e.g., stages
+   run in virtual threads, and values that are not supported by the JVM are omitted."
+  [stage-costs]
+  (reduce-kv
+    (fn [m stage ^StageCost cost]
+      (if (and cost (.hasSamples cost))
+        (cond-> m
+          (StageCost/isCpuTimeSupported) (assoc (str stage "-cpu-nanos") (.getCpuNanos cost))
+          (StageCost/isAllocationSupported) (assoc (str stage "-alloc-bytes") (.getAllocatedBytes cost)))
+        m))
+    {}
+    stage-costs))
+
+(defn stage-cost-rates
+  "Returns a map with the stage costs in stats, as returned by stage-cost-stats, per packet
+   and per second with the suffixes \"-per-packet\" and \"-per-second\".
+   The packets are the packets that were handed from the capture to the pipeline as counted
+   in \"captured-packets\". elapsed-nanos is the time since the pipeline was started."
+  [stats elapsed-nanos]
+  (let [packets (stats "captured-packets" 0)
+        seconds (/ elapsed-nanos 1.0E9)]
+    (into {}
+          (for [[k v] stats
+                :when (and (string? k) (number? v)
+                           (or (string/ends-with? k "-cpu-nanos") (string/ends-with? k "-alloc-bytes")))
+                entry [(when (> packets 0)
+                         [(str k "-per-packet") (/ (double v) packets)])
+                       (when (> seconds 0)
+                         [(str k "-per-second") (/ v seconds)])]
+                :when entry]
+            entry))))
 
 #_{:clj-kondo/ignore [:unused-binding]}
+(defn create-slab-allocator
+  "Create a clj_net_pcap.SlabAllocator with *slab-count* slabs of *slab-size* bytes.
+   Returns nil if *slab-size* is not larger than zero."
+  [direct]
+  (when (> *slab-size* 0)
+    (SlabAllocator. (int *slab-size*) (int *slab-count*) (boolean direct))))
+
+(defn slab-allocator-stats
+  "Returns a map with statistics of the given clj_net_pcap.SlabAllocator."
+  [^SlabAllocator allocator]
+  {"slab-count" (.getSlabCount allocator)
+   "slab-free" (.getFreeSlabCount allocator)
+   "slab-occupancy" (.getOccupancy allocator)
+   "slab-outstanding-slices" (.getOutstandingSlices allocator)
+   "slab-allocations" (.getAllocations allocator)
+   "slab-fallback-allocations" (.getFallbackAllocations allocator)})
+
 (defn create-raw-handler
-  "Create handler for raw data of individual packets."
-  [^LinkedTransferQueue out-queue ^Counter out-queued-counter ^Counter out-drop-counter force-put running]
-  (fn
-    ([]
-     (fn [ph buf _]
-       (when (not (nil? buf))
-         (enqueue-data-put
-           out-queue (deep-copy buf ph) force-put
-           out-queued-counter out-drop-counter))))
-    ([k]
-     (condp = k
-       :get-stats {"out-queued" (.value out-queued-counter) "out-dropped" (.value out-drop-counter)}
-       nil))))
+  "Create handler for raw data of individual packets.
+   If *slab-size* is larger than zero, the copies of the packets are allocated from
+   heap slabs and have to be released via the allocator returned by (handler :slab-allocator).
+   Packets are enqueued according to the overload policy of the :out stage."
+  [^TransferQueue out-queue ^StripedCounter out-queued-counter ^StripedCounter out-drop-counter force-put running]
+  (let [^SlabAllocator slab-allocator (create-slab-allocator false)
+        out-policy (create-overload-policy :out out-queue)
+        on-drop (drop-burst-on-drop :out (when slab-allocator
+                                           #(.release slab-allocator %)))]
+    (fn
+      ([]
+       (fn [ph buf _]
+         (when (not (nil? buf))
+           (let [rec (deep-copy buf ph slab-allocator)]
+             (enqueue-with-policy
+               out-policy out-queue rec force-put
+               out-queued-counter out-drop-counter
+               on-drop)))))
+      ([k]
+       (condp = k
+         :get-stats (merge {"out-queued" (.value out-queued-counter) "out-dropped" (.value out-drop-counter)}
+                           (overload-policy-stats :out [out-policy])
+                           (when slab-allocator (slab-allocator-stats slab-allocator)))
+         :slab-allocator slab-allocator
+         :end-of-stream (let [eos (EndOfStream.)]
+                          (.put out-queue eos)
+                          eos)
+         nil)))))
 
 #_{:clj-kondo/ignore [:unused-binding]}
 (defn create-raw-bulk-handler
-  "Create handler for raw bulk data."
-  [^LinkedTransferQueue out-queue ^Counter out-queued-counter ^Counter out-drop-counter bulk-size force-put running use-intermediate-buffer]
-  (fn
-    ([]
-     (if use-intermediate-buffer
-       (fn [^ByteBuffer buf _]
-         (when (not (nil? buf))
-           (let [direct-bb (doto (ByteBuffer/allocate (.remaining buf))
-                             (.put buf)
-                             (.flip))]
-             (enqueue-data
-               out-queue
-               direct-bb
-               force-put
-               out-queued-counter out-drop-counter))))
-       (fn [^DirectBulkByteBufferWrapper buf _]
-         (when (not (nil? buf))
-           (enqueue-data
-             out-queue
-             buf
-             force-put
-             out-queued-counter out-drop-counter)))))
-    ([k]
-     (condp = k
-       :get-stats {"out-queued" (* (.value out-queued-counter) bulk-size) "out-dropped" (* (.value out-drop-counter) bulk-size)}
-       nil))))
+  "Create handler for raw bulk data.
+   Bulks are enqueued according to the overload policy of the :out stage.
+   As bulks hold varying numbers of packets, the counters are increased by
+   the record count of the bulks instead of by one.
+   Each delivered bulk is recorded as JFR bulk delivered event, see clj_net_pcap.JfrEvents,
+   if the event is enabled. The fill time is the time since the previous bulk was delivered."
+  [^TransferQueue out-queue ^StripedCounter out-queued-counter ^StripedCounter out-drop-counter force-put running use-intermediate-buffer layout]
+  (let [record-count-fn (condp = layout
+                          :v2 pcap-data/bulk-v2-record-count
+                          :tpacket-v3 pcap-data/tpacket-v3-block-record-count
+                          pcap-data/bulk-record-count)
+        out-policy (create-overload-policy :out out-queue)
+        on-drop (drop-burst-on-drop :out nil)
+        ;;; Dropped bulks are released right away.
+        ;;; Otherwise, pooled buffers would only be returned to their
+        ;;; pool and native memory would only be freed on finalization.
+        release-on-drop (drop-burst-on-drop :out #(.release ^DirectBulkByteBufferWrapper %))
+        last-delivery (long-array [(System/nanoTime)])
+        bulk-delivered (fn [^ByteBuffer bb]
+                         (let [now (System/nanoTime)]
+                           (when (JfrEvents/isBulkDeliveredEnabled)
+                             (JfrEvents/bulkDelivered (record-count-fn bb) (.remaining bb) (- now (aget last-delivery 0))))
+                           (aset last-delivery 0 now)))]
+    (fn
+      ([]
+       (if use-intermediate-buffer
+         (fn [^ByteBuffer buf _]
+           (when (not (nil? buf))
+             (bulk-delivered buf)
+             (let [direct-bb (doto (ByteBuffer/allocate (.remaining buf))
+                               (.put buf)
+                               (.flip))]
+               (enqueue-with-policy
+                 out-policy out-queue direct-bb force-put
+                 out-queued-counter out-drop-counter
+                 on-drop record-count-fn))))
+         (fn [^DirectBulkByteBufferWrapper buf _]
+           (when (not (nil? buf))
+             (bulk-delivered (.getBuffer buf))
+             (enqueue-with-policy
+               out-policy out-queue buf force-put
+               out-queued-counter out-drop-counter
+               release-on-drop
+               #(record-count-fn (.getBuffer ^DirectBulkByteBufferWrapper %)))))))
+      ([k]
+       (condp = k
+         :get-stats (merge {"out-queued" (.value out-queued-counter) "out-dropped" (.value out-drop-counter)}
+                           (overload-policy-stats :out [out-policy]))
+         :end-of-stream (let [eos (EndOfStream.)]
+                          (.put out-queue eos)
+                          eos)
+         nil)))))
+
+(defn encode-buffer-record
+  "Encode the supplied BufferRecord in the raw record format, i.e., the values of the
+   PcapHeader followed by the packet data, into the supplied ByteBuffer, which must be
+   large enough. Returns the flipped ByteBuffer."
+  ^ByteBuffer [^BufferRecord bufrec ^ByteBuffer dst]
+  (doto dst
+    (.clear)
+    (.putInt (int (:s bufrec)))
+    (.putInt (int (:us bufrec)))
+    (.putInt (int (:cl bufrec)))
+    (.putInt (int (:wl bufrec)))
+    (.put (.duplicate ^ByteBuffer (:buf bufrec)))
+    (.flip)))
+
+(defn decode-buffer-record
+  "Create a BufferRecord with a directly allocated deep-copy of the data from the supplied raw record."
+  [^ByteBuffer rec]
+  (BufferRecord.
+    (.getInt rec 0)
+    (.getInt rec 4)
+    (.getInt rec 8)
+    (.getInt rec 12)
+    (deep-copy (doto (.duplicate rec) (.position 16)))
+    nil))
+
+(defn create-spill-stage
+  "Create an overflow stage that spills records to the memory-mapped file *spill-file*
+   of *spill-size* bytes when queue fills up.
+   Once queue holds more than *spill-high-water* x *queue-size* elements, records are
+   encoded with encode-fn, which has to return a ByteBuffer, and appended to the file.
+   While the file holds spilled records, all further records are appended to the file as
+   well such that the order is preserved. A replay thread decodes the spilled records with
+   decode-fn and puts them into queue as soon as the consumers caught up.
+   The fill level of queue is only checked every 16 records as size() is O(n) for some queues.
+
+   Calling the returned stage without arguments returns a function that takes a record and
+   returns :spilled if the record was spilled, :dropped if the record has to be dropped
+   because the file is full while it still holds spilled records, which the record must not
+   overtake, and nil if the record has to be enqueued regularly.
+   The stage also supports :get-stats, :empty?, and :stop, which deletes the file. Records
+   that are still spilled on :stop are discarded and counted in the spill-discarded stat.
+   (stage :end-of-stream marker) hands marker, e.g., an EndOfStream, to the replay thread,
+   which puts it into queue once all spilled records were replayed. No further records
+   must be passed to the stage afterwards."
+  [^BlockingQueue queue encode-fn decode-fn]
+  (when (instance? SpscRingBuffer queue)
+    (throw (IllegalArgumentException. "Spilling requires a queue with multiple producers but a SpscRingBuffer was given.")))
+  (let [spill-file (SpillFile. (File. (str *spill-file*)) (int *spill-size*))
+        high-water (long (* *spill-high-water* *queue-size*))
+        checks (long-array 1)
+        dropped (StripedCounter.)
+        discarded (atom 0)
+        end-marker (atom nil)
+        ;;; The replay thread is interrupted by :stop while it may be waiting in put.
+        replayer #(try
+                    (let [size (.size queue)]
+                      (cond
+                        (.isEmpty spill-file) (if-let [marker @end-marker]
+                                                (do
+                                                  (.put queue marker)
+                                                  (reset! end-marker nil))
+                                                (LockSupport/parkNanos 1000000))
+                        (>= size high-water) (LockSupport/parkNanos 1000000)
+                        :else (loop [n (- high-water size)]
+                                (when-let [rec (when (pos? n) (.peek spill-file))]
+                                  (.put queue (decode-fn rec))
+                                  (.remove spill-file)
+                                  (recur (dec n))))))
+                    (catch InterruptedException _))
+        replay-thread (doto (ProcessingLoop. replayer)
+                        (.setName "SpillReplay") (.setDaemon true) (.start))]
+    (fn
+      ([]
+       (fn [rec]
+         (let [c (aget checks 0)]
+           (aset checks 0 (inc c))
+           (when (or (not (.isEmpty spill-file))
+                     (and (zero? (bit-and c 15))
+                          (>= (.size queue) high-water)))
+             (cond
+               (.append spill-file ^ByteBuffer (encode-fn rec)) :spilled
+               ;;; Once the file is empty, all spilled records were put into queue.
+               (.isEmpty spill-file) nil
+               :else (do
+                       (.inc dropped)
+                       :dropped))))))
+      ([k]
+       (condp = k
+         :get-stats {"spill-depth" (.getDepth spill-file)
+                     "spill-bytes" (.getUsedBytes spill-file)
+                     "spill-lag-us" (quot (.getLagNanos spill-file) 1000)
+                     "spill-appended" (.getAppended spill-file)
+                     "spill-replayed" (.getReplayed spill-file)
+                     "spill-rejected" (.getRejected spill-file)
+                     "spill-dropped" (.value dropped)
+                     "spill-discarded" @discarded}
+         :empty? (.isEmpty spill-file)
+         :stop (do
+                 (.interrupt replay-thread)
+                 (.join replay-thread)
+                 (reset! discarded (.getDepth spill-file))
+                 (.close spill-file))
+         nil))
+      ([k arg]
+       (condp = k
+         :end-of-stream (do
+                          (reset! end-marker arg)
+                          (LockSupport/unpark replay-thread))
+         nil)))))
 
 (defn create-packet-processing-handler
   "Create handler for processing packets.
-   Processing packets includes scanning (decoding) them."
-  [^LinkedTransferQueue out-queue ^Counter out-queued-counter ^Counter out-drop-counter force-put running forward-exceptions]
+   Processing packets includes scanning (decoding) them.
+   Packets are scanned by *scanner-count* scanner threads to which the packets are
+   dispatched round-robin by their sequence number. Each scanner thread uses its own
+   thread local JScanner.
+   With more than one scanner thread, the scanned packets are emitted in the order in which
+   the scanning completed. If *scanner-reorder* is true, the original capture order is
+   restored by taking the scanned packets in sequence number order in a separate thread.
+   If *slab-size* is larger than zero, the copies of the packets are allocated from direct
+   slabs. If *packet-pool-size* is larger than zero, the packets are taken from a
+   clj_net_pcap.PcapPacketPool. In both cases, the emitted packets are
+   clj_net_pcap.PcapPacketWrapper instances that have to be released, see release-packet.
+   Packets are enqueued into the queues of the :buffer, :scanner, and :out stages according
+   to the overload policy of the respective stage, see stage-overload-policy.
+   As dropping the oldest packets would leave gaps in the sequence numbers, :drop-oldest
+   cannot be used for the :scanner stage when the packets are reordered.
+   If *spill-file* is set, bursts that overrun the :buffer stage are spilled to disk,
+   see create-spill-stage.
+   The buffer processor, scanner, and reorderer stages are executed according to
+   *stage-execution*, see stage-runner.
+   If *latency-sample-rate* is larger than zero, the queued and processing times of the
+   :buffer and :scanner stages are sampled, see create-stage-latency. The clj_net_pcap.StageLatency
+   for the :out queue, which is consumed by the forwarder, is returned by (handler :out-latency).
+   If *stage-cost-accounting* is true, the CPU time and allocated bytes of the stages are
+   accounted in the clj_net_pcap.StageCost instances returned by (handler :stage-costs)."
+  [^TransferQueue out-queue ^StripedCounter out-queued-counter ^StripedCounter out-drop-counter force-put running forward-exceptions]
   #_{:clj-kondo/ignore [:unused-binding]}
-  (let [buffer-queue (ArrayBlockingQueue. *queue-size*)
-        buffer-drop-counter (Counter.) buffer-queued-counter (Counter.)
-        failed-counter (Counter.)
-        scanner-queue (ArrayBlockingQueue. *queue-size*)
-        scanner-drop-counter (Counter.) scanner-queued-counter (Counter.)
-        buffer-processor #(try (let [bufrec (.take buffer-queue)]
-                                 (enqueue-data-put
-                                   scanner-queue (peer-packet bufrec) force-put
-                                   scanner-queued-counter scanner-drop-counter))
-                            (catch Exception e
-                              (when @running
-                                (.inc failed-counter)
-                                (.printStackTrace e))
-                              (when forward-exceptions
-                                (throw e))))
-        buffer-processor-thread (doto (ProcessingLoop. buffer-processor)
-                                  (.setName "ByteBufferProcessor") (.setDaemon true) (.start))
-        scanner #(try (let [^PcapPacket pkt (.take scanner-queue)]
-                        (enqueue-data-put
-                          out-queue (scan-packet pkt) force-put
-                          out-queued-counter out-drop-counter))
-                  (catch Exception e
-                    (when @running
-                      (.inc failed-counter)
-                      (.printStackTrace e))
-                    (when forward-exceptions
-                      (throw e))))
-        scanner-thread (doto (ProcessingLoop. scanner)
-                         (.setName "PacketScanner") (.setDaemon true) (.start))]
+  (let [scanner-count (int *scanner-count*)
+        reorder (and *scanner-reorder* (> scanner-count 1))
+        runner (stage-runner)
+        _ (when (and reorder (= :drop-oldest (stage-overload-policy :scanner)))
+            (throw (IllegalArgumentException. "The :drop-oldest overload policy cannot be used for the :scanner stage with *scanner-reorder*.")))
+        ^SlabAllocator slab-allocator (create-slab-allocator true)
+        ^PcapPacketPool packet-pool (when (> *packet-pool-size* 0)
+                                      (PcapPacketPool. (int *packet-pool-size*)))
+        release-packet (partial release-packet slab-allocator)
+        buffer-latency (create-stage-latency)
+        scanner-latency (create-stage-latency)
+        out-latency (create-stage-latency)
+        buffer-cost (create-stage-cost)
+        scanner-cost (create-stage-cost)
+        reorderer-cost (when reorder (create-stage-cost))
+        release-buffer-record-on-drop (drop-burst-on-drop :buffer (latency-on-drop buffer-latency release-buffer-record))
+        release-scanner-packet-on-drop (drop-burst-on-drop :scanner (latency-on-drop scanner-latency release-packet))
+        release-out-packet-on-drop (drop-burst-on-drop :out (latency-on-drop out-latency release-packet))
+        buffer-queue (create-queue false)
+        buffer-policy (create-overload-policy :buffer buffer-queue)
+        buffer-drop-counter (StripedCounter.) buffer-queued-counter (StripedCounter.)
+        spill-staging (volatile! (ByteBuffer/allocate 0))
+        spill (when (and *spill-file* (not force-put))
+                (create-spill-stage
+                  buffer-queue
+                  (fn [bufrec]
+                    (let [size (+ 16 (.remaining ^ByteBuffer (:buf bufrec)))]
+                      (when (< (.capacity ^ByteBuffer @spill-staging) size)
+                        (vreset! spill-staging (ByteBuffer/allocate size)))
+                      (encode-buffer-record bufrec @spill-staging)))
+                  decode-buffer-record))
+        spill-fn (when spill (spill))
+        failed-counter (StripedCounter.)
+        scanner-queues (vec (repeatedly scanner-count #(create-queue false)))
+        scanner-policies (mapv #(create-overload-policy :scanner %) scanner-queues)
+        ;;; Each thread that enqueues into the out-queue uses its own policy instance.
+        out-policies (vec (repeatedly (if reorder 1 scanner-count) #(create-overload-policy :out out-queue)))
+        scanner-drop-counter (StripedCounter.) scanner-queued-counter (StripedCounter.)
+        reorder-queues (when reorder
+                         (vec (repeatedly scanner-count #(create-queue false))))
+        scan-failed (Object.)
+        handle-exception (fn [^Exception e]
+                           (when @running
+                             (.inc failed-counter)
+                             (.printStackTrace e))
+                           (when forward-exceptions
+                             (throw e)))
+        ;;; Packets that are dropped do not get a sequence number.
+        ;;; Thus, the sequence numbers of the packets of each scanner thread are consecutive.
+        dispatch-seq-no (long-array 1)
+        process-buffer-record (fn [bufrec]
+                                (try (let [seq-no (aget dispatch-seq-no 0)
+                                           idx (int (rem seq-no scanner-count))]
+                                       (cond
+                                         ;;; With reordering, the end of stream marker gets a sequence number.
+                                         ;;; Otherwise, it is handed to all scanner threads.
+                                         (instance? EndOfStream bufrec) (if reorder
+                                                                          (do
+                                                                            (StageRunner/put (scanner-queues idx) bufrec)
+                                                                            (aset dispatch-seq-no 0 (inc seq-no)))
+                                                                          (do
+                                                                            (.fork ^EndOfStream bufrec scanner-count)
+                                                                            (doseq [q scanner-queues]
+                                                                              (StageRunner/put q bufrec))))
+                                         :else (let [pkt (peer-packet bufrec packet-pool)
+                                                     _ (when scanner-latency
+                                                         (.enqueue scanner-latency pkt))
+                                                     ;;; enqueue-with-policy returns true if pkt was enqueued and false if it was dropped.
+                                                     enqueued (enqueue-with-policy
+                                                                (scanner-policies idx) (scanner-queues idx)
+                                                                pkt force-put
+                                                                scanner-queued-counter scanner-drop-counter
+                                                                release-scanner-packet-on-drop)]
+                                                 (when enqueued
+                                                   (aset dispatch-seq-no 0 (inc seq-no))))))
+                                  (catch Exception e
+                                    (handle-exception e))))
+        buffer-processor (sniffer/start-queue-stage (stage-cost-runner runner buffer-cost) "ByteBufferProcessor" buffer-queue
+                                                   (latency-stage-fn buffer-latency process-buffer-record))
+        ;;; Executor threads are shared by all stages, so each scanner needs its own JScanner instead of a thread local one.
+        own-jscanner (= StageRunner/EXECUTOR (.getMode runner))
+        create-scanner (fn [idx]
+                         (let [reorder-queue (when reorder (reorder-queues idx))
+                               out-policy (when (not reorder) (out-policies idx))
+                               scanner (volatile! nil)]
+                           (fn [obj]
+                             (try (let [^PcapPacket pkt obj
+                                        ^JScanner jscanner (or @scanner (vreset! scanner (if own-jscanner
+                                                                                           (JScanner.)
+                                                                                           (JScanner/getThreadLocal))))]
+                                    (cond
+                                      (instance? EndOfStream obj) (if reorder
+                                                                    (StageRunner/put reorder-queue obj)
+                                                                    (when (.join ^EndOfStream obj)
+                                                                      (StageRunner/put out-queue obj)))
+                                      reorder
+                                      ;;; The reorderer waits for each sequence number.
+                                      ;;; So failed packets are replaced with a marker instead of being skipped.
+                                      (StageRunner/put reorder-queue
+                                                       (try
+                                                         (.scan jscanner pkt (.value (PcapDLT/EN10MB)) (.wirelen (.getCaptureHeader pkt)))
+                                                         pkt
+                                                         (catch Exception e
+                                                           (release-packet pkt)
+                                                           (handle-exception e)
+                                                           scan-failed)))
+                                      :else
+                                      (do
+                                        (try
+                                          (.scan jscanner pkt (.value (PcapDLT/EN10MB)) (.wirelen (.getCaptureHeader pkt)))
+                                          (catch Exception e
+                                            (release-packet pkt)
+                                            (throw e)))
+                                        (when out-latency
+                                          (.enqueue out-latency pkt))
+                                        (enqueue-with-policy
+                                          out-policy out-queue pkt force-put
+                                          out-queued-counter out-drop-counter
+                                          release-out-packet-on-drop))))
+                               (catch Exception e
+                                 (handle-exception e))))))
+        scanners (doall
+                   (map (fn [idx]
+                          (sniffer/start-queue-stage (stage-cost-runner runner scanner-cost)
+                                                     (if (= 1 scanner-count) "PacketScanner" (str "PacketScanner-" idx))
+                                                     (scanner-queues idx)
+                                                     (latency-stage-fn scanner-latency (create-scanner idx))))
+                        (range scanner-count)))
+        reorder-seq-no (long-array 1)
+        reorder-packet (fn [obj]
+                         (try (aset reorder-seq-no 0 (inc (aget reorder-seq-no 0)))
+                              (cond
+                                (identical? obj scan-failed) nil
+                                (instance? EndOfStream obj) (StageRunner/put out-queue obj)
+                                :else (do
+                                        (when out-latency
+                                          (.enqueue out-latency obj))
+                                        (enqueue-with-policy
+                                          (out-policies 0) out-queue obj force-put
+                                          out-queued-counter out-drop-counter
+                                          release-out-packet-on-drop)))
+                              (catch Exception e
+                                (handle-exception e))))
+        next-reorder-queue (fn []
+                             (reorder-queues (int (rem (aget reorder-seq-no 0) scanner-count))))
+        reorderer (when reorder
+                    (sniffer/start-stage (stage-cost-runner runner reorderer-cost) "PacketReorderer"
+                                         #(reorder-packet (.take ^BlockingQueue (next-reorder-queue)))
+                                         #(if-let [obj (.poll ^BlockingQueue (next-reorder-queue))]
+                                            (do
+                                              (reorder-packet obj)
+                                              true)
+                                            false)))]
     (fn
       ([]
        (fn [ph buf _]
          (when (not (nil? buf))
-           (enqueue-data-put buffer-queue (create-buffer-record buf ph) force-put
-                             buffer-queued-counter buffer-drop-counter))))
+           (let [bufrec (create-buffer-record buf ph slab-allocator)]
+             (condp = (when spill-fn (spill-fn bufrec))
+               :spilled (release-buffer-record bufrec)
+               :dropped (do
+                          (.inc buffer-drop-counter)
+                          (release-buffer-record-on-drop bufrec))
+               (do
+                 (when buffer-latency
+                   (.enqueue buffer-latency bufrec))
+                 (enqueue-with-policy
+                   buffer-policy buffer-queue bufrec force-put
+                   buffer-queued-counter buffer-drop-counter
+                   release-buffer-record-on-drop)))))))
       ([k]
        (condp = k
-         :get-stats {"buffer-queued" (.value buffer-queued-counter) "buffer-dropped" (.value buffer-drop-counter)
-                     "scanner-queued" (.value scanner-queued-counter) "scanner-dropped" (.value scanner-drop-counter)
-                     "out-queued" (.value out-queued-counter) "out-dropped" (.value out-drop-counter)
-                     "handler-failed" (.value failed-counter)}
-         :wait-for-completed (while (or (> (.size buffer-queue) 0) (> (.size scanner-queue) 0))
-                               (utils/sleep 100)))))))
+         :get-stats (merge {"buffer-queued" (.value buffer-queued-counter) "buffer-dropped" (.value buffer-drop-counter)
+                            "scanner-queued" (.value scanner-queued-counter) "scanner-dropped" (.value scanner-drop-counter)
+                            "out-queued" (.value out-queued-counter) "out-dropped" (.value out-drop-counter)
+                            "handler-failed" (.value failed-counter)
+                            "buffer-queue-depth" (.size buffer-queue)
+                            "scanner-queue-depth" (reduce + (map #(.size ^BlockingQueue %) scanner-queues))}
+                           (overload-policy-stats :buffer [buffer-policy])
+                           (overload-policy-stats :scanner scanner-policies)
+                           (overload-policy-stats :out out-policies)
+                           (when spill (spill :get-stats))
+                           (when slab-allocator (slab-allocator-stats slab-allocator))
+                           (when packet-pool (packet-pool-stats packet-pool))
+                           (stage-latency-stats :buffer buffer-latency)
+                           (stage-latency-stats :scanner scanner-latency))
+         :slab-allocator slab-allocator
+         :packet-pool packet-pool
+         :out-latency out-latency
+         :stage-costs {"buffer-processor" buffer-cost "scanner" scanner-cost "reorderer" reorderer-cost}
+         :end-of-stream (let [eos (EndOfStream.)]
+                          ;;; Spilled packets are replayed into the buffer queue and have to precede the marker.
+                          ;;; Thus, the replay thread puts the marker once it replayed all of them.
+                          (if spill
+                            (spill :end-of-stream eos)
+                            (.put buffer-queue eos))
+                          eos)
+         ;;; Packets that are still queued are discarded.
+         :stop (do
+                 (doseq [stage (concat [buffer-processor] scanners [reorderer])]
+                   (sniffer/stop-stage stage))
+                 (when spill
+                   (spill :stop))))))))
 
 (defn send-bytes-packet
   "Send the packet as given in the byte array pkt-ba packets via the Pcap instance pcap.
@@ -240,74 +960,216 @@
      (when (> cnt 1)
        (recur (dec cnt))))))
 
+(defn create-bulk-pool
+  "Create a org.jnetpcap.DirectBulkByteBufferPool with pool-size buffers that
+   are large enough for bulks of bulk-size packets captured with snap-len or,
+   if bulk-bytes is larger than zero, for bulks of bulk-bytes bytes.
+   layout is the bulk layout, either :v1 or :v2.
+   exhausted-policy determines what happens when all buffers are in use:
+   :block waits until a buffer is released and :drop drops the captured bulk."
+  [pool-size bulk-size bulk-bytes snap-len layout exhausted-policy]
+  (DirectBulkByteBufferPool.
+    (int pool-size)
+    (DirectBulkByteBufferPool/slotSizeFor (int bulk-size) (int bulk-bytes) (int snap-len) (pcap/bulk-layout-id layout))
+    (condp = exhausted-policy
+      :block DirectBulkByteBufferPool/BLOCK
+      :drop DirectBulkByteBufferPool/DROP
+      (throw (IllegalArgumentException. (str "Unknown bulk pool exhausted policy: " exhausted-policy))))))
+
+(defn bulk-pool-stats
+  "Returns a map with statistics of the given org.jnetpcap.DirectBulkByteBufferPool."
+  [^DirectBulkByteBufferPool pool]
+  {"bulk-pool-available" (.getAvailable pool)
+   "bulk-pool-delivered" (.getDeliveredBulks pool)
+   "bulk-pool-dropped" (.getDroppedBulks pool)
+   "bulk-pool-dropped-packets" (.getDroppedPackets pool)
+   "bulk-pool-blocked" (.getBlockedDeliveries pool)})
+
 (defn set-up-and-start-cljnetpcap
   "Takes a pcap instance, sets up the capture pipe line, and starts the capturing and processing.
    This is not intended to be used directly.
    It is recommended to use: create-and-start-online-cljnetpcap or process-pcap-file"
   [pcap forwarder-fn filter-expr force-put]
   (let [running (ref true)
-        out-queue (LinkedTransferQueue.)
-        out-drop-counter (Counter.) out-queued-counter (Counter.)
+        out-drop-counter (StripedCounter.) out-queued-counter (StripedCounter.)
+        ;;; A TPACKET_V3 ring only emits its blocks as they are.
+        tpacket (pcap/tpacket-v3-ring? pcap)
         bulk-size *bulk-size*
-        use-intermediate-buffer *use-intermediate-buffer*
-        emit-raw-data *emit-raw-data*
+        bulk-bytes *bulk-bytes*
+        bulk-layout (if tpacket :tpacket-v3 *bulk-layout*)
+        bulk-max-latency-us *bulk-max-latency-us*
+        use-intermediate-buffer (and (not tpacket) *use-intermediate-buffer*)
+        emit-raw-data (or tpacket *emit-raw-data*)
+        ;;; Without reordering, all scanner threads write to the out queue.
+        ;;; A ring buffer only supports a single producer and cannot be used then.
+        ^TransferQueue out-queue (if (and (not emit-raw-data) (> *scanner-count* 1) (not *scanner-reorder*))
+                                   (CountingTransferQueue.)
+                                   (create-queue true))
+        bulk-pool (when (and emit-raw-data (not tpacket) (not force-put) (not use-intermediate-buffer) (> *bulk-pool-size* 0))
+                    (create-bulk-pool *bulk-pool-size* bulk-size bulk-bytes pcap/*snap-len* bulk-layout *bulk-pool-exhausted-policy*))
         forward-exceptions *forward-exceptions*
+        start-time (System/nanoTime)
         handler (if emit-raw-data
                   (if force-put
                     (create-raw-handler out-queue out-queued-counter out-drop-counter force-put running)
-                    (create-raw-bulk-handler out-queue out-queued-counter out-drop-counter bulk-size force-put running use-intermediate-buffer))
+                    (create-raw-bulk-handler out-queue out-queued-counter out-drop-counter force-put running use-intermediate-buffer bulk-layout))
                   (create-packet-processing-handler out-queue out-queued-counter out-drop-counter force-put running forward-exceptions))
         filter-expressions (ref [])
         _ (when (and (not (nil? filter-expr)) (not= "" filter-expr))
             (dosync (alter filter-expressions conj filter-expr)))
         _ (pcap/create-and-set-filter pcap filter-expr)
-        failed-packet-counter (Counter.)
-        forwarder (sniffer/create-and-start-forwarder out-queue
-                    #(try (forwarder-fn %)
-                       (catch Exception e
-                         (.inc failed-packet-counter)
-                         (when forward-exceptions
-                           (throw e))))
-                    forward-exceptions)
-        sniffer (if (and emit-raw-data (not force-put))
-                  (sniffer/create-and-start-sniffer pcap bulk-size use-intermediate-buffer (handler) nil)
-                  (sniffer/create-and-start-sniffer pcap (handler)))
-        stats-fn (pcap/create-stats-fn pcap)]
+        ;;; Filter changes are recorded as JFR filter changed events.
+        apply-filters (fn [op]
+                        (let [expr (string/join " " @filter-expressions)]
+                          (pcap/create-and-set-filter pcap expr)
+                          (JfrEvents/filterChanged (name op) expr)))
+        failed-packet-counter (StripedCounter.)
+        ;;; Pooled packets and packets allocated from slabs are released once forwarder-fn returned.
+        ^SlabAllocator slab-allocator (handler :slab-allocator)
+        release-fn (when (or slab-allocator (handler :packet-pool))
+                     (fn [obj]
+                       (if (instance? List obj)
+                         (doseq [o obj]
+                           (release-packet slab-allocator o))
+                         (release-packet slab-allocator obj))))
+        ;;; The time that packets are queued for and processed by the forwarder is sampled with the :out latency.
+        ^StageLatency out-latency (or (handler :out-latency) (create-stage-latency))
+        end-to-end-latency (when out-latency
+                             (LatencyHistogram.))
+        timed-forwarder-fn (if out-latency
+                             (let [sample-rate (.getSampleRate out-latency)
+                                   end-to-end-countdown (long-array [sample-rate])]
+                               (fn [obj]
+                                 (if (instance? List obj)
+                                   (doseq [o obj]
+                                     (.taken out-latency o))
+                                   (.taken out-latency obj))
+                                 (let [start (.begin out-latency)]
+                                   (forwarder-fn obj)
+                                   (.end out-latency start))
+                                 (let [n (dec (aget end-to-end-countdown 0))]
+                                   (if (> n 0)
+                                     (aset end-to-end-countdown 0 n)
+                                     (let [pkt (if (instance? List obj)
+                                                 (when (not (.isEmpty ^List obj))
+                                                   (.get ^List obj (dec (.size ^List obj))))
+                                                 obj)]
+                                       (aset end-to-end-countdown 0 sample-rate)
+                                       (when (instance? PcapPacket pkt)
+                                         (record-end-to-end-latency end-to-end-latency pkt)))))))
+                             forwarder-fn)
+        ;;; The cost of the capture thread is accounted by registering the thread that calls the handler.
+        ;;; The captured packets are counted for the stage costs per packet.
+        ;;; Bulks are counted as their records by the out counters instead.
+        ^StageCost capture-cost (create-stage-cost)
+        forwarder-cost (create-stage-cost)
+        bulk (and emit-raw-data (not force-put))
+        captured-packets (long-array 1)
+        handler-fn (let [f (handler)]
+                     (cond
+                       (nil? capture-cost) f
+                       bulk (fn [buf u]
+                              (.addCurrentThread capture-cost)
+                              (f buf u))
+                       :else (fn [ph buf u]
+                               (.addCurrentThread capture-cost)
+                               (aset captured-packets 0 (inc (aget captured-packets 0)))
+                               (f ph buf u))))
+        guarded-forwarder-fn #(try (timed-forwarder-fn %)
+                                (catch Exception e
+                                  (.inc failed-packet-counter)
+                                  (when forward-exceptions
+                                    (throw e)))
+                                (finally
+                                  (when release-fn
+                                    (release-fn %))))
+        shard-queues (when (> *forwarder-shards* 1)
+                       (when (and emit-raw-data (not force-put))
+                         (throw (IllegalArgumentException.
+                                  "Forwarder shards require individual packets but bulks are emitted.")))
+                       (vec (repeatedly *forwarder-shards* #(create-queue false))))
+        ;;; With a drain batch size larger than zero, forwarder-fn is called with lists of packets.
+        runner (stage-cost-runner (stage-runner) forwarder-cost)
+        start-forwarder-fn (if (> *forwarder-drain-batch-size* 0)
+                             (let [batch-size *forwarder-drain-batch-size*
+                                   max-wait-ms *forwarder-drain-max-wait-ms*]
+                               (fn [q f fwd-exceptions thread-name]
+                                 (sniffer/create-and-start-batch-forwarder q f fwd-exceptions thread-name batch-size max-wait-ms
+                                                                           runner)))
+                             (fn [q f fwd-exceptions thread-name]
+                               (sniffer/create-and-start-forwarder q f fwd-exceptions thread-name runner)))
+        forwarder (if shard-queues
+                    (sniffer/create-and-start-sharded-forwarder
+                      out-queue shard-queues guarded-forwarder-fn *forwarder-shard-key-fn* forward-exceptions
+                      start-forwarder-fn runner)
+                    (start-forwarder-fn out-queue guarded-forwarder-fn forward-exceptions "ForwarderThread"))
+        sniffer (if bulk
+                  (sniffer/create-and-start-sniffer
+                    pcap
+                    {:bulk-size bulk-size :bulk-bytes bulk-bytes :layout bulk-layout :max-latency-us bulk-max-latency-us
+                     :use-intermediate-buffer use-intermediate-buffer :pool bulk-pool}
+                    handler-fn nil)
+                  (sniffer/create-and-start-sniffer pcap handler-fn))
+        ;;; The sniffer is stopped by :wait-for-completed and :stop but must only be stopped once.
+        sniffer-stopped (atom false)
+        stop-sniffer #(when (compare-and-set! sniffer-stopped false true)
+                        (sniffer/stop-sniffer sniffer))
+        stats-fn (pcap/create-stats-fn pcap)
+        get-stats (fn []
+                    (let [stats (merge (stats-fn) (handler :get-stats) {"forwarder-failed" (.value failed-packet-counter)
+                                                                        "out-queue-depth" (.size out-queue)}
+                                       (when bulk-pool (bulk-pool-stats bulk-pool))
+                                       (stage-latency-stats :forwarder out-latency)
+                                       (when end-to-end-latency
+                                         (latency-histogram-stats "end-to-end" end-to-end-latency))
+                                       (when capture-cost
+                                         {"captured-packets" (if bulk
+                                                               (+ (.value out-queued-counter) (.value out-drop-counter))
+                                                               (aget captured-packets 0))})
+                                       (stage-cost-stats (merge {"capture" capture-cost "forwarder" forwarder-cost}
+                                                                (handler :stage-costs))))]
+                      (merge stats (stage-cost-rates stats (- (System/nanoTime) start-time)))))
+        ;;; The stats are periodically recorded as JFR pipeline statistics events.
+        jfr-pipeline (JfrEvents/registerPipeline get-stats)]
 
     (fn 
       ([k]
        (condp = k
-         :get-stats (merge (stats-fn) (handler :get-stats) {"forwarder-failed" (.value failed-packet-counter)})
+         :get-stats (get-stats)
          :stop (do
+                 (JfrEvents/unregisterPipeline jfr-pipeline)
                  (dosync (ref-set running false))
-                 (sniffer/stop-forwarder forwarder)
-                 (sniffer/stop-sniffer sniffer))
+                 ;;; Stop the sniffer first so that data that is still held,
+                 ;;; e.g., in a partially filled bulk is handed to the forwarder.
+                 (stop-sniffer)
+                 (handler :stop)
+                 (sniffer/stop-forwarder forwarder))
          :get-filters @filter-expressions
          :remove-last-filter (do
                                (dosync (alter filter-expressions pop))
-                               (pcap/create-and-set-filter pcap (string/join " " @filter-expressions)))
+                               (apply-filters :remove-last-filter))
          :remove-all-filters (do
                                (dosync (alter filter-expressions empty))
-                               (pcap/create-and-set-filter pcap (string/join " " @filter-expressions)))
+                               (apply-filters :remove-all-filters))
+         ;;; Only valid once no further packets are captured, e.g., after an offline pcap was read.
+         ;;; Returns once the marker passed all stages and the last forwarder-fn call returned.
+         :await-end-of-stream (.await ^EndOfStream (handler :end-of-stream))
+         ;;; Stops the capture such that no packets follow the end of stream marker.
+         ;;; Returns once all captured packets passed all stages and the last forwarder-fn call returned.
          :wait-for-completed (do
                                (println "Waiting till handler completed...")
-                               (handler :wait-for-completed)
-                               (while (> (.size out-queue) 0)
-                                 (utils/sleep 100))
-                               ;;; TODO:
-                               ;;; Right now, we give it a little time to process the last data even when the queues are empty.
-                               ;;; We should actually use other means to indicate that the entire processing has finished.
-                               (utils/sleep 100))
+                               (stop-sniffer)
+                               (.await ^EndOfStream (handler :end-of-stream)))
          :default (throw (RuntimeException. (str "Unsupported operation: " k)))))
       ([k arg]
        (condp = k
          :add-filter (when (and arg (not= arg ""))
                        (dosync
                          (alter filter-expressions conj arg))
-                       (pcap/create-and-set-filter pcap (string/join " " @filter-expressions)))
+                       (apply-filters :add-filter))
          :remove-filter (do (dosync
                               (alter filter-expressions (fn [fe] (vec (filter #(not= arg %) fe)))))
-                            (pcap/create-and-set-filter pcap (string/join " " @filter-expressions)))
+                            (apply-filters :remove-filter))
          :send-bytes-packet (send-bytes-packet pcap arg)
          :send-packet-map (send-bytes-packet pcap (pkt-gen/generate-packet-data arg))
          :default (throw (RuntimeException. (str "Unsupported operation: " k " Args: " arg)))))
@@ -316,7 +1178,7 @@
          :replace-filter (when (some #(= arg1 %) @filter-expressions)
                            (dosync
                              (alter filter-expressions #(replace {arg1 arg2} %)))
-                           (pcap/create-and-set-filter pcap (string/join " " @filter-expressions)))
+                           (apply-filters :replace-filter))
          :send-bytes-packet (send-bytes-packet pcap arg1 arg2)
          :send-packet-map (send-bytes-packet pcap (pkt-gen/generate-packet-data arg1) arg2)
          :default (throw (RuntimeException. (str "Unsupported operation: " k " Args: " [arg1 arg2])))))
@@ -326,19 +1188,112 @@
          :send-packet-map (send-bytes-packet pcap (pkt-gen/generate-packet-data arg1) arg2 arg3)
          :default (throw (RuntimeException. (str "Unsupported operation: " k " Args: " [arg1 arg2 arg3]))))))))
 
+(defn merge-stats
+  "Merges the given stats maps as returned by get-stats.
+   Numerical values of equal keys are summed up, except for latencies, i.e., keys
+   ending with \"-ns\", of which the maximum is taken."
+  [stats]
+  (reduce
+    (fn [merged m]
+      (reduce-kv
+        (fn [acc k v]
+          (let [prev (get acc k)]
+            (assoc acc k (cond
+                           (nil? prev) v
+                           (not (and (number? prev) (number? v))) prev
+                           (and (string? k) (string/ends-with? k "-ns")) (max prev v)
+                           :else (+ prev v)))))
+        merged
+        (or m {})))
+    nil
+    stats))
+
+(defn combine-cljnetpcaps
+  "Combines the given cljnetpcap handles, as returned by set-up-and-start-cljnetpcap, into a single handle.
+   Filter operations and :stop are applied to all handles and :get-stats returns the merged stats of all handles.
+   Packets are only sent via the first handle."
+  [cljnetpcaps]
+  (let [primary (first cljnetpcaps)
+        send-ops #{:send-bytes-packet :send-packet-map}
+        start-time (System/nanoTime)]
+    (fn
+      ([k]
+       (condp = k
+         ;;; The summed up stage costs per packet and per second are recalculated from the merged stage costs.
+         :get-stats (let [stats (merge-stats (map #(% :get-stats) cljnetpcaps))]
+                      (assoc (merge stats (stage-cost-rates stats (- (System/nanoTime) start-time)))
+                             "fanout-count" (count cljnetpcaps)))
+         :get-filters (primary :get-filters)
+         (last (mapv #(% k) cljnetpcaps))))
+      ([k arg]
+       (if (send-ops k)
+         (primary k arg)
+         (last (mapv #(% k arg) cljnetpcaps))))
+      ([k arg1 arg2]
+       (if (send-ops k)
+         (primary k arg1 arg2)
+         (last (mapv #(% k arg1 arg2) cljnetpcaps))))
+      ([k arg1 arg2 arg3]
+       (if (send-ops k)
+         (primary k arg1 arg2 arg3)
+         (last (mapv #(% k arg1 arg2 arg3) cljnetpcaps)))))))
+
+(defonce fanout-group-id-counter (atom (rand-int 0x10000)))
+
+(defn create-and-activate-online-capture
+  "Creates and activates the capture engine selected by *capture-engine* on device:
+   :pcap captures via libpcap, see pcap/create-and-activate-online-pcap, and
+   :tpacket-v3 via a Linux TPACKET_V3 ring, see pcap/create-and-activate-tpacket-v3-ring.
+   The TPACKET_V3 ring hands whole kernel blocks to the forwarder-fn, see pcap-data/process-tpacket-v3-block.
+   fanout is an optional map with :group-id and :mode."
+  ([device]
+   (create-and-activate-online-capture device nil))
+  ([device fanout]
+   (condp = *capture-engine*
+     :pcap (pcap/create-and-activate-online-pcap device fanout)
+     :tpacket-v3 (pcap/create-and-activate-tpacket-v3-ring device fanout)
+     (throw (IllegalArgumentException. (str "Unknown capture engine: " *capture-engine*))))))
+
+(defn create-and-start-fanout-cljnetpcap
+  "Opens *fanout-count* Pcap instances on device, joins them into a Linux
+   PACKET_FANOUT group, and sets up a capture pipe line for each of them.
+   The kernel distributes the packets among the instances according to
+   *fanout-mode* (:hash, :cpu, or :round-robin).
+   The group id is taken from *fanout-group-id* or, if that is nil, a new id is chosen.
+   forwarder-fn is called from the forwarder threads of all pipe lines concurrently.
+   The returned handle combines all pipe lines, see combine-cljnetpcaps."
+  [forwarder-fn device filter-expr]
+  (let [fanout {:group-id (or *fanout-group-id* (bit-and (swap! fanout-group-id-counter inc) 0xffff))
+                :mode *fanout-mode*}
+        started (ref [])]
+    (try
+      (dotimes [_ *fanout-count*]
+        (let [pcap (create-and-activate-online-capture device fanout)]
+          (dosync (alter started conj (set-up-and-start-cljnetpcap pcap forwarder-fn filter-expr false)))))
+      (combine-cljnetpcaps @started)
+      (catch Exception e
+        (doseq [cljnetpcap @started]
+          (cljnetpcap :stop))
+        (throw e)))))
+
 (defn create-and-start-online-cljnetpcap
   "Convenience function for performing live online capturing.
    forwarder-fn will be called for each captured packet.
    Capturing can be influenced via the optional device and filter-expression arguments.
    By default the 'any' device is used for capturing with no filter being applied.
+   When *fanout-count* is larger than one, capturing is distributed over multiple
+   Pcap instances, see create-and-start-fanout-cljnetpcap.
+   The capture engine is selected via *capture-engine*, see create-and-activate-online-capture.
    Please note that the returned handle should be stored as it is needed for stopping the capture."
   ([forwarder-fn]
    (create-and-start-online-cljnetpcap forwarder-fn pcap/any))
   ([forwarder-fn device]
    (create-and-start-online-cljnetpcap forwarder-fn device ""))
   ([forwarder-fn device filter-expr]
-   (let [pcap (pcap/create-and-activate-online-pcap device)]
-     (set-up-and-start-cljnetpcap pcap forwarder-fn filter-expr false))))
+   (if (> *fanout-count* 1)
+     (create-and-start-fanout-cljnetpcap forwarder-fn device filter-expr)
+     (let [pcap (create-and-activate-online-capture device)]
+       (set-up-and-start-cljnetpcap pcap forwarder-fn filter-expr false)))))
 
 (defn get-stats
   "Given a handle as returned by, e.g., create-and-start-online-cljnetpcap or process-pcap-file,
@@ -386,16 +1341,175 @@
   "Convenience function to process data stored in pcap files.
    Arguments are the file-name of the pcap file, the handler-fn that is executed for each read packet, and optional user data.
    handler-fn takes two arguments, the first is the org.jnetpcap.packet.PcapPacket instance, the second is the user data.
-   By default nil is used as user data."
+   By default nil is used as user data.
+   Returns when handler-fn returned for the last packet."
   ([file-name handler-fn]
    (process-pcap-file file-name handler-fn nil))
   ([file-name handler-fn _]
    (let [pcap (pcap/create-offline-pcap file-name)
          clj-net-pcap (set-up-and-start-cljnetpcap pcap handler-fn "" true)]
-     (clj-net-pcap :wait-for-completed)
+     ;;; The sniffer returns after the whole file was read.
+     ;;; So all packets precede the end of stream marker.
+     (clj-net-pcap :await-end-of-stream)
      (stop-cljnetpcap clj-net-pcap))))
 
 
+(def input-codecs
+  "Map of file name suffixes to functions that wrap an InputStream with a decompressing
+   InputStream for reading compressed capture files.
+   Further codecs, e.g., for zstd or lz4, can be added with register-input-codec."
+  (atom {".gz" (fn [^InputStream in] (GZIPInputStream. in 65536))}))
+
+(defn register-input-codec
+  "Registers the function codec-fn for reading files with the given file name suffix.
+   codec-fn is called with the InputStream of the file and has to return an InputStream that
+   emits the decompressed data."
+  [suffix codec-fn]
+  (swap! input-codecs assoc suffix codec-fn))
+
+(defn- gzip-file?
+  [file-name]
+  (with-open [in (FileInputStream. (str file-name))]
+    (and (= 0x1f (.read in)) (= 0x8b (.read in)))))
+
+(defn input-codec-for
+  "Returns the codec function for the file file-name or nil if the file is not compressed.
+   The codec is looked up via the file name suffix in input-codecs.
+   gzip compressed files are also detected by their magic number."
+  [file-name]
+  (let [file-name (str file-name)]
+    (or (some (fn [[suffix codec-fn]] (when (.endsWith file-name ^String suffix) codec-fn)) @input-codecs)
+        (when (gzip-file? file-name)
+          (@input-codecs ".gz")))))
+
+(defn create-raw-record-reader
+  "Creates a clj_net_pcap.RawRecordReader for the pcap or pcapng file file-name.
+   The file format is detected from the first bytes of the file.
+   Compressed pcap files, see input-codec-for, are decompressed in a dedicated read-ahead
+   thread with a double buffer of *read-ahead-block-size* bytes."
+  ^RawRecordReader [file-name]
+  (if-let [codec-fn (input-codec-for file-name)]
+    (let [in (FileInputStream. (str file-name))]
+      (try
+        (PcapStreamReader.
+          (ReadAheadInputStream. (codec-fn in) (int *read-ahead-block-size*) 2))
+        (catch Exception e
+          (.close in)
+          (throw e))))
+    (if (PcapngFileReader/isPcapngFile (str file-name))
+      (PcapngFileReader. (str file-name))
+      (PcapFileReader. (str file-name)))))
+
+(defn read-pcap-file-raw
+  "Reads the pcap or pcapng file file-name without libpcap via clj_net_pcap.PcapFileReader
+   or clj_net_pcap.PcapngFileReader, respectively. Compressed pcap files, e.g., .pcap.gz,
+   are read via clj_net_pcap.PcapStreamReader, see create-raw-record-reader.
+   handler-fn is called in the calling thread with the raw data in the same format as emitted
+   by the live capture with *emit-raw-data* set: a 16 byte header followed by the packet data.
+   When *bulk-size* is larger than one or *bulk-bytes* is larger than zero, bulks are emitted
+   as, e.g., consumed by pcap-data/process-packet-byte-buffer-bulk. Otherwise, each packet is
+   emitted as single record.
+   Unlike process-pcap-file, no queues or threads are involved.
+   Returns the number of packets that were read."
+  [file-name handler-fn]
+  (with-open [^RawRecordReader reader (create-raw-record-reader file-name)]
+    (let [bulk-size (int *bulk-size*)
+          bulk-bytes (int *bulk-bytes*)]
+      (if (or (> bulk-size 1) (> bulk-bytes 0))
+        (let [max-packets (if (> bulk-size 1) bulk-size Integer/MAX_VALUE)]
+          (loop []
+            (when-let [bulk (.nextBulk reader max-packets bulk-bytes)]
+              (handler-fn bulk)
+              (recur))))
+        (loop []
+          (when-let [record (.nextRecord reader)]
+            (handler-fn record)
+            (recur))))
+      (.getPacketCount reader))))
+
+(defn- record-timestamp-us
+  "Returns the timestamp in microseconds of the big endian single raw record."
+  ^long [^ByteBuffer record]
+  (+ (* (bit-and (.getInt record 0) 0xffffffff) 1000000) (.getInt record 4)))
+
+(defn- reduce-pcap-record-spliterator
+  [^PcapRecordSpliterator spliterator f init]
+  (with-open [spliterator spliterator]
+    (let [acc (volatile! init)
+          consumer (reify Consumer
+                     (accept [_ record]
+                       (vswap! acc f record)))]
+      (while (and (not (reduced? @acc))
+                  (.tryAdvance spliterator consumer)))
+      (unreduced @acc))))
+
+(defn- fold-pcap-file-chunks
+  "Reduces each chunk of the file with reducef on the common ForkJoinPool and
+   combines the chunk results in file order with combinef."
+  [file-name combinef reducef]
+  (let [chunks (PcapRecordSpliterator/split
+                 (str file-name)
+                 (* 4 (.getParallelism (ForkJoinPool/commonPool))))
+        tasks (mapv (fn [spliterator]
+                      (fn [] (reduce-pcap-record-spliterator spliterator reducef (combinef))))
+                    chunks)]
+    (reduce combinef (map #(.get ^Future %) (.invokeAll (ForkJoinPool/commonPool) ^java.util.Collection tasks)))))
+
+(defn pcap-file-records
+  "Returns a reducible collection of the single raw records, as emitted by read-pcap-file-raw,
+   of the pcap file file-name.
+   Reducing reads the file sequentially in the calling thread via create-raw-record-reader,
+   so pcapng and compressed files are supported as well.
+   clojure.core.reducers/fold splits the file at record boundaries into chunks that are
+   reduced in parallel on the common ForkJoinPool; the fold partition size n is ignored.
+   Folding requires an uncompressed pcap file."
+  [file-name]
+  (reify
+    IReduceInit
+    (reduce [_ f init]
+      (with-open [reader (create-raw-record-reader file-name)]
+        (loop [acc init]
+          (if-let [record (.nextRecord reader)]
+            (let [acc (f acc record)]
+              (if (reduced? acc)
+                @acc
+                (recur acc)))
+            acc))))
+    r/CollFold
+    (coll-fold [_ _ combinef reducef]
+      (fold-pcap-file-chunks file-name combinef reducef))))
+
+(defn pcap-file-record-stream
+  "Returns a java.util.stream.Stream of the single raw records, as emitted by read-pcap-file-raw,
+   of the pcap file file-name.
+   A parallel stream splits the file at record boundaries and is processed on the common
+   ForkJoinPool.
+   The stream has to be closed, e.g., with with-open, such that the files of partially
+   consumed chunks are closed, e.g., after short-circuiting operations or exceptions."
+  [file-name parallel]
+  (PcapRecordSpliterator/stream (str file-name) (boolean parallel)))
+
+(defn process-pcap-file-parallel
+  "Processes the pcap file file-name in parallel without libpcap.
+   The file is split into chunks at record boundaries and the chunks are processed on the
+   common ForkJoinPool. f is called with each single raw record, as emitted by
+   read-pcap-file-raw, and the results of f are returned as vector in file order.
+   If merge-by-timestamp is true, the results are ordered by the timestamps of their records
+   instead; records with equal timestamps keep their file order."
+  ([file-name f]
+    (process-pcap-file-parallel file-name f false))
+  ([file-name f merge-by-timestamp]
+    (let [reducef (if merge-by-timestamp
+                    #(conj! %1 [(record-timestamp-us %2) (f %2)])
+                    #(conj! %1 (f %2)))
+          combinef (fn
+                     ([] (transient []))
+                     ([a b] (reduce conj! a (persistent! b))))
+          results (persistent! (fold-pcap-file-chunks file-name combinef reducef))]
+      (if merge-by-timestamp
+        (mapv second (sort-by first results))
+        results))))
+
 (defn extract-data-from-pcap-file
   "Function to extract the data from a pcap file.
    The data will be formatted with format-fn.
@@ -445,4 +1559,12 @@
    Returns a vector that contains the extracted raw-data."
   [file-name]
   (binding [*emit-raw-data* true]
-    (extract-data-from-pcap-file file-name (fn [^ByteBuffer b] (.array b)))))
+    ;;; The raw records may be slices of a slab that is reused once the record was forwarded.
+    ;;; So the data of the record is copied unless the buffer covers its whole array.
+    (extract-data-from-pcap-file file-name (fn [^ByteBuffer b]
+                                             (if (and (.hasArray b) (= 0 (.arrayOffset b) (.position b))
+                                                      (= (.remaining b) (alength (.array b))))
+                                               (.array b)
+                                               (let [ba (byte-array (.remaining b))]
+                                                 (.get (.duplicate b) ba)
+                                                 ba))))))
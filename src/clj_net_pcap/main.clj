@@ -27,10 +27,12 @@
     (clj-assorted-utils [util :as utils])
     (clj-net-pcap [byte-array-extraction-dsl :as ba-dsl])
     (clj-net-pcap [core :as core])
+    (clj-net-pcap [metrics :as metrics])
     (clj-net-pcap [pcap :as pcap])
     (clj-net-pcap [pcap-data :as pcap-data])
     (clj-net-pcap [packet-gen :as pkt-gen])
     (clj-net-pcap [self-adaptive-dsl-adjustment :as dsl-adapt]))
+  (:import (java.util ArrayList Collection List))
   (:gen-class))
 
 (defn- parse-args [args]
@@ -64,6 +66,11 @@
                 (do
                   (utils/println-err "Warning: loopback device is undefined. Using first available device as default.")
                   (-> (pcap/get-devices) first .getName)))]
+    ["-n" "--fanout-count"
+     (str "Number of pcap instances that capture on the interface in a PACKET_FANOUT group."
+          " Values larger than 1 distribute the capturing over multiple threads (Linux only).")
+     :default 1
+     :parse-fn #(Integer. ^java.lang.String %)]
     ["-r" "--raw"
      (str "Emit raw data instead of decoded packets."
           " Be careful, not all transformation and forwarder functions support this.")
@@ -89,6 +96,88 @@
      :default (int (Math/pow 2 26))
      :parse-fn #(Integer. ^java.lang.String %)]
     ["-D" "--debug" "Enable additional debugging." :flag true]
+    ["-L" "--bulk-max-latency"
+     (str "Max time in microseconds a partially filled bulk is held before it is delivered."
+          " Values smaller equal 0 mean that bulks are only delivered when they are full.")
+     :default 0
+     :parse-fn #(Long. ^java.lang.String %)]
+    ["-N" "--fanout-mode"
+     "The PACKET_FANOUT mode used with --fanout-count: hash, cpu, or round-robin."
+     :default :hash
+     :parse-fn keyword]
+    ["-E" "--capture-engine"
+     (str "The capture engine to use: pcap or tpacket-v3."
+          " tpacket-v3 captures via a memory mapped Linux TPACKET_V3 ring and always emits raw blocks.")
+     :default :pcap
+     :parse-fn keyword]
+    ["-c" "--scanner-count"
+     "The number of threads that scan (decode) packets when no raw data is emitted."
+     :default 1
+     :parse-fn #(Integer. ^java.lang.String %)]
+    ["-O" "--scanner-reorder"
+     "Restore the capture order of packets that were scanned by multiple threads."
+     :flag true]
+    ["-P" "--forwarder-shards"
+     (str "The number of threads that run the forwarder function."
+          " Packets are distributed among the threads by the hash of their flow.")
+     :default 1
+     :parse-fn #(Integer. ^java.lang.String %)]
+    ["-M" "--forwarder-batch"
+     (str "The maximum number of packets that are forwarded at once."
+          " 0 forwards each packet individually.")
+     :default 0
+     :parse-fn #(Integer. ^java.lang.String %)]
+    ["-G" "--forwarder-batch-wait"
+     "The maximum time in milliseconds that is waited for filling a forwarder batch."
+     :default 0
+     :parse-fn #(Long. ^java.lang.String %)]
+    ["-k" "--slab-size"
+     (str "Allocate the per-packet copies from slabs of the given size in bytes."
+          " 0 allocates each copy individually.")
+     :default 0
+     :parse-fn #(Integer. ^java.lang.String %)]
+    ["-K" "--packet-pool-size"
+     (str "Reuse decoded packets from a pool of the given size."
+          " Packets are returned to the pool after the forwarder function returned.")
+     :default 0
+     :parse-fn #(Integer. ^java.lang.String %)]
+    ["-Q" "--queue-type"
+     (str "The queue type used between the pipeline stages: blocking or ring-buffer."
+          " ring-buffer uses preallocated lock-free single-producer/single-consumer ring buffers.")
+     :default :blocking
+     :parse-fn keyword]
+    ["-Y" "--queue-wait-strategy"
+     "The wait strategy of ring-buffer queues: block, yield, or busy-spin."
+     :default :block
+     :parse-fn keyword]
+    ["-l" "--spill-file"
+     (str "Spill bursts that overrun the packet buffer queue to the given memory-mapped file."
+          " The spilled packets are replayed in order once the processing caught up.")
+     :default nil]
+    ["-o" "--overload-policy"
+     (str "The policy applied when the queues of the pipeline stages fill up:"
+          " drop-newest, drop-oldest, early-drop, block-timeout, or sample.")
+     :default :drop-newest
+     :parse-fn keyword]
+    ["-m" "--metrics-port"
+     (str "Expose the stats in the OpenMetrics text format via HTTP on the given port at /metrics."
+          " Values smaller equal 0 disable the endpoint.")
+     :default 0
+     :parse-fn #(Integer. ^java.lang.String %)]
+    ["-u" "--latency-sample-rate"
+     (str "Sample the queued and processing times of the pipeline stages and the latency"
+          " from capture to forwarder completion for every n-th packet. 0 disables the sampling.")
+     :default 0
+     :parse-fn #(Integer. ^java.lang.String %)]
+    ["-x" "--stage-execution"
+     (str "How the pipeline stages are executed: dedicated, virtual, or executor."
+          " virtual requires Java 21 or later. executor runs all stages in a shared pool of threads.")
+     :default :dedicated
+     :parse-fn keyword]
+    ["-X" "--stage-executor-threads"
+     "The number of threads of the shared pool that is used with --stage-execution executor."
+     :default (.availableProcessors (Runtime/getRuntime))
+     :parse-fn #(Integer. ^java.lang.String %)]
     ["-F" "--forwarder-fn"
      (str "Use the specified function as forwarder function for processing packets.\n"
           "Available function names are:\n"
@@ -160,12 +249,13 @@
 ;                             (println Updating dynamic transformation fn:" new-val)
                          (let [dsl-fn (get-dsl-fn new-val)]
                            (reset! dynamic-transformation-fn dsl-fn))))
+          forwarder-batch (arg-map :forwarder-batch)
           output-file (arg-map :write-to-file)
           file-output-forwarder (when (not (nil? output-file))
                                   (println "Writing data to file:" output-file)
                                   (pcap-data/create-file-out-forwarder
                                    output-file
-                                   (> bulk-size 1)
+                                   (or (> bulk-size 1) (> forwarder-batch 0))
                                    (if (arg-map :write-arff-header)
                                      (ba-dsl/get-arff-header dsl-expression)
                                      "")))
@@ -175,20 +265,53 @@
                                   (= 'packet (first (first (:arglists (meta f-tmp))))) f-tmp
                                   :else (f-tmp bulk-size))]
                           (println "Resolved forwarder fn:" f)
-                          (if (arg-map :dynamic-transformation-fn)
-                            (do
-                              (println "Using dynamic transformation-fn:" @dynamic-transformation-fn)
-                              #(let [o (@dynamic-transformation-fn %)]
-                                 (when o
-                                   (f o))))
-                            (do
-                              (println "Using static transformation-fn:" static-transformation-fn)
-                              #(let [o (static-transformation-fn %)]
-                                 (when o
-                                   (f o))))))
+                          (let [transformation-fn (if (arg-map :dynamic-transformation-fn)
+                                                    (do
+                                                      (println "Using dynamic transformation-fn:" @dynamic-transformation-fn)
+                                                      #(@dynamic-transformation-fn %))
+                                                    (do
+                                                      (println "Using static transformation-fn:" static-transformation-fn)
+                                                      static-transformation-fn))]
+                            (cond
+                              ;;; Write the output of all packets of a batch at once.
+                              (and file-output-forwarder (> forwarder-batch 0))
+                                (fn [^List batch]
+                                  (let [out (ArrayList.)]
+                                    (doseq [pkt batch]
+                                      (when-let [o (transformation-fn pkt)]
+                                        (if (> bulk-size 1)
+                                          (.addAll out ^Collection o)
+                                          (.add out o))))
+                                    (when (not (.isEmpty out))
+                                      (f out))))
+                              (> forwarder-batch 0) (fn [^List batch]
+                                                      (doseq [pkt batch]
+                                                        (when-let [o (transformation-fn pkt)]
+                                                          (f o))))
+                              :else #(let [o (transformation-fn %)]
+                                       (when o
+                                         (f o))))))
           cljnetpcap (binding [core/*bulk-size* bulk-size
+                               core/*bulk-max-latency-us* (arg-map :bulk-max-latency)
                                core/*emit-raw-data* (arg-map :raw)
+                               core/*capture-engine* (arg-map :capture-engine)
+                               core/*fanout-count* (arg-map :fanout-count)
+                               core/*fanout-mode* (arg-map :fanout-mode)
                                core/*forward-exceptions* (arg-map :debug)
+                               core/*queue-type* (arg-map :queue-type)
+                               core/*scanner-count* (arg-map :scanner-count)
+                               core/*scanner-reorder* (arg-map :scanner-reorder)
+                               core/*forwarder-shards* (arg-map :forwarder-shards)
+                               core/*slab-size* (arg-map :slab-size)
+                               core/*packet-pool-size* (arg-map :packet-pool-size)
+                               core/*forwarder-drain-batch-size* forwarder-batch
+                               core/*forwarder-drain-max-wait-ms* (arg-map :forwarder-batch-wait)
+                               core/*queue-wait-strategy* (arg-map :queue-wait-strategy)
+                               core/*overload-policy* (arg-map :overload-policy)
+                               core/*spill-file* (arg-map :spill-file)
+                               core/*stage-execution* (arg-map :stage-execution)
+                               core/*latency-sample-rate* (arg-map :latency-sample-rate)
+                               core/*stage-executor-threads* (arg-map :stage-executor-threads)
                                pcap/*snap-len* (arg-map :snap-len)
                                pcap/*buffer-size* (arg-map :buffer-size)]
                        (if (= "" pcap-file-name)
@@ -201,11 +324,17 @@
                            processing-fn)))
           stat-interval (arg-map :stats)
           stat-out-executor (utils/executor)
+          metrics-server (when (> (arg-map :metrics-port) 0)
+                           (println "Exposing OpenMetrics stats on port" (arg-map :metrics-port) "at /metrics.")
+                           (metrics/start-metrics-server (arg-map :metrics-port) #(core/get-stats cljnetpcap)))
           shutdown-fn (fn []
                         (println "clj-net-pcap is shuting down...")
                         (when (> stat-interval 0)
                           (println "Stopping stat output.")
                           (utils/shutdown stat-out-executor))
+                        (when metrics-server
+                          (println "Stopping metrics endpoint.")
+                          (metrics-server :stop))
                         (core/get-stats cljnetpcap)
                         (when (not (nil? file-output-forwarder))
                           (println "Closing file output forwarder...")
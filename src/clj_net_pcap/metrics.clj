@@ -0,0 +1,164 @@
+;;;
+;;; Copyright (C) 2026 Ruediger Gad
+;;;
+;;; This file is part of clj-net-pcap.
+;;; clj-net-pcap is licensed under the terms of either
+;;; - the GNU Lesser General Public License (LGPL) version 3 or later
+;;;   http://www.gnu.org/licenses/lgpl-3.0.html
+;;; or, at your option,
+;;; - the Eclipse Public License (EPL) 1.0.
+;;;   http://opensource.org/licenses/eclipse-1.0.php
+;;;
+;;; By contributing to clj-net-pcap, you agree that your contribution will be licensed under both licenses
+;;; and that users of clj-net-pcap can chose any of these licenses.
+;;;
+
+(ns
+  ^{:author "Ruediger Gad",
+    :doc "Exposes the stats maps as returned by core/get-stats in the OpenMetrics text format
+          via an embedded HTTP endpoint that can be scraped, e.g., by Prometheus."}
+  clj-net-pcap.metrics
+  (:require
+    (clojure [string :as string])
+    (clj-assorted-utils [util :as utils]))
+  (:import (com.sun.net.httpserver HttpExchange HttpHandler HttpServer)
+           (java.net InetSocketAddress)
+           (java.nio.charset StandardCharsets)))
+
+(def metric-prefix "clj_net_pcap_")
+
+(def content-type "application/openmetrics-text; version=1.0.0; charset=utf-8")
+
+(def gauge-stats
+  #{"bulk-pool-available" "fanout-count" "packet-pool-available" "slab-count" "slab-free" "slab-occupancy"
+    "slab-outstanding-slices" "spill-bytes" "spill-depth" "spill-lag-us" "tpacket-blocks-in-use"})
+
+(defn gauge-stat?
+  "Returns true if the stat with name k is a gauge, e.g., a queue depth or a stage cost per
+   packet, and false if it is a counter."
+  [k]
+  (or (contains? gauge-stats k)
+      (string/ends-with? k "-depth")
+      (string/ends-with? k "-per-packet")
+      (string/ends-with? k "-per-second")))
+
+(def latency-stat-pattern #"(.+)-(p50|p99|p999|max)-ns")
+
+(def quantiles {"p50" "0.5" "p99" "0.99" "p999" "0.999"})
+
+(defn metric-name
+  "Converts the name of a stat to an OpenMetrics metric name."
+  [k]
+  (str metric-prefix (string/replace k #"[^a-zA-Z0-9_]" "_")))
+
+(defn- ns->seconds [v]
+  (/ (double v) 1.0E9))
+
+(defn stat-rates
+  "Returns a map with the per second rates of the counters in stats since prev-stats,
+   which were taken interval-ms milliseconds before.
+   Counters for which stats already contain a rate with the suffix -per-second, e.g.,
+   the stage costs, are omitted."
+  [prev-stats stats interval-ms]
+  (when (and prev-stats (> interval-ms 0))
+    (into {}
+          (for [[k v] stats
+                :let [prev (get prev-stats k)]
+                :when (and (number? v) (number? prev)
+                           (not (gauge-stat? k))
+                           (not (contains? stats (str k "-per-second")))
+                           (not (re-matches latency-stat-pattern k)))]
+            [k (/ (* 1000.0 (- v prev)) interval-ms)]))))
+
+(defn render-openmetrics
+  "Renders the numeric values of the given stats map in the OpenMetrics text format.
+   Counters are exposed as counter, gauges, see gauge-stat?, as gauge, and the latency
+   percentiles, see core/latency-histogram-stats, as summary in seconds with the maximum
+   as separate gauge. The rates, as returned by stat-rates, are exposed as gauges with
+   the suffix _per_second."
+  ([stats]
+   (render-openmetrics stats nil))
+  ([stats rates]
+   (let [sb (StringBuilder.)
+         numeric (into (sorted-map) (filter #(number? (val %)) stats))
+         latency-prefixes (into (sorted-set) (keep #(second (re-matches latency-stat-pattern (key %))) numeric))
+         latency-stat? (fn [k]
+                         (or (re-matches latency-stat-pattern k)
+                             (and (string/ends-with? k "-samples")
+                                  (contains? latency-prefixes (subs k 0 (- (count k) (count "-samples")))))))
+         family (fn [n type]
+                  (.append sb (str "# TYPE " n " " type "\n")))
+         sample (fn [n v]
+                  (.append sb (str n " " v "\n")))]
+     (doseq [[k v] numeric
+             :when (not (latency-stat? k))]
+       (let [n (metric-name k)]
+         (if (gauge-stat? k)
+           (do
+             (family n "gauge")
+             (sample n v))
+           (do
+             (family n "counter")
+             (sample (str n "_total") v)))))
+     (doseq [prefix latency-prefixes]
+       (let [n (str (metric-name prefix) "_seconds")]
+         (family n "summary")
+         (doseq [[p q] quantiles
+                 :let [v (numeric (str prefix "-" p "-ns"))]
+                 :when v]
+           (sample (str n "{quantile=\"" q "\"}") (ns->seconds v)))
+         (when-let [samples (numeric (str prefix "-samples"))]
+           (sample (str n "_count") samples))
+         (when-let [mx (numeric (str prefix "-max-ns"))]
+           (family (str n "_max") "gauge")
+           (sample (str n "_max") (ns->seconds mx)))))
+     (doseq [[k v] (into (sorted-map) rates)]
+       (let [n (str (metric-name k) "_per_second")]
+         (family n "gauge")
+         (sample n v)))
+     (.append sb "# EOF\n")
+     (str sb))))
+
+(defn start-metrics-server
+  "Starts an HTTP server on port that exposes the stats returned by stats-fn, e.g.,
+   #(core/get-stats cljnetpcap), in the OpenMetrics text format at path /metrics.
+   The stats are snapshotted and rendered every interval-ms milliseconds in a separate
+   thread such that scrapes only return the last rendered snapshot and do not access the
+   capture pipeline. Port 0 selects a free port.
+   The returned function supports :port, which returns the port the server listens on,
+   and :stop."
+  ([port stats-fn]
+   (start-metrics-server port stats-fn 1000))
+  ([port stats-fn interval-ms]
+   (let [snapshot (atom (.getBytes ^String (render-openmetrics {}) StandardCharsets/UTF_8))
+         prev-snapshot (atom nil)
+         render-fn (fn []
+                     (try
+                       (let [now (System/nanoTime)
+                             stats (stats-fn)
+                             [prev-time prev-stats] @prev-snapshot
+                             rates (when prev-stats
+                                     (stat-rates prev-stats stats (/ (- now (long prev-time)) 1000000.0)))]
+                         (reset! prev-snapshot [now stats])
+                         (reset! snapshot (.getBytes ^String (render-openmetrics stats rates) StandardCharsets/UTF_8)))
+                       (catch Exception e
+                         (.printStackTrace e))))
+         server (doto (HttpServer/create (InetSocketAddress. (int port)) 0)
+                  (.createContext "/metrics"
+                                  (reify HttpHandler
+                                    (handle [_ exchange]
+                                      (let [^bytes body @snapshot]
+                                        (with-open [^HttpExchange ex exchange]
+                                          (.add (.getResponseHeaders ex) "Content-Type" content-type)
+                                          (.sendResponseHeaders ex 200 (alength body))
+                                          (.write (.getResponseBody ex) body))))))
+                  (.start))
+         executor (utils/executor)]
+     (utils/run-repeat executor render-fn interval-ms)
+     (fn [k]
+       (condp = k
+         :port (.getPort (.getAddress server))
+         :stop (do
+                 (utils/shutdown executor)
+                 (.stop server 0))
+         nil)))))
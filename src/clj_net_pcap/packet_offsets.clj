@@ -30,9 +30,11 @@
 
 (def eth-dst eth-hdr-offset)
 (def eth-src (+ eth-hdr-offset 6))
+(def eth-type (+ eth-hdr-offset 12))
 (def ipv4-src (+ ipv4-hdr-offset 12))
 (def ipv4-dst (+ ipv4-hdr-offset 16))
 (def ipv4-id (+ ipv4-hdr-offset 4))
+(def ipv4-flags-frag-offset (+ ipv4-hdr-offset 6))
 (def ipv4-checksum (+ ipv4-hdr-offset 10))
 (def ipv4-ttl (+ ipv4-hdr-offset 8))
 (def ipv4-proto (+ ipv4-hdr-offset 9))
@@ -24,12 +24,16 @@
   #_{:clj-kondo/ignore [:use]}
   (:use clj-net-pcap.native)
   (:import (java.util ArrayList) 
-           (org.jnetpcap Pcap PcapBpfProgram PcapStat)))
+           (org.jnetpcap BulkByteBufferHandler BulkLayout DirectBulkByteBufferHandler DirectBulkByteBufferPool
+                         Pcap PcapBpfProgram PcapStat TpacketV3Ring)))
 
 
 (def ^:dynamic *buffer-size* (int (Math/pow 2 26)))
 (def ^:dynamic *flags* Pcap/MODE_PROMISCUOUS)
 (def ^:dynamic *snap-len* 0x00080)
+(def ^:dynamic *tpacket-block-size* (int (Math/pow 2 20)))
+(def ^:dynamic *tpacket-block-count* 64)
+(def ^:dynamic *tpacket-block-timeout-ms* 0)
 
 
 
@@ -133,6 +137,27 @@
       (utils/println-err errmsg)
       (throw (RuntimeException. errmsg)))))
 
+(defn fanout-mode-id
+  "Returns the org.jnetpcap.Pcap fanout mode for the keyword :hash, :cpu, or :round-robin."
+  [mode]
+  (condp = mode
+    :hash Pcap/FANOUT_HASH
+    :cpu Pcap/FANOUT_CPU
+    :round-robin Pcap/FANOUT_LB
+    (throw (IllegalArgumentException. (str "Unknown fanout mode: " mode)))))
+
+(defn set-fanout
+  "Joins the passed, already activated, Pcap instance into the Linux
+   PACKET_FANOUT group group-id with the given mode (:hash, :cpu, or :round-robin).
+   The kernel then distributes the captured packets among all Pcap instances of the group."
+  [^Pcap pcap group-id mode]
+  (let [err (StringBuilder.)]
+    (if (= (.setFanout pcap (int group-id) (int (fanout-mode-id mode)) err) Pcap/OK)
+      pcap
+      (let [errmsg (str "Error setting fanout group " group-id " with mode " mode ": " (str err))]
+        (utils/println-err errmsg)
+        (throw (RuntimeException. errmsg))))))
+
 (defn create-filter
   "Creates and compiles a filter given as String. Optionally the optimize flag
    and netmask can be passed. The default value for optimize is 1 and for 
@@ -158,67 +183,181 @@
       (utils/println-err errmsg)
       (throw (RuntimeException. errmsg)))))
 
+(defn tpacket-v3-ring?
+  "Returns true if the passed capture fn, e.g., as returned by
+   create-and-activate-tpacket-v3-ring, captures via a TPACKET_V3 ring instead of libpcap."
+  [pcap]
+  (instance? TpacketV3Ring (pcap)))
+
+(defn set-tpacket-v3-ring-filter
+  "Compiles the filter given as String and attaches it to the given org.jnetpcap.TpacketV3Ring."
+  [^TpacketV3Ring ring filter-string]
+  (let [err (StringBuilder.)]
+    (when (not= (.setFilter ring (str filter-string) 1 err) Pcap/OK)
+      (let [errmsg (str "Error setting tpacket v3 ring filter: " (str err))]
+        (utils/println-err errmsg)
+        (throw (RuntimeException. errmsg))))))
+
 (defn create-and-set-filter
   "Convenience function for creating and setting a filter in one step.
    For details see create-filter and set-filter."
   [pcap filter-string]
-  (let [f (create-filter (pcap) filter-string)]
-    (set-filter (pcap) f)))
+  (if (tpacket-v3-ring? pcap)
+    (set-tpacket-v3-ring-filter (pcap) filter-string)
+    (let [f (create-filter (pcap) filter-string)]
+      (set-filter (pcap) f))))
+
+(defn bulk-layout-id
+  "Returns the org.jnetpcap.BulkLayout id for the bulk layout keyword :v1 or :v2."
+  [layout]
+  (condp = layout
+    :v1 BulkLayout/V1
+    :v2 BulkLayout/V2
+    (throw (IllegalArgumentException. (str "Unknown bulk layout: " layout)))))
 
 (defn create-and-activate-online-pcap
   "Convenience function for creating and activating a Pcap instance in one step.
-   See create-online-pcap and activate-online-pcap for details."
-  [dev-name]
-  (let [pcap (create-online-pcap dev-name)
-        pcap-thread (ref nil)]
-    (activate-online-pcap pcap)
-    (fn
-      ([]
-        pcap)
-      ([k]
+   See create-online-pcap and activate-online-pcap for details.
+   Optionally, a map with :group-id and :mode can be passed as fanout for
+   joining the Pcap instance into a PACKET_FANOUT group, see set-fanout."
+  ([dev-name]
+   (create-and-activate-online-pcap dev-name nil))
+  ([dev-name fanout]
+   (let [pcap (create-online-pcap dev-name)
+         pcap-thread (ref nil)
+         bulk-pool (ref nil)]
+     (activate-online-pcap pcap)
+     (when fanout
+       (try
+         (set-fanout pcap (:group-id fanout) (:mode fanout))
+         (catch Exception e
+           (.close ^Pcap pcap)
+           (throw e))))
+     (fn
+       ([]
+         pcap)
+       ([k]
+         (condp = k
+           :stop (do 
+                   (println "Stopping online pcap.")
+                   (.breakloop pcap)
+                ;;; A capture loop that waits for a free buffer of an exhausted
+                ;;; pool would not terminate when the consumers already stopped
+                ;;; releasing buffers. Closing the pool ends such waits.
+                   (when-let [^DirectBulkByteBufferPool bp @bulk-pool]
+                     (.close bp))
+                ;;; The jNetPcap capture loop may still be active and process
+                ;;; at least one packet even after calling Pcap.breakloop().
+                ;;; To force the termination of the loop we inject a single dummy
+                ;;; packet. To ensure this packet is not filtered by some 
+                ;;; previously set filter the filter is explicitly set to accept
+                ;;; all packets. See also the jNetPcap docs for more information
+                ;;; about the behavior of Pcap.breakloop().
+                   (create-and-set-filter (fn [] pcap) "")
+                   (cond
+                     (and (utils/is-os? "freebsd") (= dev-name lo))
+                       (.inject pcap (byte-array (map byte (concat [2 0 0 0] (repeat 128 0)))))
+                     :else
+                       (.inject pcap (byte-array 128 (byte 0))))
+                   (.join @pcap-thread)
+                   (.close pcap)
+                   (dosync ref-set pcap-thread nil))
+           (throw (RuntimeException. (str "Unsupported operation for online pcap: " k)))))
+       ([k arg]
+         (condp = k
+           :send-bytes-packet (.sendPacket ^Pcap pcap ^bytes arg)
+           :start (let [run-fn (fn []
+                                 (println "Starting pcap loop...")
+                                 (.loop pcap Pcap/LOOP_INFINITE arg nil)
+                                 (println "Leaving pcap loop..."))]
+                    (dosync (ref-set pcap-thread (doto (Thread. run-fn) (.setName "PcapOnlineCaptureThread") (.setDaemon true) (.start)))))
+           (throw (RuntimeException. (str "Unsupported operation for online pcap: " k " argument: " arg)))))
+       ([k bulk-opts handler]
+         (condp = k
+           :start (let [snap-len *snap-len*
+                        {:keys [bulk-size bulk-bytes layout max-latency-us use-intermediate-buffer pool]
+                         :or {bulk-bytes 0 layout :v1 max-latency-us 0 use-intermediate-buffer true}} bulk-opts
+                        bulk-size (int bulk-size)
+                        bulk-bytes (int bulk-bytes)
+                        layout-id (int (bulk-layout-id layout))
+                        max-latency-us (long max-latency-us)
+                        run-fn (fn []
+                                 (println "Starting pcap loop in bulk operation. Bulksize:" bulk-size " Bulk-bytes:" bulk-bytes " Layout:" layout " Snap-len:" snap-len
+                                          " Max-latency (us):" max-latency-us " Pool:" pool)
+                                 (if use-intermediate-buffer
+                                   (.loop pcap Pcap/LOOP_INFINITE bulk-size bulk-bytes
+                                          snap-len layout-id true true max-latency-us ^BulkByteBufferHandler handler nil)
+                                   (.loop_direct pcap Pcap/LOOP_INFINITE bulk-size bulk-bytes
+                                          snap-len layout-id true max-latency-us ^DirectBulkByteBufferPool pool
+                                          ^DirectBulkByteBufferHandler handler nil))
+                                 (println "Leaving pcap loop..."))]
+                    (dosync
+                      (ref-set bulk-pool pool)
+                      (ref-set pcap-thread (doto (Thread. run-fn) (.setName "PcapOnlineCaptureThread") (.start)))))
+           (throw (RuntimeException. (str "Unsupported operation for online pcap: " k " arguments: " [bulk-opts handler])))))))))
+
+(defn create-and-activate-tpacket-v3-ring
+  "Creates a Linux TPACKET_V3 ring on dev-name as alternative to a libpcap based
+   online pcap, see create-and-activate-online-pcap.
+   The ring is configured via *tpacket-block-size*, *tpacket-block-count*,
+   *tpacket-block-timeout-ms*, *snap-len*, and *flags*.
+   Captured data is only emitted in bulk operation: each bulk is one block of
+   the ring as org.jnetpcap.DirectBulkByteBufferWrapper. Blocks are returned to
+   the kernel when the wrapper is released.
+   Optionally, a map with :group-id and :mode can be passed as fanout for
+   joining the ring into a PACKET_FANOUT group."
+  ([dev-name]
+   (create-and-activate-tpacket-v3-ring dev-name nil))
+  ([dev-name fanout]
+   (let [err (StringBuilder.)
+         _ (utils/println-err "Creating tpacket v3 ring with: device =" dev-name
+                              "; block size =" *tpacket-block-size*
+                              "; block count =" *tpacket-block-count*
+                              "; block timeout (ms) =" *tpacket-block-timeout-ms*
+                              "; snaplen =" *snap-len*)
+         ring (TpacketV3Ring/open dev-name (int *tpacket-block-size*) (int *tpacket-block-count*)
+                                  (int *tpacket-block-timeout-ms*) (int *snap-len*)
+                                  (= *flags* Pcap/MODE_PROMISCUOUS) err)
+         ring-thread (ref nil)]
+     (when (nil? ring)
+       (let [errmsg (str "An error occured while creating a tpacket v3 ring: " (str err))]
+         (utils/println-err errmsg)
+         (throw (RuntimeException. errmsg))))
+     (when fanout
+       (when (not= (.setFanout ring (int (:group-id fanout)) (int (fanout-mode-id (:mode fanout))) err) Pcap/OK)
+         (.close ring)
+         (let [errmsg (str "Error setting fanout group " (:group-id fanout) " with mode " (:mode fanout) ": " (str err))]
+           (utils/println-err errmsg)
+           (throw (RuntimeException. errmsg)))))
+     (fn
+       ([]
+        ring)
+       ([k]
         (condp = k
-          :stop (do 
-                  (println "Stopping online pcap.")
-                  (.breakloop pcap)
-               ;;; The jNetPcap capture loop may still be active and process
-               ;;; at least one packet even after calling Pcap.breakloop().
-               ;;; To force the termination of the loop we inject a single dummy
-               ;;; packet. To ensure this packet is not filtered by some 
-               ;;; previously set filter the filter is explicitly set to accept
-               ;;; all packets. See also the jNetPcap docs for more information
-               ;;; about the behavior of Pcap.breakloop().
-                  (create-and-set-filter (fn [] pcap) "")
-                  (cond
-                    (and (utils/is-os? "freebsd") (= dev-name lo))
-                      (.inject pcap (byte-array (map byte (concat [2 0 0 0] (repeat 128 0)))))
-                    :else
-                      (.inject pcap (byte-array 128 (byte 0))))
-                  (.join @pcap-thread)
-                  (.close pcap)
-                  (dosync ref-set pcap-thread nil))
-          (throw (RuntimeException. (str "Unsupported operation for online pcap: " k)))))
-      ([k arg]
+          :stop (do
+                  (println "Stopping tpacket v3 ring.")
+                  (.breakloop ring)
+                  (when-let [^Thread t @ring-thread]
+                    (.join t))
+                  ;;; The native ring is only unmapped once all blocks that
+                  ;;; were handed out were released.
+                  (.close ring)
+                  (dosync (ref-set ring-thread nil)))
+          (throw (RuntimeException. (str "Unsupported operation for tpacket v3 ring: " k)))))
+       ([k arg]
         (condp = k
-          :send-bytes-packet (.sendPacket ^Pcap pcap ^bytes arg)
-          :start (let [run-fn (fn []
-                                (println "Starting pcap loop...")
-                                (.loop pcap Pcap/LOOP_INFINITE arg nil)
-                                (println "Leaving pcap loop..."))]
-                   (dosync (ref-set pcap-thread (doto (Thread. run-fn) (.setName "PcapOnlineCaptureThread") (.setDaemon true) (.start)))))
-          (throw (RuntimeException. (str "Unsupported operation for online pcap: " k " argument: " arg)))))
-      ([k bulk-size use-intermediate-buffer handler]
+          :send-bytes-packet (.sendPacket ring ^bytes arg (StringBuilder.))
+          (throw (RuntimeException. (str "Unsupported operation for tpacket v3 ring: " k " argument: " arg)))))
+       ([k bulk-opts handler]
         (condp = k
-          :start (let [snap-len *snap-len*
-                       run-fn (fn []
-                                (println "Starting pcap loop in bulk operation. Bulksize:" bulk-size " Snap-len:" snap-len)
-                                (if use-intermediate-buffer
-                                  (.loop pcap Pcap/LOOP_INFINITE bulk-size 
-                                         snap-len true handler nil)
-                                  (.loop_direct pcap Pcap/LOOP_INFINITE bulk-size 
-                                         snap-len true handler nil))
-                                (println "Leaving pcap loop..."))]
-                   (dosync (ref-set pcap-thread (doto (Thread. run-fn) (.setName "PcapOnlineCaptureThread") (.start)))))
-          (throw (RuntimeException. (str "Unsupported operation for online pcap: " k " arguments: " [bulk-size use-intermediate-buffer handler]))))))))
+          :start (let [run-fn (fn []
+                                (println "Starting tpacket v3 ring loop. Block size:" (.getBlockSize ring)
+                                         " Block count:" (.getBlockCount ring))
+                                (.loop ring ^DirectBulkByteBufferHandler handler nil)
+                                (println "Leaving tpacket v3 ring loop..."))]
+                   (dosync
+                     (ref-set ring-thread (doto (Thread. run-fn) (.setName "TpacketV3CaptureThread") (.start)))))
+          (throw (RuntimeException. (str "Unsupported operation for tpacket v3 ring: " k " arguments: " [bulk-opts handler])))))))))
 
 (defn close-pcap
   "Closes the given Pcap instance."
@@ -227,15 +366,24 @@
 
 (defn create-stats-fn
   "Returns an fn that prints statistical data about a org.jnetpcap.Pcap instance.
-   Argument is the org.jnetpcap.Pcap instance."
+   Argument is the org.jnetpcap.Pcap instance.
+   For a TPACKET_V3 ring, the statistics of the ring are returned instead."
   [pcap]
-  (let [pcap-stats (PcapStat.)]
-    (fn []
-      (if (= 0 (.stats ^Pcap (pcap) pcap-stats))
-        {"recv" (.getRecv pcap-stats) 
-         "drop" (.getDrop pcap-stats) 
-         "ifdrop" (.getIfDrop pcap-stats)}
-        (utils/print-err-ln (.getErr pcap))))))
+  (if (tpacket-v3-ring? pcap)
+    (let [^TpacketV3Ring ring (pcap)]
+      (fn []
+        {"recv" (.getReceived ring)
+         "drop" (.getDropped ring)
+         "ifdrop" 0
+         "tpacket-freeze" (.getFreezeCount ring)
+         "tpacket-blocks-in-use" (.getBlocksInUse ring)}))
+    (let [pcap-stats (PcapStat.)]
+      (fn []
+        (if (= 0 (.stats ^Pcap (pcap) pcap-stats))
+          {"recv" (.getRecv pcap-stats) 
+           "drop" (.getDrop pcap-stats) 
+           "ifdrop" (.getIfDrop pcap-stats)}
+          (utils/print-err-ln (.getErr pcap)))))))
 
 (defn create-pcap-from-file
   "Create an offline org.jnetpcap.Pcap from a file."
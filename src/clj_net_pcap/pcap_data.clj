@@ -28,10 +28,10 @@
      [packet-offsets :as offsets]))
   (:import
     (java.io BufferedWriter IOException)
-    (java.nio ByteBuffer)
+    (java.nio ByteBuffer ByteOrder)
     (java.util ArrayList HashMap List Map)
-    (clj_net_pcap ByteArrayHelper Counter PacketHeaderDataBean PacketHeaderDataBeanIpv4UdpOnly PacketHeaderDataBeanWithIpv4Udp)
-    (org.jnetpcap PcapHeader)
+    (clj_net_pcap ByteArrayHelper PacketHeaderDataBean PacketHeaderDataBeanIpv4UdpOnly PacketHeaderDataBeanWithIpv4Udp StripedCounter)
+    (org.jnetpcap BulkLayout PcapHeader TpacketV3Ring)
     (org.jnetpcap.packet PcapPacket)
     (org.jnetpcap.packet.format FormatUtils)
     (org.jnetpcap.protocol.lan Ethernet)
@@ -583,7 +583,7 @@ user=>
   "No-op forwarder that counts how many times it was called.
    This is used for testing purposes."
   [bulk-size]
-  (let [cntr (Counter.)
+  (let [cntr (StripedCounter.)
         printer #(let [val (.value cntr)]
                    (when (>= val 0)
                      (println (* (.value cntr) bulk-size))))
@@ -595,7 +595,7 @@ user=>
   "No-op forwarder that periodically prints how many times it was called per second.
    This is used for testing purposes."
   [bulk-size]
-  (let [cntr (Counter.)
+  (let [cntr (StripedCounter.)
         delta-cntr (utils/delta-counter)
         time-tmp (ref (System/currentTimeMillis))
         pps-printer #(let [val (* bulk-size (.value cntr))]
@@ -676,22 +676,90 @@ user=>
     (.setUdpSrc (ByteArrayHelper/getInt16 ba (+ offset offsets/udp-src)))
     (.setUdpDst (ByteArrayHelper/getInt16 ba (+ offset offsets/udp-dst)))))
 
+(defn bulk-record-count
+  "Returns the number of packet records in the raw bulk data in bb.
+   Each record consists of a 16 byte header, in native byte order, followed by
+   the captured data. Only the caplen at offset 8 of each header is read for
+   skipping to the next record."
+  [^ByteBuffer bb]
+  (let [^ByteBuffer bb (.order (.duplicate bb) (ByteOrder/nativeOrder))
+        end (.limit bb)]
+    (loop [offset (.position bb)
+           cnt 0]
+      (if (< offset end)
+        (recur (+ offset 16 (.getInt bb (int (+ offset 8)))) (inc cnt))
+        cnt))))
+
 (defn process-packet-byte-buffer-bulk
+  "Process the records of a raw bulk in bb.
+   The extraction function f is called with the backing byte array of bb and the
+   offset of each record in the array. Only the records between the position and
+   the limit of bb are processed, e.g., for slices of a larger buffer."
   [f ^ByteBuffer bb]
   (when (.hasArray bb)
     (let [ba (.array bb)
+          base (+ (.arrayOffset bb) (.position bb))
+          end (+ (.arrayOffset bb) (.limit bb))
           r (ArrayList.)]
-      (loop [offset 0]
-        (.add r (f ba offset))
-        (let [new-offset (+ offset 16 (ByteArrayHelper/getIntBigEndian ba 8))]
-          (when (< new-offset (alength ba))
-            (recur new-offset))))
+      (loop [offset base]
+        (when (< offset end)
+          (.add r (f ba offset))
+          (recur (+ offset 16 (ByteArrayHelper/getIntBigEndian ba (+ offset 8))))))
       r)))
 
+(defn bulk-v2?
+  "Returns true if bb contains a bulk in the self-describing layout v2.
+   See org.jnetpcap.BulkLayout for a description of the layout."
+  [^ByteBuffer bb]
+  (BulkLayout/isV2 bb))
+
+(defn bulk-v2-record-count
+  "Returns the number of packet records in the bulk in layout v2 in bb.
+   The count is read from the bulk header."
+  [^ByteBuffer bb]
+  (BulkLayout/recordCount (BulkLayout/v2View bb)))
+
+(defn bulk-v2-record-offset
+  "Returns the offset of record i relative to the start of the bulk in layout v2 in bb.
+   The offset is looked up in the offset table of the bulk in constant time."
+  [^ByteBuffer bb i]
+  (BulkLayout/recordOffset (BulkLayout/v2View bb) (int i)))
+
+(defn process-packet-byte-buffer-bulk-v2
+  "Process the records of a bulk in layout v2.
+   Like for process-packet-byte-buffer-bulk, the extraction function is called
+   with the backing byte array of bb and the offset of each record.
+   As the record header fields are stored in the byte order of the bulk,
+   little-endian-fn is used for little endian bulks and big-endian-fn for big
+   endian bulks. Please note that the -be extraction functions, e.g.,
+   packet-byte-array-extract-map-ipv4-udp-be, read little endian header fields.
+   Optionally, only the records from index start (inclusive) to end (exclusive)
+   are processed. This allows, e.g., processing parts of a bulk in parallel."
+  ([f bb]
+   (process-packet-byte-buffer-bulk-v2 f f bb))
+  ([little-endian-fn big-endian-fn ^ByteBuffer bb]
+   (when (.hasArray bb)
+     (process-packet-byte-buffer-bulk-v2 little-endian-fn big-endian-fn bb 0 (bulk-v2-record-count bb))))
+  ([little-endian-fn big-endian-fn ^ByteBuffer bb start end]
+   (when (.hasArray bb)
+     (let [ba (.array bb)
+           base (+ (.arrayOffset bb) (.position bb))
+           view (BulkLayout/v2View bb)
+           f (if (= ByteOrder/BIG_ENDIAN (.order view)) big-endian-fn little-endian-fn)
+           r (ArrayList. (int (- end start)))]
+       (loop [i (int start)]
+         (when (< i end)
+           (.add r (f ba (+ base (BulkLayout/recordOffset view i))))
+           (recur (inc i))))
+       r))))
+
 (defn process-packet-byte-buffer
+  "Process the raw record in bb.
+   The extraction function f is called with the backing byte array of bb and the
+   offset of the record in the array, which is not 0 for slices, e.g., of slabs."
   [f ^ByteBuffer bb]
   (when (.hasArray bb)
-    (f (.array bb) 0)))
+    (f (.array bb) (+ (.arrayOffset bb) (.position bb)))))
 
 (defn packet-byte-buffer-extract-map-ipv4-udp-single
   [^ByteBuffer bb]
@@ -709,6 +777,72 @@ user=>
   [bb]
   (process-packet-byte-buffer-bulk packet-byte-array-extract-bean-ipv4-udp-be bb))
 
+(defn packet-byte-buffer-extract-map-ipv4-udp-bulk-v2
+  [bb]
+  (process-packet-byte-buffer-bulk-v2
+    packet-byte-array-extract-map-ipv4-udp-be packet-byte-array-extract-map-ipv4-udp bb))
+
+(defn packet-byte-buffer-extract-bean-ipv4-udp-bulk-v2
+  [bb]
+  (process-packet-byte-buffer-bulk-v2
+    packet-byte-array-extract-bean-ipv4-udp-be packet-byte-array-extract-bean-ipv4-udp bb))
+
+(defn tpacket-v3-block-record-count
+  "Returns the number of packets in the TPACKET_V3 block in bb.
+   The count is read from the block descriptor, see org.jnetpcap.TpacketV3Ring."
+  [^ByteBuffer bb]
+  (TpacketV3Ring/blockPacketCount bb))
+
+(defn process-tpacket-v3-block
+  "Process the packets of a TPACKET_V3 block as emitted by the tpacket v3 capture engine.
+   f is called with bb and the offset of the tpacket3_hdr of each packet relative to the position of bb.
+   The packet data can be accessed in place via the accessors in org.jnetpcap.TpacketV3Ring,
+   e.g., TpacketV3Ring/packetDataOffset and TpacketV3Ring/packetCaplen."
+  [f ^ByteBuffer bb]
+  (let [cnt (TpacketV3Ring/blockPacketCount bb)
+        r (ArrayList. (int cnt))]
+    (loop [i 0
+           offset (TpacketV3Ring/firstPacketOffset bb)]
+      (when (< i cnt)
+        (.add r (f bb offset))
+        (recur (inc i) (TpacketV3Ring/nextPacketOffset bb offset))))
+    r))
+
+(defn tpacket-v3-block->bulk
+  "Copies the packets of the TPACKET_V3 block in bb into a heap ByteBuffer in bulk layout v1.
+   This allows using the existing bulk extraction functions, e.g.,
+   packet-byte-buffer-extract-map-ipv4-udp-bulk, at the cost of copying the data."
+  ^ByteBuffer [^ByteBuffer bb]
+  (let [cnt (TpacketV3Ring/blockPacketCount bb)
+        size (loop [i 0
+                    offset (TpacketV3Ring/firstPacketOffset bb)
+                    size 0]
+               (if (< i cnt)
+                 (recur (inc i) (TpacketV3Ring/nextPacketOffset bb offset)
+                        (+ size 16 (TpacketV3Ring/packetCaplen bb offset)))
+                 size))
+        ^ByteBuffer src (.duplicate bb)
+        out (.order (ByteBuffer/allocate size) (ByteOrder/nativeOrder))
+        base (.position bb)]
+    (loop [i 0
+           offset (TpacketV3Ring/firstPacketOffset bb)]
+      (when (< i cnt)
+        (let [caplen (TpacketV3Ring/packetCaplen bb offset)
+              ts (TpacketV3Ring/packetTimestampNanos bb offset)
+              data (+ base (TpacketV3Ring/packetDataOffset bb offset))]
+          (doto out
+            (.putInt (int (quot ts 1000000000)))
+            (.putInt (int (quot (rem ts 1000000000) 1000)))
+            (.putInt (int caplen))
+            (.putInt (int (TpacketV3Ring/packetLen bb offset))))
+          (.position src (int data))
+          (.limit src (int (+ data caplen)))
+          (.put out src)
+          (.limit src (.capacity src))
+          (recur (inc i) (TpacketV3Ring/nextPacketOffset bb offset)))))
+    (.flip out)
+    out))
+
 (defn create-file-out-forwarder
   ([out-file]
     (create-file-out-forwarder out-file false))
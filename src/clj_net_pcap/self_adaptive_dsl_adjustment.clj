@@ -17,7 +17,8 @@
   ^{:author "Ruediger Gad",
     :doc "A simple proof of concept for adjusting DSL statements with self-adaptivity."}
   clj-net-pcap.self-adaptive-dsl-adjustment
-  (:require (clj-assorted-utils [util :as utils])))
+  (:require (clj-assorted-utils [util :as utils]))
+  (:import (clj_net_pcap JfrEvents)))
 
 (defn create-stat-delta-counter
   []
@@ -92,6 +93,7 @@
         (fn [_ _ old-state new-state]
           (println "self-adaptivity-controller state changed from" old-state "to" new-state)
           (reset! dynamic-dsl (get-in @state-map [new-state :dsl]))
+          (JfrEvents/selfAdaptationStateChanged old-state new-state (str @dynamic-dsl))
           (reset-inact)))
       (fn
         [stat-data]
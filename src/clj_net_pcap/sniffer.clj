@@ -19,9 +19,13 @@
           sniffer. Please see the simple data flow diagram in the documentation
           for more details about the data flow and interaction."}
   clj-net-pcap.sniffer
+  (:require
+    (clj-net-pcap [packet-offsets :as offsets]))
   (:import
-    (clj_net_pcap ProcessingLoop)
-    (java.util.concurrent BlockingQueue)
+    (clj_net_pcap EndOfStream SpscRingBuffer StageRunner StageRunner$Stage)
+    (java.nio ByteBuffer)
+    (java.util ArrayList)
+    (java.util.concurrent BlockingQueue TimeUnit)
     (org.jnetpcap BulkByteBufferHandler ByteBufferHandler DirectBulkByteBufferHandler)
     (org.jnetpcap.packet PcapPacket)))
 
@@ -57,6 +61,20 @@
    first is the received PcapPacket and the second is the user-data passed to
    create-and-start-sniffer that got forwarded via the Pcap sniffing loop.
    If no user data is passed nil is used as user data.
+   In bulk mode, the capture is configured via the bulk-opts map:
+   :bulk-size is the number of packets per bulk.
+   :bulk-bytes, if larger than zero, bounds bulks by bytes instead. Packets are
+   packed by their actual capture length and a bulk is delivered when it may
+   not fit another packet or when it holds :bulk-size packets.
+   :max-latency-us limits how long, in microseconds, a partially filled bulk is
+   held before it is handed to handler-fn. Values <= 0 disable this.
+   :layout selects the bulk layout: :v1 (default) or the self-describing :v2,
+   see org.jnetpcap.BulkLayout.
+   :use-intermediate-buffer selects if bulks are copied via an intermediate
+   buffer (default true).
+   :pool is an optional org.jnetpcap.DirectBulkByteBufferPool from which buffers
+   are taken when no intermediate buffer is used. Buffers taken from a pool
+   have to be released via DirectBulkByteBufferWrapper.release().
    Please note that the sniffer must be explicitly stopped using the 
    stop-sniffer function. Stopping the sniffer also takes care of closing pcap."
   ([pcap handler-fn]
@@ -70,15 +88,18 @@
      (pcap :start packet-handler)
      (fn [k]
        (pcap k))))
-  ([pcap bulk-size use-intermediate-buffer handler-fn user-data]
-   (let [packet-handler (if use-intermediate-buffer
+  ([pcap bulk-opts handler-fn user-data]
+   (let [packet-handler (if (:use-intermediate-buffer bulk-opts true)
                           (proxy [BulkByteBufferHandler] []
                             (nextPacket [buf u] (handler-fn buf u)))
                           (proxy [DirectBulkByteBufferHandler] []
                             (nextPacket [buf u] (handler-fn buf u))))]
-     (pcap :start bulk-size use-intermediate-buffer packet-handler)
+     (pcap :start bulk-opts packet-handler)
      (fn [k]
-       (pcap k)))))
+       (pcap k))))
+  ([pcap bulk-size use-intermediate-buffer handler-fn user-data]
+   (create-and-start-sniffer pcap {:bulk-size bulk-size :use-intermediate-buffer use-intermediate-buffer}
+                             handler-fn user-data)))
 
 (defn stop-sniffer
   "Convenience function for stopping a sniffer that has been created with 
@@ -86,6 +107,88 @@
   [sniffer]
   (sniffer :stop))
 
+(def forwarder-batch-size 256)
+
+(def default-stage-runner (StageRunner/dedicated))
+
+(defn start-stage
+  "Starts a pipeline stage named stage-name with the clj_net_pcap.StageRunner
+   stage-runner. step-fn processes the next element and may block until one is
+   available. poll-fn processes the next element without blocking and returns
+   false if no element was available.
+   Returns the started clj_net_pcap.StageRunner$Stage."
+  [^StageRunner stage-runner ^String stage-name step-fn poll-fn]
+  (.start stage-runner stage-name step-fn poll-fn))
+
+(defn start-queue-stage
+  "Starts a pipeline stage with start-stage that calls f with each element
+   taken from queue."
+  [stage-runner stage-name ^BlockingQueue queue f]
+  (start-stage stage-runner stage-name
+               #(f (.take queue))
+               #(if-let [obj (.poll queue)]
+                  (do
+                    (f obj)
+                    true)
+                  false)))
+
+(defn stop-stage
+  "Stops the given clj_net_pcap.StageRunner$Stage, if not nil."
+  [^StageRunner$Stage stage]
+  (when stage
+    (.stop stage)))
+
+(defn- guard-stage-fn
+  "Wraps f such that exceptions are printed while running is true and only
+   rethrown, which ends the stage, if forward-exceptions is true.
+   Exceptions after running was set to false, e.g., the interrupt of a stage
+   that is stopped, are ignored."
+  [f running forward-exceptions]
+  (fn []
+    (try
+      (f)
+      (catch Exception e
+        ;;; Only print the exception if we still should be running. 
+        ;;; If we get this exception when @running is already
+        ;;; false then we ignore it.
+        (when @running
+          (.printStackTrace e))
+        (when (and @running forward-exceptions)
+          (throw e))))))
+
+(defn- start-forwarding-loop
+  "Starts a stage that calls f for each object taken from queue."
+  [^BlockingQueue queue f forward-exceptions thread-name stage-runner]
+  (let [running (ref true)
+        batch (object-array forwarder-batch-size)
+        take-fn (if (instance? SpscRingBuffer queue)
+                  (fn []
+                    (let [n (.takeBatch ^SpscRingBuffer queue batch 0 forwarder-batch-size)]
+                      (loop [i 0]
+                        (when (< i n)
+                          (let [obj (aget batch i)]
+                            (aset batch i nil)
+                            (f obj))
+                          (recur (inc i))))))
+                  (fn []
+                    (let [obj (.take queue)]
+                      (when obj
+                        (f obj)))))
+        poll-fn (fn []
+                  (if-let [obj (.poll queue)]
+                    (do
+                      (f obj)
+                      true)
+                    false))]
+    (let [stage (start-stage stage-runner thread-name
+                             (guard-stage-fn take-fn running forward-exceptions)
+                             (guard-stage-fn poll-fn running forward-exceptions))]
+      (fn [k]
+        (cond
+          (= k :stop) (do
+                        (dosync (ref-set running false))
+                        (stop-stage stage)))))))
+
 (defn create-and-start-forwarder
   "Creates a thread in which the actual processing of the received packets is
    supposed to happen. 
@@ -93,31 +196,213 @@
    java.util.concurrent.BlockingQueue and executes forwarder-fn for each packet
    taken from the queue passing the packet instance to forwarder-fn.
    When no packets are in the queue the execution of forwarder-fn blocks until
-   new packets are available for being processed."
-  [^BlockingQueue queue forwarder-fn forward-exceptions]
-  (let [running (ref true)
-        run-fn (fn [] (try
-                        (let [obj (.take queue)]
-                          (when obj
-                            (forwarder-fn obj)))
-                        (catch Exception e
-                          ;;; Only print the exception if we still should be running. 
-                          ;;; If we get this exception when @running is already
-                          ;;; false then we ignore it.
-                          (when @running
-                            (.printStackTrace e))
-                          (when forward-exceptions
-                            (throw e)))))
-        forwarder-thread (doto 
-                           (ProcessingLoop. run-fn) 
-                           (.setName "ForwarderThread") 
-                           (.setDaemon true) 
-                           (.start))]
-    (fn [k]
-      (cond
-        (= k :stop) (dosync (ref-set running false))))))
+   new packets are available for being processed.
+   If queue is a clj_net_pcap.SpscRingBuffer, all available packets are taken
+   from the queue at once.
+   A clj_net_pcap.EndOfStream marker is not passed to forwarder-fn but
+   completed once all packets before it were processed.
+   The thread is named thread-name, by default \"ForwarderThread\".
+   The forwarder is executed with the clj_net_pcap.StageRunner stage-runner,
+   by default default-stage-runner, which uses a dedicated thread."
+  ([queue forwarder-fn forward-exceptions]
+   (create-and-start-forwarder queue forwarder-fn forward-exceptions "ForwarderThread"))
+  ([queue forwarder-fn forward-exceptions thread-name]
+   (create-and-start-forwarder queue forwarder-fn forward-exceptions thread-name default-stage-runner))
+  ([^BlockingQueue queue forwarder-fn forward-exceptions thread-name stage-runner]
+   (start-forwarding-loop
+     queue
+     (fn [obj]
+       (if (instance? EndOfStream obj)
+         (.arrive ^EndOfStream obj)
+         (forwarder-fn obj)))
+     forward-exceptions
+     thread-name
+     stage-runner)))
+
+(defn create-and-start-batch-forwarder
+  "Like create-and-start-forwarder but forwarder-fn is called with a
+   java.util.List of all packets that are available in the queue instead of
+   once per packet. This amortizes the costs of taking packets from the queue
+   and of calling forwarder-fn.
+   A batch holds at most max-batch-size packets. If max-wait-ms is larger
+   than zero, after the first packet of a batch was taken, it is waited up
+   to max-wait-ms for further packets to fill the batch. As the stages of a
+   clj_net_pcap.StageRunner/EXECUTOR runner must not wait for packets,
+   max-wait-ms is ignored for these."
+  ([queue forwarder-fn forward-exceptions max-batch-size max-wait-ms]
+   (create-and-start-batch-forwarder queue forwarder-fn forward-exceptions "ForwarderThread" max-batch-size max-wait-ms))
+  ([queue forwarder-fn forward-exceptions thread-name max-batch-size max-wait-ms]
+   (create-and-start-batch-forwarder queue forwarder-fn forward-exceptions thread-name max-batch-size max-wait-ms
+                                     default-stage-runner))
+  ([^BlockingQueue queue forwarder-fn forward-exceptions thread-name max-batch-size max-wait-ms stage-runner]
+   (let [running (ref true)
+         max-batch-size (int max-batch-size)
+         max-wait-ns (* 1000000 (long max-wait-ms))
+         fill-batch (fn [^ArrayList batch]
+                      (.drainTo queue batch (- max-batch-size (.size batch)))
+                      (when (> max-wait-ns 0)
+                        (let [deadline (+ (System/nanoTime) max-wait-ns)]
+                          (loop []
+                            (let [remaining (- deadline (System/nanoTime))]
+                              (when (and (< (.size batch) max-batch-size) (> remaining 0))
+                                (when-let [obj (.poll queue remaining TimeUnit/NANOSECONDS)]
+                                  (.add batch obj)
+                                  (.drainTo queue batch (- max-batch-size (.size batch)))
+                                  (recur))))))))
+         forward-batch (fn [^ArrayList batch]
+                         ;;; The end of stream marker is always the last element.
+                         (let [last-idx (int (dec (.size batch)))
+                               eos (when (instance? EndOfStream (.get batch last-idx))
+                                     (.remove batch last-idx))]
+                           (when (not (.isEmpty batch))
+                             (forwarder-fn batch))
+                           (when eos
+                             (.arrive ^EndOfStream eos))))
+         take-fn (fn []
+                   (let [obj (.take queue)
+                         ;;; A new list is used for each batch as forwarder-fn may keep it.
+                         batch (doto (ArrayList. (min max-batch-size (inc (.size queue))))
+                                 (.add obj))]
+                     (fill-batch batch)
+                     (forward-batch batch)))
+         poll-fn (fn []
+                   (let [batch (ArrayList.)]
+                     (.drainTo queue batch max-batch-size)
+                     (if (.isEmpty batch)
+                       false
+                       (do
+                         (forward-batch batch)
+                         true))))]
+     (let [stage (start-stage stage-runner thread-name
+                              (guard-stage-fn take-fn running forward-exceptions)
+                              (guard-stage-fn poll-fn running forward-exceptions))]
+       (fn [k]
+         (cond
+           (= k :stop) (do
+                         (dosync (ref-set running false))
+                         (stop-stage stage))))))))
+
+(defn- u8 ^long [^ByteBuffer buf ^long idx]
+  (bit-and (long (.get buf (int idx))) 0xff))
+
+(defn- u16 ^long [^ByteBuffer buf ^long idx]
+  (bit-or (bit-shift-left (u8 buf idx) 8) (u8 buf (inc idx))))
+
+(defn- u32 ^long [^ByteBuffer buf ^long idx]
+  (bit-or (bit-shift-left (u16 buf idx) 16) (u16 buf (+ idx 2))))
+
+(defn- mix-hash
+  "The 64 bit finalizer of MurmurHash3."
+  ^long [^long h]
+  (let [h (bit-xor h (unsigned-bit-shift-right h 33))
+        h (unchecked-multiply h -49064778989728563)
+        h (bit-xor h (unsigned-bit-shift-right h 33))
+        h (unchecked-multiply h -4265267296055464877)]
+    (bit-xor h (unsigned-bit-shift-right h 33))))
+
+(defn- symmetric-hash
+  ^long [^long a ^long b ^long c]
+  (mix-hash (unchecked-add (unchecked-multiply (unchecked-add (unchecked-multiply (min a b) 31) (max a b)) 31) c)))
+
+(defn flow-hash
+  "Calculates the hash of the flow of a packet straight from its raw bytes.
+   The packet data in buf starts at index base and includes the pcap header,
+   i.e., the offsets in clj-net-pcap.packet-offsets are relative to base.
+   For IPv4 packets, the 5-tuple of protocol, addresses, and, for TCP and UDP,
+   ports is hashed. The ports are omitted for fragments as only the first
+   fragment holds them. For other packets, the Ethernet addresses are hashed.
+   The hash is symmetric such that both directions of a connection get the
+   same hash. Packets that are too short for the Ethernet header get the hash 0."
+  ^long [^ByteBuffer buf ^long base]
+  (let [limit (.limit buf)]
+    (cond
+      (> (+ base offsets/eth-type 2) limit) 0
+      (and (= 0x0800 (u16 buf (+ base offsets/eth-type)))
+           (<= (+ base offsets/ipv4-hdr-offset offsets/ipv4-hdr-len) limit))
+        (let [proto (u8 buf (+ base offsets/ipv4-proto))
+              src (u32 buf (+ base offsets/ipv4-src))
+              dst (u32 buf (+ base offsets/ipv4-dst))
+              l4 (+ base offsets/ipv4-hdr-offset (* 4 (bit-and (u8 buf (+ base offsets/ipv4-version)) 0x0f)))
+              ports (and (or (= proto 6) (= proto 17))
+                         (zero? (bit-and (u16 buf (+ base offsets/ipv4-flags-frag-offset)) 0x3fff))
+                         (<= (+ l4 4) limit))
+              src-port (if ports (u16 buf l4) 0)
+              dst-port (if ports (u16 buf (+ l4 2)) 0)]
+          (symmetric-hash (bit-or (bit-shift-left src 16) src-port)
+                          (bit-or (bit-shift-left dst 16) dst-port)
+                          proto))
+      :else (symmetric-hash (bit-or (bit-shift-left (u32 buf (+ base offsets/eth-src)) 16) (u16 buf (+ base offsets/eth-src 4)))
+                            (bit-or (bit-shift-left (u32 buf (+ base offsets/eth-dst)) 16) (u16 buf (+ base offsets/eth-dst 4)))
+                            0))))
+
+;;; Ethernet header, IPv4 header with options, and ports
+(def ^:private flow-hash-max-data-len (+ offsets/eth-hdr-len 60 4))
+
+(defn packet-flow-hash
+  "Returns the flow-hash of a packet as passed to the forwarder-fn.
+   Supported are ByteBuffers and byte arrays that hold a single packet with
+   pcap header, as emitted for raw data, and PcapPackets."
+  ^long [pkt]
+  (cond
+    (instance? ByteBuffer pkt) (flow-hash pkt (.position ^ByteBuffer pkt))
+    (bytes? pkt) (flow-hash (ByteBuffer/wrap ^bytes pkt) 0)
+    (instance? PcapPacket pkt) (let [^PcapPacket p pkt
+                                     data (.getByteArray p 0 (int (min (.size p) flow-hash-max-data-len)))]
+                                 ;;; PcapPacket data does not include the pcap header.
+                                 (flow-hash (ByteBuffer/wrap data) (- offsets/pcap-hdr-len)))
+    :else (throw (IllegalArgumentException. (str "Cannot calculate flow hash of: " (type pkt))))))
+
+(defn create-and-start-sharded-forwarder
+  "Creates a forwarder that distributes the packets taken from queue to one
+   forwarder thread per queue in shard-queues.
+   The shard of a packet is determined by the long returned by
+   (shard-key-fn packet), e.g., packet-flow-hash. Packets with equal keys are
+   always processed by the same forwarder thread. Thus, state that is only
+   accessed per key, e.g., per flow, can be kept without synchronization.
+   forwarder-fn is called from all forwarder threads concurrently.
+   The forwarder threads are started with start-forwarder-fn, which takes
+   the same arguments as the four argument arity of create-and-start-forwarder,
+   and defaults to create-and-start-forwarder.
+   A clj_net_pcap.EndOfStream marker is handed to all forwarder threads and
+   completed when the last of them reached it.
+   The dispatcher is executed with the clj_net_pcap.StageRunner stage-runner,
+   by default default-stage-runner."
+  ([queue shard-queues forwarder-fn shard-key-fn forward-exceptions]
+   (create-and-start-sharded-forwarder queue shard-queues forwarder-fn shard-key-fn forward-exceptions
+                                       create-and-start-forwarder))
+  ([queue shard-queues forwarder-fn shard-key-fn forward-exceptions start-forwarder-fn]
+   (create-and-start-sharded-forwarder queue shard-queues forwarder-fn shard-key-fn forward-exceptions
+                                       start-forwarder-fn default-stage-runner))
+  ([^BlockingQueue queue shard-queues forwarder-fn shard-key-fn forward-exceptions start-forwarder-fn stage-runner]
+   (let [shard-queues (vec shard-queues)
+         shard-count (long (count shard-queues))
+         forwarders (doall
+                      (map-indexed
+                        (fn [idx q]
+                          (start-forwarder-fn q forwarder-fn forward-exceptions (str "ForwarderThread-" idx)))
+                        shard-queues))
+         dispatcher (start-forwarding-loop
+                      queue
+                      (fn [pkt]
+                        (if (instance? EndOfStream pkt)
+                          (do
+                            (.fork ^EndOfStream pkt (int shard-count))
+                            (doseq [q shard-queues]
+                              (StageRunner/put q pkt)))
+                          (StageRunner/put (shard-queues (int (Math/floorMod (long (shard-key-fn pkt)) shard-count)))
+                                           pkt)))
+                      forward-exceptions
+                      "ForwarderDispatcher"
+                      stage-runner)]
+     (fn [k]
+       (cond
+         (= k :stop) (doseq [forwarder (cons dispatcher forwarders)]
+                       (forwarder :stop)))))))
 
 (defn stop-forwarder
-  "Stops the given forwarder."
+  "Stops the given forwarder.
+   The stages of the forwarder are stopped, e.g., their threads are interrupted
+   or their executor tasks are not resubmitted anymore. Packets that are still
+   queued are not forwarded anymore."
   [forwarder]
   (forwarder :stop))
@@ -21,7 +21,19 @@
    (clojure [test :as test])
    (clj-assorted-utils [util :as utils])
    (clj-net-pcap [core :as core])
-   (clj-net-pcap [pcap :as pcap])))
+   (clj-net-pcap [pcap :as pcap])
+   (clj-net-pcap [sniffer :as sniffer]))
+  (:import (clj_net_pcap Counter CountingTransferQueue EndOfStream JfrEvents JfrEvents$DropBurstTracker LatencyHistogram OverloadPolicy PcapPacketPool PcapPacketWrapper SlabAllocator SpillFile SpscRingBuffer
+                         StageCost StageLatency StageRunner StripedCounter)
+           (java.io File)
+           (java.time Duration)
+           (java.nio ByteBuffer)
+           (java.util.concurrent ArrayBlockingQueue LinkedTransferQueue TimeUnit)
+           (jdk.jfr Recording)
+           (jdk.jfr.consumer RecordedEvent RecordingFile)
+           (org.jnetpcap PcapHeader)
+           (org.jnetpcap.packet PcapPacket)
+           (org.jnetpcap.protocol.network Ip4)))
 
 (test/deftest cljnetpcap-test
   (let [was-run (utils/prepare-flag)
@@ -98,3 +110,866 @@
         cljnetpcap (core/create-and-start-online-cljnetpcap forwarder-fn device filter-expression)]
     (test/is (map? (core/get-stats cljnetpcap)))
     (core/stop-cljnetpcap  cljnetpcap)))
+
+(test/deftest test-merge-stats
+  (test/is (= {"recv" 3 "drop" 1 "out-queued" 7}
+              (core/merge-stats [{"recv" 1 "drop" 0 "out-queued" 5} {"recv" 2 "drop" 1 "out-queued" 2}])))
+  (test/is (= {"recv" 1} (core/merge-stats [{"recv" 1} nil])))
+  (test/is (= {"out-queued" 3 "forwarder-queued-p99-ns" 20}
+              (core/merge-stats [{"out-queued" 1 "forwarder-queued-p99-ns" 20} {"out-queued" 2 "forwarder-queued-p99-ns" 10}]))))
+
+(test/deftest test-combine-cljnetpcaps
+  (let [calls (ref [])
+        create-fake (fn [id]
+                      (fn
+                        ([k]
+                         (dosync (alter calls conj [id k]))
+                         (condp = k
+                           :get-stats {"recv" id}
+                           :get-filters [id]
+                           nil))
+                        ([k arg]
+                         (dosync (alter calls conj [id k arg])))))
+        combined (core/combine-cljnetpcaps [(create-fake 1) (create-fake 2)])]
+    (test/is (= {"recv" 3 "fanout-count" 2} (core/get-stats combined)))
+    (test/is (= [1] (core/get-filters combined)))
+    (dosync (ref-set calls []))
+    (core/add-filter combined "udp")
+    (combined :send-bytes-packet :pkt)
+    (core/stop-cljnetpcap combined)
+    (test/is (= [[1 :add-filter "udp"] [2 :add-filter "udp"]
+                 [1 :send-bytes-packet :pkt]
+                 [1 :stop] [2 :stop]]
+                @calls))))
+
+(test/deftest test-create-queue
+  (test/is (instance? LinkedTransferQueue (core/create-queue true)))
+  (test/is (instance? ArrayBlockingQueue (core/create-queue false)))
+  (binding [core/*queue-type* :ring-buffer
+            core/*queue-size* 1000
+            core/*queue-wait-strategy* :yield]
+    (let [^SpscRingBuffer q (core/create-queue true)]
+      (test/is (instance? SpscRingBuffer q))
+      (test/is (= 1024 (.capacity q)))
+      (test/is (= SpscRingBuffer/YIELD (.getWaitStrategy q)))))
+  (test/is (thrown? IllegalArgumentException (binding [core/*queue-type* :foo] (core/create-queue true))))
+  (test/is (thrown? IllegalArgumentException (core/queue-wait-strategy-id :foo))))
+
+(test/deftest test-spsc-ring-buffer-offer-poll
+  (let [q (SpscRingBuffer. 3 SpscRingBuffer/BLOCK)]
+    (test/is (= 4 (.capacity q)))
+    (test/is (nil? (.poll q)))
+    (test/is (every? true? (map #(.offer q %) [1 2 3 4])))
+    (test/is (false? (.offer q 5)))
+    (test/is (= 4 (.size q)))
+    (test/is (= 0 (.remainingCapacity q)))
+    (test/is (= 1 (.peek q)))
+    (test/is (= [1 2] [(.poll q) (.take q)]))
+    (test/is (.offer q 5))
+    (test/is (= [3 4 5] (repeatedly 3 #(.poll q))))
+    (test/is (.isEmpty q))))
+
+(test/deftest test-spsc-ring-buffer-batch
+  (let [q (SpscRingBuffer. 8 SpscRingBuffer/BUSY_SPIN)
+        dst (object-array 8)]
+    (test/is (= 3 (.claim q 3)))
+    (doseq [i (range 3)]
+      (.set q (int i) (* 10 i)))
+    (test/is (zero? (.size q)))
+    (.publish q)
+    (test/is (= 3 (.size q)))
+    (test/is (thrown? IndexOutOfBoundsException (.set q 0 1)))
+    (test/is (= 5 (.offerBatch q (object-array (range 100 110)) 2 7)))
+    (test/is (= 8 (.size q)))
+    (test/is (= 0 (.offerBatch q (object-array [1]) 0 1)))
+    (test/is (= 6 (.drainTo q dst 2 6)))
+    (test/is (= [nil nil 0 10 20 102 103 104] (vec dst)))
+    (test/is (= 2 (.takeBatch q dst 0 8)))
+    (test/is (= [105 106] (take 2 dst)))))
+
+(test/deftest test-spsc-ring-buffer-iterator
+  (let [q (SpscRingBuffer. 4 SpscRingBuffer/BLOCK)]
+    (test/is (empty? (seq q)))
+    (doseq [i [1 2 3]]
+      (.offer q i))
+    (.poll q)
+    (.offer q 4)
+    (.offer q 5)
+    (test/is (= [2 3 4 5] (seq q) (vec (.toArray q))))
+    (test/is (.contains q 4))
+    (test/is (not (.contains q 1)))
+    (test/is (thrown? UnsupportedOperationException (.remove q 3)))
+    (let [it (.iterator q)]
+      (.poll q)
+      (test/is (= [3 4 5] (iterator-seq it))))))
+
+(test/deftest test-spsc-ring-buffer-try-transfer-timeout
+  (doseq [wait-strategy [SpscRingBuffer/BLOCK SpscRingBuffer/YIELD SpscRingBuffer/BUSY_SPIN]]
+    (let [q (SpscRingBuffer. 4 wait-strategy)
+          start (System/nanoTime)]
+      (test/is (false? (.tryTransfer q 1 50 TimeUnit/MILLISECONDS)))
+      (test/is (<= 50000000 (- (System/nanoTime) start)))
+      (test/is (.isEmpty q))
+      (let [consumer (future (.take q))]
+        (test/is (.tryTransfer q 2 5 TimeUnit/SECONDS))
+        (test/is (= 2 (deref consumer 5000 nil)))))))
+
+(defn- transfer-through-ring-buffer
+  [wait-strategy n]
+  (let [q (SpscRingBuffer. 16 wait-strategy)
+        producer (future (doseq [i (range n)] (.put q i)))
+        received (doall (repeatedly n #(.take q)))]
+    @producer
+    received))
+
+(test/deftest test-spsc-ring-buffer-threads
+  (doseq [wait-strategy [SpscRingBuffer/BLOCK SpscRingBuffer/YIELD SpscRingBuffer/BUSY_SPIN]]
+    (test/is (= (range 100000) (transfer-through-ring-buffer wait-strategy 100000)))))
+
+(defn- process-with-scanners
+  [scanner-count reorder records]
+  (let [out-queue (LinkedTransferQueue.)
+        handler (binding [core/*scanner-count* scanner-count
+                          core/*scanner-reorder* reorder]
+                  (core/create-packet-processing-handler out-queue (StripedCounter.) (StripedCounter.) false (ref true) false))
+        handler-fn (handler)]
+    (doseq [^ByteBuffer rec records]
+      (let [caplen (.getInt rec 8)
+            ph (PcapHeader. caplen (.getInt rec 12) (.getInt rec 0) (.getInt rec 4))
+            data (doto (ByteBuffer/allocateDirect caplen)
+                   (.put (.array rec) 16 caplen)
+                   (.flip))]
+        (handler-fn ph data nil)))
+    ;;; All packets precede the end of stream marker in the out queue.
+    (let [eos (handler :end-of-stream)
+          pkts (loop [acc []]
+                 (let [obj (.poll out-queue 10 TimeUnit/SECONDS)]
+                   (if (or (nil? obj) (identical? eos obj))
+                     acc
+                     (recur (conj acc obj)))))]
+      {:stats (handler :get-stats)
+       :usecs (map #(.hdr_usec (.getCaptureHeader ^PcapPacket %)) pkts)
+       :scanned (every? #(.hasHeader ^PcapPacket % (Ip4.)) pkts)})))
+
+(test/deftest test-multi-threaded-scanner
+  (let [file-records (let [recs (atom [])]
+                       (core/read-pcap-file-raw "test/clj_net_pcap/test/data/offline-test.pcap" #(swap! recs conj %))
+                       @recs)
+        records (apply concat (repeat 100 file-records))
+        expected-usecs (map #(.getInt ^ByteBuffer % 4) records)]
+    (doseq [[scanner-count reorder] [[1 false] [4 false] [4 true]]]
+      (let [{:keys [stats usecs scanned]} (process-with-scanners scanner-count reorder records)]
+        (test/is (= 600 (stats "scanner-queued") (stats "out-queued")))
+        (test/is (= 0 (stats "scanner-dropped") (stats "out-dropped") (stats "handler-failed")))
+        (test/is scanned)
+        (if (or reorder (= 1 scanner-count))
+          (test/is (= expected-usecs usecs))
+          (test/is (= (sort expected-usecs) (sort usecs))))))))
+
+(test/deftest test-packet-processing-handler-end-of-stream
+  (let [file-records (let [recs (atom [])]
+                       (core/read-pcap-file-raw "test/clj_net_pcap/test/data/offline-test.pcap" #(swap! recs conj %))
+                       @recs)
+        records (apply concat (repeat 100 file-records))]
+    (doseq [[scanner-count reorder] [[1 false] [4 false] [4 true]]]
+      (let [out-queue (LinkedTransferQueue.)
+            processed (atom 0)
+            forwarder (sniffer/create-and-start-forwarder out-queue (fn [_] (swap! processed inc)) false)
+            handler (binding [core/*scanner-count* scanner-count
+                              core/*scanner-reorder* reorder]
+                      (core/create-packet-processing-handler out-queue (StripedCounter.) (StripedCounter.) true (ref true) false))
+            handler-fn (handler)]
+        (doseq [^ByteBuffer rec records]
+          (let [caplen (.getInt rec 8)]
+            (handler-fn (PcapHeader. caplen (.getInt rec 12) (.getInt rec 0) (.getInt rec 4))
+                        (doto (ByteBuffer/allocateDirect caplen)
+                          (.put (.array rec) 16 caplen)
+                          (.flip))
+                        nil)))
+        (test/is (.await ^EndOfStream (handler :end-of-stream) 10 TimeUnit/SECONDS))
+        (test/is (= 600 @processed))
+        (sniffer/stop-forwarder forwarder)))))
+
+(test/deftest test-stage-runner
+  (test/is (identical? sniffer/default-stage-runner (binding [core/*stage-execution* :dedicated] (core/stage-runner))))
+  (test/is (identical? (binding [core/*stage-execution* :executor] (core/stage-runner))
+                       (binding [core/*stage-execution* :executor] (core/stage-runner))))
+  (test/is (thrown? IllegalArgumentException (binding [core/*stage-execution* :unknown] (core/stage-runner))))
+  (when (not (StageRunner/isVirtualThreadSupported))
+    (test/is (thrown? UnsupportedOperationException (StageRunner/virtual)))))
+
+(test/deftest test-packet-processing-handler-stage-runners
+  (let [file-records (let [recs (atom [])]
+                       (core/read-pcap-file-raw "test/clj_net_pcap/test/data/offline-test.pcap" #(swap! recs conj %))
+                       @recs)
+        records (apply concat (repeat 100 file-records))
+        ;;; A single thread with small queues requires the executor to compensate for blocked stages.
+        runners (concat [(StageRunner/executor 1 16 100000)]
+                        (when (StageRunner/isVirtualThreadSupported)
+                          [(StageRunner/virtual)]))]
+    (doseq [^StageRunner runner runners
+            [scanner-count reorder] [[1 false] [4 false] [4 true]]]
+      (let [out-queue (LinkedTransferQueue.)
+            processed (atom 0)
+            forwarder (sniffer/create-and-start-forwarder out-queue (fn [_] (swap! processed inc)) false
+                                                          "ForwarderThread" runner)
+            handler (binding [core/*scanner-count* scanner-count
+                              core/*scanner-reorder* reorder
+                              core/*queue-size* 8
+                              core/*stage-execution* runner]
+                      (core/create-packet-processing-handler out-queue (StripedCounter.) (StripedCounter.) true (ref true) false))
+            handler-fn (handler)]
+        (doseq [^ByteBuffer rec records]
+          (let [caplen (.getInt rec 8)]
+            (handler-fn (PcapHeader. caplen (.getInt rec 12) (.getInt rec 0) (.getInt rec 4))
+                        (doto (ByteBuffer/allocateDirect caplen)
+                          (.put (.array rec) 16 caplen)
+                          (.flip))
+                        nil)))
+        (test/is (.await ^EndOfStream (handler :end-of-stream) 10 TimeUnit/SECONDS))
+        (test/is (= 600 @processed))
+        (test/is (= 0 ((handler :get-stats) "handler-failed")))
+        (sniffer/stop-forwarder forwarder)))
+    (doseq [^StageRunner runner runners]
+      (.shutdown runner))))
+
+(defn- alive-thread-count [thread-names]
+  (count (filter #(and (contains? thread-names (.getName ^Thread %)) (.isAlive ^Thread %))
+                 (keys (Thread/getAllStackTraces)))))
+
+(test/deftest test-stop-stages
+  (let [executor (StageRunner/executor 2 16 100000)
+        polls (atom 0)
+        ;;; Counts the polls of all executor tasks.
+        counting-runner (proxy [StageRunner] []
+                          (getMode [] StageRunner/EXECUTOR)
+                          (start
+                            ([stage-name step poll-step]
+                             (.start ^StageRunner this ^String stage-name ^Runnable step ^Callable poll-step nil))
+                            ([stage-name step poll-step cost]
+                             (.start executor ^String stage-name ^Runnable step
+                                     ^Callable (fn []
+                                                 (swap! polls inc)
+                                                 (.call ^Callable poll-step))
+                                     ^StageCost cost))))]
+    (try
+      (doseq [[^StageRunner runner forwarder-name] [[sniffer/default-stage-runner "StopTestForwarder"]
+                                                    [counting-runner "StopTestExecutorForwarder"]]]
+        (let [thread-names #{forwarder-name "ByteBufferProcessor" "PacketScanner-0" "PacketScanner-1" "PacketReorderer"}
+              ;;; Other tests may leave threads with these names behind.
+              alive-before (alive-thread-count thread-names)
+              out-queue (LinkedTransferQueue.)
+              running (ref true)
+              forwarder (sniffer/create-and-start-forwarder out-queue (fn [_]) false forwarder-name runner)
+              handler (binding [core/*scanner-count* 2
+                                core/*scanner-reorder* true
+                                core/*stage-execution* runner]
+                        (core/create-packet-processing-handler out-queue (StripedCounter.) (StripedCounter.) true running false))]
+          (test/is (.await ^EndOfStream (handler :end-of-stream) 10 TimeUnit/SECONDS))
+          (dosync (ref-set running false))
+          (handler :stop)
+          (sniffer/stop-forwarder forwarder)
+          (utils/sleep 100)
+          (if (= StageRunner/EXECUTOR (.getMode runner))
+            (let [stopped-polls @polls]
+              (test/is (< 0 stopped-polls))
+              (utils/sleep 200)
+              (test/is (= stopped-polls @polls)))
+            (test/is (= alive-before (alive-thread-count thread-names))))))
+      (finally
+        (.shutdown executor)))))
+
+(test/deftest test-slab-allocator
+  (let [allocator (SlabAllocator. 100 2 false)
+        a (.allocate allocator 40)
+        b (.allocate allocator 40)]
+    (test/is (= [0 40 40] [(.position a) (.limit a) (.capacity a)]))
+    (test/is (identical? (.array a) (.array b)))
+    (test/is (= 1 (.getSlabCount allocator)))
+    (.put a (byte 1))
+    (test/is (= 0 (.get b 0)))
+    (let [c (.allocate allocator 40)
+          d (.allocate allocator 40)]
+      (test/is (= 2 (.getSlabCount allocator)))
+      (test/is (= 1.0 (.getOccupancy allocator)))
+      (test/is (= 4 (.getOutstandingSlices allocator)))
+      ;;; Both slabs are in use, so a third slab is not created.
+      (test/is (= 0 (.getFallbackAllocations allocator)))
+      (let [e (.allocate allocator 40)]
+        (test/is (= 1 (.getFallbackAllocations allocator)))
+        (.release allocator e))
+      (.release allocator a)
+      (test/is (= 0 (.getFreeSlabCount allocator)))
+      (.release allocator b)
+      (test/is (= 1 (.getFreeSlabCount allocator)))
+      (test/is (= 0.5 (.getOccupancy allocator)))
+      (.release allocator c)
+      (.release allocator d)
+      (test/is (= 0 (.getOutstandingSlices allocator)))
+      (test/is (= 2 (.getSlabCount allocator)))
+      ;;; Larger than a slab
+      (.allocate allocator 101)
+      (test/is (= 2 (.getFallbackAllocations allocator))))))
+
+(test/deftest test-buffer-record-larger-than-slab
+  (let [allocator (SlabAllocator. 100 1 true)
+        small (core/create-buffer-record (ByteBuffer/allocate 60) (PcapHeader. 60 60 0 0) allocator)
+        large (core/create-buffer-record (ByteBuffer/allocate 200) (PcapHeader. 200 200 0 0) allocator)]
+    (test/is (= 1 (.getFallbackAllocations allocator)))
+    (test/is (some? (:slab small)))
+    (test/is (nil? (:slab large)))
+    (test/is (nil? (.getLastSlab allocator)))
+    (test/is (= 1 (.getOutstandingSlices allocator)))
+    ;;; Releasing the individually allocated record must not release the slab of the small record.
+    (core/release-buffer-record large)
+    (test/is (= 1 (.getOutstandingSlices allocator)))
+    (core/release-buffer-record small)
+    (test/is (= 0 (.getOutstandingSlices allocator)))
+    ;;; The slab is still the current slab and is not recycled.
+    (test/is (= 0 (.getFreeSlabCount allocator)))
+    (.allocate allocator 60)
+    (test/is (= 1 (.getFallbackAllocations allocator)))))
+
+(test/deftest test-raw-handler-slab-allocator
+  (let [out-queue (LinkedTransferQueue.)
+        handler (binding [core/*slab-size* 1024]
+                  (core/create-raw-handler out-queue (StripedCounter.) (StripedCounter.) false (ref true)))
+        handler-fn (handler)
+        ^SlabAllocator allocator (handler :slab-allocator)
+        data (byte-array (range 64))]
+    (dotimes [i 100]
+      (handler-fn (PcapHeader. 64 64 i 0) (ByteBuffer/wrap data) nil))
+    (test/is (= 100 (.size out-queue)))
+    (test/is (= 100 (.getOutstandingSlices allocator)))
+    (test/is (= 9 ((handler :get-stats) "slab-count")))
+    (doseq [^ByteBuffer rec out-queue]
+      (test/is (= 80 (.remaining rec)))
+      (test/is (= 64 (.getInt rec 8)))
+      (test/is (= 63 (.get rec 79)))
+      (.release allocator rec))
+    (test/is (= 0 (.getOutstandingSlices allocator)))
+    (test/is (= 8 (.getFreeSlabCount allocator)))))
+
+(test/deftest test-packet-processing-handler-slab-allocator
+  (let [out-queue (LinkedTransferQueue.)
+        handler (binding [core/*slab-size* 4096]
+                  (core/create-packet-processing-handler out-queue (StripedCounter.) (StripedCounter.) false (ref true) false))
+        handler-fn (handler)
+        ^SlabAllocator allocator (handler :slab-allocator)
+        records (let [recs (atom [])]
+                  (core/read-pcap-file-raw "test/clj_net_pcap/test/data/offline-test.pcap" #(swap! recs conj %))
+                  @recs)]
+    (doseq [_ (range 50) ^ByteBuffer rec records]
+      (let [caplen (.getInt rec 8)]
+        (handler-fn (PcapHeader. caplen (.getInt rec 12) (.getInt rec 0) (.getInt rec 4))
+                    (doto (ByteBuffer/allocateDirect caplen)
+                      (.put (.array rec) 16 caplen)
+                      (.flip))
+                    nil)))
+    (loop [i 0]
+      (when (and (< (.size out-queue) 300) (< i 100))
+        (utils/sleep 100)
+        (recur (inc i))))
+    (test/is (= 300 (.size out-queue)))
+    (test/is (.isDirect allocator))
+    (test/is (every? #(instance? PcapPacketWrapper %) out-queue))
+    (test/is (every? #(.hasHeader ^PcapPacket % (Ip4.)) out-queue))
+    (test/is (= 300 (.getOutstandingSlices allocator)))
+    (doseq [pkt out-queue]
+      (.release allocator pkt))
+    (test/is (= 0 (.getOutstandingSlices allocator)))
+    (test/is (= (dec (.getSlabCount allocator)) (.getFreeSlabCount allocator)))))
+
+(test/deftest test-pcap-packet-pool-retain-release
+  (let [pool (PcapPacketPool. 2)
+        a (.acquire pool)
+        b (.acquire pool)]
+    (test/is (= 2 (.getCreated pool)))
+    (test/is (.isPooled a))
+    (core/retain-packet a)
+    (core/release-packet a)
+    (test/is (= 0 (.getAvailable pool)))
+    (core/release-packet a)
+    (test/is (= 1 (.getAvailable pool)))
+    (test/is (thrown? IllegalStateException (.release a)))
+    (test/is (identical? a (.acquire pool)))
+    (test/is (= 2 (.getCreated pool)))
+    (.release b)
+    (.release a)
+    (test/is (= 2 (.getAvailable pool)))
+    (test/is (= 3 (.getRecycled pool)))))
+
+(test/deftest test-packet-processing-handler-packet-pool
+  (let [out-queue (LinkedTransferQueue.)
+        handler (binding [core/*packet-pool-size* 8]
+                  (core/create-packet-processing-handler out-queue (StripedCounter.) (StripedCounter.) false (ref true) false))
+        handler-fn (handler)
+        ^PcapPacketPool pool (handler :packet-pool)
+        records (let [recs (atom [])]
+                  (core/read-pcap-file-raw "test/clj_net_pcap/test/data/offline-test.pcap" #(swap! recs conj %))
+                  @recs)
+        process-records (fn []
+                          (doseq [^ByteBuffer rec records]
+                            (let [caplen (.getInt rec 8)]
+                              (handler-fn (PcapHeader. caplen (.getInt rec 12) (.getInt rec 0) (.getInt rec 4))
+                                          (doto (ByteBuffer/allocateDirect caplen)
+                                            (.put (.array rec) 16 caplen)
+                                            (.flip))
+                                          nil)))
+                          (loop [i 0]
+                            (when (and (< (.size out-queue) (count records)) (< i 100))
+                              (utils/sleep 100)
+                              (recur (inc i))))
+                          (let [pkts (doall (repeatedly (count records) #(.poll out-queue)))]
+                            [(map #(.hdr_usec (.getCaptureHeader ^PcapPacket %)) pkts)
+                             (every? #(.hasHeader ^PcapPacket % (Ip4.)) pkts)
+                             pkts]))
+        expected-usecs (map #(.getInt ^ByteBuffer % 4) records)
+        [usecs scanned pkts] (process-records)]
+    (test/is (= expected-usecs usecs))
+    (test/is scanned)
+    (test/is (every? #(.isPooled ^PcapPacketWrapper %) pkts))
+    (doseq [pkt pkts]
+      (core/release-packet pkt))
+    (test/is (= 6 (.getAvailable pool)))
+    (let [[usecs scanned pkts-2] (process-records)]
+      (test/is (= expected-usecs usecs))
+      (test/is scanned)
+      (test/is (= (set (map #(System/identityHashCode %) pkts))
+                  (set (map #(System/identityHashCode %) pkts-2)))))
+    (test/is (= 6 ((handler :get-stats) "packet-pool-created")))
+    (test/is (= 12 ((handler :get-stats) "packet-pool-acquired")))))
+
+(test/deftest test-overload-policy-drop-newest
+  (let [queue (ArrayBlockingQueue. 10)
+        policy (OverloadPolicy. queue OverloadPolicy/DROP_NEWEST 4 0.5 0 1)]
+    (doseq [i (range 4)]
+      (test/is (nil? (.enqueue policy i))))
+    (test/is (= 4 (.enqueue policy 4)))
+    (test/is (= [0 1 2 3] (vec queue)))
+    (test/is (= 4 (.getEnqueued policy)))
+    (test/is (= 1 (.getDroppedFull policy)))))
+
+(test/deftest test-overload-policy-drop-oldest
+  (let [queue (LinkedTransferQueue.)
+        policy (OverloadPolicy. queue OverloadPolicy/DROP_OLDEST 4 0.5 0 1)]
+    (doseq [i (range 4)]
+      (test/is (nil? (.enqueue policy i))))
+    (test/is (= 0 (.enqueue policy 4)))
+    (test/is (= 1 (.enqueue policy 5)))
+    (test/is (= [2 3 4 5] (vec queue)))
+    (test/is (= 2 (.getDroppedOldest policy)))
+    (test/is (thrown? IllegalArgumentException
+                      (OverloadPolicy. (SpscRingBuffer. 4 SpscRingBuffer/BLOCK) OverloadPolicy/DROP_OLDEST 4 0.5 0 1)))))
+
+(test/deftest test-overload-policy-early-drop
+  (let [queue (ArrayBlockingQueue. 100)
+        policy (OverloadPolicy. queue OverloadPolicy/EARLY_DROP 100 0.5 0 1)]
+    (doseq [i (range 50)]
+      (test/is (nil? (.enqueue policy i))))
+    (dotimes [i 1000]
+      (.enqueue policy i))
+    (test/is (= (.size queue) (.getEnqueued policy)))
+    (test/is (< 0 (.getDroppedEarly policy)))
+    (test/is (= 1050 (+ (.getEnqueued policy) (.getDroppedEarly policy) (.getDroppedFull policy))))))
+
+(test/deftest test-overload-policy-block-timeout
+  (let [queue (ArrayBlockingQueue. 2)
+        policy (OverloadPolicy. queue OverloadPolicy/BLOCK_TIMEOUT 2 0.5 (* 20 1000000) 1)]
+    (.enqueue policy 0)
+    (.enqueue policy 1)
+    (test/is (= 2 (.enqueue policy 2)))
+    (test/is (= 1 (.getTimedOut policy)))
+    (future (utils/sleep 5) (.poll queue))
+    (test/is (nil? (.enqueue policy 3)))
+    (test/is (= [1 3] (vec queue)))))
+
+(test/deftest test-overload-policy-sample
+  (let [queue (ArrayBlockingQueue. 100)
+        policy (OverloadPolicy. queue OverloadPolicy/SAMPLE 100 0.1 0 5)]
+    (doseq [i (range 30)]
+      (.enqueue policy i))
+    (test/is (= (concat (range 11) [11 16 21 26]) (vec queue)))
+    (test/is (= 15 (.getSampledOut policy)))))
+
+(test/deftest test-counting-transfer-queue
+  (let [q (CountingTransferQueue.)]
+    (test/is (instance? CountingTransferQueue (core/create-queue true)))
+    (.addAll q (range 10))
+    (.put q 10)
+    (test/is (= 11 (.size q)))
+    (test/is (= 0 (.poll q)))
+    (test/is (= 1 (.take q)))
+    (test/is (.remove q 5))
+    (test/is (not (.remove q 5)))
+    (test/is (.removeIf q (reify java.util.function.Predicate (test [_ x] (even? x)))))
+    (test/is (= [3 7 9] (vec q)))
+    (test/is (= 3 (.size q)))
+    (test/is (= 2 (.drainTo q (java.util.ArrayList.) 2)))
+    (test/is (= 1 (.size q)))
+    (test/is (false? (.tryTransfer q 11)))
+    (.clear q)
+    (test/is (= 0 (.size q)))
+    (let [consumer (future (.take q))]
+      (.transfer q 12)
+      (test/is (= 12 @consumer)))
+    (test/is (= 0 (.size q)))))
+
+(test/deftest test-overload-policy-counting-queue-depth
+  (let [queue (CountingTransferQueue.)
+        policy (OverloadPolicy. queue OverloadPolicy/DROP_NEWEST 4 0.5 0 1)]
+    (dotimes [i 100]
+      (test/is (nil? (.enqueue policy i)))
+      (.poll queue))
+    (test/is (= 100 (.getEnqueued policy)))
+    (test/is (= 0 (.getDroppedFull policy)))))
+
+(test/deftest test-overload-policy-block-timeout-counting-queue
+  (let [queue (CountingTransferQueue.)
+        policy (OverloadPolicy. queue OverloadPolicy/BLOCK_TIMEOUT 2 0.5 (* 1000 1000000) 1)]
+    (.enqueue policy 0)
+    (.enqueue policy 1)
+    (future (utils/sleep 5) (.take queue))
+    (test/is (nil? (.enqueue policy 2)))
+    (test/is (= [1 2] (vec queue)))
+    (test/is (= 0 (.getTimedOut policy)))))
+
+(test/deftest test-raw-handler-overload-policy-stats
+  (let [out-queue (LinkedTransferQueue.)
+        handler (binding [core/*queue-size* 10
+                          core/*stage-overload-policies* {:out :drop-oldest}]
+                  (core/create-raw-handler out-queue (StripedCounter.) (StripedCounter.) false (ref true)))
+        handler-fn (handler)
+        data (byte-array (range 64))]
+    (dotimes [i 15]
+      (handler-fn (PcapHeader. 64 64 i 0) (ByteBuffer/wrap data) nil))
+    (test/is (= 10 (.size out-queue)))
+    (test/is (= 5 (.getInt ^ByteBuffer (.peek out-queue) 0)))
+    (let [stats (handler :get-stats)]
+      (test/is (= 15 (stats "out-queued")))
+      (test/is (= 5 (stats "out-dropped")))
+      (test/is (= 5 (stats "out-dropped-oldest"))))
+    (test/is (thrown? IllegalArgumentException
+                      (binding [core/*scanner-count* 2
+                                core/*scanner-reorder* true
+                                core/*overload-policy* :drop-oldest]
+                        (core/create-packet-processing-handler out-queue (StripedCounter.) (StripedCounter.) false (ref true) false))))))
+
+(test/deftest test-spill-file
+  (let [file (File/createTempFile "clj-net-pcap-spill" ".tmp")
+        spill-file (SpillFile. file 64)
+        rec (fn [n] (ByteBuffer/wrap (byte-array (repeat n (byte n)))))]
+    (test/is (.isEmpty spill-file))
+    (test/is (.append spill-file (rec 20)))
+    (test/is (.append spill-file (rec 10)))
+    ;;; 12 byte header + 20 is too much for the remaining 10 bytes.
+    (test/is (not (.append spill-file (rec 20))))
+    (test/is (= 2 (.getDepth spill-file)))
+    (test/is (= 20 (.remaining (.peek spill-file))))
+    (.remove spill-file)
+    ;;; Does not fit at the end, wraps around to the beginning.
+    (test/is (.append spill-file (rec 16)))
+    (test/is (= 10 (.get (.peek spill-file) 0)))
+    (.remove spill-file)
+    (let [data (.peek spill-file)]
+      (test/is (= 16 (.remaining data)))
+      (test/is (= 16 (.get data 15))))
+    (.remove spill-file)
+    (test/is (.isEmpty spill-file))
+    (test/is (= 3 (.getReplayed spill-file)))
+    (test/is (= 1 (.getRejected spill-file)))
+    (.close spill-file)
+    (test/is (not (.exists file)))))
+
+(test/deftest test-spill-stage
+  (let [queue (LinkedTransferQueue.)
+        spill (binding [core/*spill-file* (.getPath (File/createTempFile "clj-net-pcap-spill" ".tmp"))
+                        core/*spill-size* 4096
+                        core/*queue-size* 10]
+                (core/create-spill-stage
+                  queue
+                  (fn [i] (doto (ByteBuffer/allocate 4) (.putInt i) (.flip)))
+                  (fn [^ByteBuffer buf] (.getInt buf 0))))
+        spill-fn (spill)]
+    (doseq [i (range 100)]
+      (when (not (spill-fn i))
+        (.put queue i)))
+    (test/is (< 0 ((spill :get-stats) "spill-appended")))
+    (let [received (loop [acc []]
+                     (if-let [i (.poll queue 1000 TimeUnit/MILLISECONDS)]
+                       (recur (conj acc i))
+                       acc))]
+      (test/is (= (range 100) received)))
+    (test/is (spill :empty?))
+    (test/is (= 0 ((spill :get-stats) "spill-depth")))
+    (spill :stop)))
+
+(defn- create-int-spill-stage
+  [queue spill-size]
+  (binding [core/*spill-file* (.getPath (File/createTempFile "clj-net-pcap-spill" ".tmp"))
+            core/*spill-size* spill-size
+            core/*queue-size* 10]
+    (core/create-spill-stage
+      queue
+      (fn [i] (doto (ByteBuffer/allocate 4) (.putInt i) (.flip)))
+      (fn [^ByteBuffer buf] (.getInt buf 0)))))
+
+(test/deftest test-spill-stage-full-file-preserves-order
+  (let [queue (LinkedTransferQueue.)
+        ;;; Each record takes 16 bytes, such that the file holds 4 records.
+        spill (create-int-spill-stage queue 64)
+        spill-fn (spill)
+        results (doall (for [i (range 30)]
+                         (let [r (spill-fn i)]
+                           (when (nil? r)
+                             (.put queue i))
+                           r)))]
+    (test/is (= 4 (count (filter #{:spilled} results))))
+    (test/is (= 10 (count (filter #{:dropped} results))))
+    (test/is (= 10 ((spill :get-stats) "spill-dropped")))
+    ;;; The marker follows the spilled records.
+    (spill :end-of-stream :eos)
+    (let [received (loop [acc []]
+                     (if-let [i (.poll queue 1000 TimeUnit/MILLISECONDS)]
+                       (recur (conj acc i))
+                       acc))]
+      (test/is (= (concat (range 20) [:eos]) received)))
+    (test/is (nil? (spill-fn 30)))
+    (spill :stop)
+    (test/is (= 0 ((spill :get-stats) "spill-discarded")))))
+
+(test/deftest test-spill-stage-stop
+  (let [uncaught (atom [])
+        handler (Thread/getDefaultUncaughtExceptionHandler)
+        ;;; put blocks like the put into a full queue whose consumer does not take anything.
+        queue (proxy [LinkedTransferQueue] []
+                (put [_] (Thread/sleep Long/MAX_VALUE)))
+        spill (create-int-spill-stage queue 4096)
+        spill-fn (spill)]
+    (Thread/setDefaultUncaughtExceptionHandler
+      (reify Thread$UncaughtExceptionHandler
+        (uncaughtException [_ _ e] (swap! uncaught conj e))))
+    (try
+      (doseq [i (range 16)]
+        (.offer queue i))
+      (doseq [i (range 20)]
+        (spill-fn i))
+      (utils/sleep 100)
+      (test/is (= 20 ((spill :get-stats) "spill-appended")))
+      (.poll queue)
+      (utils/sleep 100)
+      (spill :stop)
+      (test/is (empty? @uncaught))
+      (test/is (= 20 ((spill :get-stats) "spill-discarded")))
+      (finally
+        (Thread/setDefaultUncaughtExceptionHandler handler)))))
+
+(defn- count-concurrently
+  "Increment counter n times from each of thread-count threads.
+   Returns the elapsed time in milliseconds."
+  [counter inc-fn thread-count n]
+  (let [start (System/nanoTime)
+        threads (doall (repeatedly thread-count
+                                   #(doto (Thread. (fn [] (dotimes [_ n] (inc-fn counter))))
+                                      (.start))))]
+    (doseq [^Thread t threads]
+      (.join t))
+    (/ (- (System/nanoTime) start) 1000000.0)))
+
+(test/deftest test-striped-counter
+  (let [counter (StripedCounter. 3)]
+    (test/is (= 4 (.getCellCount counter)))
+    (.inc counter)
+    (.add counter 41)
+    (test/is (= 42 (.value counter)))
+    (count-concurrently counter #(.inc ^StripedCounter %) 8 100000)
+    (test/is (= 800042 (.value counter)))
+    (.reset counter)
+    (test/is (= 0 (.value counter)))))
+
+(test/deftest ^:benchmark test-counter-benchmark
+  (let [n 10000000]
+    (doseq [thread-count [1 2 4 8]]
+      (let [counter (Counter.)
+            striped-counter (StripedCounter.)
+            counter-ms (count-concurrently counter #(.inc ^Counter %) thread-count n)
+            striped-ms (count-concurrently striped-counter #(.inc ^StripedCounter %) thread-count n)]
+        (println "Threads:" thread-count
+                 "Counter:" counter-ms "ms, counted" (.value counter) "of" (* thread-count n)
+                 "StripedCounter:" striped-ms "ms, counted" (.value striped-counter))
+        (test/is (= (* thread-count n) (.value striped-counter)))))))
+
+(test/deftest test-latency-histogram
+  (let [histogram (LatencyHistogram.)]
+    (test/is (= 0 (.getValueAtPercentile histogram 50.0)))
+    (doseq [v (range 1 10001)]
+      (.record histogram v))
+    (test/is (= 10000 (.getCount histogram)))
+    (test/is (= 10000 (.getMax histogram)))
+    (doseq [[p expected] [[50.0 5000] [99.0 9900] [99.9 9990]]]
+      (let [v (.getValueAtPercentile histogram p)]
+        (test/is (<= expected v (* expected (+ 1 (/ 1.0 LatencyHistogram/SUB_BUCKETS)))))))
+    (test/is (= 10000 (.getValueAtPercentile histogram 100.0)))
+    (.record histogram 3)
+    (.record histogram -1)
+    (.reset histogram)
+    (test/is (= 0 (.getCount histogram) (.getMax histogram)))))
+
+(test/deftest test-stage-latency
+  (let [latency (StageLatency. 2)
+        a (Object.) b (Object.) c (Object.)]
+    (.enqueue latency a)
+    (.enqueue latency b)
+    ;;; b is the probe and blocks further probes until it was taken or dropped.
+    (.enqueue latency a)
+    (.enqueue latency c)
+    (.taken latency a)
+    (test/is (= 0 (.getCount (.getQueued latency))))
+    (.dropped latency b)
+    (.enqueue latency a)
+    (.enqueue latency c)
+    (.taken latency c)
+    (test/is (= 1 (.getCount (.getQueued latency))))
+    (dotimes [_ 4]
+      (.end latency (.begin latency)))
+    (test/is (= 2 (.getCount (.getProcessing latency))))))
+
+(test/deftest test-packet-processing-handler-latency
+  (let [file-records (let [recs (atom [])]
+                       (core/read-pcap-file-raw "test/clj_net_pcap/test/data/offline-test.pcap" #(swap! recs conj %))
+                       @recs)
+        records (apply concat (repeat 100 file-records))
+        out-queue (LinkedTransferQueue.)
+        handler (binding [core/*latency-sample-rate* 1]
+                  (core/create-packet-processing-handler out-queue (StripedCounter.) (StripedCounter.) true (ref true) false))
+        ^StageLatency out-latency (handler :out-latency)
+        forwarder (sniffer/create-and-start-forwarder
+                    out-queue
+                    (core/latency-stage-fn out-latency (fn [_]))
+                    false)
+        handler-fn (handler)]
+    (doseq [^ByteBuffer rec records]
+      (let [caplen (.getInt rec 8)]
+        (handler-fn (PcapHeader. caplen (.getInt rec 12) (.getInt rec 0) (.getInt rec 4))
+                    (doto (ByteBuffer/allocateDirect caplen)
+                      (.put (.array rec) 16 caplen)
+                      (.flip))
+                    nil)))
+    (test/is (.await ^EndOfStream (handler :end-of-stream) 10 TimeUnit/SECONDS))
+    (let [stats (merge (handler :get-stats) (core/stage-latency-stats :forwarder out-latency))]
+      (doseq [stage ["buffer" "scanner" "forwarder"]]
+        ;;; The end of stream marker is processed by the buffer processor and scanner as well.
+        (test/is (<= 600 (stats (str stage "-processing-samples")) 601))
+        (test/is (< 0 (stats (str stage "-queued-samples")) 601))
+        (test/is (<= (stats (str stage "-queued-p50-ns"))
+                     (stats (str stage "-queued-p99-ns"))
+                     (stats (str stage "-queued-p999-ns"))
+                     (stats (str stage "-queued-max-ns"))))))
+    (test/is (nil? (binding [core/*latency-sample-rate* 0] (core/create-stage-latency))))
+    (sniffer/stop-forwarder forwarder)))
+
+(test/deftest test-jfr-events
+  (when (JfrEvents/isAvailable)
+    (let [recording (Recording.)
+          file (File/createTempFile "clj-net-pcap-test" ".jfr")
+          stats (atom {"recv" 42 "out-queue-depth" 3})
+          pipeline (JfrEvents/registerPipeline #(deref stats))
+          ^JfrEvents$DropBurstTracker tracker (JfrEvents/createDropBurstTracker "out")]
+      (try
+        (doseq [n ["clj_net_pcap.BulkDelivered" "clj_net_pcap.QueueDropBurst" "clj_net_pcap.FilterChanged"
+                   "clj_net_pcap.SelfAdaptationStateChanged"]]
+          (.enable recording ^String n))
+        (.withPeriod (.enable recording "clj_net_pcap.PipelineStatistics") (Duration/ofMillis 100))
+        (.start recording)
+        (test/is (JfrEvents/isBulkDeliveredEnabled))
+        (JfrEvents/bulkDelivered 10 1500 1000)
+        (JfrEvents/filterChanged "add-filter" "tcp")
+        (JfrEvents/selfAdaptationStateChanged 1 2 "udp")
+        (dotimes [_ 5]
+          (.dropped tracker 1))
+        (utils/sleep 500)
+        (.stop recording)
+        (.dump recording (.toPath file))
+        (let [events (group-by #(.getName (.getEventType ^RecordedEvent %)) (RecordingFile/readAllEvents (.toPath file)))
+              ^RecordedEvent bulk (first (events "clj_net_pcap.BulkDelivered"))
+              ^RecordedEvent burst (first (events "clj_net_pcap.QueueDropBurst"))
+              ^RecordedEvent filter-changed (first (events "clj_net_pcap.FilterChanged"))
+              ^RecordedEvent state-changed (first (events "clj_net_pcap.SelfAdaptationStateChanged"))
+              ^RecordedEvent pipeline-stats (first (filter #(= pipeline (.getLong ^RecordedEvent % "pipeline"))
+                                                           (events "clj_net_pcap.PipelineStatistics")))]
+          (test/is (= 10 (.getLong bulk "records")))
+          (test/is (= 1500 (.getLong bulk "bytes")))
+          (test/is (= 1 (count (events "clj_net_pcap.QueueDropBurst"))))
+          (test/is (= "out" (.getString burst "stage")))
+          (test/is (= 5 (.getLong burst "dropped")))
+          (test/is (= "tcp" (.getString filter-changed "filter")))
+          (test/is (= 2 (.getLong state-changed "newState")))
+          (test/is (= 42 (.getLong pipeline-stats "recv")))
+          (test/is (= 3 (.getLong pipeline-stats "outQueueDepth"))))
+        (finally
+          (JfrEvents/unregisterPipeline pipeline)
+          (.close recording)
+          (.delete file))))))
+
+(test/deftest test-stage-cost
+  (let [cost (StageCost.)
+        t (Thread. #(dotimes [_ 1000]
+                      (.addCurrentThread cost)
+                      (vec (range 1000))))]
+    (test/is (not (.hasSamples cost)))
+    (.start t)
+    (.join t)
+    (test/is (.hasSamples cost))
+    ;;; The values of terminated threads are kept as refreshed by addCurrentThread.
+    (when (StageCost/isCpuTimeSupported)
+      (test/is (< 0 (.getCpuNanos cost))))
+    (when (StageCost/isAllocationSupported)
+      (test/is (< 0 (.getAllocatedBytes cost))))
+    (let [cpu-nanos (.getCpuNanos cost)]
+      (.add cost 10 20)
+      (test/is (= (+ cpu-nanos 10) (.getCpuNanos cost))))
+    (test/is (nil? (binding [core/*stage-cost-accounting* false] (core/create-stage-cost))))))
+
+(test/deftest test-stage-cost-rates
+  (test/is (= {"scanner-cpu-nanos-per-packet" 5.0 "scanner-cpu-nanos-per-second" 500.0
+               "capture-alloc-bytes-per-packet" 10.0 "capture-alloc-bytes-per-second" 1000.0}
+              (core/stage-cost-rates {"captured-packets" 10 "out-queued" 100
+                                      "scanner-cpu-nanos" 50 "capture-alloc-bytes" 100}
+                                     1.0E8)))
+  (test/is (= {"forwarder-cpu-nanos-per-second" 10.0}
+              (core/stage-cost-rates {"forwarder-cpu-nanos" 10} 1.0E9))))
+
+(test/deftest test-packet-processing-handler-stage-costs
+  (let [file-records (let [recs (atom [])]
+                       (core/read-pcap-file-raw "test/clj_net_pcap/test/data/offline-test.pcap" #(swap! recs conj %))
+                       @recs)
+        records (apply concat (repeat 100 file-records))]
+    (doseq [runner [sniffer/default-stage-runner (StageRunner/executor 2 16 100000)]
+            reorder [false true]]
+      (let [out-queue (LinkedTransferQueue.)
+            forwarder (sniffer/create-and-start-forwarder out-queue (fn [_]) false)
+            handler (binding [core/*scanner-count* 2
+                              core/*scanner-reorder* reorder
+                              core/*stage-execution* runner]
+                      (core/create-packet-processing-handler out-queue (StripedCounter.) (StripedCounter.) true (ref true) false))
+            handler-fn (handler)]
+        (doseq [^ByteBuffer rec records]
+          (let [caplen (.getInt rec 8)]
+            (handler-fn (PcapHeader. caplen (.getInt rec 12) (.getInt rec 0) (.getInt rec 4))
+                        (doto (ByteBuffer/allocateDirect caplen)
+                          (.put (.array rec) 16 caplen)
+                          (.flip))
+                        nil)))
+        (test/is (.await ^EndOfStream (handler :end-of-stream) 10 TimeUnit/SECONDS))
+        (let [stats (merge (handler :get-stats) (core/stage-cost-stats (handler :stage-costs))
+                           {"captured-packets" (count records)})
+              stats (merge stats (core/stage-cost-rates stats 1.0E9))]
+          (doseq [stage (if reorder ["buffer-processor" "scanner" "reorderer"] ["buffer-processor" "scanner"])]
+            (when (StageCost/isCpuTimeSupported)
+              (test/is (< 0 (stats (str stage "-cpu-nanos"))))
+              (test/is (< 0 (stats (str stage "-cpu-nanos-per-packet")))))
+            (when (StageCost/isAllocationSupported)
+              (test/is (< 0 (stats (str stage "-alloc-bytes"))))
+              (test/is (< 0 (stats (str stage "-alloc-bytes-per-second"))))))
+          (test/is (= reorder (contains? stats "reorderer-cpu-nanos"))))
+        (sniffer/stop-forwarder forwarder)))))
@@ -0,0 +1,75 @@
+;;;
+;;; Copyright (C) 2026 Ruediger Gad
+;;;
+;;; This file is part of clj-net-pcap.
+;;; clj-net-pcap is licensed under the terms of either
+;;; - the GNU Lesser General Public License (LGPL) version 3 or later
+;;;   http://www.gnu.org/licenses/lgpl-3.0.html
+;;; or, at your option,
+;;; - the Eclipse Public License (EPL) 1.0.
+;;;   http://opensource.org/licenses/eclipse-1.0.php
+;;;
+;;; By contributing to clj-net-pcap, you agree that your contribution will be licensed under both licenses
+;;; and that users of clj-net-pcap can chose any of these licenses.
+;;;
+
+(ns
+  ^{:author "Ruediger Gad",
+    :doc "Tests for the OpenMetrics endpoint"}
+  clj-net-pcap.test.metrics
+  (:require
+   (clojure [string :as string])
+   (clojure [test :as test])
+   (clj-assorted-utils [util :as utils])
+   (clj-net-pcap [metrics :as metrics]))
+  (:import (java.net HttpURLConnection URL)))
+
+(test/deftest test-render-openmetrics
+  (let [text (metrics/render-openmetrics
+               {"recv" 10 "drop" 1 "out-queue-depth" 3 "spill-depth" 2
+                "forwarder-queued-samples" 5 "forwarder-queued-p50-ns" 1000 "forwarder-queued-p99-ns" 2000
+                "forwarder-queued-p999-ns" 3000 "forwarder-queued-max-ns" 4000
+                "buffer-dropped" nil}
+               {"recv" 5.0})
+        lines (string/split-lines text)]
+    (test/is (some #{"# TYPE clj_net_pcap_recv counter"} lines))
+    (test/is (some #{"clj_net_pcap_recv_total 10"} lines))
+    (test/is (some #{"clj_net_pcap_drop_total 1"} lines))
+    (test/is (some #{"# TYPE clj_net_pcap_out_queue_depth gauge"} lines))
+    (test/is (some #{"clj_net_pcap_out_queue_depth 3"} lines))
+    (test/is (some #{"clj_net_pcap_spill_depth 2"} lines))
+    (test/is (some #{"# TYPE clj_net_pcap_forwarder_queued_seconds summary"} lines))
+    (test/is (some #{"clj_net_pcap_forwarder_queued_seconds{quantile=\"0.5\"} 1.0E-6"} lines))
+    (test/is (some #{"clj_net_pcap_forwarder_queued_seconds_count 5"} lines))
+    (test/is (some #{"clj_net_pcap_forwarder_queued_seconds_max 4.0E-6"} lines))
+    (test/is (some #{"clj_net_pcap_recv_per_second 5.0"} lines))
+    (test/is (not (string/includes? text "buffer_dropped")))
+    (test/is (not (string/includes? text "forwarder_queued_samples")))
+    (test/is (= "# EOF" (last lines)))))
+
+(test/deftest test-stat-rates
+  (test/is (nil? (metrics/stat-rates nil {"recv" 10} 1000)))
+  (test/is (= {"recv" 20.0}
+              (metrics/stat-rates {"recv" 10 "out-queue-depth" 1 "x-p50-ns" 1}
+                                  {"recv" 20 "out-queue-depth" 5 "x-p50-ns" 7}
+                                  500)))
+  (test/is (= {"recv" 2.0}
+              (metrics/stat-rates {"recv" 0 "scanner-cpu-nanos" 0}
+                                  {"recv" 2 "scanner-cpu-nanos" 9 "scanner-cpu-nanos-per-second" 3.0 "scanner-cpu-nanos-per-packet" 1.0}
+                                  1000))))
+
+(test/deftest test-metrics-server
+  (let [recv (atom 0)
+        server (metrics/start-metrics-server 0 #(hash-map "recv" (swap! recv inc)) 10)
+        url (URL. (str "http://localhost:" (server :port) "/metrics"))]
+    (try
+      (utils/sleep 100)
+      (let [^HttpURLConnection conn (.openConnection url)
+            body (slurp (.getInputStream conn))]
+        (test/is (= 200 (.getResponseCode conn)))
+        (test/is (= metrics/content-type (.getContentType conn)))
+        (test/is (string/includes? body "clj_net_pcap_recv_total"))
+        (test/is (string/includes? body "clj_net_pcap_recv_per_second"))
+        (test/is (string/ends-with? body "# EOF\n")))
+      (finally
+        (server :stop)))))
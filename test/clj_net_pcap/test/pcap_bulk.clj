@@ -21,9 +21,10 @@
    (clojure [test :as test])
    (clj-assorted-utils [util :as utils])
    (clj-net-pcap [core :as core])
-   (clj-net-pcap [pcap :as pcap]))
+   (clj-net-pcap [pcap :as pcap])
+   (clj-net-pcap [pcap-data :as pcap-data]))
   (:import (java.nio ByteBuffer)
-           (org.jnetpcap DirectBulkByteBufferWrapper)))
+           (org.jnetpcap DirectBulkByteBufferWrapper TpacketV3Ring)))
 
 (def test-pkt-bytes [-1 -2 -3 -14 -15 -16 1 2 3 4 5 6 8 0
                      69 0 0 40 0 3 64 0 7 1 115 -49 1 2 3 4 -4 -3 -2 -1
@@ -130,3 +131,149 @@
       (test/is (= x (.get (.getBuffer @received-data) (+ (+ 42 15) (* x data-inst-len))))))
     (.freeNativeMemory @received-data)
     (core/stop-cljnetpcap cljnetpcap)))
+
+(test/deftest cljnetpcap-partial-bulk-delivered-after-max-latency-test
+  (let [ba (byte-array (map byte test-pkt-bytes))
+        cntr (utils/counter)
+        received-data (ref nil)
+        forwarder-fn (fn [data]
+                       (dosync (ref-set received-data data))
+                       (cntr inc))
+        cljnetpcap (binding [clj-net-pcap.core/*bulk-size* 10
+                             clj-net-pcap.core/*bulk-max-latency-us* 100000
+                             clj-net-pcap.core/*emit-raw-data* true
+                             clj-net-pcap.core/*use-intermediate-buffer* true]
+                     (core/create-and-start-online-cljnetpcap forwarder-fn test-device))
+        _ (core/add-filter cljnetpcap "icmp and (dst host 252.253.254.255) and (src host 1.2.3.4)")]
+    (utils/sleep 1000)
+    (cljnetpcap :send-bytes-packet ba 3 10)
+    (utils/sleep 1000)
+    (test/is (= 1 (cntr)))
+    (test/is (= (* 3 (+ 16 (count test-pkt-bytes))) (.remaining ^ByteBuffer @received-data)))
+    (core/stop-cljnetpcap cljnetpcap)))
+
+(test/deftest cljnetpcap-partial-bulk-delivered-on-stop-test
+  (let [ba (byte-array (map byte test-pkt-bytes))
+        cntr (utils/counter)
+        forwarder-fn (fn [_] (cntr inc))
+        cljnetpcap (binding [clj-net-pcap.core/*bulk-size* 10
+                             clj-net-pcap.core/*emit-raw-data* true
+                             clj-net-pcap.core/*use-intermediate-buffer* true]
+                     (core/create-and-start-online-cljnetpcap forwarder-fn test-device))
+        _ (core/add-filter cljnetpcap "icmp and (dst host 252.253.254.255) and (src host 1.2.3.4)")]
+    (utils/sleep 1000)
+    (cljnetpcap :send-bytes-packet ba 3 10)
+    (utils/sleep 1000)
+    (test/is (= 0 (cntr)))
+    (core/stop-cljnetpcap cljnetpcap)
+    (utils/sleep 500)
+    (test/is (= 1 (cntr)))))
+
+(test/deftest cljnetpcap-pooled-bulk-buffers-are-recycled-test
+  (let [ba (byte-array (map byte test-pkt-bytes))
+        cntr (utils/counter)
+        pooled (ref [])
+        forwarder-fn (fn [^DirectBulkByteBufferWrapper data]
+                       (dosync (alter pooled conj (.isPooled data)))
+                       (cntr inc)
+                       (.release data))
+        cljnetpcap (binding [clj-net-pcap.core/*bulk-size* 10
+                             clj-net-pcap.core/*bulk-pool-size* 2
+                             clj-net-pcap.core/*emit-raw-data* true
+                             clj-net-pcap.core/*use-intermediate-buffer* false]
+                     (core/create-and-start-online-cljnetpcap forwarder-fn test-device))
+        _ (core/add-filter cljnetpcap "icmp and (dst host 252.253.254.255) and (src host 1.2.3.4)")]
+    (utils/sleep 1000)
+    (cljnetpcap :send-bytes-packet ba 30 10)
+    (utils/sleep 1000)
+    (test/is (= 3 (cntr)))
+    (test/is (= [true true true] @pooled))
+    (test/is (= 0 ((core/get-stats cljnetpcap) "bulk-pool-dropped")))
+    (core/stop-cljnetpcap cljnetpcap)))
+
+(test/deftest cljnetpcap-exhausted-bulk-pool-drops-bulks-test
+  (let [ba (byte-array (map byte test-pkt-bytes))
+        cntr (utils/counter)
+        forwarder-fn (fn [_] (cntr inc))
+        cljnetpcap (binding [clj-net-pcap.core/*bulk-size* 10
+                             clj-net-pcap.core/*bulk-pool-size* 2
+                             clj-net-pcap.core/*bulk-pool-exhausted-policy* :drop
+                             clj-net-pcap.core/*emit-raw-data* true
+                             clj-net-pcap.core/*use-intermediate-buffer* false]
+                     (core/create-and-start-online-cljnetpcap forwarder-fn test-device))
+        _ (core/add-filter cljnetpcap "icmp and (dst host 252.253.254.255) and (src host 1.2.3.4)")]
+    (utils/sleep 1000)
+    (cljnetpcap :send-bytes-packet ba 40 10)
+    (utils/sleep 1000)
+    (test/is (= 1 (cntr)))
+    (let [stats (core/get-stats cljnetpcap)]
+      (test/is (= 3 (stats "bulk-pool-dropped")))
+      (test/is (= 30 (stats "bulk-pool-dropped-packets"))))
+    (core/stop-cljnetpcap cljnetpcap)))
+
+(test/deftest cljnetpcap-byte-budgeted-bulks-test
+  (let [ba (byte-array (map byte test-pkt-bytes))
+        record-len (+ 16 (count test-pkt-bytes))
+        received-sizes (ref [])
+        forwarder-fn (fn [^ByteBuffer data]
+                       (dosync (alter received-sizes conj (.remaining data))))
+        ;;; With the default snap-len of 128 bytes, a bulk is delivered when less
+        ;;; than 144 bytes remain. With a budget of 300 bytes, this is the case
+        ;;; after three records of the test packet.
+        cljnetpcap (binding [clj-net-pcap.core/*bulk-size* 100
+                             clj-net-pcap.core/*bulk-bytes* 300
+                             clj-net-pcap.core/*emit-raw-data* true
+                             clj-net-pcap.core/*use-intermediate-buffer* true]
+                     (core/create-and-start-online-cljnetpcap forwarder-fn test-device))
+        _ (core/add-filter cljnetpcap "icmp and (dst host 252.253.254.255) and (src host 1.2.3.4)")]
+    (utils/sleep 1000)
+    (cljnetpcap :send-bytes-packet ba 9 10)
+    (utils/sleep 1000)
+    (test/is (= (repeat 3 (* 3 record-len)) @received-sizes))
+    (test/is (= 9 ((core/get-stats cljnetpcap) "out-queued")))
+    (core/stop-cljnetpcap cljnetpcap)))
+
+(test/deftest cljnetpcap-bulk-layout-v2-test
+  (let [ba (byte-array (map byte test-pkt-bytes))
+        received (ref [])
+        forwarder-fn (fn [^ByteBuffer data]
+                       (dosync (alter received conj
+                                      [(pcap-data/bulk-v2? data)
+                                       (pcap-data/bulk-v2-record-count data)
+                                       (map #(mod (pcap-data/bulk-v2-record-offset data %) 8)
+                                            (range (pcap-data/bulk-v2-record-count data)))])))
+        cljnetpcap (binding [clj-net-pcap.core/*bulk-size* 5
+                             clj-net-pcap.core/*bulk-layout* :v2
+                             clj-net-pcap.core/*emit-raw-data* true
+                             clj-net-pcap.core/*use-intermediate-buffer* true]
+                     (core/create-and-start-online-cljnetpcap forwarder-fn test-device))
+        _ (core/add-filter cljnetpcap "icmp and (dst host 252.253.254.255) and (src host 1.2.3.4)")]
+    (utils/sleep 1000)
+    (cljnetpcap :send-bytes-packet ba 10 10)
+    (utils/sleep 1000)
+    (test/is (= (repeat 2 [true 5 (repeat 5 0)]) @received))
+    (test/is (= 10 ((core/get-stats cljnetpcap) "out-queued")))
+    (core/stop-cljnetpcap cljnetpcap)))
+
+(test/deftest cljnetpcap-tpacket-v3-engine-test
+  (let [ba (byte-array (map byte test-pkt-bytes))
+        received (ref [])
+        forwarder-fn (fn [^DirectBulkByteBufferWrapper data]
+                       (dosync (alter received into
+                                      (pcap-data/process-tpacket-v3-block
+                                        (fn [^ByteBuffer bb offset] (TpacketV3Ring/packetCaplen bb offset))
+                                        (.getBuffer data))))
+                       (.release data))
+        cljnetpcap (binding [clj-net-pcap.core/*capture-engine* :tpacket-v3
+                             clj-net-pcap.pcap/*tpacket-block-count* 4
+                             clj-net-pcap.pcap/*tpacket-block-timeout-ms* 10]
+                     (core/create-and-start-online-cljnetpcap forwarder-fn test-device))
+        _ (core/add-filter cljnetpcap "icmp and (dst host 252.253.254.255) and (src host 1.2.3.4)")]
+    (utils/sleep 1000)
+    (cljnetpcap :send-bytes-packet ba 10 10)
+    (utils/sleep 1000)
+    (test/is (= (repeat 10 (count test-pkt-bytes)) @received))
+    (let [stats (core/get-stats cljnetpcap)]
+      (test/is (= 10 (stats "out-queued")))
+      (test/is (= 0 (stats "tpacket-blocks-in-use"))))
+    (core/stop-cljnetpcap cljnetpcap)))
@@ -21,7 +21,9 @@
    (clojure [test :as test])
    (clj-net-pcap [core :as core])
    (clj-net-pcap [pcap-data :as pcap-data]))
-  (:import (clj_net_pcap PcapByteArrayTimeStampComparator)))
+  (:import (clj_net_pcap PcapByteArrayTimeStampComparator)
+           (java.nio ByteBuffer ByteOrder)
+           (org.jnetpcap BulkLayout TpacketV3Ring)))
 
 (def test-file "test/clj_net_pcap/test/data/offline-test.pcap")
 
@@ -68,3 +70,156 @@
   (let [my-raw-data (core/extract-byte-arrays-from-pcap-file test-file)
         my-comparator (PcapByteArrayTimeStampComparator.)]
     (test/is (= 1 (.compare my-comparator (my-raw-data 1) (my-raw-data 0))))))
+
+(defn- create-raw-bulk
+  "Create a raw bulk in native byte order with one record per caplen in caplens.
+   The first data byte of each record is set to the index of the record."
+  [caplens]
+  (let [bb (doto (ByteBuffer/allocate (reduce + (map #(+ 16 %) caplens)))
+             (.order (ByteOrder/nativeOrder)))]
+    (doseq [[idx cl] (map-indexed vector caplens)]
+      (.putInt bb (int idx))
+      (.putInt bb (int 0))
+      (.putInt bb (int cl))
+      (.putInt bb (int cl))
+      (.put bb (byte-array cl (byte idx))))
+    (.flip bb)))
+
+(test/deftest test-bulk-record-count
+  (test/is (= 0 (pcap-data/bulk-record-count (ByteBuffer/allocate 0))))
+  (test/is (= 1 (pcap-data/bulk-record-count (create-raw-bulk [54]))))
+  (test/is (= 4 (pcap-data/bulk-record-count (create-raw-bulk [54 60 1500 42])))))
+
+(test/deftest test-bulk-record-count-direct-buffer
+  (let [bulk (create-raw-bulk [54 60 1500 42])
+        direct-bb (doto (ByteBuffer/allocateDirect (.remaining bulk))
+                    (.put bulk)
+                    (.flip))]
+    (test/is (= 4 (pcap-data/bulk-record-count direct-bb)))))
+
+(test/deftest test-process-packet-byte-buffer-bulk-varying-caplen
+  (let [bulk (create-raw-bulk [54 60 1500 42])
+        first-bytes (pcap-data/process-packet-byte-buffer-bulk
+                      (fn [^bytes ba offset] (aget ba (+ offset 16)))
+                      bulk)]
+    (test/is (= [0 1 2 3] (vec first-bytes)))))
+
+(test/deftest test-process-packet-byte-buffer-slice
+  (let [bulk (create-raw-bulk [54 60 1500 42])
+        ;;; A slice that only covers the records 1 and 2, like a slice of a slab.
+        slice (.slice (doto (.duplicate bulk)
+                        (.position (+ 16 54))
+                        (.limit (+ 16 54 16 60 16 1500))))]
+    (test/is (= [1 2] (vec (pcap-data/process-packet-byte-buffer-bulk
+                             (fn [^bytes ba offset] (aget ba (+ offset 16)))
+                             slice))))
+    (test/is (= 1 (pcap-data/process-packet-byte-buffer
+                    (fn [^bytes ba offset] (aget ba (+ offset 16)))
+                    slice)))))
+
+(test/deftest test-extract-byte-arrays-from-pcap-file-slab
+  (let [expected (core/extract-byte-arrays-from-pcap-file test-file)
+        sliced (binding [core/*slab-size* 4096]
+                 (core/extract-byte-arrays-from-pcap-file test-file))]
+    (test/is (= (map vec expected) (map vec sliced)))
+    (test/is (every? #(= (alength ^bytes %) (+ 16 (.getInt (ByteBuffer/wrap %) 8))) sliced))))
+
+(defn- create-raw-bulk-v2
+  "Create a raw bulk in layout v2 with the given byte order and one record per caplen in caplens.
+   The first data byte of each record is set to the index of the record."
+  [^ByteOrder order caplens]
+  (let [align #(* 8 (quot (+ % 7) 8))
+        record-sizes (map #(align (+ 16 %)) caplens)
+        offsets (vec (reductions + 32 record-sizes))
+        table-offset (last offsets)
+        total (+ table-offset (* 4 (count caplens)))
+        bb (doto (ByteBuffer/allocate total) (.order order))]
+    (doto bb
+      (.putInt 0 (int BulkLayout/MAGIC))
+      (.putShort 4 (short BulkLayout/V2))
+      (.put 6 (byte (if (= order ByteOrder/BIG_ENDIAN) BulkLayout/BIG_ENDIAN BulkLayout/LITTLE_ENDIAN)))
+      (.put 7 (byte 6))
+      (.putInt 8 (int (count caplens)))
+      (.putInt 12 (int 32))
+      (.putInt 16 (int table-offset))
+      (.putInt 20 (int total)))
+    (doseq [[idx cl] (map-indexed vector caplens)]
+      (let [offset (offsets idx)]
+        (.putInt bb (int offset) (int idx))
+        (.putInt bb (int (+ offset 8)) (int cl))
+        (.putInt bb (int (+ offset 12)) (int cl))
+        (.put bb (int (+ offset 16)) (byte idx))
+        (.putInt bb (int (+ table-offset (* 4 idx))) (int offset))))
+    bb))
+
+(test/deftest test-bulk-v2-header
+  (let [bulk (create-raw-bulk-v2 ByteOrder/LITTLE_ENDIAN [54 60 1500 42])]
+    (test/is (pcap-data/bulk-v2? bulk))
+    (test/is (not (pcap-data/bulk-v2? (create-raw-bulk [54 60]))))
+    (test/is (= 4 (pcap-data/bulk-v2-record-count bulk)))
+    (test/is (= 32 (pcap-data/bulk-v2-record-offset bulk 0)))
+    (test/is (= 104 (pcap-data/bulk-v2-record-offset bulk 1)))
+    (test/is (every? #(= 0 (mod (pcap-data/bulk-v2-record-offset bulk %) 8)) (range 4)))))
+
+(test/deftest test-process-packet-byte-buffer-bulk-v2-selects-fn-by-byte-order
+  (let [extract (fn [tag] (fn [^bytes ba offset] [tag (aget ba (+ offset 16))]))]
+    (test/is (= [[:le 0] [:le 1] [:le 2]]
+                (vec (pcap-data/process-packet-byte-buffer-bulk-v2
+                       (extract :le) (extract :be)
+                       (create-raw-bulk-v2 ByteOrder/LITTLE_ENDIAN [54 60 1500])))))
+    (test/is (= [[:be 0] [:be 1] [:be 2]]
+                (vec (pcap-data/process-packet-byte-buffer-bulk-v2
+                       (extract :le) (extract :be)
+                       (create-raw-bulk-v2 ByteOrder/BIG_ENDIAN [54 60 1500])))))))
+
+(test/deftest test-process-packet-byte-buffer-bulk-v2-record-range
+  (let [bulk (create-raw-bulk-v2 ByteOrder/LITTLE_ENDIAN [54 60 1500 42 80])
+        f (fn [^bytes ba offset] (aget ba (+ offset 16)))]
+    (test/is (= [1 2 3] (vec (pcap-data/process-packet-byte-buffer-bulk-v2 f f bulk 1 4))))
+    (test/is (= [0 1 2 3 4] (vec (pcap-data/process-packet-byte-buffer-bulk-v2 f bulk))))))
+
+(defn- create-tpacket-v3-block
+  "Create a TPACKET_V3 block in native byte order with one packet per caplen in caplens.
+   The first data byte of each packet is set to the index of the packet."
+  [caplens]
+  (let [align #(* 16 (quot (+ % 15) 16))
+        first-offset 48
+        mac 66
+        sizes (map #(align (+ mac %)) caplens)
+        offsets (vec (reductions + first-offset sizes))
+        bb (.order (ByteBuffer/allocate (last offsets)) (ByteOrder/nativeOrder))]
+    (doto bb
+      (.putInt 12 (int (count caplens)))
+      (.putInt 16 (int first-offset))
+      (.putInt 20 (int (last offsets))))
+    (doseq [[idx cl] (map-indexed vector caplens)]
+      (let [offset (offsets idx)]
+        (doto bb
+          (.putInt (int offset) (int (if (< idx (dec (count caplens))) (nth sizes idx) 0)))
+          (.putInt (int (+ offset 4)) (int (+ 100 idx)))
+          (.putInt (int (+ offset 8)) (int 5000))
+          (.putInt (int (+ offset 12)) (int cl))
+          (.putInt (int (+ offset 16)) (int (+ cl 10)))
+          (.putShort (int (+ offset 24)) (short mac))
+          (.put (int (+ offset mac)) (byte idx)))))
+    bb))
+
+(test/deftest test-tpacket-v3-block-record-count
+  (test/is (= 3 (pcap-data/tpacket-v3-block-record-count (create-tpacket-v3-block [54 60 1500])))))
+
+(test/deftest test-process-tpacket-v3-block
+  (let [block (create-tpacket-v3-block [54 60 1500])]
+    (test/is (= [[0 54 64] [1 60 70] [2 1500 1510]]
+                (vec (pcap-data/process-tpacket-v3-block
+                       (fn [^ByteBuffer bb offset]
+                         [(.get bb (int (TpacketV3Ring/packetDataOffset bb offset)))
+                          (TpacketV3Ring/packetCaplen bb offset)
+                          (TpacketV3Ring/packetLen bb offset)])
+                       block))))))
+
+(test/deftest test-tpacket-v3-block->bulk
+  (let [bulk (pcap-data/tpacket-v3-block->bulk (create-tpacket-v3-block [54 60]))]
+    (test/is (= (+ 16 54 16 60) (.remaining bulk)))
+    (test/is (= 2 (pcap-data/bulk-record-count bulk)))
+    (test/is (= [101 5 60 70 1]
+                [(.getInt bulk 70) (.getInt bulk 74) (.getInt bulk 78) (.getInt bulk 82) (.get bulk 86)]))))
@@ -19,12 +19,18 @@
   clj-net-pcap.test.pcap-offline
   (:require
    (clojure [test :as test])
+   (clojure.core [reducers :as r])
    (clj-assorted-utils [util :as utils])
    (clj-net-pcap [core :as core])
    (clj-net-pcap [pcap :as pcap])
    (clj-net-pcap [pcap-data :as pcap-data]))
   (:import (org.jnetpcap.packet PcapPacketHandler)
-           (clj_net_pcap PacketHeaderDataBean)))
+           (clj_net_pcap PacketHeaderDataBean)
+           (clj_net_pcap PcapFileReader PcapRecordSpliterator ReadAheadInputStream)
+           (java.io File FileInputStream FileOutputStream InputStream IOException)
+           (java.nio ByteBuffer ByteOrder)
+           (java.nio.file Files)
+           (java.util.zip GZIPOutputStream)))
 
 (def test-file "test/clj_net_pcap/test/data/offline-test.pcap")
 
@@ -121,3 +127,363 @@
     (test/is (= 6 (count my-raw-data)))
     (test/is (vector? my-raw-data))
     (test/is (= utils/byte-array-type (type (my-raw-data 0))))))
+
+(test/deftest test-read-pcap-file-raw-records
+  (let [records (ref [])
+        cnt (core/read-pcap-file-raw test-file #(dosync (alter records conj %)))]
+    (test/is (= 6 cnt))
+    (test/is (= 6 (count @records)))
+    (test/is (every? #(= (.remaining ^ByteBuffer %) (+ 16 (.getInt ^ByteBuffer % 8))) @records))))
+
+(test/deftest test-read-pcap-file-raw-record-header-and-extraction
+  (let [records (ref [])
+        _ (core/read-pcap-file-raw "test/clj_net_pcap/test/data/icmp-echo-request.pcap"
+                                   #(dosync (alter records conj %)))
+        ^ByteBuffer record (first @records)]
+    (test/is (= [1365516583 196346 98 98]
+                [(.getInt record 0) (.getInt record 4) (.getInt record 8) (.getInt record 12)]))
+    (test/is (= {"ts" 1365516583196346000, "len" 98, "ipSrc" "192.168.20.126", "ipDst" "173.194.69.94"}
+                (select-keys (pcap-data/packet-byte-array-extract-map-ipv4-udp (.array record) 0)
+                             ["ts" "len" "ipSrc" "ipDst"])))))
+
+(test/deftest test-read-pcap-file-raw-bulks
+  (let [bulks (ref [])
+        cnt (binding [core/*bulk-size* 4]
+              (core/read-pcap-file-raw test-file #(dosync (alter bulks conj %))))]
+    (test/is (= 6 cnt))
+    (test/is (= [4 2] (map pcap-data/bulk-record-count @bulks)))
+    (test/is (= 6 (reduce + (map #(count (pcap-data/packet-byte-buffer-extract-map-ipv4-udp-bulk %)) @bulks))))))
+
+(test/deftest test-read-pcap-file-raw-byte-bounded-bulks
+  (let [bulks (ref [])
+        _ (binding [core/*bulk-size* 100
+                    core/*bulk-bytes* 1]
+            (core/read-pcap-file-raw test-file #(dosync (alter bulks conj %))))]
+    (test/is (= (repeat 6 1) (map pcap-data/bulk-record-count @bulks)))))
+
+(test/deftest test-read-pcap-file-raw-big-endian-nanosecond-file
+  (let [f (File/createTempFile "big-endian-ns" ".pcap")
+        header (doto (ByteBuffer/allocate 44)
+                 (.putInt (unchecked-int 0xa1b23c4d)) (.putShort 2) (.putShort 4)
+                 (.putInt 0) (.putInt 0) (.putInt 65535) (.putInt 1)
+                 (.putInt 5) (.putInt 7000) (.putInt 4) (.putInt 10)
+                 (.put (byte-array [1 2 3 4])))
+        records (ref [])]
+    (.deleteOnExit f)
+    (with-open [out (FileOutputStream. f)]
+      (.write out (.array header)))
+    (test/is (= 1 (core/read-pcap-file-raw (.getPath f) #(dosync (alter records conj %)))))
+    (let [^ByteBuffer record (first @records)]
+      (test/is (= [5 7 4 10 [1 2 3 4]]
+                  [(.getInt record 0) (.getInt record 4) (.getInt record 8) (.getInt record 12)
+                   (vec (drop 16 (.array record)))])))))
+
+(test/deftest test-read-pcap-file-raw-not-a-pcap-file
+  (test/is (thrown? IOException (core/read-pcap-file-raw "project.clj" identity))))
+
+(def temp-pcap-file-base-ts 1600000000)
+
+(defn write-temp-pcap-file
+  "Writes a little endian pcap file with one record per timestamp, in seconds relative to
+   temp-pcap-file-base-ts. The records have different sizes and start with the record index."
+  [timestamps]
+  (let [f (File/createTempFile "parallel" ".pcap")
+        caplen #(+ 4 (mod % 13))
+        buf (doto (.order (ByteBuffer/allocate (+ 24 (reduce + (map #(+ 16 (caplen %)) (range (count timestamps))))))
+                          ByteOrder/LITTLE_ENDIAN)
+              (.putInt (unchecked-int 0xa1b2c3d4)) (.putShort 2) (.putShort 4)
+              (.putInt 0) (.putInt 0) (.putInt 65535) (.putInt 1))]
+    (doseq [[idx ts] (map-indexed vector timestamps)]
+      (doto buf
+        (.putInt (+ temp-pcap-file-base-ts ts)) (.putInt (mod (* idx 7919) 1000000))
+        (.putInt (caplen idx)) (.putInt (+ 60 idx))
+        (.putInt idx) (.put (byte-array (- (caplen idx) 4)))))
+    (.deleteOnExit f)
+    (with-open [out (FileOutputStream. f)]
+      (.write out (.array buf)))
+    (.getPath f)))
+
+(defn record-index [^ByteBuffer record]
+  (.getInt (.order (.duplicate record) ByteOrder/LITTLE_ENDIAN) 16))
+
+(defn record-ts [^ByteBuffer record]
+  (- (.getInt record 0) temp-pcap-file-base-ts))
+
+(test/deftest test-pcap-record-spliterator-split-at-record-boundaries
+  (let [file-name (write-temp-pcap-file (range 1000))
+        chunks (PcapRecordSpliterator/split file-name 7)]
+    (test/is (= 7 (count chunks)))
+    (test/is (= (range 1000)
+                (mapcat (fn [^PcapRecordSpliterator s]
+                          (let [indices (java.util.ArrayList.)]
+                            (.forEachRemaining s (reify java.util.function.Consumer
+                                                   (accept [_ record] (.add indices (record-index record)))))
+                            indices))
+                        chunks)))))
+
+(test/deftest test-find-record-start
+  (let [file-name (write-temp-pcap-file (range 20))
+        ;;; Record offsets as written by write-temp-pcap-file.
+        offsets (vec (reductions + 24 (map #(+ 16 4 (mod % 13)) (range 20))))
+        r (PcapFileReader. ^String file-name)]
+    (try
+      (test/is (= (offsets 5) (.findRecordStart r (inc (offsets 4)) (.getFileSize r))))
+      (test/is (= (offsets 5) (.findRecordStart r (offsets 5) (inc (offsets 5)))))
+      ;;; The limit is exclusive.
+      (test/is (= -1 (.findRecordStart r (offsets 5) (offsets 5))))
+      (test/is (= -1 (.findRecordStart r (inc (offsets 4)) (offsets 5))))
+      ;;; The start of the last record cannot be confirmed by a following header.
+      (test/is (= (offsets 18) (.findRecordStart r (offsets 18) (.getFileSize r))))
+      (test/is (= -1 (.findRecordStart r (offsets 19) (.getFileSize r))))
+      (finally
+        (.close r)))))
+
+(test/deftest test-pcap-file-records-reduce
+  (test/is (= 6 (reduce (fn [cnt _] (inc cnt)) 0 (core/pcap-file-records test-file))))
+  (test/is (= 2 (reduce (fn [cnt _] (if (= 1 cnt) (reduced 2) (inc cnt))) 0 (core/pcap-file-records test-file))))
+  (test/is (= (range 1000) (into [] (map record-index) (core/pcap-file-records (write-temp-pcap-file (range 1000)))))))
+
+(test/deftest test-pcap-file-records-fold
+  (test/is (= 6 (r/fold + (fn [cnt _] (inc cnt)) (core/pcap-file-records test-file))))
+  (test/is (= (reduce + (range 1000))
+              (r/fold + (fn [sum record] (+ sum (record-index record)))
+                      (core/pcap-file-records (write-temp-pcap-file (range 1000)))))))
+
+(test/deftest test-pcap-file-record-stream
+  (with-open [^java.util.stream.Stream s (core/pcap-file-record-stream test-file false)]
+    (test/is (= 6 (.count s))))
+  (with-open [^java.util.stream.Stream s (core/pcap-file-record-stream test-file true)]
+    (test/is (= 6 (.count s))))
+  (with-open [^java.util.stream.Stream s (core/pcap-file-record-stream (write-temp-pcap-file (range 1000)) true)]
+    (test/is (.isPresent (.findFirst s)))))
+
+(test/deftest test-pcap-record-spliterator-close-all
+  (let [file-name (write-temp-pcap-file (range 1000))
+        first-half (PcapRecordSpliterator. ^String file-name 1024)
+        second-half (.trySplit first-half)
+        cnt (atom 0)
+        counter (reify java.util.function.Consumer
+                  (accept [_ _] (swap! cnt inc)))]
+    (test/is (some? second-half))
+    (test/is (.tryAdvance first-half counter))
+    (test/is (.tryAdvance second-half counter))
+    (.closeAll first-half)
+    (test/is (not (.tryAdvance first-half counter)))
+    (test/is (not (.tryAdvance second-half counter)))
+    (test/is (= 2 @cnt))))
+
+(test/deftest test-process-pcap-file-parallel
+  (let [expected (ref [])
+        _ (core/read-pcap-file-raw test-file #(dosync (alter expected conj (.getInt ^ByteBuffer % 12))))]
+    (test/is (= @expected (core/process-pcap-file-parallel test-file #(.getInt ^ByteBuffer % 12)))))
+  (test/is (= (range 1000)
+              (core/process-pcap-file-parallel (write-temp-pcap-file (range 1000)) record-index))))
+
+(test/deftest test-process-pcap-file-parallel-merge-by-timestamp
+  (let [timestamps (concat (range 500 1000) (range 0 500))
+        file-name (write-temp-pcap-file timestamps)]
+    (test/is (= timestamps
+                (core/process-pcap-file-parallel file-name record-ts)))
+    (test/is (= (range 1000)
+                (core/process-pcap-file-parallel file-name record-ts true)))))
+
+(defn pcapng-block
+  "Returns a pcapng block with the given type and body, which is padded to 32 bit."
+  [^ByteOrder order block-type ^bytes body]
+  (let [padded (* 4 (quot (+ 3 (alength body)) 4))
+        len (+ 12 padded)]
+    (.array (doto (.order (ByteBuffer/allocate len) order)
+              (.putInt block-type) (.putInt len) (.put body) (.position (+ 8 padded)) (.putInt len)))))
+
+(defn pcapng-section-header [^ByteOrder order]
+  (pcapng-block order 0x0a0d0d0a
+                (.array (doto (.order (ByteBuffer/allocate 16) order)
+                          (.putInt 0x1a2b3c4d) (.putShort 1) (.putShort 0) (.putLong -1)))))
+
+(defn pcapng-interface-description
+  "Returns an interface description block with an optional if_tsresol option."
+  [^ByteOrder order tsresol]
+  (let [buf (doto (.order (ByteBuffer/allocate 20) order)
+              (.putShort 1) (.putShort 0) (.putInt 65535))]
+    (when tsresol
+      (doto buf (.putShort 9) (.putShort 1) (.put (unchecked-byte tsresol)) (.put (byte-array 3))))
+    (pcapng-block order 1 (java.util.Arrays/copyOf (.array buf) (.position buf)))))
+
+(defn pcapng-enhanced-packet
+  ([order if-id ts ^bytes data]
+    (pcapng-enhanced-packet order if-id ts data (+ 10 (alength data))))
+  ([^ByteOrder order if-id ts ^bytes data len]
+    (pcapng-block order 6
+                  (.array (doto (.order (ByteBuffer/allocate (+ 20 (alength data))) order)
+                            (.putInt if-id) (.putInt (unchecked-int (bit-shift-right ts 32)))
+                            (.putInt (unchecked-int ts)) (.putInt (alength data)) (.putInt len)
+                            (.put data))))))
+
+(defn pcapng-packet
+  "Returns an obsolete packet block, which has a 16 bit interface id followed by a drops count."
+  [^ByteOrder order if-id ts ^bytes data len]
+  (pcapng-block order 2
+                (.array (doto (.order (ByteBuffer/allocate (+ 20 (alength data))) order)
+                          (.putShort if-id) (.putShort 0) (.putInt (unchecked-int (bit-shift-right ts 32)))
+                          (.putInt (unchecked-int ts)) (.putInt (alength data)) (.putInt len)
+                          (.put data)))))
+
+(defn pcapng-simple-packet
+  [^ByteOrder order ^bytes data len]
+  (pcapng-block order 3
+                (.array (doto (.order (ByteBuffer/allocate (+ 4 (alength data))) order)
+                          (.putInt len) (.put data)))))
+
+(defn write-temp-file [blocks]
+  (let [f (File/createTempFile "test" ".pcapng")]
+    (.deleteOnExit f)
+    (with-open [out (FileOutputStream. f)]
+      (doseq [^bytes b blocks]
+        (.write out b)))
+    (.getPath f)))
+
+(defn record-header [^ByteBuffer record]
+  [(.getInt record 0) (.getInt record 4) (.getInt record 8) (.getInt record 12)])
+
+(test/deftest test-read-pcapng-file-raw-records
+  (let [le ByteOrder/LITTLE_ENDIAN
+        be ByteOrder/BIG_ENDIAN
+        file-name (write-temp-file
+                    [(pcapng-section-header le)
+                     (pcapng-interface-description le nil)
+                     (pcapng-interface-description le 9)
+                     ; Name resolution block that has to be skipped.
+                     (pcapng-block le 4 (byte-array 20 (byte 6)))
+                     (pcapng-enhanced-packet le 0 1500000000123456 (byte-array [1 2 3]))
+                     (pcapng-enhanced-packet le 1 1500000000123456789 (byte-array [4 5 6 7 8]))
+                     (pcapng-section-header be)
+                     (pcapng-interface-description be 0x83)
+                     (pcapng-enhanced-packet be 0 (+ (* 1600000000 8) 4) (byte-array [9]))])
+        records (ref [])]
+    (test/is (= 3 (core/read-pcap-file-raw file-name #(dosync (alter records conj %)))))
+    (test/is (= [[1500000000 123456 3 13] [1500000000 123456 5 15] [1600000000 500000 1 11]]
+                (map record-header @records)))
+    (test/is (= [[1 2 3] [4 5 6 7 8] [9]] (map #(vec (drop 16 (.array ^ByteBuffer %))) @records)))))
+
+(test/deftest test-read-pcapng-file-raw-packet-blocks
+  (let [le ByteOrder/LITTLE_ENDIAN
+        be ByteOrder/BIG_ENDIAN
+        file-name (write-temp-file
+                    [(pcapng-section-header le)
+                     (pcapng-interface-description le nil)
+                     (pcapng-interface-description le 9)
+                     (pcapng-packet le 1 1500000000123456789 (byte-array [1 2 3]) 30)
+                     (pcapng-simple-packet le (byte-array [4 5 6 7 8]) 5)
+                     (pcapng-enhanced-packet le 0 1500000000123456 (byte-array [9]))
+                     (pcapng-section-header be)
+                     (pcapng-interface-description be nil)
+                     (pcapng-simple-packet be (byte-array [10 11]) 2)
+                     (pcapng-packet be 0 1600000000000001 (byte-array [12]) 20)])
+        records (ref [])
+        bulks (ref [])]
+    (test/is (= 5 (core/read-pcap-file-raw file-name #(dosync (alter records conj %)))))
+    (test/is (= [[1500000000 123456 3 30] [0 0 5 5] [1500000000 123456 1 11] [0 0 2 2] [1600000000 1 1 20]]
+                (map record-header @records)))
+    (test/is (= [[1 2 3] [4 5 6 7 8] [9] [10 11] [12]] (map #(vec (drop 16 (.array ^ByteBuffer %))) @records)))
+    (binding [core/*bulk-size* 4]
+      (core/read-pcap-file-raw file-name #(dosync (alter bulks conj %))))
+    (test/is (= [4 1] (map pcap-data/bulk-record-count @bulks)))))
+
+(test/deftest test-read-pcapng-file-raw-equals-pcap
+  (let [pcap-records (ref [])
+        _ (core/read-pcap-file-raw test-file #(dosync (alter pcap-records conj %)))
+        le ByteOrder/LITTLE_ENDIAN
+        file-name (write-temp-file
+                    (concat
+                      [(pcapng-section-header le) (pcapng-interface-description le nil)]
+                      (map (fn [^ByteBuffer r]
+                             (pcapng-enhanced-packet le 0 (+ (* (.getInt r 0) 1000000) (.getInt r 4))
+                                                     (java.util.Arrays/copyOfRange (.array r) 16 (.limit r))
+                                                     (.getInt r 12)))
+                           @pcap-records)))
+        pcapng-records (ref [])
+        _ (core/read-pcap-file-raw file-name #(dosync (alter pcapng-records conj %)))
+        bulks (ref [])
+        _ (binding [core/*bulk-size* 4]
+            (core/read-pcap-file-raw file-name #(dosync (alter bulks conj %))))]
+    (test/is (= 6 (count @pcapng-records)))
+    (test/is (= (map #(vec (drop 16 (.array ^ByteBuffer %))) @pcap-records)
+                (map #(vec (drop 16 (.array ^ByteBuffer %))) @pcapng-records)))
+    (test/is (= (map record-header @pcap-records) (map record-header @pcapng-records)))
+    (test/is (= (map #(pcap-data/packet-byte-array-extract-map-ipv4-udp (.array ^ByteBuffer %) 0) @pcap-records)
+                (map #(pcap-data/packet-byte-array-extract-map-ipv4-udp (.array ^ByteBuffer %) 0) @pcapng-records)))
+    (test/is (= [4 2] (map pcap-data/bulk-record-count @bulks)))))
+
+(defn write-temp-gzip-file
+  [src-file-name suffix]
+  (let [f (File/createTempFile "compressed" suffix)]
+    (.deleteOnExit f)
+    (with-open [out (GZIPOutputStream. (FileOutputStream. f))]
+      (Files/copy (.toPath (File. ^String src-file-name)) out))
+    (.getPath f)))
+
+(defn read-records [file-name]
+  (let [records (ref [])]
+    (core/read-pcap-file-raw file-name #(dosync (alter records conj %)))
+    (map #(vec (.array ^ByteBuffer %)) @records)))
+
+(test/deftest test-read-pcap-file-raw-gzip
+  (let [expected (read-records test-file)
+        file-name (write-temp-gzip-file test-file ".pcap.gz")]
+    (test/is (= 6 (count expected)))
+    (test/is (= expected (read-records file-name)))
+    (test/is (= expected (binding [core/*read-ahead-block-size* 7]
+                           (read-records file-name))))
+    (test/is (= expected (read-records (write-temp-gzip-file test-file ".bin"))))
+    (test/is (= 6 (reduce (fn [cnt _] (inc cnt)) 0 (core/pcap-file-records file-name))))))
+
+(test/deftest test-read-pcap-file-raw-gzip-bulks
+  (let [bulks (ref [])
+        cnt (binding [core/*bulk-size* 4]
+              (core/read-pcap-file-raw (write-temp-gzip-file test-file ".pcap.gz") #(dosync (alter bulks conj %))))]
+    (test/is (= 6 cnt))
+    (test/is (= [4 2] (map pcap-data/bulk-record-count @bulks)))
+    (test/is (= 6 (reduce + (map #(count (pcap-data/packet-byte-buffer-extract-map-ipv4-udp-bulk %)) @bulks))))))
+
+(test/deftest test-read-ahead-input-stream-runtime-exception
+  (let [in (proxy [InputStream] []
+             (read
+               ([] (throw (UnsupportedOperationException.)))
+               ([b off len] (throw (IllegalStateException. "read failed")))))
+        rais (ReadAheadInputStream. in 4 2)]
+    (test/is (thrown-with-msg? IllegalStateException #"read failed" (.read rais)))
+    (.close rais)))
+
+(test/deftest test-read-ahead-input-stream-close-waits-for-read
+  (let [reading (atom false)
+        read-during-close (atom nil)
+        in (proxy [InputStream] []
+             (read
+               ([] (throw (UnsupportedOperationException.)))
+               ([^bytes b off len]
+                (reset! reading true)
+                ;;; Unlike sleeping, busy waiting is not ended by the interrupt of close.
+                (let [end (+ (System/nanoTime) 50000000)]
+                  (while (< (System/nanoTime) end)))
+                (reset! reading false)
+                1))
+             (close []
+               (reset! read-during-close @reading)))
+        rais (ReadAheadInputStream. in 1024 2)]
+    (utils/sleep 10)
+    (.close rais)
+    (test/is (false? @read-during-close))
+    (.close rais)))
+
+(test/deftest test-register-input-codec
+  (let [codec-calls (atom 0)]
+    (core/register-input-codec ".test-codec" (fn [in] (swap! codec-calls inc) in))
+    (try
+      (let [f (File/createTempFile "uncompressed" ".test-codec")]
+        (.deleteOnExit f)
+        (Files/copy (.toPath (File. ^String test-file)) (.toPath f)
+                    ^"[Ljava.nio.file.CopyOption;" (into-array java.nio.file.CopyOption [java.nio.file.StandardCopyOption/REPLACE_EXISTING]))
+        (test/is (= (read-records test-file) (read-records (.getPath f))))
+        (test/is (= 1 @codec-calls)))
+      (finally
+        (swap! core/input-codecs dissoc ".test-codec")))))
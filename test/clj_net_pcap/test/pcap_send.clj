@@ -205,3 +205,45 @@
    (utils/sleep 300)
     (test/is (= 10 (cntr)))
     (core/stop-cljnetpcap cljnetpcap)))
+
+(test/deftest cljnetpcap-fanout-send-and-receive-bytes-packet-count-test
+  (let [ba (byte-array (map byte test-pkt-bytes))
+        cntr (utils/counter)
+        forwarder-fn (fn [_]
+                       (cntr inc))
+        cljnetpcap (binding [core/*fanout-count* 2
+                             core/*fanout-mode* :round-robin]
+                     (core/create-and-start-online-cljnetpcap forwarder-fn pcap/lo))
+        _ (core/add-filter cljnetpcap "icmp and (dst host 252.253.254.255) and (src host 1.2.3.4)")]
+   (utils/sleep 100)
+    (doseq [_ (repeat 10 1)]
+     (utils/sleep 10)
+      (cljnetpcap :send-bytes-packet ba))
+   (utils/sleep 300)
+    (test/is (= 10 (cntr)))
+    (let [stats (core/get-stats cljnetpcap)]
+      (test/is (= 2 (stats "fanout-count")))
+      (test/is (= 10 (stats "out-queued"))))
+    (test/is (= ["icmp and (dst host 252.253.254.255) and (src host 1.2.3.4)"] (core/get-filters cljnetpcap)))
+    (core/stop-cljnetpcap cljnetpcap)))
+
+(test/deftest cljnetpcap-ring-buffer-send-and-receive-bytes-packet-count-test
+  (let [ba (byte-array (map byte test-pkt-bytes))
+        cntr (utils/counter)
+        forwarder-fn (fn [_]
+                       (cntr inc))
+        cljnetpcap (binding [core/*queue-type* :ring-buffer
+                             core/*queue-wait-strategy* :block]
+                     (core/create-and-start-online-cljnetpcap forwarder-fn pcap/lo))
+        _ (core/add-filter cljnetpcap "icmp and (dst host 252.253.254.255) and (src host 1.2.3.4)")]
+   (utils/sleep 100)
+    (doseq [_ (repeat 10 1)]
+     (utils/sleep 10)
+      (cljnetpcap :send-bytes-packet ba))
+   (utils/sleep 300)
+    (test/is (= 10 (cntr)))
+    (let [stats (core/get-stats cljnetpcap)]
+      (test/is (= 10 (stats "buffer-queued")))
+      (test/is (= 10 (stats "scanner-queued")))
+      (test/is (= 10 (stats "out-queued"))))
+    (core/stop-cljnetpcap cljnetpcap)))
@@ -20,9 +20,12 @@
   (:require
    (clojure [test :as test])
    (clj-assorted-utils [util :as utils])
+   (clj-net-pcap [packet-gen :as pkt-gen])
    (clj-net-pcap [pcap :as pcap])
    (clj-net-pcap [sniffer :as sniffer]))
-  (:import (java.util.concurrent LinkedBlockingQueue)))
+  (:import (clj_net_pcap EndOfStream SpscRingBuffer)
+           (java.nio ByteBuffer)
+           (java.util.concurrent LinkedBlockingQueue TimeUnit)))
 
 (def receive-delay 1000)
 
@@ -49,6 +52,116 @@
     (test/is (utils/flag-set? was-run))
     (sniffer/stop-forwarder forwarder)))
 
+(test/deftest test-forwarder-spsc-ring-buffer
+  (let [received (ref [])
+        forwarder-fn (fn [x] (dosync (alter received conj x)))
+        queue (SpscRingBuffer. 16 SpscRingBuffer/BLOCK)
+        forwarder (sniffer/create-and-start-forwarder queue forwarder-fn false)]
+    (doseq [i (range 1000)]
+      (.put queue i))
+    (loop [i 0]
+      (when (and (< (count @received) 1000) (< i 100))
+        (utils/sleep 10)
+        (recur (inc i))))
+    (test/is (= (range 1000) @received))
+    (sniffer/stop-forwarder forwarder)))
+
+(test/deftest test-batch-forwarder
+  (let [batches (ref [])
+        forwarder-fn (fn [batch] (dosync (alter batches conj (vec batch))))
+        queue (LinkedBlockingQueue. ^java.util.Collection (range 1000))
+        forwarder (sniffer/create-and-start-batch-forwarder queue forwarder-fn false 64 0)]
+    (loop [i 0]
+      (when (and (< (count (mapcat identity @batches)) 1000) (< i 100))
+        (utils/sleep 10)
+        (recur (inc i))))
+    (test/is (= (range 1000) (mapcat identity @batches)))
+    (test/is (= 64 (count (first @batches))))
+    (test/is (every? #(<= 1 (count %) 64) @batches))
+    (sniffer/stop-forwarder forwarder)))
+
+(test/deftest test-batch-forwarder-max-wait
+  (let [batches (ref [])
+        forwarder-fn (fn [batch] (dosync (alter batches conj (vec batch))))
+        queue (LinkedBlockingQueue.)
+        forwarder (sniffer/create-and-start-batch-forwarder queue forwarder-fn false 2 5000)]
+    (.put queue 1)
+    (utils/sleep 100)
+    (test/is (empty? @batches))
+    (.put queue 2)
+    (loop [i 0]
+      (when (and (empty? @batches) (< i 100))
+        (utils/sleep 10)
+        (recur (inc i))))
+    (test/is (= [[1 2]] @batches))
+    (sniffer/stop-forwarder forwarder)))
+
+(defn- udp-record
+  "Byte array of a UDP packet with zeroed pcap header."
+  [eth-src eth-dst ip-src ip-dst udp-src udp-dst]
+  (byte-array
+    (concat (repeat 16 0)
+            (pkt-gen/generate-packet-data
+              {"len" 46, "ethSrc" eth-src, "ethDst" eth-dst,
+               "ipVer" 4, "ipDst" ip-dst, "ipId" 3, "ipType" 17,
+               "ipTtl" 7, "ipSrc" ip-src,
+               "udpSrc" udp-src, "udpDst" udp-dst, "data" "abcd"}))))
+
+(test/deftest test-flow-hash
+  (let [a->b (udp-record "01:02:03:04:05:06" "FF:FE:FD:F2:F1:F0" "1.2.3.4" "5.6.7.8" 2048 4096)
+        b->a (udp-record "FF:FE:FD:F2:F1:F0" "01:02:03:04:05:06" "5.6.7.8" "1.2.3.4" 4096 2048)
+        other-port (udp-record "01:02:03:04:05:06" "FF:FE:FD:F2:F1:F0" "1.2.3.4" "5.6.7.8" 2049 4096)
+        other-mac (udp-record "01:02:03:04:05:07" "FF:FE:FD:F2:F1:F0" "1.2.3.4" "5.6.7.8" 2048 4096)
+        with-offset (doto (ByteBuffer/allocate (+ 7 (alength ^bytes a->b)))
+                      (.position 7)
+                      (.put ^bytes a->b)
+                      (.position 7))]
+    (test/is (= (sniffer/packet-flow-hash a->b) (sniffer/packet-flow-hash b->a)))
+    (test/is (not= (sniffer/packet-flow-hash a->b) (sniffer/packet-flow-hash other-port)))
+    (test/is (= (sniffer/packet-flow-hash a->b) (sniffer/packet-flow-hash other-mac)))
+    (test/is (= (sniffer/packet-flow-hash a->b) (sniffer/packet-flow-hash with-offset)))
+    (test/is (= 0 (sniffer/packet-flow-hash (byte-array 20))))
+    (test/is (thrown? IllegalArgumentException (sniffer/packet-flow-hash 123)))))
+
+(test/deftest test-sharded-forwarder
+  (let [received (ref {})
+        forwarder-fn (fn [pkt]
+                       (dosync (alter received update (sniffer/packet-flow-hash pkt)
+                                      (fnil conj #{}) (.getName (Thread/currentThread)))))
+        queue (LinkedBlockingQueue.)
+        shard-queues (repeatedly 4 #(LinkedBlockingQueue.))
+        forwarder (sniffer/create-and-start-sharded-forwarder
+                    queue shard-queues forwarder-fn sniffer/packet-flow-hash false)
+        flows (for [i (range 32)]
+                [(udp-record "01:02:03:04:05:06" "FF:FE:FD:F2:F1:F0" "1.2.3.4" "5.6.7.8" (+ 1024 i) 80)
+                 (udp-record "FF:FE:FD:F2:F1:F0" "01:02:03:04:05:06" "5.6.7.8" "1.2.3.4" 80 (+ 1024 i))])]
+    (doseq [_ (range 10) [a->b b->a] flows]
+      (.put queue a->b)
+      (.put queue b->a))
+    (loop [i 0]
+      (when (and (some #(pos? (.size ^LinkedBlockingQueue %)) (cons queue shard-queues)) (< i 100))
+        (utils/sleep 10)
+        (recur (inc i))))
+    (utils/sleep 100)
+    (test/is (= 32 (count @received)))
+    (test/is (every? #(= 1 (count %)) (vals @received)))
+    (test/is (< 1 (count (distinct (mapcat identity (vals @received))))))
+    (sniffer/stop-forwarder forwarder)))
+
+(test/deftest test-forwarders-complete-end-of-stream
+  (doseq [start-fn [#(sniffer/create-and-start-forwarder %1 %2 false)
+                    #(sniffer/create-and-start-batch-forwarder %1 (fn [batch] (doseq [x batch] (%2 x))) false 16 0)
+                    #(sniffer/create-and-start-sharded-forwarder
+                       %1 (repeatedly 4 (fn [] (LinkedBlockingQueue.))) %2 identity false)]]
+    (let [processed (atom 0)
+          queue (LinkedBlockingQueue. ^java.util.Collection (range 100))
+          eos (EndOfStream.)
+          forwarder (start-fn queue (fn [_] (utils/sleep 1) (swap! processed inc)))]
+      (.put queue eos)
+      (test/is (.await eos 10 TimeUnit/SECONDS))
+      (test/is (= 100 @processed))
+      (sniffer/stop-forwarder forwarder))))
+
 (test/deftest sniffer-forwarder-interaction
   (let [was-run (utils/prepare-flag)
         queue (LinkedBlockingQueue.)